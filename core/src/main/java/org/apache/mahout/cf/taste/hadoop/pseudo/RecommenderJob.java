@@ -54,6 +54,11 @@ import org.apache.mahout.math.VarLongWritable;
  * argument.</li>
  * <li>--numRecommendations (integer): Number of recommendations to compute per user</li>
  * <li>--usersFile (path): file containing user IDs to recommend for (optional)</li>
+ * <li>--batchSize (integer): Number of users to recommend to at once, if the {@link Recommender} is a
+ * {@link org.apache.mahout.cf.taste.recommender.BatchRecommender} (optional; default 100)</li>
+ * <li>--batchThreads (integer): Number of threads to recommend to a block of users from, if the
+ * {@link Recommender} is an {@link org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender}
+ * (optional; default is the number of processors)</li>
  * </ol>
  *
  * <p>General command line options are documented in {@link AbstractJob}.</p>
@@ -111,9 +116,13 @@ public final class RecommenderJob extends AbstractJob {
       "Number of recommendations per user", "10");
     Option usersFileOpt = AbstractJob.buildOption("usersFile", "u", "Number of recommendations per user",
       null);
+    Option batchSizeOpt = AbstractJob.buildOption("batchSize", "b",
+      "Number of users to recommend to at once, if the recommender can", "100");
+    Option batchThreadsOpt = AbstractJob.buildOption("batchThreads", "t",
+      "Number of threads to recommend to a block of users from; default is the number of processors", null);
     
     Map<String,String> parsedArgs = AbstractJob.parseArguments(args, recommendClassOpt,
-      numReccomendationsOpt, usersFileOpt);
+      numReccomendationsOpt, usersFileOpt, batchSizeOpt, batchThreadsOpt);
     if (parsedArgs == null) {
       return -1;
     }
@@ -135,6 +144,11 @@ public final class RecommenderJob extends AbstractJob {
     
     jobConf.set(RecommenderReducer.RECOMMENDER_CLASS_NAME, recommendClassName);
     jobConf.setInt(RecommenderReducer.RECOMMENDATIONS_PER_USER, recommendationsPerUser);
+    jobConf.setInt(RecommenderReducer.BATCH_SIZE, Integer.parseInt(parsedArgs.get("--batchSize")));
+    String batchThreads = parsedArgs.get("--batchThreads");
+    if (batchThreads != null) {
+      jobConf.setInt(RecommenderReducer.BATCH_THREADS, Integer.parseInt(batchThreads));
+    }
     jobConf.set(RecommenderReducer.DATA_MODEL_FILE, inputFile);
     jobConf.setClass("mapred.output.compression.codec", GzipCodec.class, CompressionCodec.class);
     
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -35,7 +36,9 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.hadoop.RecommendedItemsWritable;
 import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
+import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.BatchRecommender;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.apache.mahout.math.VarLongWritable;
@@ -47,6 +50,12 @@ import org.apache.mahout.math.VarLongWritable;
  * {@link RecommendedItemsWritable}.
  * </p>
  * 
+ * <p>
+ * If the {@link Recommender} is a {@link BatchRecommender}, user IDs are collected into blocks which are
+ * recommended to at once, and the output of a block is written when it is full, or when the reducer closes.
+ * The number of threads a block is recommended to from can be set for an {@link AbstractRecommender}.
+ * </p>
+ * 
  * @see RecommenderJob
  */
 public final class RecommenderReducer extends MapReduceBase implements
@@ -55,9 +64,15 @@ public final class RecommenderReducer extends MapReduceBase implements
   static final String RECOMMENDER_CLASS_NAME = "recommenderClassName";
   static final String RECOMMENDATIONS_PER_USER = "recommendationsPerUser";
   static final String DATA_MODEL_FILE = "dataModelFile";
+  static final String BATCH_SIZE = "recommendationBatchSize";
+  static final String BATCH_THREADS = "recommendationBatchThreads";
 
   private Recommender recommender;
   private int recommendationsPerUser;
+  private long[] batchUserIDs;
+  private int batchCount;
+  private OutputCollector<VarLongWritable,RecommendedItemsWritable> output;
+  private Reporter reporter;
 
   @Override
   public void configure(JobConf jobConf) {
@@ -91,6 +106,13 @@ public final class RecommenderReducer extends MapReduceBase implements
       throw new IllegalStateException(ite.getCause());
     }
     recommendationsPerUser = jobConf.getInt(RECOMMENDATIONS_PER_USER, 10);
+    if (recommender instanceof BatchRecommender) {
+      batchUserIDs = new long[jobConf.getInt(BATCH_SIZE, 100)];
+      int batchThreads = jobConf.getInt(BATCH_THREADS, 0);
+      if (batchThreads > 0 && recommender instanceof AbstractRecommender) {
+        ((AbstractRecommender) recommender).setBatchThreads(batchThreads);
+      }
+    }
   }
   
   @Override
@@ -99,12 +121,49 @@ public final class RecommenderReducer extends MapReduceBase implements
                      OutputCollector<VarLongWritable,RecommendedItemsWritable> output,
                      Reporter reporter) throws IOException {
     long userID = key.get();
+    if (batchUserIDs != null) {
+      this.output = output;
+      this.reporter = reporter;
+      batchUserIDs[batchCount++] = userID;
+      if (batchCount == batchUserIDs.length) {
+        flushBatch();
+      }
+      return;
+    }
     List<RecommendedItem> recommendedItems;
     try {
       recommendedItems = recommender.recommend(userID, recommendationsPerUser);
     } catch (TasteException te) {
       throw new IllegalStateException(te);
     }
+    write(key, recommendedItems, output, reporter);
+  }
+  
+  @Override
+  public void close() throws IOException {
+    if (batchCount > 0) {
+      flushBatch();
+    }
+  }
+  
+  private void flushBatch() throws IOException {
+    long[] userIDs = batchCount == batchUserIDs.length ? batchUserIDs : Arrays.copyOf(batchUserIDs, batchCount);
+    List<List<RecommendedItem>> recommendations;
+    try {
+      recommendations = ((BatchRecommender) recommender).recommend(userIDs, recommendationsPerUser);
+    } catch (TasteException te) {
+      throw new IllegalStateException(te);
+    }
+    for (int i = 0; i < userIDs.length; i++) {
+      write(new VarLongWritable(userIDs[i]), recommendations.get(i), output, reporter);
+    }
+    batchCount = 0;
+  }
+  
+  private static void write(VarLongWritable key,
+                            List<RecommendedItem> recommendedItems,
+                            OutputCollector<VarLongWritable,RecommendedItemsWritable> output,
+                            Reporter reporter) throws IOException {
     Iterator<RecommendedItem> it = recommendedItems.iterator();
     while (it.hasNext()) {
       if (Float.isNaN(it.next().getValue())) {
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.hadoop.slopeone;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.mahout.math.Varint;
+
+/**
+ * A {@link Writable} encapsulating the average diff of a pair of items and the number of diffs averaged. Its
+ * string form is just the average, as the text output of {@link SlopeOneAverageDiffsJob} has always been.
+ */
+public final class AverageDiffWritable implements Writable, Cloneable {
+
+  private float average;
+  private int count;
+
+  public AverageDiffWritable() {
+    // do nothing
+  }
+
+  public AverageDiffWritable(float average, int count) {
+    this.average = average;
+    this.count = count;
+  }
+
+  public float getAverage() {
+    return average;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public void set(float average, int count) {
+    this.average = average;
+    this.count = count;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeFloat(average);
+    Varint.writeUnsignedVarInt(count, out);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    average = in.readFloat();
+    count = Varint.readUnsignedVarInt(in);
+  }
+
+  @Override
+  public int hashCode() {
+    return Float.floatToIntBits(average) ^ count;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof AverageDiffWritable)) {
+      return false;
+    }
+    AverageDiffWritable other = (AverageDiffWritable) o;
+    return average == other.getAverage() && count == other.getCount();
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(average);
+  }
+
+  @Override
+  public AverageDiffWritable clone() {
+    return new AverageDiffWritable(average, count);
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.hadoop.slopeone;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.apache.mahout.cf.taste.hadoop.EntityEntityWritable;
+import org.apache.mahout.cf.taste.impl.recommender.slopeone.file.DiffFile;
+
+/**
+ * Writes average diffs as a {@link DiffFile}, which
+ * {@link org.apache.mahout.cf.taste.impl.recommender.slopeone.file.FileDiffStorage} maps directly. Keys must
+ * arrive in order, so the job writing it should have a single reducer. Like the in-memory storages, it
+ * leaves out pairs with only one diff.
+ */
+public final class DiffFileOutputFormat extends FileOutputFormat<EntityEntityWritable,AverageDiffWritable> {
+
+  @Override
+  public RecordWriter<EntityEntityWritable,AverageDiffWritable> getRecordWriter(FileSystem ignored,
+                                                                                 JobConf job,
+                                                                                 String name,
+                                                                                 Progressable progress)
+    throws IOException {
+    Path file = FileOutputFormat.getTaskOutputPath(job, name);
+    FileSystem fs = file.getFileSystem(job);
+    final DiffFile.Writer writer = new DiffFile.Writer(fs.create(file, progress));
+    return new RecordWriter<EntityEntityWritable,AverageDiffWritable>() {
+      @Override
+      public void write(EntityEntityWritable key, AverageDiffWritable value) throws IOException {
+        if (value.getCount() > 1) {
+          writer.add(key.getAID(), key.getBID(), value.getAverage(), value.getCount());
+        }
+      }
+      @Override
+      public void close(Reporter reporter) throws IOException {
+        writer.close();
+      }
+    };
+  }
+
+}
@@ -20,6 +20,7 @@ package org.apache.mahout.cf.taste.hadoop.slopeone;
 import java.io.IOException;
 import java.util.Map;
 
+import org.apache.commons.cli2.Option;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -38,12 +39,25 @@ import org.apache.mahout.cf.taste.hadoop.EntityPrefWritable;
 import org.apache.mahout.cf.taste.hadoop.ToItemPrefsMapper;
 import org.apache.mahout.math.VarLongWritable;
 
+/**
+ * <p>Computes the average diff of each pair of items rated by the same users, for
+ * {@link org.apache.mahout.cf.taste.impl.recommender.slopeone.file.FileDiffStorage}.</p>
+ *
+ * <p>By default the averages are written as gzipped text, one tab-separated line of
+ * <code>itemID1 itemID2 diff</code> per pair.
+ * With <code>--binaryDiffs true</code> they are written instead by a single reducer as one
+ * {@link org.apache.mahout.cf.taste.impl.recommender.slopeone.file.DiffFile}, <code>part-00000</code>, which
+ * the storage memory-maps rather than parses.</p>
+ */
 public final class SlopeOneAverageDiffsJob extends AbstractJob {
   
   @Override
   public int run(String[] args) throws IOException {
     
-    Map<String,String> parsedArgs = AbstractJob.parseArguments(args);
+    Option binaryDiffsOpt = AbstractJob.buildOption("binaryDiffs", "bd",
+      "Write the averages as one memory-mappable diff file", Boolean.FALSE.toString());
+    
+    Map<String,String> parsedArgs = AbstractJob.parseArguments(args, binaryDiffsOpt);
     if (parsedArgs == null) {
       return -1;
     }
@@ -52,6 +66,7 @@ public final class SlopeOneAverageDiffsJob extends AbstractJob {
     String prefsFile = originalConf.get("mapred.input.dir");
     String outputPath = originalConf.get("mapred.output.dir");
     String averagesOutputPath = parsedArgs.get("--tempDir");
+    boolean binaryDiffs = Boolean.valueOf(parsedArgs.get("--binaryDiffs"));
     
     JobConf prefsToDiffsJobConf = prepareJobConf(prefsFile, averagesOutputPath,
       TextInputFormat.class, ToItemPrefsMapper.class, VarLongWritable.class, EntityPrefWritable.class,
@@ -61,10 +76,15 @@ public final class SlopeOneAverageDiffsJob extends AbstractJob {
     
     JobConf diffsToAveragesJobConf = prepareJobConf(averagesOutputPath, outputPath,
       SequenceFileInputFormat.class, IdentityMapper.class, EntityEntityWritable.class, FloatWritable.class,
-      SlopeOneDiffsToAveragesReducer.class, EntityEntityWritable.class, FloatWritable.class,
-      TextOutputFormat.class);
-    diffsToAveragesJobConf.setClass("mapred.output.compression.codec", GzipCodec.class,
-      CompressionCodec.class);
+      SlopeOneDiffsToAveragesReducer.class, EntityEntityWritable.class, AverageDiffWritable.class,
+      binaryDiffs ? DiffFileOutputFormat.class : TextOutputFormat.class);
+    if (binaryDiffs) {
+      // the diff file is written in key order, so all keys must go to one reducer
+      diffsToAveragesJobConf.setNumReduceTasks(1);
+    } else {
+      diffsToAveragesJobConf.setClass("mapred.output.compression.codec", GzipCodec.class,
+        CompressionCodec.class);
+    }
     JobClient.runJob(diffsToAveragesJobConf);
     return 0;
   }
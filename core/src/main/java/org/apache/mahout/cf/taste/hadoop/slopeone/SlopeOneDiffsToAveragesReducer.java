@@ -28,12 +28,12 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.mahout.cf.taste.hadoop.EntityEntityWritable;
 
 public final class SlopeOneDiffsToAveragesReducer extends MapReduceBase implements
-    Reducer<EntityEntityWritable,FloatWritable, EntityEntityWritable,FloatWritable> {
+    Reducer<EntityEntityWritable,FloatWritable, EntityEntityWritable,AverageDiffWritable> {
   
   @Override
   public void reduce(EntityEntityWritable key,
                      Iterator<FloatWritable> values,
-                     OutputCollector<EntityEntityWritable,FloatWritable> output,
+                     OutputCollector<EntityEntityWritable,AverageDiffWritable> output,
                      Reporter reporter) throws IOException {
     int count = 0;
     double total = 0.0;
@@ -41,6 +41,6 @@ public final class SlopeOneDiffsToAveragesReducer extends MapReduceBase implemen
       total += values.next().get();
       count++;
     }
-    output.collect(key, new FloatWritable((float) (total / count)));
+    output.collect(key, new AverageDiffWritable((float) (total / count), count));
   }
 }
\ No newline at end of file
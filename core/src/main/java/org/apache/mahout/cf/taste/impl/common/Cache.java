@@ -17,6 +17,13 @@
 
 package org.apache.mahout.cf.taste.impl.common;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
 import org.apache.mahout.cf.taste.common.TasteException;
 
 /**
@@ -31,6 +38,14 @@ import org.apache.mahout.cf.taste.common.TasteException;
  * </p>
  * 
  * <p>
+ * Keys are spread over several segments, each with its own lock, so that threads looking up different keys
+ * rarely wait for each other. A value is retrieved only once however many threads miss on its key at the same
+ * time: the first one retrieves it while the others wait for its result. When the cache has a maximum size,
+ * each segment evicts its least recently used entries. {@link #getHitCount()}, {@link #getMissCount()},
+ * {@link #getLoadCount()} and {@link #getTotalLoadTime()} tell how well the cache works.
+ * </p>
+ * 
+ * <p>
  * Thanks to Amila Jayasooriya for helping evaluate performance of the rewrite of this class, as part of a
  * Google Summer of Code 2007 project.
  * </p>
@@ -38,8 +53,10 @@ import org.apache.mahout.cf.taste.common.TasteException;
 public final class Cache<K,V> implements Retriever<K,V> {
 
   private static final Object NULL = new Object();
+  private static final int MAX_SEGMENTS = 64;
   
-  private final FastMap<K,V> cache;
+  private final Segment<K,V>[] segments;
+  private final int segmentShift;
   private final Retriever<? super K,? extends V> retriever;
   
   /**
@@ -71,8 +88,31 @@ public final class Cache<K,V> implements Retriever<K,V> {
     if (maxEntries < 1) {
       throw new IllegalArgumentException("maxEntries must be at least 1");
     }
-    cache = new FastMap<K,V>(11, maxEntries);
     this.retriever = retriever;
+    // a power of two, about twice the number of processors, but no more than entries
+    int numSegments = 1;
+    int shift = 32;
+    int wanted = Math.min(Math.min(MAX_SEGMENTS, 2 * Runtime.getRuntime().availableProcessors()), maxEntries);
+    while (numSegments < wanted) {
+      numSegments <<= 1;
+      shift--;
+    }
+    segmentShift = shift;
+    int maxSegmentEntries =
+        maxEntries == FastMap.NO_MAX_SIZE ? FastMap.NO_MAX_SIZE : (maxEntries + numSegments - 1) / numSegments;
+    segments = (Segment<K,V>[]) new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment<K,V>(maxSegmentEntries);
+    }
+  }
+  
+  private Segment<K,V> segmentFor(Object key) {
+    if (segmentShift == 32) {
+      return segments[0];
+    }
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return segments[(hash * 0x9E3779B9) >>> segmentShift];
   }
   
   /**
@@ -88,14 +128,40 @@ public final class Cache<K,V> implements Retriever<K,V> {
    */
   @Override
   public V get(K key) throws TasteException {
-    V value;
-    synchronized (cache) {
-      value = cache.get(key);
+    Segment<K,V> segment = segmentFor(key);
+    Load<K,V> load;
+    boolean loading = false;
+    synchronized (segment) {
+      V value = segment.map.get(key);
+      if (value != null) {
+        segment.hits++;
+        return value == NULL ? null : value;
+      }
+      segment.misses++;
+      load = segment.loads.get(key);
+      if (load == null) {
+        load = new Load<K,V>(retriever, key);
+        segment.loads.put(key, load);
+        loading = true;
+      }
     }
-    if (value == null) {
-      return getAndCacheValue(key);
+    if (loading) {
+      long start = System.nanoTime();
+      load.run();
+      long time = System.nanoTime() - start;
+      synchronized (segment) {
+        segment.loads.remove(key);
+        segment.loadCount++;
+        segment.loadTime += time;
+        if (!load.invalidated) {
+          V value = load.getValueIfLoaded();
+          if (value != null) {
+            segment.map.put(key, value);
+          }
+        }
+      }
     }
-    return value == NULL ? null : value;
+    return load.getValue();
   }
   
   /**
@@ -107,8 +173,14 @@ public final class Cache<K,V> implements Retriever<K,V> {
    *          cache key
    */
   public void remove(K key) {
-    synchronized (cache) {
-      cache.remove(key);
+    Segment<K,V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.map.remove(key);
+      Load<K,V> load = segment.loads.get(key);
+      if (load != null) {
+        // the value being retrieved may predate the reason for removing it
+        load.invalidated = true;
+      }
     }
   }
   
@@ -118,17 +190,130 @@ public final class Cache<K,V> implements Retriever<K,V> {
    * </p>
    */
   public void clear() {
-    synchronized (cache) {
-      cache.clear();
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        segment.map.clear();
+        for (Load<K,V> load : segment.loads.values()) {
+          load.invalidated = true;
+        }
+      }
+    }
+  }
+  
+  /**
+   * <p>
+   * Retrieves the values of all cached keys again, replacing each one as soon as it is retrieved. Meanwhile
+   * the other values keep being served, so that unlike {@link #clear()} this does not make every following
+   * {@link #get(Object)} miss at once. This is meant for refreshing the cache after the data behind its
+   * {@link Retriever} changed. Keys removed, or a cache cleared, in the meantime stay so, and values still
+   * being retrieved when it reaches their segment are not cached.
+   * </p>
+   * 
+   * @throws TasteException
+   *           if an exception occurs while retrieving a value; the keys not yet retrieved again are then
+   *           removed, so that no value predating the change is served afterwards
+   */
+  public void rebuild() throws TasteException {
+    for (int s = 0; s < segments.length; s++) {
+      Segment<K,V> segment = segments[s];
+      List<K> keys;
+      synchronized (segment) {
+        keys = new ArrayList<K>(segment.map.keySet());
+        // values being retrieved may predate the change which the cache is rebuilt for
+        for (Load<K,V> load : segment.loads.values()) {
+          load.invalidated = true;
+        }
+      }
+      int rebuilt = 0;
+      try {
+        for (K key : keys) {
+          V value = retriever.get(key);
+          synchronized (segment) {
+            // keys are replaced from least to most recently used, which keeps that order
+            if (segment.map.containsKey(key)) {
+              segment.map.put(key, value == null ? (V) NULL : value);
+            }
+          }
+          rebuilt++;
+        }
+      } catch (TasteException te) {
+        removeNotRebuilt(s, keys, rebuilt);
+        throw te;
+      } catch (RuntimeException re) {
+        removeNotRebuilt(s, keys, rebuilt);
+        throw re;
+      }
+    }
+  }
+  
+  /** Removes the keys from the given one of a segment on, and every key of the following segments. */
+  private void removeNotRebuilt(int failedSegment, List<K> keys, int rebuilt) {
+    Segment<K,V> segment = segments[failedSegment];
+    synchronized (segment) {
+      for (K key : keys.subList(rebuilt, keys.size())) {
+        segment.map.remove(key);
+      }
+    }
+    for (int s = failedSegment + 1; s < segments.length; s++) {
+      synchronized (segments[s]) {
+        segments[s].map.clear();
+      }
+    }
+  }
+  
+  /** @return number of lookups which found a cached value */
+  public long getHitCount() {
+    long count = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        count += segment.hits;
+      }
+    }
+    return count;
+  }
+  
+  /** @return number of lookups which found no cached value, whether they retrieved it or waited for it */
+  public long getMissCount() {
+    long count = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        count += segment.misses;
+      }
+    }
+    return count;
+  }
+  
+  /** @return number of calls to the {@link Retriever}, not counting those of {@link #rebuild()} */
+  public long getLoadCount() {
+    long count = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        count += segment.loadCount;
+      }
+    }
+    return count;
+  }
+  
+  /** @return total time spent in the calls counted by {@link #getLoadCount()}, in nanoseconds */
+  public long getTotalLoadTime() {
+    long time = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        time += segment.loadTime;
+      }
     }
+    return time;
   }
   
-  private V getAndCacheValue(K key) throws TasteException {
-    V value = retriever.get(key);
-    synchronized (cache) {
-      cache.put(key, value == null ? (V) NULL : value);
+  /** @return number of entries evicted to keep the cache within its maximum size */
+  public long getEvictionCount() {
+    long count = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        count += segment.map.evictions;
+      }
     }
-    return value;
+    return count;
   }
   
   @Override
@@ -136,4 +321,99 @@ public final class Cache<K,V> implements Retriever<K,V> {
     return "Cache[retriever:" + retriever + ']';
   }
   
+  /** One stripe of the cache; guarded by its own monitor. */
+  private static final class Segment<K,V> {
+  
+    private final LRUMap<K,V> map;
+    /** values being retrieved, so that other threads missing on the same key wait for them */
+    private final Map<K,Load<K,V>> loads;
+    private long hits;
+    private long misses;
+    private long loadCount;
+    private long loadTime;
+  
+    private Segment(int maxEntries) {
+      map = new LRUMap<K,V>(maxEntries);
+      loads = new HashMap<K,Load<K,V>>();
+    }
+  
+  }
+  
+  /** A map in access order which drops its least recently used entry when it grows beyond its maximum size. */
+  private static final class LRUMap<K,V> extends LinkedHashMap<K,V> {
+  
+    private final int maxEntries;
+    private long evictions;
+  
+    private LRUMap(int maxEntries) {
+      super(16, 0.75f, true);
+      this.maxEntries = maxEntries;
+    }
+  
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+      if (size() > maxEntries) {
+        evictions++;
+        return true;
+      }
+      return false;
+    }
+  
+  }
+  
+  /** Retrieval of one value, which the thread that started it runs and other threads wait for. */
+  private static final class Load<K,V> {
+  
+    private final Retriever<? super K,? extends V> retriever;
+    private final K key;
+    private final CountDownLatch done;
+    /** written before done counts down, read after */
+    private V value;
+    private TasteException tasteException;
+    private RuntimeException runtimeException;
+    /** set, under the segment's lock, when the value must not be cached */
+    private boolean invalidated;
+  
+    private Load(Retriever<? super K,? extends V> retriever, K key) {
+      this.retriever = retriever;
+      this.key = key;
+      done = new CountDownLatch(1);
+    }
+  
+    private void run() {
+      try {
+        V retrieved = retriever.get(key);
+        value = retrieved == null ? (V) NULL : retrieved;
+      } catch (TasteException te) {
+        tasteException = te;
+      } catch (RuntimeException re) {
+        runtimeException = re;
+      } finally {
+        done.countDown();
+      }
+    }
+  
+    /** @return the retrieved value, or null if retrieving it failed; only called by the retrieving thread */
+    private V getValueIfLoaded() {
+      return value;
+    }
+  
+    private V getValue() throws TasteException {
+      try {
+        done.await();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new TasteException(ie);
+      }
+      if (tasteException != null) {
+        throw tasteException;
+      }
+      if (runtimeException != null) {
+        throw runtimeException;
+      }
+      return value == NULL ? null : value;
+    }
+  
+  }
+  
 }
@@ -0,0 +1,437 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.common;
+
+import java.util.Arrays;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.common.RandomUtils;
+
+/**
+ * <p>
+ * Like {@link Cache}, but for <code>double</code> values keyed by two <code>long</code>s, such as the
+ * similarity of two items or the estimated preference of a user for an item. Keys and values are kept in
+ * primitive arrays, hashed as in {@link FastByIDMap}, so that looking a value up allocates no key object and
+ * boxes no value.
+ * </p>
+ *
+ * <p>
+ * Like {@link Cache}, it is split into segments with their own lock, and evicts entries that were not
+ * recently accessed when it has a maximum size, as {@link FastByIDMap} does. Unlike it, two threads which miss
+ * on the same key at the same time may both retrieve its value, which is meant to be cheap to compute
+ * compared to the cost of coordinating them. <code>NaN</code> is cached like any other value. A value
+ * retrieved while its segment was removed from, cleared or rebuilt is returned but not cached, as it may
+ * predate the change.
+ * </p>
+ *
+ * <p>
+ * The first key may not be {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}, which mark free slots.
+ * </p>
+ */
+public final class LongPairCache {
+
+  /** Computes the value of a pair of keys, like a {@link Retriever}. */
+  public interface ValueRetriever {
+    double get(long key1, long key2) throws TasteException;
+  }
+
+  private static final double ALLOWED_LOAD_FACTOR = 1.5;
+  private static final long REMOVED = Long.MAX_VALUE;
+  private static final long NULL = Long.MIN_VALUE;
+  private static final int MAX_SEGMENTS = 64;
+
+  private final Segment[] segments;
+  private final int segmentShift;
+  private final ValueRetriever retriever;
+
+  /**
+   * @param retriever
+   *          object which can retrieve values for pairs of keys
+   */
+  public LongPairCache(ValueRetriever retriever) {
+    this(retriever, FastByIDMap.NO_MAX_SIZE);
+  }
+
+  /**
+   * @param retriever
+   *          object which can retrieve values for pairs of keys
+   * @param maxEntries
+   *          maximum number of entries the cache will store before evicting some
+   */
+  public LongPairCache(ValueRetriever retriever, int maxEntries) {
+    if (retriever == null) {
+      throw new IllegalArgumentException("retriever is null");
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    this.retriever = retriever;
+    int numSegments = 1;
+    int shift = 32;
+    int wanted = Math.min(Math.min(MAX_SEGMENTS, 2 * Runtime.getRuntime().availableProcessors()), maxEntries);
+    while (numSegments < wanted) {
+      numSegments <<= 1;
+      shift--;
+    }
+    segmentShift = shift;
+    int maxSegmentEntries = maxEntries == FastByIDMap.NO_MAX_SIZE
+        ? FastByIDMap.NO_MAX_SIZE : (maxEntries + numSegments - 1) / numSegments;
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment(maxSegmentEntries);
+    }
+  }
+
+  private static long mix(long key1, long key2) {
+    return (key1 * 0x9E3779B97F4A7C15L ^ key2) * 0xC2B2AE3D27D4EB4FL;
+  }
+
+  private Segment segmentFor(long hash) {
+    return segmentShift == 32 ? segments[0] : segments[(int) (hash >>> 32) >>> segmentShift];
+  }
+
+  /**
+   * @return cached value for the keys, retrieved with the {@link ValueRetriever} if not cached
+   * @throws TasteException
+   *           if an exception occurs while retrieving a new value
+   */
+  public double get(long key1, long key2) throws TasteException {
+    if ((key1 == NULL) || (key1 == REMOVED)) {
+      throw new IllegalArgumentException();
+    }
+    long hash = mix(key1, key2);
+    Segment segment = segmentFor(hash);
+    long generation;
+    synchronized (segment) {
+      int index = segment.find(key1, key2, (int) hash);
+      if (segment.keys1[index] != NULL) {
+        segment.hits++;
+        if (segment.countingAccesses) {
+          segment.recentlyAccessed.set(index);
+        }
+        return segment.values[index];
+      }
+      segment.misses++;
+      generation = segment.generation;
+    }
+    double value = retriever.get(key1, key2);
+    synchronized (segment) {
+      // a value retrieved before a remove, clear or rebuild of the segment may predate the reason for it
+      if (segment.generation == generation) {
+        segment.put(key1, key2, (int) hash, value);
+      }
+    }
+    return value;
+  }
+
+  /** Uncaches any existing value for the keys. */
+  public void remove(long key1, long key2) {
+    if ((key1 == NULL) || (key1 == REMOVED)) {
+      return;
+    }
+    long hash = mix(key1, key2);
+    Segment segment = segmentFor(hash);
+    synchronized (segment) {
+      segment.remove(key1, key2, (int) hash);
+    }
+  }
+
+  /** Clears the cache. */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * Retrieves the values of all cached keys again, replacing each one as soon as it is retrieved, like
+   * {@link Cache#rebuild()}.
+   *
+   * @throws TasteException
+   *           if an exception occurs while retrieving a value; the keys not yet retrieved again are then
+   *           removed, so that no value predating the change is served afterwards
+   */
+  public void rebuild() throws TasteException {
+    for (int s = 0; s < segments.length; s++) {
+      Segment segment = segments[s];
+      long[] keys1;
+      long[] keys2;
+      int count = 0;
+      synchronized (segment) {
+        segment.generation++;
+        keys1 = new long[segment.numEntries];
+        keys2 = new long[segment.numEntries];
+        for (int i = 0; i < segment.keys1.length; i++) {
+          long key1 = segment.keys1[i];
+          if ((key1 != NULL) && (key1 != REMOVED)) {
+            keys1[count] = key1;
+            keys2[count] = segment.keys2[i];
+            count++;
+          }
+        }
+      }
+      int rebuilt = 0;
+      try {
+        for (; rebuilt < count; rebuilt++) {
+          double value = retriever.get(keys1[rebuilt], keys2[rebuilt]);
+          long hash = mix(keys1[rebuilt], keys2[rebuilt]);
+          synchronized (segment) {
+            int index = segment.find(keys1[rebuilt], keys2[rebuilt], (int) hash);
+            if (segment.keys1[index] != NULL) {
+              segment.values[index] = value;
+            }
+          }
+        }
+      } catch (TasteException te) {
+        removeNotRebuilt(s, keys1, keys2, rebuilt, count);
+        throw te;
+      } catch (RuntimeException re) {
+        removeNotRebuilt(s, keys1, keys2, rebuilt, count);
+        throw re;
+      }
+    }
+  }
+
+  /** Removes the keys from the given one of a segment on, and every key of the following segments. */
+  private void removeNotRebuilt(int failedSegment, long[] keys1, long[] keys2, int rebuilt, int count) {
+    Segment segment = segments[failedSegment];
+    synchronized (segment) {
+      for (int i = rebuilt; i < count; i++) {
+        segment.remove(keys1[i], keys2[i], (int) mix(keys1[i], keys2[i]));
+      }
+    }
+    for (int s = failedSegment + 1; s < segments.length; s++) {
+      synchronized (segments[s]) {
+        segments[s].clear();
+      }
+    }
+  }
+
+  /** @return number of lookups which found a cached value */
+  public long getHitCount() {
+    long count = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        count += segment.hits;
+      }
+    }
+    return count;
+  }
+
+  /** @return number of lookups which retrieved their value */
+  public long getMissCount() {
+    long count = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        count += segment.misses;
+      }
+    }
+    return count;
+  }
+
+  /** @return number of entries evicted to keep the cache within its maximum size */
+  public long getEvictionCount() {
+    long count = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        count += segment.evictions;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return "LongPairCache[retriever:" + retriever + ']';
+  }
+
+  /**
+   * One stripe of the cache: an open addressing hash table with double hashing over parallel arrays, as in
+   * {@link FastByIDMap}. Guarded by its own monitor.
+   */
+  private static final class Segment {
+
+    private long[] keys1;
+    private long[] keys2;
+    private double[] values;
+    private int numEntries;
+    private int numSlotsUsed;
+    private final int maxSize;
+    private BitSet recentlyAccessed;
+    private final boolean countingAccesses;
+    private long hits;
+    private long misses;
+    private long evictions;
+    /** Counts removes, clears and rebuilds, so that values retrieved across one are not cached */
+    private long generation;
+
+    private Segment(int maxSize) {
+      this.maxSize = maxSize;
+      this.countingAccesses = maxSize != FastByIDMap.NO_MAX_SIZE;
+      allocate(RandomUtils.nextTwinPrime((int) (ALLOWED_LOAD_FACTOR * 11)));
+    }
+
+    private void allocate(int hashSize) {
+      keys1 = new long[hashSize];
+      Arrays.fill(keys1, NULL);
+      keys2 = new long[hashSize];
+      values = new double[hashSize];
+      recentlyAccessed = countingAccesses ? new BitSet(hashSize) : null;
+      numEntries = 0;
+      numSlotsUsed = 0;
+    }
+
+    /** @return index of the keys, or of the free slot ending their probe sequence */
+    private int find(long key1, long key2, int hash) {
+      int theHashCode = hash & 0x7FFFFFFF;
+      long[] keys1 = this.keys1;
+      int hashSize = keys1.length;
+      int jump = 1 + theHashCode % (hashSize - 2);
+      int index = theHashCode % hashSize;
+      long currentKey1 = keys1[index];
+      while ((currentKey1 != NULL) && ((currentKey1 != key1) || (keys2[index] != key2))) {
+        if (index < jump) {
+          index += hashSize - jump;
+        } else {
+          index -= jump;
+        }
+        currentKey1 = keys1[index];
+      }
+      return index;
+    }
+
+    /** @return index of the first removed or free slot in the keys' probe sequence */
+    private int findForAdd(int hash) {
+      int theHashCode = hash & 0x7FFFFFFF;
+      long[] keys1 = this.keys1;
+      int hashSize = keys1.length;
+      int jump = 1 + theHashCode % (hashSize - 2);
+      int index = theHashCode % hashSize;
+      long currentKey1 = keys1[index];
+      while ((currentKey1 != NULL) && (currentKey1 != REMOVED)) {
+        if (index < jump) {
+          index += hashSize - jump;
+        } else {
+          index -= jump;
+        }
+        currentKey1 = keys1[index];
+      }
+      return index;
+    }
+
+    private void put(long key1, long key2, int hash, double value) {
+      int index = find(key1, key2, hash);
+      if (keys1[index] != NULL) {
+        // another thread retrieved it meanwhile
+        values[index] = value;
+        return;
+      }
+      // If less than half the slots are open, let's clear it up
+      if (numSlotsUsed * ALLOWED_LOAD_FACTOR >= keys1.length) {
+        // If over half the slots used are actual entries, let's grow
+        if (numEntries * ALLOWED_LOAD_FACTOR >= numSlotsUsed) {
+          if (keys1.length * ALLOWED_LOAD_FACTOR >= RandomUtils.MAX_INT_SMALLER_TWIN_PRIME) {
+            throw new IllegalStateException("Can't grow any more");
+          }
+          rehash(RandomUtils.nextTwinPrime((int) (ALLOWED_LOAD_FACTOR * keys1.length)));
+        } else {
+          // Otherwise just rehash to clear REMOVED entries and don't grow
+          rehash(keys1.length);
+        }
+      }
+      index = findForAdd(hash);
+      // If size is limited,
+      if (countingAccesses && (numEntries >= maxSize)) {
+        // and we're too large, clear some old-ish entry
+        clearStaleEntry(index);
+        evictions++;
+      }
+      if (keys1[index] == NULL) {
+        numSlotsUsed++;
+      }
+      keys1[index] = key1;
+      keys2[index] = key2;
+      values[index] = value;
+      numEntries++;
+    }
+
+    private void clearStaleEntry(int index) {
+      while (true) {
+        long currentKey1;
+        do {
+          if (index == 0) {
+            index = keys1.length - 1;
+          } else {
+            index--;
+          }
+          currentKey1 = keys1[index];
+        } while ((currentKey1 == NULL) || (currentKey1 == REMOVED));
+        if (recentlyAccessed.get(index)) {
+          recentlyAccessed.clear(index);
+        } else {
+          break;
+        }
+      }
+      // Delete the entry
+      keys1[index] = REMOVED;
+      numEntries--;
+    }
+
+    private void remove(long key1, long key2, int hash) {
+      generation++;
+      int index = find(key1, key2, hash);
+      if (keys1[index] != NULL) {
+        keys1[index] = REMOVED;
+        numEntries--;
+        // don't decrement numSlotsUsed
+      }
+    }
+
+    private void clear() {
+      generation++;
+      Arrays.fill(keys1, NULL);
+      if (countingAccesses) {
+        recentlyAccessed.clear();
+      }
+      numEntries = 0;
+      numSlotsUsed = 0;
+    }
+
+    private void rehash(int newHashSize) {
+      long[] oldKeys1 = keys1;
+      long[] oldKeys2 = keys2;
+      double[] oldValues = values;
+      allocate(newHashSize);
+      for (int i = 0; i < oldKeys1.length; i++) {
+        long key1 = oldKeys1[i];
+        if ((key1 != NULL) && (key1 != REMOVED)) {
+          int index = findForAdd((int) mix(key1, oldKeys2[i]));
+          keys1[index] = key1;
+          keys2[index] = oldKeys2[i];
+          values[index] = oldValues[i];
+          numEntries++;
+          numSlotsUsed++;
+        }
+      }
+    }
+
+  }
+
+}
@@ -19,6 +19,7 @@ package org.apache.mahout.cf.taste.impl.common;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -38,6 +39,9 @@ public final class RefreshHelper implements Refreshable {
   
   private static final Logger log = LoggerFactory.getLogger(RefreshHelper.class);
   
+  /** What the components a thread refreshes in {@link #refreshStaged(Collection, Collection)} do afterwards */
+  private static final ThreadLocal<List<Callable<?>>> WHEN_PUBLISHED = new ThreadLocal<List<Callable<?>>>();
+  
   private final List<Refreshable> dependencies;
   private final ReentrantLock refreshLock;
   private final Callable<?> refreshRunnable;
@@ -120,4 +124,59 @@ public final class RefreshHelper implements Refreshable {
       log.info("Refreshed: {}", alreadyRefreshed);
     }
   }
+  
+  /**
+   * <p>
+   * Refreshes components against new data which only the calling thread sees until it publishes it, as a
+   * {@link org.apache.mahout.cf.taste.model.DataModel} reloading in the background does. Meanwhile the
+   * components keep serving their previous state, and {@link #isRefreshingStaged()} is true, so that they can
+   * leave what must wait for the data to be published to {@link #runWhenPublished(Callable)}.
+   * </p>
+   * 
+   * @return what the components left to do once the data is published, to pass to
+   *         {@link #runPublished(List)} then
+   */
+  public static List<Callable<?>> refreshStaged(Collection<Refreshable> alreadyRefreshed,
+                                                Collection<? extends Refreshable> refreshables) {
+    List<Callable<?>> whenPublished = new ArrayList<Callable<?>>();
+    WHEN_PUBLISHED.set(whenPublished);
+    try {
+      for (Refreshable refreshable : refreshables) {
+        maybeRefresh(alreadyRefreshed, refreshable);
+      }
+    } finally {
+      WHEN_PUBLISHED.remove();
+    }
+    return whenPublished;
+  }
+  
+  /** @return true if the calling thread is in {@link #refreshStaged(Collection, Collection)} */
+  public static boolean isRefreshingStaged() {
+    return WHEN_PUBLISHED.get() != null;
+  }
+  
+  /**
+   * Has a component refreshed by {@link #refreshStaged(Collection, Collection)} do something once the new data
+   * is published, such as recomputing cached values which other threads may have computed from the old data
+   * up to then. Outside of a staged refresh, it is done at once.
+   */
+  public static void runWhenPublished(Callable<?> task) {
+    List<Callable<?>> whenPublished = WHEN_PUBLISHED.get();
+    if (whenPublished == null) {
+      runPublished(Collections.<Callable<?>>singletonList(task));
+    } else {
+      whenPublished.add(task);
+    }
+  }
+  
+  /** Runs what {@link #refreshStaged(Collection, Collection)} returned, once the new data is published. */
+  public static void runPublished(List<Callable<?>> whenPublished) {
+    for (Callable<?> task : whenPublished) {
+      try {
+        task.call();
+      } catch (Exception e) {
+        log.warn("Unexpected exception while refreshing", e);
+      }
+    }
+  }
 }
@@ -105,7 +105,8 @@ public final class GenericRecommenderIRStatsEvaluator implements RecommenderIRSt
       if (random.nextDouble() < evaluationPercentage) {
         long start = System.currentTimeMillis();
         FastIDSet relevantItemIDs = new FastIDSet(at);
-        PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+        // a copy, since it is sorted below
+        PreferenceArray prefs = dataModel.getPreferencesFromUser(userID).clone();
         int size = prefs.length();
         if (size < 2 * at) {
           // Really not enough prefs to meaningfully evaluate this user
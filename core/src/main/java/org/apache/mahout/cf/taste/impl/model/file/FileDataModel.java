@@ -26,6 +26,12 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.mahout.cf.taste.common.Refreshable;
@@ -33,6 +39,7 @@ import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
@@ -92,6 +99,14 @@ import org.slf4j.LoggerFactory;
  * </p>
  * 
  * <p>
+ * Given a snapshot file, this class keeps a binary {@link MappedDataModel} snapshot of the data file there,
+ * and serves the data from it rather than from memory. The data file is only parsed when it is newer than the
+ * snapshot, or when update files were added, changed or removed since it was written, to rewrite the snapshot
+ * with the update files folded in; otherwise loading and reloading just map the snapshot. Each change to the
+ * update files therefore costs a full parse, so they are best folded into the data file from time to time.
+ * </p>
+ * 
+ * <p>
  * This class is not intended for use with very large amounts of data (over, say, tens of millions of rows).
  * For that, a JDBC-backed {@link DataModel} and a database are more appropriate.
  * </p>
@@ -113,10 +128,18 @@ public class FileDataModel extends AbstractDataModel {
   private long lastUpdateFileModified;
   private final char delimiter;
   private final boolean hasPrefValues;
-  private boolean loaded;
-  private DataModel delegate;
+  private volatile boolean loaded;
+  private volatile DataModel delegate;
+  /** A model being warmed up by the reloading thread, which sees it instead of delegate */
+  private final ThreadLocal<DataModel> stagedDelegate;
   private final ReentrantLock reloadLock;
   private final boolean transpose;
+  private final File snapshotFile;
+  private int parsingThreads = 1;
+  private volatile boolean backgroundReload;
+  private final List<Refreshable> dependents;
+  private ExecutorService reloadExecutor;
+  private Future<?> pendingReload;
   
   /**
    * @param dataFile
@@ -137,6 +160,17 @@ public class FileDataModel extends AbstractDataModel {
    * @see #FileDataModel(File)
    */
   public FileDataModel(File dataFile, boolean transpose) throws IOException {
+    this(dataFile, transpose, null);
+  }
+  
+  /**
+   * @param snapshotFile
+   *          where to keep a {@link MappedDataModel} snapshot of the data file, which is written when missing
+   *          or older than the data file; should not be in the data file's directory with a name that starts
+   *          the same way, as update files do. May be null, to keep all data in memory.
+   * @see #FileDataModel(File, boolean)
+   */
+  public FileDataModel(File dataFile, boolean transpose, File snapshotFile) throws IOException {
     if (dataFile == null) {
       throw new IllegalArgumentException("dataFile is null");
     }
@@ -161,7 +195,10 @@ public class FileDataModel extends AbstractDataModel {
     hasPrefValues = firstLine.indexOf(delimiter, firstLine.indexOf(delimiter) + 1) >= 0;
     
     this.reloadLock = new ReentrantLock();
+    this.stagedDelegate = new ThreadLocal<DataModel>();
+    this.dependents = new CopyOnWriteArrayList<Refreshable>();
     this.transpose = transpose;
+    this.snapshotFile = snapshotFile == null ? null : snapshotFile.getAbsoluteFile();
   }
   
   public File getDataFile() {
@@ -172,6 +209,29 @@ public class FileDataModel extends AbstractDataModel {
     return delimiter;
   }
   
+  public File getSnapshotFile() {
+    return snapshotFile;
+  }
+  
+  public int getParsingThreads() {
+    return parsingThreads;
+  }
+  
+  /**
+   * Parses the data file and update files on the given number of threads when loading fresh data. Each
+   * uncompressed file is split into byte ranges, parsed separately, and the results merged with the same
+   * outcome as reading the files line by line. This calls {@link #readUserIDFromString(String)} and
+   * {@link #readItemIDFromString(String)} from several threads, and bypasses
+   * {@link #processLine(String, FastByIDMap, boolean)} and {@link #processLineWithoutID(String, FastByIDMap)},
+   * so subclasses which override those should leave this at the default of 1.
+   */
+  public void setParsingThreads(int parsingThreads) {
+    if (parsingThreads < 1) {
+      throw new IllegalArgumentException("parsingThreads must be at least 1");
+    }
+    this.parsingThreads = parsingThreads;
+  }
+  
   protected void reload() {
     if (!reloadLock.isLocked()) {
       reloadLock.lock();
@@ -186,28 +246,121 @@ public class FileDataModel extends AbstractDataModel {
     }
   }
   
+  /**
+   * <p>
+   * Makes {@link #refresh(Collection)} reload changed files on a background thread, and return at once. The
+   * current data keeps being served until the new data is fully built; then the dependents added with
+   * {@link #addDependent(Refreshable)} are refreshed against the new data, still on that thread, and finally
+   * the new data replaces the old in one step. The new data is always loaded afresh, rather than by updating
+   * the current data in place.
+   * </p>
+   * 
+   * <p>
+   * Dependents are refreshed with {@link RefreshHelper#refreshStaged(Collection, Collection)}, and only the
+   * reloading thread sees the new data meanwhile: they should do their work on that thread, and keep serving
+   * their previous state until they are done. What they leave to
+   * {@link RefreshHelper#runWhenPublished(Callable)} is run once the new data is published, which is how
+   * {@link org.apache.mahout.cf.taste.impl.recommender.CachingRecommender} recomputes what it cached,
+   * including values other threads computed from the old data in the meantime.
+   * </p>
+   */
+  public void setBackgroundReload(boolean backgroundReload) {
+    this.backgroundReload = backgroundReload;
+  }
+  
+  public boolean isBackgroundReload() {
+    return backgroundReload;
+  }
+  
+  /**
+   * Adds a component built on this model, typically the outermost
+   * {@link org.apache.mahout.cf.taste.recommender.Recommender}, to refresh against new data before it is
+   * published by a background reload. See {@link #setBackgroundReload(boolean)}.
+   */
+  public void addDependent(Refreshable dependent) {
+    if (dependent != null) {
+      dependents.add(dependent);
+    }
+  }
+  
+  public void removeDependent(Refreshable dependent) {
+    dependents.remove(dependent);
+  }
+  
+  private synchronized void reloadInBackground() {
+    if (pendingReload != null && !pendingReload.isDone()) {
+      return;
+    }
+    if (reloadExecutor == null) {
+      reloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "FileDataModel reload " + dataFile.getName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    pendingReload = reloadExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        reloadLock.lock();
+        try {
+          DataModel newDelegate = buildModel();
+          stagedDelegate.set(newDelegate);
+          List<Callable<?>> whenPublished;
+          try {
+            Collection<Refreshable> alreadyRefreshed = RefreshHelper.buildRefreshed(null);
+            alreadyRefreshed.add(FileDataModel.this);
+            whenPublished = RefreshHelper.refreshStaged(alreadyRefreshed, dependents);
+          } finally {
+            stagedDelegate.remove();
+          }
+          delegate = newDelegate;
+          RefreshHelper.runPublished(whenPublished);
+          log.info("Reloaded {}", dataFile);
+        } catch (IOException ioe) {
+          log.warn("Exception while reloading", ioe);
+        } catch (RuntimeException re) {
+          log.warn("Exception while reloading", re);
+        } finally {
+          reloadLock.unlock();
+        }
+      }
+    });
+  }
+  
+  /**
+   * @return the model the calling thread should read: the one being warmed up if this is the reloading thread,
+   *         otherwise the current one
+   */
+  private DataModel delegate() {
+    DataModel staged = stagedDelegate.get();
+    return staged == null ? delegate : staged;
+  }
+  
   protected DataModel buildModel() throws IOException {
     
     long newLastModified = dataFile.lastModified();
     long newLastUpdateFileModified = readLastUpdateFileModified();
     
-    boolean loadFreshData = (delegate == null)
+    // a background reload must not modify the data that is being served
+    boolean loadFreshData = (delegate == null) || backgroundReload
                             || (newLastModified > lastModified + MIN_RELOAD_INTERVAL_MS);
     
     lastModified = newLastModified;
     lastUpdateFileModified = newLastUpdateFileModified;
     
+    if (snapshotFile != null) {
+      return buildMappedModel();
+    }
+    
     if (hasPrefValues) {
       
       if (loadFreshData) {
         
         FastByIDMap<Collection<Preference>> data = new FastByIDMap<Collection<Preference>>();
-        FileLineIterator iterator = new FileLineIterator(dataFile, false);
-        processFile(iterator, data, false);
-        
-        for (File updateFile : findUpdateFiles()) {
-          processFile(new FileLineIterator(updateFile, false), data, false);
-        }
+        processFiles(dataAndUpdateFiles(), data);
         
         return new GenericDataModel(GenericDataModel.toDataMap(data, true));
         
@@ -228,12 +381,7 @@ public class FileDataModel extends AbstractDataModel {
       if (loadFreshData) {
         
         FastByIDMap<FastIDSet> data = new FastByIDMap<FastIDSet>();
-        FileLineIterator iterator = new FileLineIterator(dataFile, false);
-        processFileWithoutID(iterator, data);
-        
-        for (File updateFile : findUpdateFiles()) {
-          processFileWithoutID(new FileLineIterator(updateFile, false), data);
-        }
+        processFilesWithoutID(dataAndUpdateFiles(), data);
         
         return new GenericBooleanPrefDataModel(data);
         
@@ -252,13 +400,131 @@ public class FileDataModel extends AbstractDataModel {
     }
   }
   
+  /**
+   * Maps the snapshot, after rewriting it if it is older than the data file or was written from other update
+   * files than there are now.
+   */
+  private DataModel buildMappedModel() throws IOException {
+    List<File> updateFiles = findUpdateFiles();
+    long sourceStamp = stamp(updateFiles);
+    MappedDataModel snapshot = null;
+    if (snapshotFile.exists() && snapshotFile.lastModified() >= dataFile.lastModified()) {
+      try {
+        snapshot = new MappedDataModel(snapshotFile);
+        if (snapshot.isTransposed() != transpose || snapshot.hasPreferenceValues() != hasPrefValues) {
+          log.info("Snapshot {} does not match data file", snapshotFile);
+          snapshot = null;
+        } else if (snapshot.getSourceStamp() != sourceStamp) {
+          log.info("Snapshot {} does not match update files", snapshotFile);
+          snapshot = null;
+        }
+      } catch (IOException ioe) {
+        log.warn("Can't map snapshot; rewriting it", ioe);
+      }
+    }
+    if (snapshot == null) {
+      writeSnapshot(updateFiles, sourceStamp);
+      snapshot = new MappedDataModel(snapshotFile);
+    }
+    return snapshot;
+  }
+  
+  /**
+   * @return a stamp of the names, sizes and modification times of the given update files, which changes when
+   *         one is added, changed or removed, and is 0 when there are none
+   */
+  private static long stamp(List<File> updateFiles) {
+    long stamp = 0L;
+    for (File updateFile : updateFiles) {
+      stamp = 31L * stamp + updateFile.getName().hashCode();
+      stamp = 31L * stamp + updateFile.length();
+      stamp = 31L * stamp + updateFile.lastModified();
+    }
+    return stamp;
+  }
+  
+  /**
+   * Parses the data file and the given update files and writes them to the snapshot file, through a temporary
+   * file so that a snapshot which is mapped elsewhere is replaced rather than overwritten.
+   */
+  private void writeSnapshot(List<File> updateFiles, long sourceStamp) throws IOException {
+    log.info("Writing snapshot {} of {} and {} update files",
+             new Object[] {snapshotFile, dataFile, updateFiles.size()});
+    List<File> files = new ArrayList<File>(updateFiles.size() + 1);
+    files.add(dataFile);
+    files.addAll(updateFiles);
+    DataModel parsed;
+    if (hasPrefValues) {
+      FastByIDMap<Collection<Preference>> data = new FastByIDMap<Collection<Preference>>();
+      processFiles(files, data);
+      parsed = new GenericDataModel(GenericDataModel.toDataMap(data, true));
+    } else {
+      FastByIDMap<FastIDSet> data = new FastByIDMap<FastIDSet>();
+      processFilesWithoutID(files, data);
+      parsed = new GenericBooleanPrefDataModel(data);
+    }
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    try {
+      MappedDataModel.writeSnapshot(parsed, tempFile, transpose, sourceStamp);
+    } catch (TasteException te) {
+      throw new IOException(te);
+    }
+    if (!tempFile.renameTo(snapshotFile) && !(snapshotFile.delete() && tempFile.renameTo(snapshotFile))) {
+      throw new IOException("Can't rename " + tempFile + " to " + snapshotFile);
+    }
+  }
+  
+  private List<File> dataAndUpdateFiles() {
+    List<File> files = new ArrayList<File>();
+    files.add(dataFile);
+    files.addAll(findUpdateFiles());
+    return files;
+  }
+  
+  /**
+   * Parses the given files, in order, into fresh data: a mapping from user IDs to {@link Collection}s of
+   * {@link Preference}s. Uses a {@link ParallelFileParser} if several parsing threads were requested and no
+   * file is compressed.
+   */
+  private void processFiles(List<File> files, FastByIDMap<Collection<Preference>> data) throws IOException {
+    if (canParseInParallel(files)) {
+      new ParallelFileParser(this, parsingThreads, transpose).parse(files, data);
+      return;
+    }
+    for (File file : files) {
+      processFile(new FileLineIterator(file, false), data, false);
+    }
+  }
+  
+  /**
+   * Parses the given files, in order, into a mapping from user IDs to {@link FastIDSet}s of item IDs, as
+   * {@link #processFiles(List, FastByIDMap)} does when there are no preference values.
+   */
+  private void processFilesWithoutID(List<File> files, FastByIDMap<FastIDSet> data) throws IOException {
+    if (canParseInParallel(files)) {
+      new ParallelFileParser(this, parsingThreads, transpose).parseWithoutID(files, data);
+      return;
+    }
+    for (File file : files) {
+      processFileWithoutID(new FileLineIterator(file, false), data);
+    }
+  }
+  
+  private boolean canParseInParallel(List<File> files) {
+    boolean canSplit = parsingThreads > 1;
+    for (File file : files) {
+      canSplit &= ParallelFileParser.canSplit(file);
+    }
+    return canSplit;
+  }
+  
   /**
    * Finds update delta files in the same directory as the data file. This finds any file whose name starts
    * the same way as the data file (up to first period) but isn't the data file itself. For example, if the
    * data file is /foo/data.txt.gz, you might place update files at /foo/data.1.txt.gz, /foo/data.2.txt.gz,
    * etc.
    */
-  private Iterable<File> findUpdateFiles() {
+  private List<File> findUpdateFiles() {
     String dataFileName = dataFile.getName();
     int period = dataFileName.indexOf('.');
     String startName = period < 0 ? dataFileName : dataFileName.substring(0, period);
@@ -266,7 +532,8 @@ public class FileDataModel extends AbstractDataModel {
     List<File> updateFiles = new ArrayList<File>();
     for (File updateFile : parentDir.listFiles()) {
       String updateFileName = updateFile.getName();
-      if (updateFileName.startsWith(startName) && !updateFileName.equals(dataFileName)) {
+      if (updateFileName.startsWith(startName) && !updateFileName.equals(dataFileName)
+          && !isSnapshotFile(updateFile)) {
         updateFiles.add(updateFile);
       }
     }
@@ -274,6 +541,11 @@ public class FileDataModel extends AbstractDataModel {
     return updateFiles;
   }
   
+  private boolean isSnapshotFile(File file) {
+    return snapshotFile != null
+        && (file.equals(snapshotFile) || file.getPath().equals(snapshotFile.getPath() + ".tmp"));
+  }
+  
   private long readLastUpdateFileModified() {
     long mostRecentModification = Long.MIN_VALUE;
     for (File updateFile : findUpdateFiles()) {
@@ -557,54 +829,55 @@ public class FileDataModel extends AbstractDataModel {
   @Override
   public LongPrimitiveIterator getUserIDs() throws TasteException {
     checkLoaded();
-    return delegate.getUserIDs();
+    return delegate().getUserIDs();
   }
   
   @Override
   public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
     checkLoaded();
-    return delegate.getPreferencesFromUser(userID);
+    return delegate().getPreferencesFromUser(userID);
   }
   
   @Override
   public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
     checkLoaded();
-    return delegate.getItemIDsFromUser(userID);
+    return delegate().getItemIDsFromUser(userID);
   }
   
   @Override
   public LongPrimitiveIterator getItemIDs() throws TasteException {
     checkLoaded();
-    return delegate.getItemIDs();
+    return delegate().getItemIDs();
   }
   
   @Override
   public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
     checkLoaded();
-    return delegate.getPreferencesForItem(itemID);
+    return delegate().getPreferencesForItem(itemID);
   }
   
   @Override
   public Float getPreferenceValue(long userID, long itemID) throws TasteException {
-    return delegate.getPreferenceValue(userID, itemID);
+    checkLoaded();
+    return delegate().getPreferenceValue(userID, itemID);
   }
   
   @Override
   public int getNumItems() throws TasteException {
     checkLoaded();
-    return delegate.getNumItems();
+    return delegate().getNumItems();
   }
   
   @Override
   public int getNumUsers() throws TasteException {
     checkLoaded();
-    return delegate.getNumUsers();
+    return delegate().getNumUsers();
   }
   
   @Override
   public int getNumUsersWithPreferenceFor(long... itemIDs) throws TasteException {
     checkLoaded();
-    return delegate.getNumUsersWithPreferenceFor(itemIDs);
+    return delegate().getNumUsersWithPreferenceFor(itemIDs);
   }
   
   /**
@@ -616,14 +889,14 @@ public class FileDataModel extends AbstractDataModel {
   @Override
   public void setPreference(long userID, long itemID, float value) throws TasteException {
     checkLoaded();
-    delegate.setPreference(userID, itemID, value);
+    delegate().setPreference(userID, itemID, value);
   }
   
   /** See the warning at {@link #setPreference(long, long, float)}. */
   @Override
   public void removePreference(long userID, long itemID) throws TasteException {
     checkLoaded();
-    delegate.removePreference(userID, itemID);
+    delegate().removePreference(userID, itemID);
   }
   
   @Override
@@ -631,13 +904,17 @@ public class FileDataModel extends AbstractDataModel {
     if ((dataFile.lastModified() > lastModified + MIN_RELOAD_INTERVAL_MS)
         || (readLastUpdateFileModified() > lastUpdateFileModified + MIN_RELOAD_INTERVAL_MS)) {
       log.debug("File has changed; reloading...");
-      reload();
+      if (backgroundReload && loaded) {
+        reloadInBackground();
+      } else {
+        reload();
+      }
     }
   }
 
   @Override
   public boolean hasPreferenceValues() {
-    return delegate.hasPreferenceValues();
+    return delegate().hasPreferenceValues();
   }
   
   @Override
@@ -0,0 +1,573 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A read-only {@link DataModel} over a binary snapshot file, which is memory-mapped rather than read. Opening
+ * one costs a few system calls however large the file, and pages are only read from disk, or shared with
+ * other processes mapping the same file, as they are used.
+ * </p>
+ *
+ * <p>
+ * The snapshot stores the preferences twice, in columns: by user, as sorted user IDs, the offset of each
+ * user's preferences, and their item IDs and values sorted by item ID; and by item, as sorted item IDs,
+ * offsets, and user IDs and values sorted by user ID. {@link #getPreferencesFromUser(long)} and
+ * {@link #getPreferencesForItem(long)} therefore find their slice by binary search, and return a view of it
+ * without copying. Values are omitted for data without preference values.
+ * </p>
+ *
+ * <p>
+ * Snapshots are written from any other {@link DataModel} by {@link #writeSnapshot(DataModel, File)};
+ * {@link FileDataModel} can maintain one for its data file itself. A column may not exceed 2GB, which limits a
+ * snapshot to {@link #MAX_PREFERENCES} preferences.
+ * </p>
+ */
+public final class MappedDataModel extends AbstractDataModel {
+
+  private static final Logger log = LoggerFactory.getLogger(MappedDataModel.class);
+
+  /** Largest number of preferences a snapshot can hold, so that an ID column fits in one mapped buffer */
+  public static final int MAX_PREFERENCES = Integer.MAX_VALUE / 8;
+
+  private static final int MAGIC = 0x54534e50; // "TSNP"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 40;
+  private static final int HAS_PREF_VALUES = 1;
+  private static final int TRANSPOSED = 2;
+
+  private final File snapshotFile;
+  private final boolean transposed;
+  private final long sourceStamp;
+  private final int numUsers;
+  private final int numItems;
+  private final LongBuffer userIDs;
+  private final IntBuffer userOffsets;
+  private final LongBuffer userItemIDs;
+  private final FloatBuffer userValues;
+  private final LongBuffer itemIDs;
+  private final IntBuffer itemOffsets;
+  private final LongBuffer itemUserIDs;
+  private final FloatBuffer itemValues;
+
+  /**
+   * @param snapshotFile
+   *          file written by {@link #writeSnapshot(DataModel, File)}
+   * @throws IOException
+   *           if the file can't be mapped or is not a snapshot
+   */
+  public MappedDataModel(File snapshotFile) throws IOException {
+    this.snapshotFile = snapshotFile;
+    RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Not a snapshot: " + snapshotFile);
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a snapshot: " + snapshotFile);
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version + ": " + snapshotFile);
+      }
+      int flags = header.getInt();
+      numUsers = header.getInt();
+      numItems = header.getInt();
+      int numPrefs = header.getInt();
+      setMinPreference(header.getFloat());
+      setMaxPreference(header.getFloat());
+      sourceStamp = header.getLong();
+      boolean hasPrefValues = (flags & HAS_PREF_VALUES) != 0;
+      transposed = (flags & TRANSPOSED) != 0;
+
+      if (channel.size() != snapshotSize(numUsers, numItems, numPrefs, hasPrefValues)) {
+        throw new IOException("Truncated snapshot: " + snapshotFile);
+      }
+      long position = HEADER_SIZE;
+      userIDs = map(channel, position, 8L * numUsers).asLongBuffer();
+      position += 8L * numUsers;
+      userOffsets = map(channel, position, 4L * (numUsers + 1)).asIntBuffer();
+      position += pad(4L * (numUsers + 1));
+      userItemIDs = map(channel, position, 8L * numPrefs).asLongBuffer();
+      position += 8L * numPrefs;
+      if (hasPrefValues) {
+        userValues = map(channel, position, 4L * numPrefs).asFloatBuffer();
+        position += pad(4L * numPrefs);
+      } else {
+        userValues = null;
+      }
+      itemIDs = map(channel, position, 8L * numItems).asLongBuffer();
+      position += 8L * numItems;
+      itemOffsets = map(channel, position, 4L * (numItems + 1)).asIntBuffer();
+      position += pad(4L * (numItems + 1));
+      itemUserIDs = map(channel, position, 8L * numPrefs).asLongBuffer();
+      position += 8L * numPrefs;
+      itemValues = hasPrefValues ? map(channel, position, 4L * numPrefs).asFloatBuffer() : null;
+    } finally {
+      // mappings stay valid after the file is closed
+      file.close();
+    }
+    log.info("Mapped snapshot {} of {} users and {} items", new Object[] {snapshotFile, numUsers, numItems});
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  private static long snapshotSize(int numUsers, int numItems, int numPrefs, boolean hasPrefValues) {
+    long prefsSize = 8L * numPrefs + (hasPrefValues ? pad(4L * numPrefs) : 0L);
+    return HEADER_SIZE + 8L * numUsers + pad(4L * (numUsers + 1)) + 8L * numItems + pad(4L * (numItems + 1))
+        + 2 * prefsSize;
+  }
+
+  /** Rounds a section size up to a multiple of 8 bytes, so that every long column is aligned */
+  private static long pad(long size) {
+    return (size + 7L) & ~7L;
+  }
+
+  public File getSnapshotFile() {
+    return snapshotFile;
+  }
+
+  /**
+   * @return true if the snapshot was written by a {@link FileDataModel} which swaps user and item IDs
+   */
+  public boolean isTransposed() {
+    return transposed;
+  }
+
+  /**
+   * @return stamp a {@link FileDataModel} gave the update files it folded into the snapshot, or 0 if none
+   */
+  long getSourceStamp() {
+    return sourceStamp;
+  }
+
+  @Override
+  public LongPrimitiveIterator getUserIDs() {
+    return new LongBufferIterator(userIDs, numUsers);
+  }
+
+  /**
+   * @throws NoSuchUserException
+   *           if there is no such user
+   */
+  @Override
+  public PreferenceArray getPreferencesFromUser(long userID) throws NoSuchUserException {
+    int index = search(userIDs, 0, numUsers, userID);
+    if (index < 0) {
+      throw new NoSuchUserException();
+    }
+    int from = userOffsets.get(index);
+    return new MappedPreferenceArray(true, userID, userItemIDs, userValues, from, userOffsets.get(index + 1) - from);
+  }
+
+  @Override
+  public FastIDSet getItemIDsFromUser(long userID) throws NoSuchUserException {
+    int index = search(userIDs, 0, numUsers, userID);
+    if (index < 0) {
+      throw new NoSuchUserException();
+    }
+    int from = userOffsets.get(index);
+    int to = userOffsets.get(index + 1);
+    FastIDSet result = new FastIDSet(to - from);
+    for (int i = from; i < to; i++) {
+      result.add(userItemIDs.get(i));
+    }
+    return result;
+  }
+
+  @Override
+  public LongPrimitiveIterator getItemIDs() {
+    return new LongBufferIterator(itemIDs, numItems);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesForItem(long itemID) throws NoSuchItemException {
+    int index = search(itemIDs, 0, numItems, itemID);
+    if (index < 0) {
+      throw new NoSuchItemException();
+    }
+    int from = itemOffsets.get(index);
+    return new MappedPreferenceArray(false, itemID, itemUserIDs, itemValues, from, itemOffsets.get(index + 1) - from);
+  }
+
+  @Override
+  public Float getPreferenceValue(long userID, long itemID) throws NoSuchUserException {
+    int index = search(userIDs, 0, numUsers, userID);
+    if (index < 0) {
+      throw new NoSuchUserException();
+    }
+    int i = search(userItemIDs, userOffsets.get(index), userOffsets.get(index + 1), itemID);
+    if (i < 0) {
+      return null;
+    }
+    return userValues == null ? 1.0f : userValues.get(i);
+  }
+
+  @Override
+  public int getNumItems() {
+    return numItems;
+  }
+
+  @Override
+  public int getNumUsers() {
+    return numUsers;
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long... itemIDs) {
+    if (itemIDs == null) {
+      throw new IllegalArgumentException("itemIDs is null");
+    }
+    int length = itemIDs.length;
+    if ((length == 0) || (length > 2)) {
+      throw new IllegalArgumentException("Illegal number of item IDs: " + length);
+    }
+    int index1 = search(this.itemIDs, 0, numItems, itemIDs[0]);
+    if (index1 < 0) {
+      return 0;
+    }
+    int i = itemOffsets.get(index1);
+    int end1 = itemOffsets.get(index1 + 1);
+    if (length == 1) {
+      return end1 - i;
+    }
+    int index2 = search(this.itemIDs, 0, numItems, itemIDs[1]);
+    if (index2 < 0) {
+      return 0;
+    }
+    // both user ID slices are sorted, so merge them
+    int j = itemOffsets.get(index2);
+    int end2 = itemOffsets.get(index2 + 1);
+    int count = 0;
+    while (i < end1 && j < end2) {
+      long user1 = itemUserIDs.get(i);
+      long user2 = itemUserIDs.get(j);
+      if (user1 < user2) {
+        i++;
+      } else if (user1 > user2) {
+        j++;
+      } else {
+        count++;
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void setPreference(long userID, long itemID, float value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void removePreference(long userID, long itemID) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {
+    // Does nothing
+  }
+
+  @Override
+  public boolean hasPreferenceValues() {
+    return userValues != null;
+  }
+
+  @Override
+  public String toString() {
+    return "MappedDataModel[snapshotFile:" + snapshotFile + ']';
+  }
+
+  /**
+   * Binary search for a key among the sorted IDs from index from, inclusive, to index to, exclusive.
+   *
+   * @return index of the key, or (-(insertion point) - 1) as in {@link Arrays#binarySearch(long[], long)}
+   */
+  static int search(LongBuffer ids, int from, int to, long key) {
+    int low = from;
+    int high = to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midID = ids.get(mid);
+      if (midID < key) {
+        low = mid + 1;
+      } else if (midID > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Writes a snapshot of the given {@link DataModel}, for {@link #MappedDataModel(File)} to map. The data
+   * model is read a few times over, one user and one item at a time, so it need not hold all preferences in
+   * memory at once.
+   *
+   * @throws IllegalArgumentException
+   *           if the data model has more than {@link #MAX_PREFERENCES} preferences
+   */
+  public static void writeSnapshot(DataModel dataModel, File snapshotFile) throws IOException, TasteException {
+    writeSnapshot(dataModel, snapshotFile, false, 0L);
+  }
+
+  static void writeSnapshot(DataModel dataModel, File snapshotFile, boolean transposed, long sourceStamp)
+    throws IOException, TasteException {
+    boolean hasPrefValues = dataModel.hasPreferenceValues();
+    long[] sortedUserIDs = sortedIDs(dataModel.getUserIDs(), dataModel.getNumUsers());
+    long[] sortedItemIDs = sortedIDs(dataModel.getItemIDs(), dataModel.getNumItems());
+
+    int[] userLengths = new int[sortedUserIDs.length];
+    long numPrefs = 0;
+    float minPrefValue = Float.POSITIVE_INFINITY;
+    float maxPrefValue = Float.NEGATIVE_INFINITY;
+    for (int u = 0; u < sortedUserIDs.length; u++) {
+      PreferenceArray prefs = dataModel.getPreferencesFromUser(sortedUserIDs[u]);
+      int length = prefs.length();
+      userLengths[u] = length;
+      numPrefs += length;
+      if (hasPrefValues) {
+        for (int i = 0; i < length; i++) {
+          float value = prefs.getValue(i);
+          minPrefValue = Math.min(minPrefValue, value);
+          maxPrefValue = Math.max(maxPrefValue, value);
+        }
+      }
+    }
+    if (numPrefs > MAX_PREFERENCES) {
+      throw new IllegalArgumentException("Too many preferences for one snapshot: " + numPrefs);
+    }
+    if (!hasPrefValues || numPrefs == 0) {
+      minPrefValue = Float.NaN;
+      maxPrefValue = Float.NaN;
+    }
+    int[] itemLengths = new int[sortedItemIDs.length];
+    long numItemPrefs = 0;
+    for (int i = 0; i < sortedItemIDs.length; i++) {
+      itemLengths[i] = dataModel.getPreferencesForItem(sortedItemIDs[i]).length();
+      numItemPrefs += itemLengths[i];
+    }
+    if (numItemPrefs != numPrefs) {
+      throw new IllegalStateException("Users have " + numPrefs + " preferences but items " + numItemPrefs);
+    }
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt((hasPrefValues ? HAS_PREF_VALUES : 0) | (transposed ? TRANSPOSED : 0));
+      out.writeInt(sortedUserIDs.length);
+      out.writeInt(sortedItemIDs.length);
+      out.writeInt((int) numPrefs);
+      out.writeFloat(minPrefValue);
+      out.writeFloat(maxPrefValue);
+      out.writeLong(sourceStamp);
+      writeColumns(out, dataModel, true, sortedUserIDs, userLengths, hasPrefValues);
+      writeColumns(out, dataModel, false, sortedItemIDs, itemLengths, hasPrefValues);
+    } finally {
+      out.close();
+    }
+    log.info("Wrote snapshot {} of {} preferences", snapshotFile, numPrefs);
+  }
+
+  private static long[] sortedIDs(LongPrimitiveIterator it, int count) {
+    long[] ids = new long[count];
+    int i = 0;
+    while (it.hasNext()) {
+      ids[i++] = it.nextLong();
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  /** Writes the IDs, offsets, other IDs and values of one view, user-major or item-major. */
+  private static void writeColumns(DataOutputStream out,
+                                   DataModel dataModel,
+                                   boolean byUser,
+                                   long[] ids,
+                                   int[] lengths,
+                                   boolean hasPrefValues) throws IOException, TasteException {
+    for (long id : ids) {
+      out.writeLong(id);
+    }
+    int offset = 0;
+    out.writeInt(offset);
+    for (int length : lengths) {
+      offset += length;
+      out.writeInt(offset);
+    }
+    writePadding(out, 4L * (ids.length + 1));
+
+    long[] otherIDs = new long[16];
+    float[] values = new float[16];
+    // first pass writes the other IDs, the second the values in the same order
+    for (int pass = 0; pass < (hasPrefValues ? 2 : 1); pass++) {
+      for (long id : ids) {
+        PreferenceArray prefs = byUser ? dataModel.getPreferencesFromUser(id) : dataModel.getPreferencesForItem(id);
+        int length = prefs.length();
+        if (otherIDs.length < length) {
+          otherIDs = new long[length];
+          values = new float[length];
+        }
+        sortByOtherID(prefs, byUser, hasPrefValues, otherIDs, values);
+        for (int i = 0; i < length; i++) {
+          if (pass == 0) {
+            out.writeLong(otherIDs[i]);
+          } else {
+            out.writeFloat(values[i]);
+          }
+        }
+      }
+      if (pass == 1) {
+        writePadding(out, 4L * offset);
+      }
+    }
+  }
+
+  /**
+   * Copies the item IDs of a user's preferences, or the user IDs of an item's, into otherIDs sorted, and
+   * their values into values in the same order, without modifying the data model's own array.
+   */
+  private static void sortByOtherID(PreferenceArray prefs,
+                                    boolean byUser,
+                                    boolean hasPrefValues,
+                                    long[] otherIDs,
+                                    float[] values) {
+    int length = prefs.length();
+    boolean sorted = true;
+    for (int i = 0; i < length; i++) {
+      otherIDs[i] = byUser ? prefs.getItemID(i) : prefs.getUserID(i);
+      sorted &= i == 0 || otherIDs[i - 1] < otherIDs[i];
+    }
+    if (!hasPrefValues) {
+      if (!sorted) {
+        Arrays.sort(otherIDs, 0, length);
+      }
+      return;
+    }
+    if (sorted) {
+      for (int i = 0; i < length; i++) {
+        values[i] = prefs.getValue(i);
+      }
+      return;
+    }
+    FastByIDMap<Float> valueByID = new FastByIDMap<Float>(length);
+    for (int i = 0; i < length; i++) {
+      valueByID.put(otherIDs[i], prefs.getValue(i));
+    }
+    Arrays.sort(otherIDs, 0, length);
+    for (int i = 0; i < length; i++) {
+      values[i] = valueByID.get(otherIDs[i]);
+    }
+  }
+
+  private static void writePadding(DataOutputStream out, long size) throws IOException {
+    for (long i = size; i < pad(size); i++) {
+      out.writeByte(0);
+    }
+  }
+
+  /** Iterates over the first count IDs of a mapped column. */
+  private static final class LongBufferIterator implements LongPrimitiveIterator {
+
+    private final LongBuffer ids;
+    private final int max;
+    private int position;
+
+    private LongBufferIterator(LongBuffer ids, int max) {
+      this.ids = ids;
+      this.max = max;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < max;
+    }
+
+    @Override
+    public Long next() {
+      return nextLong();
+    }
+
+    @Override
+    public long nextLong() {
+      if (position >= max) {
+        throw new NoSuchElementException();
+      }
+      return ids.get(position++);
+    }
+
+    @Override
+    public long peek() {
+      if (position >= max) {
+        throw new NoSuchElementException();
+      }
+      return ids.get(position);
+    }
+
+    @Override
+    public void skip(int n) {
+      if (n > 0) {
+        position += n;
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
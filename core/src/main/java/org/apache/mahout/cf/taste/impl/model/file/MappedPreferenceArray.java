@@ -0,0 +1,242 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.mahout.cf.taste.impl.model.BooleanItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.BooleanUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * <p>
+ * A read-only {@link PreferenceArray} over one user's, or one item's, slice of the columns of a
+ * {@link MappedDataModel}. Nothing is copied: IDs and values are read from the mapped file on access.
+ * </p>
+ *
+ * <p>
+ * A user's preferences are stored sorted by item ID, and an item's by user ID, so both sorts by ID do nothing.
+ * The setters, and sorts by value, throw {@link UnsupportedOperationException}; {@link #clone()} returns an
+ * ordinary, mutable, copy for callers that need to modify the array.
+ * </p>
+ */
+final class MappedPreferenceArray implements PreferenceArray {
+
+  private final boolean byUser;
+  private final long id;
+  private final LongBuffer otherIDs;
+  private final FloatBuffer values;
+  private final int offset;
+  private final int length;
+
+  /**
+   * @param byUser
+   *          true if this holds one user's preferences, false if one item's
+   * @param id
+   *          the user or item ID
+   * @param otherIDs
+   *          item IDs of a user's preferences, or user IDs of an item's
+   * @param values
+   *          preference values, or null if the data has none
+   * @param offset
+   *          index of this slice in otherIDs and values
+   * @param length
+   *          number of preferences in the slice
+   */
+  MappedPreferenceArray(boolean byUser, long id, LongBuffer otherIDs, FloatBuffer values, int offset, int length) {
+    this.byUser = byUser;
+    this.id = id;
+    this.otherIDs = otherIDs;
+    this.values = values;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public Preference get(int i) {
+    return new PreferenceView(i);
+  }
+
+  @Override
+  public void set(int i, Preference pref) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getUserID(int i) {
+    return byUser ? id : otherIDs.get(offset + i);
+  }
+
+  @Override
+  public void setUserID(int i, long userID) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getItemID(int i) {
+    return byUser ? otherIDs.get(offset + i) : id;
+  }
+
+  @Override
+  public void setItemID(int i, long itemID) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public float getValue(int i) {
+    return values == null ? 1.0f : values.get(offset + i);
+  }
+
+  @Override
+  public void setValue(int i, float value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public PreferenceArray clone() {
+    PreferenceArray copy;
+    if (values == null) {
+      copy = byUser ? new BooleanUserPreferenceArray(length) : new BooleanItemPreferenceArray(length);
+    } else {
+      copy = byUser ? new GenericUserPreferenceArray(length) : new GenericItemPreferenceArray(length);
+    }
+    for (int i = 0; i < length; i++) {
+      copy.setUserID(i, getUserID(i));
+      copy.setItemID(i, getItemID(i));
+      if (values != null) {
+        copy.setValue(i, values.get(offset + i));
+      }
+    }
+    return copy;
+  }
+
+  @Override
+  public void sortByUser() { }
+
+  @Override
+  public void sortByItem() { }
+
+  @Override
+  public void sortByValue() {
+    if (values != null) {
+      throw new UnsupportedOperationException("Read-only; sort a clone() instead");
+    }
+  }
+
+  @Override
+  public void sortByValueReversed() {
+    sortByValue();
+  }
+
+  @Override
+  public boolean hasPrefWithUserID(long userID) {
+    return byUser ? id == userID : MappedDataModel.search(otherIDs, offset, offset + length, userID) >= 0;
+  }
+
+  @Override
+  public boolean hasPrefWithItemID(long itemID) {
+    return byUser ? MappedDataModel.search(otherIDs, offset, offset + length, itemID) >= 0 : id == itemID;
+  }
+
+  @Override
+  public Iterator<Preference> iterator() {
+    return new PreferenceArrayIterator();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder(20 * length);
+    result.append("MappedPreferenceArray[").append(byUser ? "userID:" : "itemID:");
+    result.append(id);
+    result.append(",{");
+    for (int i = 0; i < length; i++) {
+      if (i > 0) {
+        result.append(',');
+      }
+      result.append(otherIDs.get(offset + i));
+      result.append('=');
+      result.append(getValue(i));
+    }
+    result.append("}]");
+    return result.toString();
+  }
+
+  private final class PreferenceArrayIterator implements Iterator<Preference> {
+    private int i = 0;
+
+    @Override
+    public boolean hasNext() {
+      return i < length;
+    }
+
+    @Override
+    public Preference next() {
+      if (i >= length) {
+        throw new NoSuchElementException();
+      }
+      return new PreferenceView(i++);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private final class PreferenceView implements Preference {
+
+    private final int i;
+
+    private PreferenceView(int i) {
+      this.i = i;
+    }
+
+    @Override
+    public long getUserID() {
+      return MappedPreferenceArray.this.getUserID(i);
+    }
+
+    @Override
+    public long getItemID() {
+      return MappedPreferenceArray.this.getItemID(i);
+    }
+
+    @Override
+    public float getValue() {
+      return MappedPreferenceArray.this.getValue(i);
+    }
+
+    @Override
+    public void setValue(float value) {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
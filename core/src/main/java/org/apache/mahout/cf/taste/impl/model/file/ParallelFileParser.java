@@ -0,0 +1,409 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Parses the data and update files of a {@link FileDataModel} on several threads, with the same result as
+ * {@link FileDataModel#processFile} or {@link FileDataModel#processFileWithoutID} reading them in order.
+ * </p>
+ *
+ * <p>
+ * Each file is split into byte ranges, and each range parsed separately into primitive records of user ID,
+ * item ID and value, already partitioned by user ID. Then each partition of users is built on its own thread
+ * by applying its records range by range, in file order, so that later lines still supersede earlier ones
+ * for the same user and item. The partitions hold disjoint users, and are finally put together in the caller's
+ * map.
+ * </p>
+ *
+ * <p>
+ * Only uncompressed files can be split; see {@link #canSplit(File)}. Lines are parsed with
+ * {@link FileDataModel#readUserIDFromString(String)} and {@link FileDataModel#readItemIDFromString(String)},
+ * from several threads, but not with {@link FileDataModel#processLine}.
+ * </p>
+ */
+final class ParallelFileParser {
+
+  private static final Logger log = LoggerFactory.getLogger(ParallelFileParser.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final char COMMENT_CHAR = '#';
+  /** Byte ranges are not made smaller than this */
+  private static final long MIN_RANGE_SIZE = 1 << 20;
+  /** Ranges per thread, so that threads which finish early can take more */
+  private static final int RANGES_PER_THREAD = 4;
+
+  private final FileDataModel model;
+  private final int numThreads;
+  private final boolean transpose;
+
+  ParallelFileParser(FileDataModel model, int numThreads, boolean transpose) {
+    this.model = model;
+    this.numThreads = numThreads;
+    this.transpose = transpose;
+  }
+
+  /**
+   * @return true if the file is not compressed, and so can be split into byte ranges
+   */
+  static boolean canSplit(File file) {
+    String name = file.getName();
+    return !name.endsWith(".gz") && !name.endsWith(".zip");
+  }
+
+  /**
+   * Parses the files, in order, into data, which maps user IDs to {@link Collection}s of {@link Preference}s.
+   * Data already in the map is updated as it would be by {@link FileDataModel#processFile}.
+   */
+  void parse(List<File> files, FastByIDMap<Collection<Preference>> data) throws IOException {
+    parse(files, data, true, new PreferenceApplier());
+  }
+
+  /**
+   * Parses the files, in order, into data, which maps user IDs to {@link FastIDSet}s of item IDs. Data already
+   * in the map is updated as it would be by {@link FileDataModel#processFileWithoutID}.
+   */
+  void parseWithoutID(List<File> files, FastByIDMap<FastIDSet> data) throws IOException {
+    parse(files, data, false, new ItemIDApplier());
+  }
+
+  private <V> void parse(List<File> files, FastByIDMap<V> data, boolean hasPrefValues, Applier<V> applier)
+    throws IOException {
+    List<Range> ranges = new ArrayList<Range>();
+    for (File file : files) {
+      long length = file.length();
+      long rangeSize = Math.max(MIN_RANGE_SIZE, length / (numThreads * RANGES_PER_THREAD) + 1);
+      for (long start = 0; start < length; start += rangeSize) {
+        ranges.add(new Range(file, start, Math.min(length, start + rangeSize), hasPrefValues));
+      }
+    }
+
+    // Partitions hold disjoint users, so that each can be built on its own thread
+    List<FastByIDMap<V>> partitions = new ArrayList<FastByIDMap<V>>(numThreads);
+    for (int p = 0; p < numThreads; p++) {
+      partitions.add(new FastByIDMap<V>(data.size() / numThreads + 1));
+    }
+    for (Map.Entry<Long,V> entry : data.entrySet()) {
+      long userID = entry.getKey();
+      partitions.get(partition(userID)).put(userID, entry.getValue());
+    }
+    data.clear();
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Callable<Records[]>> parsers = new ArrayList<Callable<Records[]>>(ranges.size());
+      for (Range range : ranges) {
+        parsers.add(range);
+      }
+      List<Records[]> parsed = new ArrayList<Records[]>(ranges.size());
+      for (Future<Records[]> future : executor.invokeAll(parsers)) {
+        parsed.add(future.get());
+      }
+      int count = 0;
+      for (Records[] records : parsed) {
+        for (Records partitionRecords : records) {
+          count += partitionRecords.size;
+        }
+      }
+      log.info("Read lines: {} in {} ranges", count, ranges.size());
+
+      List<Callable<Void>> builders = new ArrayList<Callable<Void>>(numThreads);
+      for (int p = 0; p < numThreads; p++) {
+        builders.add(new PartitionBuilder<V>(partitions.get(p), parsed, p, applier));
+      }
+      for (Future<Void> future : executor.invokeAll(builders)) {
+        future.get();
+      }
+    } catch (InterruptedException ie) {
+      throw new IOException(ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      executor.shutdown();
+    }
+
+    for (FastByIDMap<V> partition : partitions) {
+      for (Map.Entry<Long,V> entry : partition.entrySet()) {
+        data.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private int partition(long userID) {
+    // the high bits of a multiplicative hash are well mixed even for sequential IDs
+    return (int) (((userID * 0x9E3779B97F4A7C15L) >>> 33) % numThreads);
+  }
+
+  /** A byte range of a file, which parses the lines starting in it. */
+  private final class Range implements Callable<Records[]> {
+
+    private final File file;
+    private final long start;
+    private final long end;
+    private final boolean hasPrefValues;
+
+    private Range(File file, long start, long end, boolean hasPrefValues) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+      this.hasPrefValues = hasPrefValues;
+    }
+
+    @Override
+    public Records[] call() throws IOException {
+      Records[] records = new Records[numThreads];
+      for (int p = 0; p < numThreads; p++) {
+        records[p] = new Records();
+      }
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        long position = start;
+        InputStream in;
+        if (start == 0) {
+          in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+        } else {
+          // the line under way at start belongs to the previous range, unless it starts right here
+          channel.position(start - 1);
+          in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+          position = start - 1;
+          int b;
+          do {
+            b = in.read();
+            position++;
+          } while (b >= 0 && b != '\n');
+        }
+        byte[] line = new byte[256];
+        while (position < end) {
+          int length = 0;
+          int b;
+          while ((b = in.read()) >= 0 && b != '\n') {
+            if (length == line.length) {
+              byte[] longer = new byte[2 * length];
+              System.arraycopy(line, 0, longer, 0, length);
+              line = longer;
+            }
+            line[length++] = (byte) b;
+          }
+          if (b < 0 && length == 0) {
+            break;
+          }
+          position += length + 1;
+          if (length > 0 && line[length - 1] == '\r') {
+            length--;
+          }
+          if (length > 0) {
+            parseLine(new String(line, 0, length, UTF8), records);
+          }
+        }
+      } finally {
+        randomAccessFile.close();
+      }
+      return records;
+    }
+
+    /** Parses a line as {@link FileDataModel#processLine} or {@link FileDataModel#processLineWithoutID} would. */
+    private void parseLine(String line, Records[] records) {
+      if (line.charAt(0) == COMMENT_CHAR) {
+        return;
+      }
+      char delimiter = model.getDelimiter();
+      int delimiterOne = line.indexOf(delimiter);
+      if (delimiterOne < 0) {
+        throw new IllegalArgumentException("Bad line: " + line);
+      }
+      long userID;
+      long itemID;
+      float value = 1.0f;
+      boolean delete = false;
+      if (hasPrefValues) {
+        int delimiterTwo = line.indexOf(delimiter, delimiterOne + 1);
+        if (delimiterTwo < 0) {
+          throw new IllegalArgumentException("Bad line: " + line);
+        }
+        int delimiterThree = line.indexOf(delimiter, delimiterTwo + 1);
+        String valueString = delimiterThree > delimiterTwo
+            ? line.substring(delimiterTwo + 1, delimiterThree) : line.substring(delimiterTwo + 1);
+        userID = model.readUserIDFromString(line.substring(0, delimiterOne));
+        itemID = model.readItemIDFromString(line.substring(delimiterOne + 1, delimiterTwo));
+        if (valueString.length() == 0) {
+          delete = true;
+        } else {
+          value = Float.parseFloat(valueString);
+        }
+      } else {
+        userID = model.readUserIDFromString(line.substring(0, delimiterOne));
+        itemID = model.readItemIDFromString(line.substring(delimiterOne + 1));
+      }
+      if (transpose) {
+        long tmp = userID;
+        userID = itemID;
+        itemID = tmp;
+      }
+      records[partition(userID)].add(userID, itemID, value, delete);
+    }
+  }
+
+  /** Builds one partition of users from its records of every range, in order. */
+  private static final class PartitionBuilder<V> implements Callable<Void> {
+
+    private final FastByIDMap<V> partition;
+    private final List<Records[]> parsed;
+    private final int p;
+    private final Applier<V> applier;
+
+    private PartitionBuilder(FastByIDMap<V> partition, List<Records[]> parsed, int p, Applier<V> applier) {
+      this.partition = partition;
+      this.parsed = parsed;
+      this.p = p;
+      this.applier = applier;
+    }
+
+    @Override
+    public Void call() {
+      for (Records[] rangeRecords : parsed) {
+        Records records = rangeRecords[p];
+        for (int i = 0; i < records.size; i++) {
+          applier.apply(partition, records.userIDs[i], records.itemIDs[i], records.values[i], records.deletes.get(i));
+        }
+        // release each range's records as soon as they are applied
+        rangeRecords[p] = null;
+      }
+      return null;
+    }
+  }
+
+  /** Applies one parsed line to the user's data in a partition. */
+  private interface Applier<V> {
+    void apply(FastByIDMap<V> partition, long userID, long itemID, float value, boolean delete);
+  }
+
+  private static final class PreferenceApplier implements Applier<Collection<Preference>> {
+    @Override
+    public void apply(FastByIDMap<Collection<Preference>> partition,
+                      long userID,
+                      long itemID,
+                      float value,
+                      boolean delete) {
+      Collection<Preference> prefs = partition.get(userID);
+      if (delete) {
+        if (prefs != null) {
+          Iterator<Preference> prefsIterator = prefs.iterator();
+          while (prefsIterator.hasNext()) {
+            if (prefsIterator.next().getItemID() == itemID) {
+              prefsIterator.remove();
+              break;
+            }
+          }
+        }
+        return;
+      }
+      if (prefs == null) {
+        prefs = new ArrayList<Preference>(2);
+        partition.put(userID, prefs);
+      } else {
+        for (Preference pref : prefs) {
+          if (pref.getItemID() == itemID) {
+            pref.setValue(value);
+            return;
+          }
+        }
+      }
+      prefs.add(new GenericPreference(userID, itemID, value));
+    }
+  }
+
+  private static final class ItemIDApplier implements Applier<FastIDSet> {
+    @Override
+    public void apply(FastByIDMap<FastIDSet> partition, long userID, long itemID, float value, boolean delete) {
+      FastIDSet itemIDs = partition.get(userID);
+      if (itemIDs == null) {
+        itemIDs = new FastIDSet(2);
+        partition.put(userID, itemIDs);
+      }
+      itemIDs.add(itemID);
+    }
+  }
+
+  /** Growable columns of parsed lines. */
+  private static final class Records {
+
+    private long[] userIDs = new long[16];
+    private long[] itemIDs = new long[16];
+    private float[] values = new float[16];
+    private final BitSet deletes = new BitSet();
+    private int size;
+
+    void add(long userID, long itemID, float value, boolean delete) {
+      if (size == userIDs.length) {
+        int capacity = 2 * size;
+        long[] newUserIDs = new long[capacity];
+        System.arraycopy(userIDs, 0, newUserIDs, 0, size);
+        userIDs = newUserIDs;
+        long[] newItemIDs = new long[capacity];
+        System.arraycopy(itemIDs, 0, newItemIDs, 0, size);
+        itemIDs = newItemIDs;
+        float[] newValues = new float[capacity];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+      }
+      userIDs[size] = userID;
+      itemIDs[size] = itemID;
+      values[size] = value;
+      if (delete) {
+        deletes.set(size);
+      }
+      size++;
+    }
+  }
+
+}
@@ -64,6 +64,11 @@ abstract class AbstractUserNeighborhood implements UserNeighborhood {
     return samplingRate;
   }
   
+  /** Makes {@link #refresh(Collection)} also refresh the given component, such as an index of users. */
+  final void addDependency(Refreshable refreshable) {
+    refreshHelper.addDependency(refreshable);
+  }
+  
   @Override
   public final void refresh(Collection<Refreshable> alreadyRefreshed) {
     refreshHelper.refresh(alreadyRefreshed);
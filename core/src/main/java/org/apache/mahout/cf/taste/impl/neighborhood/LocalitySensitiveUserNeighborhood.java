@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.neighborhood;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.recommender.TopItems;
+import org.apache.mahout.cf.taste.impl.similarity.LocalitySensitiveHashIndex;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * <p>
+ * Computes a neighborhood consisting of the nearest n users to a given user, like
+ * {@link NearestNUserNeighborhood}, but only among the candidates a {@link LocalitySensitiveHashIndex} of
+ * users finds for the user, so that it takes time depending on the number of candidates rather than of users.
+ * Nearest neighbors the index does not find are missed; its numbers of bands and rows trade recall for speed.
+ * </p>
+ */
+public final class LocalitySensitiveUserNeighborhood extends AbstractUserNeighborhood {
+
+  private final int n;
+  private final double minSimilarity;
+  private final LocalitySensitiveHashIndex index;
+
+  /**
+   * @param n
+   *          neighborhood size
+   * @param minSimilarity
+   *          minimal similarity required for neighbors
+   * @param userSimilarity
+   *          nearness metric
+   * @param dataModel
+   *          data model
+   * @param index
+   *          index of the model's users, refreshed along with this neighborhood
+   * @throws IllegalArgumentException
+   *           if n &lt; 1, userSimilarity, dataModel or index are <code>null</code>, or index indexes items
+   */
+  public LocalitySensitiveUserNeighborhood(int n,
+                                           double minSimilarity,
+                                           UserSimilarity userSimilarity,
+                                           DataModel dataModel,
+                                           LocalitySensitiveHashIndex index) {
+    super(userSimilarity, dataModel, 1.0);
+    if (n < 1) {
+      throw new IllegalArgumentException("n must be at least 1");
+    }
+    if (index == null || !index.isIndexingUsers()) {
+      throw new IllegalArgumentException("index is null or not of users");
+    }
+    this.n = n;
+    this.minSimilarity = minSimilarity;
+    this.index = index;
+    addDependency(index);
+  }
+
+  @Override
+  public long[] getUserNeighborhood(final long userID) throws TasteException {
+    final UserSimilarity userSimilarityImpl = getUserSimilarity();
+    return TopItems.getTopUsers(n, index.getCandidates(userID).iterator(), null, new TopItems.Estimator<Long>() {
+      @Override
+      public double estimate(Long candidateID) throws TasteException {
+        double similarity = userSimilarityImpl.userSimilarity(userID, candidateID);
+        return similarity >= minSimilarity ? similarity : Double.NaN;
+      }
+    });
+  }
+
+  @Override
+  public String toString() {
+    return "LocalitySensitiveUserNeighborhood[index:" + index + ']';
+  }
+
+}
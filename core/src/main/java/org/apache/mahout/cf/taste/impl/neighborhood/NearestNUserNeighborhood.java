@@ -17,11 +17,23 @@
 
 package org.apache.mahout.cf.taste.impl.neighborhood;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.common.SamplingLongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.SimilarUser;
 import org.apache.mahout.cf.taste.impl.recommender.TopItems;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 
 /**
@@ -29,11 +41,27 @@ import org.apache.mahout.cf.taste.similarity.UserSimilarity;
  * Computes a neighborhood consisting of the nearest n users to a given user. "Nearest" is defined by the
  * given {@link UserSimilarity}.
  * </p>
+ *
+ * <p>
+ * By default every user, or a random sample of them, is compared with the given user. Given a minimum
+ * overlap, only users who have preferences for at least that many of the given user's items are compared,
+ * found through {@link DataModel#getPreferencesForItem(long)}, and they are compared in order of decreasing
+ * overlap, optionally only up to a maximum number of them. With a {@link TanimotoCoefficientSimilarity},
+ * whose similarity can't exceed the overlap divided by the given user's number of items, the comparisons
+ * stop as soon as no remaining user could enter the neighborhood, without changing the result.
+ * </p>
  */
 public final class NearestNUserNeighborhood extends AbstractUserNeighborhood {
   
+  /** Compares every user sharing enough items with the given user */
+  public static final int NO_MAX_CANDIDATES = Integer.MAX_VALUE;
+  
+  private static final long[] NO_IDS = new long[0];
+  
   private final int n;
   private final double minSimilarity;
+  private final int minOverlap;
+  private final int maxCandidates;
   
   /**
    * @param n
@@ -95,11 +123,57 @@ public final class NearestNUserNeighborhood extends AbstractUserNeighborhood {
     }
     this.n = n;
     this.minSimilarity = minSimilarity;
+    this.minOverlap = 0;
+    this.maxCandidates = NO_MAX_CANDIDATES;
+  }
+  
+  /**
+   * @param n
+   *          neighborhood size
+   * @param minSimilarity
+   *          minimal similarity required for neighbors
+   * @param userSimilarity
+   *          nearness metric
+   * @param dataModel
+   *          data model
+   * @param minOverlap
+   *          minimal number of items a user must share with the given user to be considered
+   * @param maxCandidates
+   *          maximum number of users to compare with the given user, those sharing the most items first, or
+   *          {@link #NO_MAX_CANDIDATES} -- decrease to trade quality for performance
+   * @throws IllegalArgumentException
+   *           if n, minOverlap or maxCandidates are &lt; 1, or userSimilarity or dataModel are
+   *           <code>null</code>
+   */
+  public NearestNUserNeighborhood(int n,
+                                  double minSimilarity,
+                                  UserSimilarity userSimilarity,
+                                  DataModel dataModel,
+                                  int minOverlap,
+                                  int maxCandidates) {
+    super(userSimilarity, dataModel, 1.0);
+    if (n < 1) {
+      throw new IllegalArgumentException("n must be at least 1");
+    }
+    if (minOverlap < 1) {
+      throw new IllegalArgumentException("minOverlap must be at least 1");
+    }
+    if (maxCandidates < 1) {
+      throw new IllegalArgumentException("maxCandidates must be at least 1");
+    }
+    this.n = n;
+    this.minSimilarity = minSimilarity;
+    this.minOverlap = minOverlap;
+    this.maxCandidates = maxCandidates;
   }
   
   @Override
   public long[] getUserNeighborhood(long userID) throws TasteException {
     
+    if (minOverlap > 0) {
+      return getOverlappingNeighborhood(userID);
+    }
+    
     DataModel dataModel = getDataModel();
     UserSimilarity userSimilarityImpl = getUserSimilarity();
     
@@ -111,6 +185,115 @@ public final class NearestNUserNeighborhood extends AbstractUserNeighborhood {
     return TopItems.getTopUsers(n, userIDs, null, estimator);
   }
   
+  private long[] getOverlappingNeighborhood(long userID) throws TasteException {
+    
+    DataModel dataModel = getDataModel();
+    UserSimilarity userSimilarityImpl = getUserSimilarity();
+    
+    FastIDSet itemIDs;
+    try {
+      itemIDs = dataModel.getItemIDsFromUser(userID);
+    } catch (NoSuchUserException nsue) {
+      return NO_IDS;
+    }
+    int numItems = itemIDs.size();
+    if (numItems < minOverlap) {
+      return NO_IDS;
+    }
+    
+    // Collect the users of each of the user's items; after sorting, a user appears once per shared item
+    long[] userIDs = new long[16];
+    int numUserIDs = 0;
+    LongPrimitiveIterator it = itemIDs.iterator();
+    while (it.hasNext()) {
+      PreferenceArray prefs = dataModel.getPreferencesForItem(it.nextLong());
+      int length = prefs.length();
+      if (numUserIDs + length > userIDs.length) {
+        userIDs = Arrays.copyOf(userIDs, Math.max(2 * userIDs.length, numUserIDs + length));
+      }
+      for (int i = 0; i < length; i++) {
+        userIDs[numUserIDs++] = prefs.getUserID(i);
+      }
+    }
+    Arrays.sort(userIDs, 0, numUserIDs);
+    
+    // Bucket the candidates by overlap, so that those sharing the most items are compared first
+    int[] overlapCounts = new int[numItems + 2];
+    long[] candidateIDs = new long[numUserIDs];
+    int[] overlaps = new int[numUserIDs];
+    int numCandidates = 0;
+    for (int start = 0; start < numUserIDs;) {
+      long candidateID = userIDs[start];
+      int end = start + 1;
+      while (end < numUserIDs && userIDs[end] == candidateID) {
+        end++;
+      }
+      int overlap = end - start;
+      if (overlap >= minOverlap && candidateID != userID) {
+        candidateIDs[numCandidates] = candidateID;
+        overlaps[numCandidates] = overlap;
+        overlapCounts[overlap]++;
+        numCandidates++;
+      }
+      start = end;
+    }
+    int[] bucketStarts = new int[numItems + 2];
+    for (int overlap = numItems; overlap >= 1; overlap--) {
+      bucketStarts[overlap] = bucketStarts[overlap + 1] + overlapCounts[overlap + 1];
+    }
+    long[] orderedIDs = new long[numCandidates];
+    int[] orderedOverlaps = new int[numCandidates];
+    for (int i = 0; i < numCandidates; i++) {
+      int position = bucketStarts[overlaps[i]]++;
+      orderedIDs[position] = candidateIDs[i];
+      orderedOverlaps[position] = overlaps[i];
+    }
+    
+    boolean bounded = userSimilarityImpl instanceof TanimotoCoefficientSimilarity;
+    Queue<SimilarUser> topUsers = new PriorityQueue<SimilarUser>(n + 1, Collections.reverseOrder());
+    double lowestTopValue = minSimilarity;
+    int numToCompare = Math.min(numCandidates, maxCandidates);
+    for (int i = 0; i < numToCompare; i++) {
+      if (bounded) {
+        double maxSimilarity = (double) orderedOverlaps[i] / numItems;
+        if (maxSimilarity < lowestTopValue || (topUsers.size() == n && maxSimilarity <= lowestTopValue)) {
+          break;
+        }
+      }
+      double similarity;
+      try {
+        similarity = userSimilarityImpl.userSimilarity(userID, orderedIDs[i]);
+      } catch (NoSuchUserException nsue) {
+        continue;
+      }
+      if (Double.isNaN(similarity) || similarity < minSimilarity) {
+        continue;
+      }
+      if (topUsers.size() < n) {
+        topUsers.add(new SimilarUser(orderedIDs[i], similarity));
+        if (topUsers.size() == n) {
+          lowestTopValue = topUsers.peek().getSimilarity();
+        }
+      } else if (similarity > lowestTopValue) {
+        topUsers.add(new SimilarUser(orderedIDs[i], similarity));
+        topUsers.poll();
+        lowestTopValue = topUsers.peek().getSimilarity();
+      }
+    }
+    
+    int size = topUsers.size();
+    if (size == 0) {
+      return NO_IDS;
+    }
+    List<SimilarUser> sorted = new ArrayList<SimilarUser>(topUsers);
+    Collections.sort(sorted);
+    long[] result = new long[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = sorted.get(i).getUserID();
+    }
+    return result;
+  }
+  
   @Override
   public String toString() {
     return "NearestNUserNeighborhood";
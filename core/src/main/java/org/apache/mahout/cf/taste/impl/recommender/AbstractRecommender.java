@@ -17,29 +17,49 @@
 
 package org.apache.mahout.cf.taste.impl.recommender;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.Retriever;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.BatchRecommender;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public abstract class AbstractRecommender implements Recommender {
+public abstract class AbstractRecommender implements BatchRecommender {
   
   private static final Logger log = LoggerFactory.getLogger(AbstractRecommender.class);
   
+  /** Number of items whose co-rated items a batch keeps; those of the most popular items are worth keeping */
+  private static final int CO_RATED_ITEMS_CACHE_SIZE = 100;
+  
   private final DataModel dataModel;
+  private int batchThreads;
+  /** Created when first needed and reused by later batches; guarded by this */
+  private ExecutorService batchExecutor;
   
   protected AbstractRecommender(DataModel dataModel) {
     if (dataModel == null) {
       throw new IllegalArgumentException("dataModel is null");
     }
     this.dataModel = dataModel;
+    this.batchThreads = Runtime.getRuntime().availableProcessors();
   }
   
   /**
@@ -54,6 +74,119 @@ public abstract class AbstractRecommender implements Recommender {
     return recommend(userID, howMany, null);
   }
   
+  /**
+   * <p>
+   * Default implementation which just calls {@link BatchRecommender#recommend(long[], int, IDRescorer)}, with
+   * no rescorer.
+   * </p>
+   */
+  @Override
+  public List<List<RecommendedItem>> recommend(long[] userIDs, int howMany) throws TasteException {
+    return recommend(userIDs, howMany, null);
+  }
+  
+  /**
+   * <p>
+   * Default implementation which recommends to the users from {@link #getBatchThreads()} threads, each taking
+   * the next user in turn from the {@link Batch} returned by {@link #newBatch(long[])}.
+   * </p>
+   */
+  @Override
+  public List<List<RecommendedItem>> recommend(long[] userIDs, int howMany, IDRescorer rescorer)
+    throws TasteException {
+    if (howMany < 1) {
+      throw new IllegalArgumentException("howMany must be at least 1");
+    }
+    List<List<RecommendedItem>> recommendations =
+        new ArrayList<List<RecommendedItem>>(Collections.<List<RecommendedItem>>nCopies(userIDs.length, null));
+    BatchWorker worker = new BatchWorker(newBatch(userIDs), userIDs, howMany, rescorer, recommendations);
+    int numThreads = Math.min(userIDs.length, getBatchThreads());
+    if (numThreads <= 1) {
+      worker.call();
+      return recommendations;
+    }
+    log.debug("Recommending to {} users in {} threads", userIDs.length, numThreads);
+    ExecutorService executor = getBatchExecutor();
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>(numThreads);
+      for (int t = 0; t < numThreads; t++) {
+        futures.add(executor.submit(worker));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof TasteException) {
+        throw (TasteException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new TasteException(cause);
+    }
+    return recommendations;
+  }
+  
+  public synchronized int getBatchThreads() {
+    return batchThreads;
+  }
+  
+  /**
+   * Sets the number of threads which {@link #recommend(long[], int, IDRescorer)} recommends to a block of users
+   * from; by default, as many as there are processors. The threads are kept, as daemon threads, for the
+   * following blocks.
+   */
+  public synchronized void setBatchThreads(int batchThreads) {
+    if (batchThreads < 1) {
+      throw new IllegalArgumentException("batchThreads must be at least 1");
+    }
+    if (batchThreads != this.batchThreads && batchExecutor != null) {
+      batchExecutor.shutdown();
+      batchExecutor = null;
+    }
+    this.batchThreads = batchThreads;
+  }
+  
+  private synchronized ExecutorService getBatchExecutor() {
+    if (batchExecutor == null) {
+      batchExecutor = Executors.newFixedThreadPool(batchThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Batch recommendations of " + getClass().getSimpleName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return batchExecutor;
+  }
+  
+  /**
+   * <p>
+   * Prepares to recommend to a block of users. Implementations override this to compute, or keep as they go,
+   * what recommendations to several of the users have in common. This default implementation shares nothing
+   * and calls {@link #recommend(long, int, IDRescorer)} for each user.
+   * </p>
+   * 
+   * @param userIDs
+   *          users which the batch will recommend to
+   * @return batch which recommends to them, called from several threads at once
+   * @throws TasteException
+   *           if an error occurs while accessing the {@link DataModel}
+   */
+  protected Batch newBatch(long[] userIDs) throws TasteException {
+    return new Batch() {
+      @Override
+      public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+        return AbstractRecommender.this.recommend(userID, howMany, rescorer);
+      }
+    };
+  }
+  
   /**
    * <p>
    * Default implementation which just calls {@link DataModel#setPreference(long, long, float)}.
@@ -114,4 +247,95 @@ public abstract class AbstractRecommender implements Recommender {
     return possibleItemsIDs;
   }
   
+  /**
+   * @return cache of the items which users who expressed a preference for an item expressed preferences for,
+   *         by item, for use with {@link #getAllOtherItems(long, Cache)} by a {@link Batch}
+   */
+  protected Cache<Long,FastIDSet> newCoRatedItemsCache() {
+    return new Cache<Long,FastIDSet>(new Retriever<Long,FastIDSet>() {
+      @Override
+      public FastIDSet get(Long itemID) throws TasteException {
+        FastIDSet coRatedItemIDs = new FastIDSet();
+        PreferenceArray prefs = dataModel.getPreferencesForItem(itemID);
+        int size = prefs.length();
+        for (int j = 0; j < size; j++) {
+          coRatedItemIDs.addAll(dataModel.getItemIDsFromUser(prefs.getUserID(j)));
+        }
+        return coRatedItemIDs;
+      }
+    }, CO_RATED_ITEMS_CACHE_SIZE);
+  }
+  
+  /**
+   * <p>
+   * Same as {@link #getAllOtherItems(long)}, but takes the items co-rated with each of the user's items from
+   * the given cache, shared between the users of a batch.
+   * </p>
+   * 
+   * @param theUserID
+   *          ID of user being evaluated
+   * @param coRatedItems
+   *          cache returned by {@link #newCoRatedItemsCache()}
+   * @return all items in the {@link DataModel} for which the user has not expressed a preference and could
+   *         possibly be recommended to the user
+   * @throws TasteException
+   *           if an error occurs while listing items
+   */
+  protected FastIDSet getAllOtherItems(long theUserID, Cache<Long,FastIDSet> coRatedItems) throws TasteException {
+    FastIDSet possibleItemsIDs = new FastIDSet();
+    FastIDSet itemIDs = dataModel.getItemIDsFromUser(theUserID);
+    LongPrimitiveIterator itemIDIterator = itemIDs.iterator();
+    while (itemIDIterator.hasNext()) {
+      // the cached sets are shared, so they are only read from
+      possibleItemsIDs.addAll(coRatedItems.get(itemIDIterator.nextLong()));
+    }
+    possibleItemsIDs.removeAll(itemIDs);
+    return possibleItemsIDs;
+  }
+  
+  /**
+   * Recommendations to one block of users, which may share work between them. It is called from several
+   * threads at once.
+   */
+  protected interface Batch {
+    
+    List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException;
+    
+  }
+  
+  /** Takes the next user of a batch in turn, until there is none left. */
+  private static final class BatchWorker implements Callable<Void> {
+    
+    private final Batch batch;
+    private final long[] userIDs;
+    private final int howMany;
+    private final IDRescorer rescorer;
+    /** each element is set by one thread, and read once they are all done */
+    private final List<List<RecommendedItem>> recommendations;
+    private final AtomicInteger next;
+    
+    private BatchWorker(Batch batch,
+                        long[] userIDs,
+                        int howMany,
+                        IDRescorer rescorer,
+                        List<List<RecommendedItem>> recommendations) {
+      this.batch = batch;
+      this.userIDs = userIDs;
+      this.howMany = howMany;
+      this.rescorer = rescorer;
+      this.recommendations = recommendations;
+      next = new AtomicInteger();
+    }
+    
+    @Override
+    public Void call() throws TasteException {
+      int i;
+      while ((i = next.getAndIncrement()) < userIDs.length) {
+        recommendations.set(i, batch.recommend(userIDs[i], howMany, rescorer));
+      }
+      return null;
+    }
+    
+  }
+  
 }
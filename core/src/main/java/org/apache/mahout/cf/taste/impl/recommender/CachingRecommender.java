@@ -26,13 +26,13 @@ import java.util.concurrent.Callable;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.Cache;
+import org.apache.mahout.cf.taste.impl.common.LongPairCache;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.impl.common.Retriever;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
-import org.apache.mahout.common.LongPair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,7 +50,7 @@ public final class CachingRecommender implements Recommender {
   private final Recommender recommender;
   private final int[] maxHowMany;
   private final Cache<Long,Recommendations> recommendationCache;
-  private final Cache<LongPair,Float> estimatedPrefCache;
+  private final LongPairCache estimatedPrefCache;
   private final RefreshHelper refreshHelper;
   private IDRescorer currentRescorer;
   
@@ -64,12 +64,32 @@ public final class CachingRecommender implements Recommender {
     int numUsers = recommender.getDataModel().getNumUsers();
     this.recommendationCache = new Cache<Long,Recommendations>(new RecommendationRetriever(this.recommender),
         numUsers);
-    this.estimatedPrefCache = new Cache<LongPair,Float>(new EstimatedPrefRetriever(this.recommender),
-        numUsers);
+    this.estimatedPrefCache = new LongPairCache(new EstimatedPrefRetriever(this.recommender), numUsers);
     this.refreshHelper = new RefreshHelper(new Callable<Object>() {
       @Override
       public Object call() {
-        clear();
+        if (!RefreshHelper.isRefreshingStaged()) {
+          clear();
+          return null;
+        }
+        // the data is reloading in the background: once it is published, recompute, rather than drop, what is
+        // cached, which keeps being served meanwhile
+        RefreshHelper.runWhenPublished(new Callable<Object>() {
+          @Override
+          public Object call() throws TasteException {
+            boolean rebuilt = false;
+            try {
+              recommendationCache.rebuild();
+              estimatedPrefCache.rebuild();
+              rebuilt = true;
+            } finally {
+              if (!rebuilt) {
+                clear();
+              }
+            }
+            return null;
+          }
+        });
         return null;
       }
     });
@@ -128,7 +148,7 @@ public final class CachingRecommender implements Recommender {
   
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException {
-    return estimatedPrefCache.get(new LongPair(userID, itemID));
+    return (float) estimatedPrefCache.get(userID, itemID);
   }
   
   @Override
@@ -200,7 +220,7 @@ public final class CachingRecommender implements Recommender {
     }
   }
   
-  private static final class EstimatedPrefRetriever implements Retriever<LongPair,Float> {
+  private static final class EstimatedPrefRetriever implements LongPairCache.ValueRetriever {
     
     private final Recommender recommender;
     
@@ -209,9 +229,7 @@ public final class CachingRecommender implements Recommender {
     }
     
     @Override
-    public Float get(LongPair key) throws TasteException {
-      long userID = key.getFirst();
-      long itemID = key.getSecond();
+    public double get(long userID, long itemID) throws TasteException {
       log.debug("Retrieving estimated preference for user ID '{}' and item ID '{}'",
         userID, itemID);
       return recommender.estimatePreference(userID, itemID);
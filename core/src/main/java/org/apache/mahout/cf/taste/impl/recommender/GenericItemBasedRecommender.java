@@ -17,16 +17,22 @@
 
 package org.apache.mahout.cf.taste.impl.recommender;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.apache.mahout.cf.taste.impl.similarity.CachingItemSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.ItemSimilarityIndex;
+import org.apache.mahout.cf.taste.impl.similarity.LocalitySensitiveHashIndex;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
@@ -60,24 +66,104 @@ import org.slf4j.LoggerFactory;
  * {@link org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity} too, which computes
  * similarities in real-time, but will probably find this painfully slow for large amounts of data.
  * </p>
+ * 
+ * <p>
+ * Given an {@link ItemSimilarityIndex} of precomputed most similar items,
+ * {@link #recommend(long, int, IDRescorer)} does not estimate a preference for every item that could be
+ * recommended, which takes a similarity per candidate and item the user expressed a preference for. It walks
+ * the similar items of each of the user's items once instead, adding up the same weighted averages, so its
+ * cost depends on the length of those lists rather than on the number of items.
+ * </p>
+ * 
+ * <p>
+ * Without one, a {@link #recommend(long[], int, IDRescorer)} batch computes each item-item similarity once
+ * for all of its users, and the items they could be recommended from the items co-rated with each of theirs,
+ * which it also computes once.
+ * </p>
+ * 
+ * <p>
+ * Subclasses estimate preferences their own way by overriding {@link #doEstimatePreference(long, long)}, or
+ * {@link #doEstimatePreference(long, long, ItemSimilarity)} to keep sharing similarities in batches.
+ * </p>
+ * 
+ * <p>
+ * Given a {@link LocalitySensitiveHashIndex} of items, {@link #mostSimilarItems(long, int)} and its variants
+ * only consider the candidates the index finds for the given items, rather than every item co-rated with
+ * them, trading some recall for speed.
+ * </p>
  */
 public class GenericItemBasedRecommender extends AbstractRecommender implements ItemBasedRecommender {
   
   private static final Logger log = LoggerFactory.getLogger(GenericItemBasedRecommender.class);
   
+  /** Maximum number of similarities a batch keeps */
+  private static final int BATCH_SIMILARITY_CACHE_SIZE = 1000000;
+  
   private final ItemSimilarity similarity;
+  private final ItemSimilarityIndex neighborIndex;
+  private final LocalitySensitiveHashIndex candidateIndex;
   private final RefreshHelper refreshHelper;
+  private final boolean estimateOverridden;
+  private final boolean sharedSimilarityEstimateOverridden;
   private EstimatedPreferenceCapper capper;
 
   public GenericItemBasedRecommender(DataModel dataModel, ItemSimilarity similarity) {
+    this(dataModel, similarity, null);
+  }
+  
+  /**
+   * @param dataModel
+   *          data model
+   * @param similarity
+   *          item similarity, used for everything but choosing recommendations
+   * @param neighborIndex
+   *          index of each item's most similar items, from which {@link #recommend(long, int, IDRescorer)}
+   *          chooses and estimates recommendations, or null to estimate them using similarity. Typically the
+   *          index behind a {@link org.apache.mahout.cf.taste.impl.similarity.GenericItemSimilarity}.
+   */
+  public GenericItemBasedRecommender(DataModel dataModel,
+                                     ItemSimilarity similarity,
+                                     ItemSimilarityIndex neighborIndex) {
+    this(dataModel, similarity, neighborIndex, null);
+  }
+  
+  /**
+   * @param dataModel
+   *          data model
+   * @param similarity
+   *          item similarity, used for everything but choosing recommendations
+   * @param neighborIndex
+   *          index of each item's most similar items, as in
+   *          {@link #GenericItemBasedRecommender(DataModel, ItemSimilarity, ItemSimilarityIndex)}, or null
+   * @param candidateIndex
+   *          index of items, refreshed along with this recommender, from whose candidates
+   *          {@link #mostSimilarItems(long, int)} chooses, or null to choose from all co-rated items
+   * @throws IllegalArgumentException
+   *           if similarity is null, or candidateIndex indexes users
+   */
+  public GenericItemBasedRecommender(DataModel dataModel,
+                                     ItemSimilarity similarity,
+                                     ItemSimilarityIndex neighborIndex,
+                                     LocalitySensitiveHashIndex candidateIndex) {
     super(dataModel);
     if (similarity == null) {
       throw new IllegalArgumentException("similarity is null");
     }
+    if (candidateIndex != null && candidateIndex.isIndexingUsers()) {
+      throw new IllegalArgumentException("candidateIndex is not of items");
+    }
     this.similarity = similarity;
+    this.neighborIndex = neighborIndex;
+    this.candidateIndex = candidateIndex;
     this.refreshHelper = new RefreshHelper(null);
     refreshHelper.addDependency(dataModel);
     refreshHelper.addDependency(similarity);
+    if (candidateIndex != null) {
+      refreshHelper.addDependency(candidateIndex);
+    }
+    estimateOverridden = overridesEstimate(getClass(), long.class, long.class);
+    sharedSimilarityEstimateOverridden =
+        overridesEstimate(getClass(), long.class, long.class, ItemSimilarity.class);
     capper = buildCapper();
   }
   
@@ -97,6 +183,10 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
       return Collections.emptyList();
     }
     
+    if (neighborIndex != null) {
+      return recommendFromNeighbors(userID, howMany, rescorer);
+    }
+    
     FastIDSet possibleItemIDs = getAllOtherItems(userID);
     
     TopItems.Estimator<Long> estimator = new Estimator(userID);
@@ -108,6 +198,60 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
     return topItems;
   }
   
+  @Override
+  protected Batch newBatch(long[] userIDs) throws TasteException {
+    if (neighborIndex != null) {
+      // the users only share the index, which is already there
+      return super.newBatch(userIDs);
+    }
+    if (estimateOverridden) {
+      // a subclass estimates its own way, from its own similarity
+      return super.newBatch(userIDs);
+    }
+    return new SharedSimilarityBatch();
+  }
+  
+  /**
+   * Adds up, for each item similar to one the user expressed a preference for, the weighted average
+   * {@link #doEstimatePreference(long, long)} would compute for it from the similarities in the index. When a
+   * subclass overrides that method, the index only chooses the candidates, and the method estimates them.
+   */
+  private List<RecommendedItem> recommendFromNeighbors(long userID, int howMany, IDRescorer rescorer)
+    throws TasteException {
+    DataModel model = getDataModel();
+    PreferenceArray prefs = model.getPreferencesFromUser(userID);
+    FastIDSet userItemIDs = model.getItemIDsFromUser(userID);
+    int size = prefs.length();
+    NeighborScores scores = new NeighborScores(size);
+    long[] neighborIDs = new long[16];
+    float[] neighborSimilarities = new float[16];
+    for (int i = 0; i < size; i++) {
+      long itemID = prefs.getItemID(i);
+      int numNeighbors = neighborIndex.getNumNeighbors(itemID);
+      if (neighborIDs.length < numNeighbors) {
+        neighborIDs = new long[numNeighbors];
+        neighborSimilarities = new float[numNeighbors];
+      }
+      numNeighbors = neighborIndex.getNeighbors(itemID, neighborIDs, neighborSimilarities);
+      float value = prefs.getValue(i);
+      for (int j = 0; j < numNeighbors; j++) {
+        if (!userItemIDs.contains(neighborIDs[j])) {
+          scores.add(neighborIDs[j], neighborSimilarities[j], value);
+        }
+      }
+    }
+    
+    TopItems.Estimator<Long> estimator =
+        estimateOverridden || sharedSimilarityEstimateOverridden
+            ? new Estimator(userID)
+            : new NeighborScoresEstimator(scores);
+    List<RecommendedItem> topItems = TopItems.getTopItems(howMany,
+      new LongPrimitiveArrayIterator(scores.getEstimableItemIDs()), rescorer, estimator);
+    
+    log.debug("Recommendations are: {}", topItems);
+    return topItems;
+  }
+  
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException {
     DataModel model = getDataModel();
@@ -167,6 +311,13 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
                                                    TopItems.Estimator<Long> estimator) throws TasteException {
     DataModel model = getDataModel();
     FastIDSet possibleItemsIDs = new FastIDSet();
+    if (candidateIndex != null) {
+      for (long itemID : itemIDs) {
+        possibleItemsIDs.addAll(candidateIndex.getCandidates(itemID));
+      }
+      possibleItemsIDs.removeAll(itemIDs);
+      return TopItems.getTopItems(howMany, possibleItemsIDs.iterator(), null, estimator);
+    }
     for (long itemID : itemIDs) {
       PreferenceArray prefs = model.getPreferencesForItem(itemID);
       int size = prefs.length();
@@ -179,7 +330,25 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
     return TopItems.getTopItems(howMany, possibleItemsIDs.iterator(), null, estimator);
   }
   
+  /**
+   * Estimates a preference from this recommender's similarity. {@link #estimatePreference(long, long)} and
+   * {@link #recommend(long, int, IDRescorer)} call it. Batches of {@link #recommend(long[], int, IDRescorer)}
+   * call {@link #doEstimatePreference(long, long, ItemSimilarity)} instead, with a similarity their users share,
+   * unless a subclass overrides this method, in which case they recommend to each user in turn and call it.
+   * With a neighbor index, an override also makes {@link #recommend(long, int, IDRescorer)} call it for the
+   * candidates the index finds, rather than add up the index's own similarities.
+   */
   protected float doEstimatePreference(long userID, long itemID) throws TasteException {
+    return doEstimatePreference(userID, itemID, similarity);
+  }
+  
+  /**
+   * Estimates a preference as {@link #doEstimatePreference(long, long)} does, but from the given similarity,
+   * which is this recommender's own or, in a batch, a cache of it shared by the users of the batch. Subclasses
+   * which estimate preferences differently override this method, so that batches do so too.
+   */
+  protected float doEstimatePreference(long userID, long itemID, ItemSimilarity similarity)
+    throws TasteException {
     double preference = 0.0;
     double totalSimilarity = 0.0;
     int count = 0;
@@ -224,6 +393,19 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
     return "GenericItemBasedRecommender[similarity:" + similarity + ']';
   }
 
+  /** @return whether a subclass overrides the doEstimatePreference() taking the given parameters */
+  private static boolean overridesEstimate(Class<?> clazz, Class<?>... parameterTypes) {
+    for (Class<?> c = clazz; c != GenericItemBasedRecommender.class; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod("doEstimatePreference", parameterTypes);
+        return true;
+      } catch (NoSuchMethodException nsme) {
+        // not in this class
+      }
+    }
+    return false;
+  }
+
   private EstimatedPreferenceCapper buildCapper() {
     DataModel dataModel = getDataModel();
     if (Float.isNaN(dataModel.getMinPreference()) && Float.isNaN(dataModel.getMaxPreference())) {
@@ -256,6 +438,117 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
     }
   }
   
+  private final class NeighborScoresEstimator implements TopItems.Estimator<Long> {
+    
+    private final NeighborScores scores;
+    
+    private NeighborScoresEstimator(NeighborScores scores) {
+      this.scores = scores;
+    }
+    
+    @Override
+    public double estimate(Long itemID) {
+      float estimate = scores.estimate(itemID);
+      if (capper != null && !Float.isNaN(estimate)) {
+        estimate = capper.capEstimate(estimate);
+      }
+      return estimate;
+    }
+  }
+  
+  /**
+   * Sums of similarity-weighted preferences, of similarities and their counts per candidate item, in an open
+   * addressing hash table of primitive arrays.
+   */
+  private static final class NeighborScores {
+    
+    private long[] itemIDs;
+    private double[] weightedPrefs;
+    private double[] similaritySums;
+    private int[] counts;
+    private int size;
+    
+    private NeighborScores(int expectedSize) {
+      int capacity = 16;
+      while (capacity < 2 * expectedSize) {
+        capacity <<= 1;
+      }
+      allocate(capacity);
+    }
+    
+    private void allocate(int capacity) {
+      itemIDs = new long[capacity];
+      weightedPrefs = new double[capacity];
+      similaritySums = new double[capacity];
+      counts = new int[capacity];
+    }
+    
+    /** @return slot holding the item, or the empty slot where it belongs */
+    private int find(long itemID) {
+      int mask = counts.length - 1;
+      long hash = itemID * 0x9E3779B97F4A7C15L;
+      int slot = (int) (hash >>> 32) & mask;
+      while (counts[slot] != 0 && itemIDs[slot] != itemID) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+    
+    void add(long itemID, float similarity, float pref) {
+      int slot = find(itemID);
+      if (counts[slot] == 0) {
+        if (2 * (size + 1) > counts.length) {
+          grow();
+          slot = find(itemID);
+        }
+        itemIDs[slot] = itemID;
+        size++;
+      }
+      // Weights can be negative!
+      weightedPrefs[slot] += (double) similarity * pref;
+      similaritySums[slot] += similarity;
+      counts[slot]++;
+    }
+    
+    private void grow() {
+      long[] oldItemIDs = itemIDs;
+      double[] oldWeightedPrefs = weightedPrefs;
+      double[] oldSimilaritySums = similaritySums;
+      int[] oldCounts = counts;
+      allocate(2 * oldCounts.length);
+      for (int i = 0; i < oldCounts.length; i++) {
+        if (oldCounts[i] != 0) {
+          int slot = find(oldItemIDs[i]);
+          itemIDs[slot] = oldItemIDs[i];
+          weightedPrefs[slot] = oldWeightedPrefs[i];
+          similaritySums[slot] = oldSimilaritySums[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
+    
+    /** @return items with an estimate, that is, similar to more than one of the user's items */
+    long[] getEstimableItemIDs() {
+      long[] result = new long[size];
+      int n = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 1) {
+          result[n++] = itemIDs[i];
+        }
+      }
+      return n == size ? result : Arrays.copyOf(result, n);
+    }
+    
+    /** Throws out estimates based on one data point, as {@link GenericItemBasedRecommender} does. */
+    float estimate(long itemID) {
+      int slot = find(itemID);
+      if (counts[slot] <= 1) {
+        return Float.NaN;
+      }
+      return (float) (weightedPrefs[slot] / similaritySums[slot]);
+    }
+  }
+  
   private final class Estimator implements TopItems.Estimator<Long> {
     
     private final long userID;
@@ -270,6 +563,44 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
     }
   }
   
+  private final class SharedSimilarityEstimator implements TopItems.Estimator<Long> {
+    
+    private final long userID;
+    private final ItemSimilarity similarity;
+    
+    private SharedSimilarityEstimator(long userID, ItemSimilarity similarity) {
+      this.userID = userID;
+      this.similarity = similarity;
+    }
+    
+    @Override
+    public double estimate(Long itemID) throws TasteException {
+      return doEstimatePreference(userID, itemID, similarity);
+    }
+  }
+  
+  /** Recommends as {@link #recommend(long, int, IDRescorer)} does, from similarities shared by its users. */
+  private final class SharedSimilarityBatch implements Batch {
+    
+    private final ItemSimilarity batchSimilarity;
+    private final Cache<Long,FastIDSet> coRatedItems;
+    
+    private SharedSimilarityBatch() {
+      batchSimilarity = new CachingItemSimilarity(similarity, BATCH_SIMILARITY_CACHE_SIZE);
+      coRatedItems = newCoRatedItemsCache();
+    }
+    
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+      if (getNumPreferences(userID) == 0) {
+        return Collections.emptyList();
+      }
+      FastIDSet possibleItemIDs = getAllOtherItems(userID, coRatedItems);
+      TopItems.Estimator<Long> estimator = new SharedSimilarityEstimator(userID, batchSimilarity);
+      return TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer, estimator);
+    }
+  }
+  
   private static class MultiMostSimilarEstimator implements TopItems.Estimator<Long> {
     
     private final long[] toItemIDs;
@@ -30,11 +30,11 @@ public final class SimilarUser implements Comparable<SimilarUser> {
     this.similarity = similarity;
   }
   
-  long getUserID() {
+  public long getUserID() {
     return userID;
   }
   
-  double getSimilarity() {
+  public double getSimilarity() {
     return similarity;
   }
   
@@ -19,18 +19,13 @@ package org.apache.mahout.cf.taste.impl.recommender.rbm;
 
 import java.util.Map;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.mapred.JobConf;
 import org.apache.mahout.common.AbstractJob;
-import org.apache.mahout.math.hadoop.DistributedRowMatrix;
-import org.apache.mahout.math.jet.random.engine.DRand;
 
 /** A pure RBM algorithm. */
 public class RBM extends AbstractJob {
   
   RBMState state;
-  RBMDriver driver;
   
   public RBM(int totalFeatures, int softmax, double epsilonw, double epsilonvb,
       double epsilonhb, double weightCost, double momentum, double finalMomentum) {
@@ -41,9 +36,7 @@ public class RBM extends AbstractJob {
   
   @Override
   public int run(String[] arg0) throws Exception {
-    int numRows=10, numCols=10;
       //Set command line options
-    Configuration conf = new Configuration();
     buildOption("input", "i", "CSV Input file in (user,item,rating) format");
     buildOption("output", "o", "Output location");
     Map<String, String> args = parseArguments(arg0);
@@ -55,17 +48,7 @@ public class RBM extends AbstractJob {
     Path inputUserMatrixPath = new Path(output, "inputUserseqfile");
     RBMInputDriver.runJob(input, inputUserMatrixPath);
         
-    //Get values of numRows, numCols here
-    //Path inputUserMatrixPath = new Path(inputUserMatrixPath.parent(), "inputUserMatrix");
-    DistributedRowMatrix inputUserMatrix = new DistributedRowMatrix("inputUserseqfile", "inputUserMatrix", numRows, numCols);
-    
-    JobConf depConf = new JobConf(conf);
-    inputUserMatrix.configure(depConf);
-
-    DistributedRowMatrix inputMovieMatrix = inputUserMatrix.transpose();
-    
-    driver = new RBMDriver(inputUserMatrix, inputMovieMatrix);
-    driver.runJob();
+    RBMDriver.runJob(inputUserMatrixPath, new Path(output, "rbm"), state);
     return 0;
   }
   
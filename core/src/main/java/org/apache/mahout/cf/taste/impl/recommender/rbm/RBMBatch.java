@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * <p>
+ * A mini-batch of users packed into a sparse rating block: one entry per rating, stored user by user, together
+ * with a grouping of the same entries by item. {@link RBMGradient#accumulate(RBMBatch)} walks the entries item by
+ * item, so that the softmax x totalFeatures weights of an item are fetched once per batch and reused for every
+ * user in the batch who rated it, instead of once per rating.
+ * </p>
+ *
+ * <p>
+ * A batch is meant to be refilled: {@link #clear()} keeps the buffers, and resets only the items it touched.
+ * </p>
+ */
+public final class RBMBatch {
+
+  private static final int UNGROUPED = -1;
+
+  private int numUsers;
+  private int numEntries;
+  /** Entries of user u are [userStart[u], userStart[u + 1]) */
+  int[] userStart;
+  /** User, item and softmax index of each entry, in user order */
+  int[] entryUser;
+  int[] entryItem;
+  int[] entryRating;
+
+  /** Entries of group g are order[groupStart[g]] .. order[groupStart[g + 1] - 1], all rating item groupItem[g] */
+  private int numGroups;
+  int[] groupStart;
+  int[] groupItem;
+  int[] order;
+  private final int[] itemGroup;
+  private int[] cursor;
+  private boolean grouped;
+
+  public RBMBatch(int numItems) {
+    itemGroup = new int[numItems];
+    Arrays.fill(itemGroup, UNGROUPED);
+    userStart = new int[17];
+    groupStart = new int[17];
+    groupItem = new int[16];
+    cursor = new int[16];
+    ensureEntries(256);
+  }
+
+  /**
+   * Adds a user, given as a sparse vector indexed by item whose values are ratings from 1 to softmax.
+   */
+  public void add(Vector userRatings) {
+    if (numUsers + 1 >= userStart.length) {
+      userStart = Arrays.copyOf(userStart, 2 * userStart.length);
+    }
+    ensureEntries(numEntries + userRatings.getNumNondefaultElements());
+    Iterator<Element> it = userRatings.iterateNonZero();
+    while (it.hasNext()) {
+      Element e = it.next();
+      entryUser[numEntries] = numUsers;
+      entryItem[numEntries] = e.index();
+      entryRating[numEntries] = RBMGradient.softmaxIndex(e.get());
+      numEntries++;
+    }
+    numUsers++;
+    userStart[numUsers] = numEntries;
+    grouped = false;
+  }
+
+  public int getNumUsers() {
+    return numUsers;
+  }
+
+  public int getNumEntries() {
+    return numEntries;
+  }
+
+  int getNumGroups() {
+    return numGroups;
+  }
+
+  /** Forgets all users. */
+  public void clear() {
+    resetGroups();
+    numUsers = 0;
+    numEntries = 0;
+    grouped = false;
+  }
+
+  /**
+   * Builds the item grouping of the entries, in O(number of entries), unless already built.
+   */
+  void group() {
+    if (grouped) {
+      return;
+    }
+    resetGroups();
+    for (int e = 0; e < numEntries; e++) {
+      int item = entryItem[e];
+      int g = itemGroup[item];
+      if (g == UNGROUPED) {
+        g = numGroups++;
+        itemGroup[item] = g;
+        if (numGroups >= groupStart.length) {
+          groupStart = Arrays.copyOf(groupStart, 2 * groupStart.length);
+        }
+        if (g >= groupItem.length) {
+          groupItem = Arrays.copyOf(groupItem, 2 * groupItem.length);
+        }
+        groupItem[g] = item;
+        groupStart[g + 1] = 0;
+      }
+      groupStart[g + 1]++;
+    }
+    for (int g = 0; g < numGroups; g++) {
+      groupStart[g + 1] += groupStart[g];
+    }
+    // counting sort of the entries by group, using the group starts as cursors
+    if (cursor.length < numGroups) {
+      cursor = new int[Math.max(numGroups, 2 * cursor.length)];
+    }
+    System.arraycopy(groupStart, 0, cursor, 0, numGroups);
+    for (int e = 0; e < numEntries; e++) {
+      order[cursor[itemGroup[entryItem[e]]]++] = e;
+    }
+    grouped = true;
+  }
+
+  private void resetGroups() {
+    for (int g = 0; g < numGroups; g++) {
+      itemGroup[groupItem[g]] = UNGROUPED;
+    }
+    numGroups = 0;
+    groupStart[0] = 0;
+  }
+
+  private void ensureEntries(int size) {
+    if (entryUser == null || entryUser.length < size) {
+      int newSize = Math.max(size, entryUser == null ? 0 : 2 * entryUser.length);
+      entryUser = entryUser == null ? new int[newSize] : Arrays.copyOf(entryUser, newSize);
+      entryItem = entryItem == null ? new int[newSize] : Arrays.copyOf(entryItem, newSize);
+      entryRating = entryRating == null ? new int[newSize] : Arrays.copyOf(entryRating, newSize);
+      order = new int[newSize];
+    }
+  }
+
+}
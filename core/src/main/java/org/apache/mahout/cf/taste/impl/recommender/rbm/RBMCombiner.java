@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.common.IntPairWritable;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+/**
+ * Sums the statistics emitted by {@link RBMMapper} for each key, so that each map task sends one vector per
+ * (item, rating) to the reducer whatever the number of users in its split.
+ */
+public class RBMCombiner extends Reducer<IntPairWritable,VectorWritable,IntPairWritable,VectorWritable> {
+  
+  private boolean laxPrecision;
+  
+  @Override
+  protected void setup(Context context) {
+    laxPrecision = RBMDriver.getPrecision(context.getConfiguration()) == RBMPrecision.FLOAT32;
+  }
+  
+  @Override
+  public void reduce(IntPairWritable key,
+                     Iterable<VectorWritable> values,
+                     Context context) throws IOException, InterruptedException {
+    VectorWritable value = new VectorWritable(new DenseVector(sum(values), true));
+    value.setWritesLaxPrecision(laxPrecision);
+    context.write(key, value);
+  }
+  
+  /**
+   * @return element-wise sum of the given statistics vectors
+   */
+  static double[] sum(Iterable<VectorWritable> values) {
+    double[] sum = null;
+    for (VectorWritable value : values) {
+      Vector v = value.get();
+      if (sum == null) {
+        sum = new double[v.size()];
+      }
+      for (int i = 0; i < sum.length; i++) {
+        sum[i] += v.getQuick(i);
+      }
+    }
+    return sum;
+  }
+  
+}
@@ -17,194 +17,274 @@
 
 package org.apache.mahout.cf.taste.impl.recommender.rbm;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.Random;
-
-import org.apache.commons.cli2.CommandLine;
-import org.apache.commons.cli2.Group;
-import org.apache.commons.cli2.Option;
-import org.apache.commons.cli2.OptionException;
-import org.apache.commons.cli2.builder.ArgumentBuilder;
-import org.apache.commons.cli2.builder.DefaultOptionBuilder;
-import org.apache.commons.cli2.builder.GroupBuilder;
-import org.apache.commons.cli2.commandline.Parser;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
-import org.apache.mahout.common.CommandLineUtil;
-import org.apache.mahout.common.HadoopUtil;
 import org.apache.mahout.common.IntPairWritable;
 import org.apache.mahout.common.RandomUtils;
-import org.apache.mahout.common.commandline.DefaultOptionCreator;
-import org.apache.mahout.math.DenseMatrix;
-import org.apache.mahout.math.MatrixSlice;
-import org.apache.mahout.math.hadoop.DistributedRowMatrix;
-import org.apache.mahout.math.jet.random.engine.DRand;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Trains an RBM with one MapReduce job per epoch. Each job reads the user rating vectors written by
+ * {@link RBMInputDriver} and the model of the previous epoch from <code>state-(N-1)</code>; {@link RBMMapper}
+ * gathers contrastive divergence statistics for its split, {@link RBMCombiner} sums them map-side, and a single
+ * {@link RBMReducer} applies them to the model and writes it to <code>state-N</code>.
+ *
+ * <p>
+ * Besides the full {@link RBMStateWritable} needed by the reducer, each state directory holds the weights as an
+ * {@link RBMModelFile}, which is shipped to the mappers through the {@link DistributedCache} and memory-mapped.
+ * </p>
+ *
+ * <p>
+ * With {@link RBMPrecision#FLOAT32} the states are checkpointed, and the statistics shuffled, as floats.
+ * </p>
+ */
 public final class RBMDriver {
 
-  static DistributedRowMatrix inputUserMatrix, inputMovieMatrix;
+  static final String STATE_IN_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.stateIn";
+  static final String T_STEPS_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.tSteps";
+  static final String MOMENTUM_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.momentum";
+  static final String EPSILON_W_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.epsilonW";
+  static final String EPSILON_VB_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.epsilonVB";
+  static final String EPSILON_HB_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.epsilonHB";
+  static final String WEIGHT_COST_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.weightCost";
+  static final String PRECISION_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.precision";
+  static final String FAST_SIGMOID_KEY = "org.apache.mahout.cf.taste.impl.recommender.rbm.fastSigmoid";
+  /** Key under which mappers emit the hidden unit statistics; item keys are never negative */
+  static final int HIDDEN_KEY = -1;
+  /** Squared errors are summed in a long counter, so are scaled up first */
+  static final double ERROR_SCALE = 1.0E6;
+
+  enum Counters {
+    SQUARED_ERROR,
+    RATINGS
+  }
+
   private static final Logger log = LoggerFactory.getLogger(RBMDriver.class);
-  static RBMState state;
 
-  public RBMDriver(DistributedRowMatrix inputUserMatrix, DistributedRowMatrix inputMovieMatrix) 
-  throws IOException, InterruptedException, ClassNotFoundException {
-    this.inputUserMatrix = inputUserMatrix;
-    this.inputMovieMatrix = inputMovieMatrix;
+  private RBMDriver() {
   }
 
-  public static void runJob() throws IOException, InterruptedException, ClassNotFoundException {
-
-    //Path stateIn = new Path(output, "state-0");
-    boolean converged = false;
-    
-    DRand randn = null;
-    state = new RBMState(state.totalFeatures, state.softmax, state.epsilonw, state.epsilonvb,
-        state.epsilonhb, state.weightCost, state.momentum, state.finalMomentum);
-    
-    /** Set initial weights */
-    int i, j, h, k;
-    
-    for (j = 0; j < state.numItems; j++) {
-      for (i = 0; i < state.totalFeatures; i++) {
-        for (k = 0; k < 5; k++) {
-          /** Normal Distribution */
-          state.vishid[j][k][i] = 0.02 * randn.nextInt() - 0.01;
-        }
-      }
+  /**
+   * Run the job using supplied arguments
+   *
+   * @param input
+   *          the directory pathname for the user rating vectors
+   * @param output
+   *          the directory pathname for the state of each epoch
+   * @param schedule
+   *          hyper-parameters and training schedule; its weights are not used
+   */
+  public static void runJob(Path input, Path output, RBMState schedule)
+    throws IOException, InterruptedException, ClassNotFoundException {
+    Path stateIn = new Path(output, "state-0");
+    writeInitialState(input, stateIn, schedule);
+    schedule.initialize(RandomUtils.getRandom());
+
+    int epoch = 0;
+
+    /** Iterate till improvement is less than e */
+    while (schedule.shouldContinue(epoch)) {
+      epoch++;
+      schedule.beginEpoch(epoch);
+      log.info("Epoch {}", epoch);
+      // point the output to a new directory per epoch
+      Path stateOut = new Path(output, "state-" + epoch);
+      double rmse = runIteration(input, stateIn, stateOut, schedule);
+      schedule.endEpoch(epoch, rmse);
+      log.info("Epoch {} finished. Training RMSE: {}", epoch, rmse);
+      // now point the input to the old output directory
+      stateIn = stateOut;
     }
-    
-    /** Set initial biases */
-    for (i = 0; i < state.totalFeatures; i++) {
-      state.hidbiases[i] = 0.0;
+  }
+
+  private static void writeInitialState(Path input, Path statePath, RBMState schedule) throws IOException {
+    Configuration conf = new Configuration();
+    int[] counts = countRatings(input, conf, schedule.softmax);
+    int numItems = counts.length / schedule.softmax;
+    RBMState state = new RBMState(numItems, schedule.totalFeatures, schedule.softmax, schedule.epsilonw,
+        schedule.epsilonvb, schedule.epsilonhb, schedule.weightCost, schedule.momentum, schedule.finalMomentum);
+    System.arraycopy(counts, 0, state.moviercount, 0, counts.length);
+    state.setPrecision(schedule.getPrecision());
+    state.initialize(RandomUtils.getRandom());
+
+    FileSystem fs = statePath.getFileSystem(conf);
+    Path path = new Path(statePath, "part-00000");
+    SequenceFile.Writer writer = new SequenceFile.Writer(fs, conf, path, IntWritable.class, RBMStateWritable.class);
+    try {
+      writer.append(new IntWritable(0), new RBMStateWritable(state));
+    } finally {
+      writer.close();
     }
-    
-    for (j = 0; j < state.numItems; j++) {
-      int mtot = 0;
-      for (k = 0; k < 5; k++) {
-        mtot += state.moviercount[j * state.softmax + k];
-      }
-      for (i = 0; i < state.softmax; i++) {
-        state.visbiases[j][i] = Math.log(((double) state.moviercount[j * state.softmax + i])
-            / ((double) mtot));
+    RBMModelFile.write(state, new Path(statePath, RBMModelFile.FILE_NAME), conf);
+  }
+
+  /**
+   * @return per-item, per-rating counts in the layout of {@link RBMState#moviercount}, for items up to the
+   *         largest one rated
+   */
+  private static int[] countRatings(Path input, Configuration conf, int softmax) throws IOException {
+    FileSystem fs = input.getFileSystem(conf);
+    IntWritable user = new IntWritable();
+    VectorWritable ratings = new VectorWritable();
+    int[] counts = new int[0];
+    for (FileStatus status : fs.globStatus(new Path(input, "part-*"))) {
+      SequenceFile.Reader reader = new SequenceFile.Reader(fs, status.getPath(), conf);
+      try {
+        while (reader.next(user, ratings)) {
+          Iterator<Vector.Element> it = ratings.get().iterateNonZero();
+          while (it.hasNext()) {
+            Vector.Element e = it.next();
+            int index = e.index() * softmax + RBMGradient.softmaxIndex(e.get());
+            if (index >= counts.length) {
+              int[] newCounts = new int[Math.max((e.index() + 1) * softmax, 2 * counts.length)];
+              System.arraycopy(counts, 0, newCounts, 0, counts.length);
+              counts = newCounts;
+            }
+            counts[index]++;
+          }
+        }
+      } finally {
+        reader.close();
       }
     }
-    
-    /** Optimize current feature */
-    state.nrmse = 2.0;
-    state.last_rmse = 10.0;
-    state.prmse = 0;
-    state.last_prmse = 0;
-    double s;
-    int n;
-    int loopcount = 0;
-    state.EpsilonW = state.epsilonw;
-    state.EpsilonVB = state.epsilonvb;
-    state.EpsilonHB = state.epsilonhb;
-    state.Momentum = state.initMomentum;
-    state.zero(state.CDinc, state.numItems, state.softmax, state.totalFeatures);
-    state.zero(state.visbiasinc, state.numItems, state.softmax);
-    state.zero(state.hidbiasinc, state.totalFeatures);
-    state.tSteps = 1;
-    
-    /** Iterate till improvement is less than e */
-    while (((state.nrmse < (state.last_rmse - state.e)) || loopcount < 14) && loopcount < 80) {
-      
-      if (loopcount >= 10) state.tSteps = 3 + (loopcount - 10) / 5;
-      
-      state.last_rmse = state.nrmse;
-      state.last_prmse = state.prmse;
-      loopcount++;
-      int ntrain = 0;
-      state.nrmse = 0.0;
-      s = 0.0;
-      n = 0;
-      
-      if (loopcount > 5) state.Momentum = state.finalMomentum;
-      Iterator<MatrixSlice> userVector = inputUserMatrix.iterateAll();
-      
-      
-      while(userVector.hasNext()) {
-        state.nrmse += runIteration(userVector.next());
+    int numItems = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        numItems = i / softmax + 1;
       }
-      
-      state.zero(state.CDpos, state.numItems, state.softmax, state.totalFeatures);
-      state.zero(state.CDneg, state.numItems, state.softmax, state.totalFeatures);
-      state.zero(state.poshidact, state.totalFeatures);
-      state.zero(state.neghidact, state.totalFeatures);
-      state.zero(state.posvisact, state.numItems, state.softmax);
-      state.zero(state.negvisact, state.numItems, state.softmax);
-      state.zero(state.moviecount, state.numItems);
-            
-      state.nrmse = Math.sqrt(state.nrmse/ntrain);
-      state.prmse = Math.sqrt(s/n);
-      
-      if ( state.totalFeatures == 200 ) {
-          if ( loopcount > 6 ) {
-              state.EpsilonW  *= 0.90;
-              state.EpsilonVB *= 0.90;
-              state.EpsilonHB *= 0.90;
-          } else if ( loopcount > 5 ) {  // With 200 hidden variables, you need to slow things down a little more
-              state.EpsilonW  *= 0.50;         // This could probably use some more optimization
-              state.EpsilonVB *= 0.50;
-              state.EpsilonHB *= 0.50;
-          } else if ( loopcount > 2 ) {
-              state.EpsilonW  *= 0.70;
-              state.EpsilonVB *= 0.70;
-              state.EpsilonHB *= 0.70;
-          }
-      } else {  // The 100 hidden variable case
-          if ( loopcount > 8 ) {
-              state.EpsilonW  *= 0.92;
-              state.EpsilonVB *= 0.92;
-              state.EpsilonHB *= 0.92;
-          } else if ( loopcount > 6 ) {
-              state.EpsilonW  *= 0.90;
-              state.EpsilonVB *= 0.90;
-              state.EpsilonHB *= 0.90;
-          } else if ( loopcount > 2 ) {
-              state.EpsilonW  *= 0.78;
-              state.EpsilonVB *= 0.78;
-              state.EpsilonHB *= 0.78;
-          }
-      }}
-          
-          //recordErrors();
+    }
+    int[] result = new int[numItems * softmax];
+    System.arraycopy(counts, 0, result, 0, result.length);
+    return result;
   }
 
-
-  public static double runIteration(MatrixSlice userVector) throws IOException, InterruptedException, ClassNotFoundException {
+  /**
+   * Run one epoch
+   *
+   * @param input
+   *          the directory pathname for the user rating vectors
+   * @param stateIn
+   *          the directory pathname for input state
+   * @param stateOut
+   *          the directory pathname for output state
+   * @param schedule
+   *          the training schedule of this epoch
+   * @return training RMSE of the epoch
+   */
+  public static double runIteration(Path input, Path stateIn, Path stateOut, RBMState schedule)
+    throws IOException, InterruptedException, ClassNotFoundException {
     Configuration conf = new Configuration();
-    
-    Job job = new Job(conf);
+    conf.set(STATE_IN_KEY, stateIn.toString());
+    conf.set(T_STEPS_KEY, Integer.toString(schedule.tSteps));
+    conf.set(MOMENTUM_KEY, Double.toString(schedule.Momentum));
+    conf.set(EPSILON_W_KEY, Double.toString(schedule.EpsilonW));
+    conf.set(EPSILON_VB_KEY, Double.toString(schedule.EpsilonVB));
+    conf.set(EPSILON_HB_KEY, Double.toString(schedule.EpsilonHB));
+    conf.set(WEIGHT_COST_KEY, Double.toString(schedule.weightCost));
+    conf.set(PRECISION_KEY, schedule.getPrecision().name());
+    conf.setBoolean(FAST_SIGMOID_KEY, schedule.isFastSigmoid());
+    DistributedCache.addCacheFile(new Path(stateIn, RBMModelFile.FILE_NAME).toUri(), conf);
+
+    Job job = new Job(conf, "RBM epoch " + stateOut.getName());
 
-    job.setOutputKeyClass(IntPairWritable.class);
-    job.setOutputValueClass(DoubleWritable.class);
+    job.setMapOutputKeyClass(IntPairWritable.class);
+    job.setMapOutputValueClass(VectorWritable.class);
+    job.setOutputKeyClass(IntWritable.class);
+    job.setOutputValueClass(RBMStateWritable.class);
+
+    FileInputFormat.addInputPaths(job, input.toString());
+    FileOutputFormat.setOutputPath(job, stateOut);
 
     job.setMapperClass(RBMMapper.class);
+    job.setCombinerClass(RBMCombiner.class);
     job.setReducerClass(RBMReducer.class);
-    //job.setCombinerClass(RBMReducer.class);
-    //job.setNumReduceTasks(numReducers);
-    //job.setOutputFormatClass(SequenceFileOutputFormat.class);
-    //job.setInputFormatClass(SequenceFileInputFormat.class);
+    // the whole model is written by one reducer
+    job.setNumReduceTasks(1);
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    job.setInputFormatClass(SequenceFileInputFormat.class);
     job.setJarByClass(RBMDriver.class);
 
-    job.waitForCompletion(true);
-    return state.nrmse; //Sync with call
+    if (!job.waitForCompletion(true)) {
+      throw new IllegalStateException("RBM epoch failed: " + stateOut);
+    }
+
+    org.apache.hadoop.mapreduce.Counters counters = job.getCounters();
+    double squaredError = counters.findCounter(Counters.SQUARED_ERROR).getValue() / ERROR_SCALE;
+    long ntrain = counters.findCounter(Counters.RATINGS).getValue();
+    return ntrain == 0 ? 0.0 : Math.sqrt(squaredError / ntrain);
   }
 
+  /**
+   * Reads the state written to {@link #STATE_IN_KEY} by the previous epoch and applies the training schedule
+   * of the current one.
+   */
   static RBMState getState(Configuration job) throws IOException {
+    Path dir = new Path(job.get(STATE_IN_KEY));
+    FileSystem fs = dir.getFileSystem(job);
+    IntWritable key = new IntWritable();
+    RBMStateWritable value = new RBMStateWritable();
+    RBMState state = null;
+    for (FileStatus status : fs.globStatus(new Path(dir, "part-*"))) {
+      SequenceFile.Reader reader = new SequenceFile.Reader(fs, status.getPath(), job);
+      try {
+        if (reader.next(key, value)) {
+          state = value.get();
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    if (state == null) {
+      throw new IllegalStateException("No RBM state found in " + dir);
+    }
+    applySchedule(state, job);
+    return state;
+  }
+
+  /**
+   * Memory-maps the model of the previous epoch from the local {@link DistributedCache} copy of its
+   * {@link RBMModelFile}, and applies the training schedule of the current one. The weights of the returned
+   * state are read-only.
+   */
+  static RBMState getModel(Configuration job) throws IOException {
+    Path[] localFiles = DistributedCache.getLocalCacheFiles(job);
+    if (localFiles == null || localFiles.length < 1) {
+      throw new IllegalArgumentException("missing paths from the DistributedCache");
+    }
+    RBMState state = RBMModelFile.map(new File(localFiles[0].toUri().getPath()));
+    applySchedule(state, job);
     return state;
   }
+
+  private static void applySchedule(RBMState state, Configuration job) {
+    state.tSteps = Integer.parseInt(job.get(T_STEPS_KEY));
+    state.Momentum = Double.parseDouble(job.get(MOMENTUM_KEY));
+    state.EpsilonW = Double.parseDouble(job.get(EPSILON_W_KEY));
+    state.EpsilonVB = Double.parseDouble(job.get(EPSILON_VB_KEY));
+    state.EpsilonHB = Double.parseDouble(job.get(EPSILON_HB_KEY));
+    state.weightCost = Double.parseDouble(job.get(WEIGHT_COST_KEY));
+    state.setPrecision(getPrecision(job));
+    state.setFastSigmoid(job.getBoolean(FAST_SIGMOID_KEY, false));
+  }
+
+  static RBMPrecision getPrecision(Configuration job) {
+    return RBMPrecision.valueOf(job.get(PRECISION_KEY, RBMPrecision.FLOAT64.name()));
+  }
 }
@@ -0,0 +1,621 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.mahout.math.Vector;
+
+/**
+ * <p>
+ * The contrastive divergence statistics gathered over one mini-batch of users, together with the scratch
+ * buffers needed to gather them. An instance only ever reads the {@link RBMState} weights, so several
+ * instances (one per worker thread) can {@link #accumulate(RBMBatch)} against the same state concurrently;
+ * at the end of the batch they are summed with {@link #add(RBMGradient)} and the total is applied once with
+ * {@link #applyTo(RBMState)}.
+ * </p>
+ *
+ * <p>
+ * A user is a sparse vector indexed by item, whose values are ratings from 1 to softmax.
+ * </p>
+ */
+public final class RBMGradient {
+
+  /** The sigmoid table covers [-SIGMOID_RANGE, SIGMOID_RANGE] in steps of 1 / SIGMOID_RESOLUTION */
+  private static final double SIGMOID_RANGE = 16.0;
+  private static final int SIGMOID_RESOLUTION = 128;
+  private static final double[] SIGMOID_TABLE = new double[(int) (2 * SIGMOID_RANGE * SIGMOID_RESOLUTION) + 1];
+
+  static {
+    for (int i = 0; i < SIGMOID_TABLE.length; i++) {
+      SIGMOID_TABLE[i] = sigmoid((double) i / SIGMOID_RESOLUTION - SIGMOID_RANGE);
+    }
+  }
+
+  private final RBMState state;
+  private final Random random;
+  private final int numItems;
+  private final int softmax;
+  private final int totalFeatures;
+
+  private final SparseRBMTensor CDpos;
+  private final SparseRBMTensor CDneg;
+  private final double[][] posvisact;
+  private final double[][] negvisact;
+  private final int[] moviecount;
+  private final double[] poshidact;
+  private final double[] neghidact;
+  private int numcases;
+  private double squaredError;
+  private int ntrain;
+
+  /** Per-batch scratch buffers, indexed by user * totalFeatures + hidden unit; hidden states are 0 or 1 */
+  private double[] hidinput;
+  private double[] poshidprobs;
+  private double[] poshidstates;
+  private double[] curposhidstates;
+  private double[] neghidstates;
+
+  /** Per-batch scratch buffers, indexed by rating entry (times softmax, plus softmax unit) */
+  private double[] negvisprobs;
+  private double[] nvp2;
+  private int[] negvissoftmax;
+
+  /** Batch of one for {@link #accumulate(Vector)} */
+  private final RBMBatch single;
+
+  public RBMGradient(RBMState state, Random random) {
+    this.state = state;
+    this.random = random;
+    this.numItems = state.numItems;
+    this.softmax = state.softmax;
+    this.totalFeatures = state.totalFeatures;
+
+    CDpos = new SparseRBMTensor(numItems, softmax, totalFeatures);
+    CDneg = new SparseRBMTensor(numItems, softmax, totalFeatures);
+    posvisact = new double[numItems][softmax];
+    negvisact = new double[numItems][softmax];
+    moviecount = new int[numItems];
+    poshidact = new double[totalFeatures];
+    neghidact = new double[totalFeatures];
+
+    single = new RBMBatch(numItems);
+    ensureCapacity(1, 16);
+  }
+
+  /**
+   * @return number of users accumulated since the last {@link #clear()}
+   */
+  public int getNumCases() {
+    return numcases;
+  }
+
+  /**
+   * @return sum of squared training errors of the users accumulated since the last {@link #clear()}, as
+   *         predicted from the hidden unit probabilities before any contrastive divergence step
+   */
+  public double getSquaredError() {
+    return squaredError;
+  }
+
+  /**
+   * @return number of ratings accumulated since the last {@link #clear()}
+   */
+  public int getNumRatings() {
+    return ntrain;
+  }
+
+  /**
+   * Runs {@link RBMState#tSteps} steps of contrastive divergence for one user and adds the resulting
+   * statistics to this gradient. Prefer {@link #accumulate(RBMBatch)} for more than a handful of users.
+   */
+  public void accumulate(Vector userRatings) {
+    single.clear();
+    single.add(userRatings);
+    accumulate(single);
+  }
+
+  /**
+   * Runs {@link RBMState#tSteps} steps of contrastive divergence for every user of the batch and adds the
+   * resulting statistics to this gradient. The visible-to-hidden and hidden-to-visible passes are computed for
+   * the whole batch at once, as sparse-dense products walked item by item, so that each weight row is read once
+   * per batch rather than once per rating.
+   */
+  public void accumulate(RBMBatch batch) {
+    int numUsers = batch.getNumUsers();
+    int numEntries = batch.getNumEntries();
+    if (numUsers == 0) {
+      return;
+    }
+    batch.group();
+    ensureCapacity(numUsers, numEntries);
+    boolean fast = state.isFastSigmoid();
+    int[] entryUser = batch.entryUser;
+    int[] entryItem = batch.entryItem;
+    int[] entryRating = batch.entryRating;
+    int[] order = batch.order;
+    int[] groupStart = batch.groupStart;
+    int[] groupItem = batch.groupItem;
+    int numGroups = batch.getNumGroups();
+    double[][] visbiases = state.visbiases;
+    int e, g, h, k, r, u;
+
+    /** Visible statistics; a user rates an item at most once */
+    for (e = 0; e < numEntries; e++) {
+      int m = entryItem[e];
+      moviecount[m]++;
+      posvisact[m][entryRating[e]] += 1.0;
+    }
+
+    /** Compute probabilities, and then sample the state of hidden units */
+    hiddenInputs(batch, entryRating);
+    for (u = 0; u < numUsers; u++) {
+      int base = u * totalFeatures;
+      for (h = 0; h < totalFeatures; h++) {
+        double p = activation(hidinput[base + h], fast);
+        poshidprobs[base + h] = p;
+        if (p > random.nextDouble()) {
+          poshidstates[base + h] = 1.0;
+          poshidact[h] += 1.0;
+        } else {
+          poshidstates[base + h] = 0.0;
+        }
+      }
+    }
+
+    /** Load up a copy of poshidstates for use in loop */
+    System.arraycopy(poshidstates, 0, curposhidstates, 0, numUsers * totalFeatures);
+
+    /** Make T steps of Contrastive Divergence */
+    int stepT = 0;
+    do {
+      /** Is the last pass through this loop? */
+      boolean finalTStep = stepT + 1 >= state.tSteps;
+
+      /**
+       * For each rated item, run all its softmax rows against the sampled hidden states of every user who
+       * rated it, and at the first step against their hidden probabilities for RMSE reporting
+       */
+      for (g = 0; g < numGroups; g++) {
+        int m = groupItem[g];
+        for (r = 0; r < softmax; r++) {
+          int w = state.vishid.offset(m, r);
+          double visbias = visbiases[m][r];
+          for (k = groupStart[g]; k < groupStart[g + 1]; k++) {
+            e = order[k];
+            int base = entryUser[e] * totalFeatures;
+            negvisprobs[e * softmax + r] = activation(dotWeights(w, curposhidstates, base) + visbias, fast);
+            if (stepT == 0) {
+              nvp2[e * softmax + r] = activation(dotWeights(w, poshidprobs, base) + visbias, fast);
+            }
+          }
+        }
+      }
+
+      for (e = 0; e < numEntries; e++) {
+        int base = e * softmax;
+
+        /** Normalize probabilities */
+        normalize(negvisprobs, base, softmax);
+        if (stepT == 0) {
+          normalize(nvp2, base, softmax);
+        }
+
+        /** Sample the softmax */
+        double randval = random.nextDouble();
+        int sample = softmax - 1;
+        for (r = 0; r < softmax - 1; r++) {
+          randval -= negvisprobs[base + r];
+          if (randval <= 0.0) {
+            sample = r;
+            break;
+          }
+        }
+        negvissoftmax[e] = sample;
+
+        if (finalTStep) {
+          negvisact[entryItem[e]][sample] += 1.0;
+        }
+      }
+
+      /**
+       * For all rated movies, accumulate contributions to hidden units from
+       * sampled visible units
+       */
+      hiddenInputs(batch, negvissoftmax);
+      for (u = 0; u < numUsers; u++) {
+        int base = u * totalFeatures;
+        for (h = 0; h < totalFeatures; h++) {
+          /** Sample the hidden units state again. */
+          if (activation(hidinput[base + h], fast) > random.nextDouble()) {
+            neghidstates[base + h] = 1.0;
+            if (finalTStep) {
+              neghidact[h] += 1.0;
+            }
+          } else {
+            neghidstates[base + h] = 0.0;
+          }
+        }
+      }
+
+      /** Compute error rmse before we start iterating on T */
+      if (stepT == 0) {
+        for (e = 0; e < numEntries; e++) {
+          double vdelta = (entryRating[e] + 1) - expectedRating(nvp2, e * softmax, softmax);
+          squaredError += vdelta * vdelta;
+        }
+        ntrain += numEntries;
+      }
+
+      /** Are we looping again? Load curposvisstates */
+      if (!finalTStep) {
+        System.arraycopy(neghidstates, 0, curposhidstates, 0, numUsers * totalFeatures);
+      }
+    } while (++stepT < state.tSteps);
+
+    /** Accumulate contrastive divergence contributions, item by item */
+    for (g = 0; g < numGroups; g++) {
+      int m = groupItem[g];
+      for (k = groupStart[g]; k < groupStart[g + 1]; k++) {
+        e = order[k];
+        int base = entryUser[e] * totalFeatures;
+        int p = CDpos.offset(m, entryRating[e]);
+        int q = CDneg.offset(m, negvissoftmax[e]);
+        double[] pos = CDpos.getValues();
+        double[] neg = CDneg.getValues();
+        for (h = 0; h < totalFeatures; h++) {
+          pos[p + h] += poshidstates[base + h];
+          neg[q + h] += neghidstates[base + h];
+        }
+      }
+    }
+
+    numcases += numUsers;
+  }
+
+  /**
+   * Sets {@link #hidinput} to the hidden biases plus, for each user of the batch, the weights of the given
+   * softmax unit of each item they rated.
+   */
+  private void hiddenInputs(RBMBatch batch, int[] rating) {
+    int numUsers = batch.getNumUsers();
+    for (int u = 0; u < numUsers; u++) {
+      System.arraycopy(state.hidbiases, 0, hidinput, u * totalFeatures, totalFeatures);
+    }
+    int[] order = batch.order;
+    int[] groupStart = batch.groupStart;
+    int numGroups = batch.getNumGroups();
+    for (int g = 0; g < numGroups; g++) {
+      int m = batch.groupItem[g];
+      for (int k = groupStart[g]; k < groupStart[g + 1]; k++) {
+        int e = order[k];
+        addWeights(state.vishid.offset(m, rating[e]), hidinput, batch.entryUser[e] * totalFeatures);
+      }
+    }
+  }
+
+  /**
+   * The weight loops below read the heap array directly when there is one, which is noticeably faster than going
+   * through the buffer, and the buffer when the weights are memory-mapped.
+   */
+  private void addWeights(int w, double[] sum, int base) {
+    if (state.vishid.isReadOnly()) {
+      DoubleBuffer vishid = state.vishid.getBuffer();
+      for (int h = 0; h < totalFeatures; h++) {
+        sum[base + h] += vishid.get(w + h);
+      }
+    } else {
+      double[] vishid = state.vishid.getValues();
+      for (int h = 0; h < totalFeatures; h++) {
+        sum[base + h] += vishid[w + h];
+      }
+    }
+  }
+
+  private double dotWeights(int w, double[] hidden, int base) {
+    double sum = 0.0;
+    if (state.vishid.isReadOnly()) {
+      DoubleBuffer vishid = state.vishid.getBuffer();
+      for (int h = 0; h < totalFeatures; h++) {
+        sum += hidden[base + h] * vishid.get(w + h);
+      }
+    } else {
+      double[] vishid = state.vishid.getValues();
+      for (int h = 0; h < totalFeatures; h++) {
+        sum += hidden[base + h] * vishid[w + h];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Adds another gradient, typically another worker's shard of the same mini-batch, to this one.
+   */
+  public void add(RBMGradient other) {
+    int itemStride = softmax * totalFeatures;
+    int numTouched = other.CDpos.getNumTouched();
+    for (int t = 0; t < numTouched; t++) {
+      int m = other.CDpos.getTouchedItem(t);
+      addRow(CDpos, other.CDpos, m, itemStride);
+      addRow(CDneg, other.CDneg, m, itemStride);
+      for (int r = 0; r < softmax; r++) {
+        posvisact[m][r] += other.posvisact[m][r];
+        negvisact[m][r] += other.negvisact[m][r];
+      }
+      moviecount[m] += other.moviecount[m];
+    }
+    for (int h = 0; h < totalFeatures; h++) {
+      poshidact[h] += other.poshidact[h];
+      neghidact[h] += other.neghidact[h];
+    }
+    numcases += other.numcases;
+    squaredError += other.squaredError;
+    ntrain += other.ntrain;
+  }
+
+  private static void addRow(SparseRBMTensor to, SparseRBMTensor from, int item, int itemStride) {
+    int dst = to.offset(item, 0);
+    int src = from.offset(item, 0);
+    double[] toValues = to.getValues();
+    double[] fromValues = from.getValues();
+    for (int i = 0; i < itemStride; i++) {
+      toValues[dst + i] += fromValues[src + i];
+    }
+  }
+
+  /**
+   * Updates the weights and biases of the given state from the statistics accumulated since the last
+   * {@link #clear()}, using the target's current momentum, learning rates and weight cost. The target is
+   * usually the state this gradient was computed against.
+   */
+  public void applyTo(RBMState target) {
+    if (numcases == 0) {
+      return;
+    }
+    double[] pos = CDpos.getValues();
+    double[] neg = CDneg.getValues();
+
+    /** Update weights of the items rated in this batch */
+    int numTouched = CDpos.getNumTouched();
+    for (int t = 0; t < numTouched; t++) {
+      int m = CDpos.getTouchedItem(t);
+      for (int rr = 0; rr < softmax; rr++) {
+        update(target, m, rr, pos, CDpos.offset(m, rr), neg, CDneg.offset(m, rr),
+            posvisact[m][rr], negvisact[m][rr], moviecount[m]);
+      }
+    }
+    updateHiddenBiases(target, poshidact, 0, neghidact, 0, numcases);
+  }
+
+  /**
+   * @return number of items rated by the users accumulated since the last {@link #clear()}
+   */
+  public int getNumItemsTouched() {
+    return CDpos.getNumTouched();
+  }
+
+  /**
+   * @return the index'th item rated since the last {@link #clear()}
+   */
+  public int getItemTouched(int index) {
+    return CDpos.getTouchedItem(index);
+  }
+
+  /**
+   * @return length of the arrays written by {@link #getItemStatistics(int, int, double[])}
+   */
+  static int itemStatisticsSize(int totalFeatures) {
+    return 2 * totalFeatures + 3;
+  }
+
+  /**
+   * @return length of the arrays written by {@link #getHiddenStatistics(double[])}
+   */
+  static int hiddenStatisticsSize(int totalFeatures) {
+    return 2 * totalFeatures + 1;
+  }
+
+  /**
+   * Copies the statistics of one (item, rating) visible unit into stats, laid out as the totalFeatures
+   * positive and then negative contrastive divergence values, followed by the positive and negative visible
+   * activations and the number of users who rated the item. Statistics from different gradients can be
+   * summed element-wise and then applied with {@link #applyItemStatistics(RBMState, int, int, double[])}.
+   */
+  void getItemStatistics(int item, int rating, double[] stats) {
+    System.arraycopy(CDpos.getValues(), CDpos.offset(item, rating), stats, 0, totalFeatures);
+    System.arraycopy(CDneg.getValues(), CDneg.offset(item, rating), stats, totalFeatures, totalFeatures);
+    stats[2 * totalFeatures] = posvisact[item][rating];
+    stats[2 * totalFeatures + 1] = negvisact[item][rating];
+    stats[2 * totalFeatures + 2] = moviecount[item];
+  }
+
+  /**
+   * Copies the hidden unit statistics into stats, laid out as the totalFeatures positive and then negative
+   * hidden activations, followed by the number of users.
+   */
+  void getHiddenStatistics(double[] stats) {
+    System.arraycopy(poshidact, 0, stats, 0, totalFeatures);
+    System.arraycopy(neghidact, 0, stats, totalFeatures, totalFeatures);
+    stats[2 * totalFeatures] = numcases;
+  }
+
+  /**
+   * Applies summed {@link #getItemStatistics(int, int, double[])} to the weights and visible bias of one
+   * (item, rating) visible unit of the target.
+   */
+  static void applyItemStatistics(RBMState target, int item, int rating, double[] stats) {
+    int totalFeatures = target.totalFeatures;
+    update(target, item, rating, stats, 0, stats, totalFeatures, stats[2 * totalFeatures],
+        stats[2 * totalFeatures + 1], stats[2 * totalFeatures + 2]);
+  }
+
+  /**
+   * Applies summed {@link #getHiddenStatistics(double[])} to the hidden biases of the target.
+   */
+  static void applyHiddenStatistics(RBMState target, double[] stats) {
+    int totalFeatures = target.totalFeatures;
+    updateHiddenBiases(target, stats, 0, stats, totalFeatures, stats[2 * totalFeatures]);
+  }
+
+  private static void update(RBMState target, int m, int rr, double[] pos, int p, double[] neg, int q,
+                             double posvis, double negvis, double count) {
+    if (count == 0.0) {
+      return;
+    }
+    int totalFeatures = target.totalFeatures;
+    double[] vishid = target.vishid.getValues();
+    double[] CDinc = target.CDinc.getValues();
+    /** vishid and CDinc share the same layout, so one offset serves both */
+    int w = target.vishid.offset(m, rr);
+
+    /** For all hidden units */
+    for (int h = 0; h < totalFeatures; h++) {
+      /**
+       * At the end compute average of CDpos and CDneg by dividing them by
+       * number of data points.
+       */
+      double CDp = pos[p + h];
+      double CDn = neg[q + h];
+      if (CDp != 0.0 || CDn != 0.0) {
+        CDp /= count;
+        CDn /= count;
+
+        /**
+         * Update weights and biases W = W + alpha*ContrastiveDivergence
+         * (biases are just weights to neurons that stay always 1.0)
+         */
+        CDinc[w + h] = target.Momentum * CDinc[w + h]
+            + target.EpsilonW * ((CDp - CDn) - target.weightCost * vishid[w + h]);
+        vishid[w + h] += CDinc[w + h];
+      }
+    }
+
+    /** Update visible softmax biases */
+    if (posvis != 0.0 || negvis != 0.0) {
+      target.visbiasinc[m][rr] = target.Momentum * target.visbiasinc[m][rr]
+          + target.EpsilonVB * ((posvis - negvis) / count);
+      target.visbiases[m][rr] += target.visbiasinc[m][rr];
+    }
+  }
+
+  private static void updateHiddenBiases(RBMState target, double[] pos, int p, double[] neg, int q,
+                                         double numcases) {
+    if (numcases == 0.0) {
+      return;
+    }
+    for (int h = 0; h < target.totalFeatures; h++) {
+      if (pos[p + h] != 0.0 || neg[q + h] != 0.0) {
+        target.hidbiasinc[h] = target.Momentum * target.hidbiasinc[h]
+            + target.EpsilonHB * ((pos[p + h] - neg[q + h]) / numcases);
+        target.hidbiases[h] += target.hidbiasinc[h];
+      }
+    }
+  }
+
+  /** Forgets everything accumulated, touching only what was accumulated. */
+  public void clear() {
+    int numTouched = CDpos.getNumTouched();
+    for (int t = 0; t < numTouched; t++) {
+      int m = CDpos.getTouchedItem(t);
+      Arrays.fill(posvisact[m], 0.0);
+      Arrays.fill(negvisact[m], 0.0);
+      moviecount[m] = 0;
+    }
+    CDpos.clear();
+    CDneg.clear();
+    Arrays.fill(poshidact, 0.0);
+    Arrays.fill(neghidact, 0.0);
+    numcases = 0;
+    squaredError = 0.0;
+    ntrain = 0;
+  }
+
+  private void ensureCapacity(int numUsers, int numEntries) {
+    if (hidinput == null || hidinput.length < numUsers * totalFeatures) {
+      int size = Math.max(numUsers, hidinput == null ? 0 : 2 * hidinput.length / Math.max(1, totalFeatures));
+      hidinput = new double[size * totalFeatures];
+      poshidprobs = new double[size * totalFeatures];
+      poshidstates = new double[size * totalFeatures];
+      curposhidstates = new double[size * totalFeatures];
+      neghidstates = new double[size * totalFeatures];
+    }
+    if (negvissoftmax == null || negvissoftmax.length < numEntries) {
+      int size = Math.max(numEntries, negvissoftmax == null ? 0 : 2 * negvissoftmax.length);
+      negvissoftmax = new int[size];
+      negvisprobs = new double[size * softmax];
+      nvp2 = new double[size * softmax];
+    }
+  }
+
+  /**
+   * @return softmax unit representing the given rating, where ratings run from 1 to softmax
+   */
+  static int softmaxIndex(double rating) {
+    return (int) rating - 1;
+  }
+
+  /**
+   * @return expected rating, from 1 to softmax, under the given softmax distribution
+   */
+  static double expectedRating(double[] probs, int offset, int softmax) {
+    double expected = 0.0;
+    for (int r = 0; r < softmax; r++) {
+      expected += (r + 1) * probs[offset + r];
+    }
+    return expected;
+  }
+
+  static double sigmoid(double x) {
+    return 1.0 / (1.0 + Math.exp(-x));
+  }
+
+  /**
+   * @return {@link #sigmoid(double)} interpolated linearly from a table, within about 1e-6 of it
+   */
+  static double fastSigmoid(double x) {
+    double t = (x + SIGMOID_RANGE) * SIGMOID_RESOLUTION;
+    if (t <= 0.0) {
+      return SIGMOID_TABLE[0];
+    }
+    int i = (int) t;
+    if (i >= SIGMOID_TABLE.length - 1) {
+      return SIGMOID_TABLE[SIGMOID_TABLE.length - 1];
+    }
+    double lower = SIGMOID_TABLE[i];
+    return lower + (t - i) * (SIGMOID_TABLE[i + 1] - lower);
+  }
+
+  private static double activation(double x, boolean fast) {
+    return fast ? fastSigmoid(x) : sigmoid(x);
+  }
+
+  private static void normalize(double[] probs, int offset, int length) {
+    double tsum = 0.0;
+    for (int i = offset; i < offset + length; i++) {
+      tsum += probs[i];
+    }
+    if (tsum != 0.0) {
+      for (int i = offset; i < offset + length; i++) {
+        probs[i] /= tsum;
+      }
+    }
+  }
+
+}
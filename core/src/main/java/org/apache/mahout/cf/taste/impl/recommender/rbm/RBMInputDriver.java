@@ -43,7 +43,7 @@ public class RBMInputDriver {
     job.setMapOutputValueClass(DistributedRowMatrix.MatrixEntryWritable.class);
     job.setOutputKeyClass(IntWritable.class);
     job.setOutputValueClass(VectorWritable.class);
-    job.setOutputValueClass(SequenceFileOutputFormat.class);
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
     job.setMapperClass(RBMInputMapper.class);
     job.setReducerClass(RBMInputReducer.class);
     
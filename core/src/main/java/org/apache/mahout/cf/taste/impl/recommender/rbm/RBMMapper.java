@@ -18,321 +18,84 @@
 package org.apache.mahout.cf.taste.impl.recommender.rbm;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Iterator;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.mahout.common.IntPairWritable;
-import org.apache.mahout.math.Vector;
-import org.apache.mahout.math.Vector.Element;
-import org.apache.mahout.math.VectorIterable;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.VectorWritable;
-import org.apache.mahout.math.jet.random.engine.DRand;
 
+/**
+ * Gathers the contrastive divergence statistics of all users in the split against the weights of the previous
+ * epoch, and emits them once the split is done: one vector per (item, rating) visible unit of every rated item,
+ * keyed by (item, rating), and one vector of hidden unit statistics keyed by
+ * ({@link RBMDriver#HIDDEN_KEY}, 0). The weights are memory-mapped from the distributed cache, so all map tasks
+ * on a node share one copy.
+ */
 public class RBMMapper extends
     Mapper<IntWritable,VectorWritable,IntPairWritable,VectorWritable> {
   
+  /** Users per mini-batch handed to the contrastive divergence kernel */
+  private static final int BATCH_SIZE = 100;
+  
   private RBMState state;
-  DRand randn;
+  private RBMGradient gradient;
+  private RBMBatch batch;
   
   @Override
   public void map(IntWritable user, VectorWritable ratings, Context context)
       throws IOException, InterruptedException {
-    int i, j, k, h;
-    int u = 0, s = 0, n=1, f;
-    
-    /** Probabilities */
-    state.zero(state.negvisprobs, state.numItems, state.softmax);
-    state.zero(state.nvp2, state.numItems, state.softmax);
-    
-    /** Get data indices */
-    // Deprecated int base0 = useridx[u][0]; // TODO: Replace
-    int d0 = (ratings.get()).size();// untrain(u); // TODO: Replace
-    int dall = d0 + state.probeCount + state.qualifyCount;// unall(u); // TODO:
-                                                          // Replace
-    
-    /** For all rated movies, accumulate contributions to hidden units */
-    double[] sumW = new double[state.totalFeatures];
-    state.zero(sumW, state.totalFeatures);
-    Iterator<Element> itr = (ratings.get()).iterateNonZero();
-    while (itr.hasNext()) {
-      Element e = itr.next();
-      state.moviecount[e.index()]++;
-      
-      /** Bias */
-      state.posvisact[e.index()][(int) e.get()] += 1.0;
-      
-      /** For all hidden units */
-      for (h = 0; h < state.totalFeatures; h++) {
-        sumW[h] += state.vishid[e.index()][(int) e.get()][h];
-      }
-    }
-    /** Compute probabilities, and then sample the state of hidden units */
-    for (h = 0; h < state.totalFeatures; h++) {
-      state.poshidprobs[h] = 1.0 / (1.0 + Math.exp(-sumW[h]
-          - state.hidbiases[h]));
-      if (state.poshidprobs[h] > randn.nextDouble()) {
-        state.poshidstates[h] = 1;
-        state.poshidact[h] += 1.0;
-      } else {
-        state.poshidstates[h] = 0;
-      }
+    batch.add(ratings.get());
+    if (batch.getNumUsers() == BATCH_SIZE) {
+      gradient.accumulate(batch);
+      batch.clear();
     }
+  }
+  
+  @Override
+  protected void cleanup(Context context) throws IOException, InterruptedException {
+    gradient.accumulate(batch);
+    batch.clear();
     
-    /** Load up a copy of poshidstates for use in loop */
-    for (h = 0; h < state.totalFeatures; h++)
-      state.curposhidstates[h] = state.poshidstates[h];
-    
-    /** Make T steps of Contrastive Divergence */
-    int stepT = 0;
-    do {
-      /** Is the last pass through this loop? */
-      boolean finalTStep = (stepT + 1 >= state.tSteps);
-      
-      int r;
-      int count = d0;
-      count += state.probeCount;
-      /** For probe errors */
-      for (j = 0; j < count; j++) {
-        int m = 0;//userent[base0 + j] & USER_MOVIEMASK; // TODO: Replace
-        for (h = 0; h < state.totalFeatures; h++) {
-          /** Wherever sampled hidden states == 1, accumulate Weight values */
-          if (state.curposhidstates[h] == 1) {
-            for (r = 0; r < state.softmax; r++) {
-              state.negvisprobs[m][r] += state.vishid[m][r][h];
-            }
-          }
-          
-          /** Compute further accurate probabilities for RMSE reporting */
-          if (stepT == 0) {
-            for (r = 0; r < state.softmax; r++)
-              state.nvp2[m][r] += state.poshidprobs[h] * state.vishid[m][r][h];
-          }
-        }
-        
-        for (i = 0; i < 5; i++) {
-          state.negvisprobs[m][i] = 1. / (1 + Math.exp(-state.negvisprobs[m][i]
-              - state.visbiases[m][i]));
-        }
-        
-        /** Normalize probabilities */
-        double tsum = 0;
-        for (i = 0; i < 5; i++) {
-          tsum += state.negvisprobs[m][i];
-        }
-        
-        if (tsum != 0) {
-          for (i = 0; i < 5; i++) {
-            state.negvisprobs[m][i] /= tsum;
-          }
-        }
-        
-        /** Compute and Normalize more accurate RMSE reporting probabilities */
-        if (stepT == 0) {
-          for (i = 0; i < 5; i++) {
-            state.nvp2[m][i] = 1. / (1 + Math.exp(-state.nvp2[m][i]
-                - state.visbiases[m][i]));
-          }
-          
-          double tsum2 = 0;
-          for (i = 0; i < 5; i++) {
-            tsum2 += state.nvp2[m][i];
-          }
-          if (tsum2 != 0) {
-            for (i = 0; i < 5; i++) {
-              tsum2 += state.nvp2[m][i];
-            }
-          }
-        }
-        
-        double randval = randn.nextDouble();
-        if ((randval -= state.negvisprobs[m][0]) <= 0.0) state.negvissoftmax[m] = 0;
-        else if ((randval -= state.negvisprobs[m][1]) <= 0.0) state.negvissoftmax[m] = 1;
-        else if ((randval -= state.negvisprobs[m][2]) <= 0.0) state.negvissoftmax[m] = 2;
-        else if ((randval -= state.negvisprobs[m][3]) <= 0.0) state.negvissoftmax[m] = 3;
-        else /** The case when ((randval -= negvisprobs[m][4]) <= 0.0) */
-        state.negvissoftmax[m] = 4;
-        
-        /** If in training data, then train on it */
-        if (j < d0 && finalTStep) state.negvisact[m][state.negvissoftmax[m]] += 1.0;
-      }
-      
-      /**
-       * For all rated movies, accumulate contributions to hidden units from
-       * sampled visible units
-       */
-      state.zero(sumW, state.totalFeatures);
-      itr = (ratings.get()).iterateNonZero();
-      while (itr.hasNext()) {
-        Element e = itr.next();
-        
-        /** For all hidden units */
-        for (h = 0; h < state.totalFeatures; h++) {
-          sumW[h] += state.vishid[e.index()][state.negvissoftmax[e.index()]][h];
-        }
-      }
-      /** For all hidden units */
-      for (h = 0; h < state.totalFeatures; h++) {
-        state.neghidprobs[h] = 1. / (1 + Math
-            .exp(-sumW[h] - state.hidbiases[h]));
-        
-        /** Sample the hidden units state again. */
-        if (state.neghidprobs[h] > randn.nextDouble()) {
-          state.neghidstates[h] = 1;
-          if (finalTStep) state.neghidact[h] += 1.0;
-        } else {
-          state.neghidstates[h] = 0;
-        }
-      }
-      
-      /** Compute error rmse and prmse before we start iterating on T */
-      if (stepT == 0) {
-        itr = (ratings.get()).iterateNonZero();
-        /** Compute rmse on training data */
-        while (itr.hasNext()) {
-          Element e = itr.next();
-          double expectedV = state.nvp2[e.index()][1] + 2.0
-              * state.nvp2[e.index()][2] + 3.0 * state.nvp2[e.index()][3] + 4.0
-              * state.nvp2[e.index()][4];
-          double vdelta = (((int) e.get()) - expectedV);
-          state.nrmse += (vdelta * vdelta);
-        }
-        
-        // Verify this -> ntrain += d0;
-        
-        /** Sum up probe rmse --> Wait till PROBE is available here, till then do with training RMSE */
-        /**int base = useridx[u][0]; // TODO: Replace
-        for (i = 1; i < 2; i++)
-          base += useridx[u][i]; // TODO: Replace
-        int d = useridx[u][2]; // TODO: Replace
-        for (i = 0; i < d; i++) {
-          int m = userent[base + i] & USER_MOVIEMASK; // TODO: Replace
-          int r = (userent[base + i] >> USER_LMOVIEMASK) & 7; // TODO:
-                                                              // Replace
-          
-          double expectedV = state.nvp2[m][1] + 2.0 * state.nvp2[m][2] + 3.0
-              * state.nvp2[m][3] + 4.0 * state.nvp2[m][4];
-          double vdelta = ((r) - expectedV);
-          s += vdelta * vdelta;
-        }
-        n += d;*/
-      }
-      
-      /** Are we looping again? Load curposvisstates */
-      if (!finalTStep) {
-        for (h = 0; h < state.totalFeatures; h++)
-          state.curposhidstates[h] = state.neghidstates[h];
-        // Correct this state.zero(state.negvisprobs);
-      }
-    } while (++stepT < state.tSteps);
-    
-    /** Accumulate contrastive divergence contributions */
-    itr = (ratings.get()).iterateNonZero();
-    while (itr.hasNext()) {
-      Element e = itr.next();
-      
-      /** For all hidden units */
-      for (h = 0; h < state.totalFeatures; h++) {
-        if (state.poshidstates[h] == 1) {
-          state.CDpos[e.index()][(int) e.get()][h] += 1.0;
-        }
-        state.CDneg[e.index()][state.negvissoftmax[e.index()]][h] += state.neghidstates[h];
-      }
-    }
+    int totalFeatures = state.totalFeatures;
+    IntPairWritable key = new IntPairWritable();
+    VectorWritable value = new VectorWritable();
+    value.setWritesLaxPrecision(state.getPrecision() == RBMPrecision.FLOAT32);
     
-    /** Update weights and biases */
-    int bSize = 100;
-    if (((u + 1) % bSize) == 0 || (u + 1) == state.numUsers) {
-      int numcases = u % bSize;
-      numcases++;
-      int m; // Added
-      /** Update weights */
-      for (m = 0; m < state.numItems; m++) {
-        if (state.moviecount[m] == 0) continue;
-        
-        /** For all hidden units */
-        for (h = 0; h < state.totalFeatures; h++) {
-          /** For all softmax */
-          int rr;
-          for (rr = 0; rr < state.softmax; rr++) {
-            /**
-             * At the end compute average of CDpos and CDneg by dividing them by
-             * number of data points.
-             */
-            double CDp = state.CDpos[m][rr][h];
-            double CDn = state.CDneg[m][rr][h];
-            if (CDp != 0.0 || CDn != 0.0) {
-              CDp /= (state.moviecount[m]);
-              CDn /= (state.moviecount[m]);
-              
-              /**
-               * Update weights and biases W = W + alpha*ContrastiveDivergence
-               * (biases are just weights to neurons that stay always 1.0)
-               */
-              state.CDinc[m][rr][h] = state.Momentum * state.CDinc[m][rr][h]
-                  + state.EpsilonW
-                  * ((CDp - CDn) - state.weightCost * state.vishid[m][rr][h]);
-              state.vishid[m][rr][h] += state.CDinc[m][rr][h];
-            }
-          }
-        }
-        
-        /** Update visible softmax biases */
-        int rr;
-        for (rr = 0; rr < state.softmax; rr++) {
-          if (state.posvisact[m][rr] != 0.0 || state.negvisact[m][rr] != 0.0) {
-            state.posvisact[m][rr] /= (state.moviecount[m]);
-            state.negvisact[m][rr] /= (state.moviecount[m]);
-            state.visbiasinc[m][rr] = state.Momentum * state.visbiasinc[m][rr]
-                + state.epsilonvb
-                * ((state.posvisact[m][rr] - state.negvisact[m][rr]));
-            state.visbiases[m][rr] += state.visbiasinc[m][rr];
-          }
-        }
+    double[] stats = new double[RBMGradient.itemStatisticsSize(totalFeatures)];
+    int numItemsTouched = gradient.getNumItemsTouched();
+    for (int t = 0; t < numItemsTouched; t++) {
+      int m = gradient.getItemTouched(t);
+      for (int r = 0; r < state.softmax; r++) {
+        gradient.getItemStatistics(m, r, stats);
+        key.set(m, r);
+        value.set(new DenseVector(stats, true));
+        context.write(key, value);
       }
-      
-      /** Update hidden biases */
-      for (h = 0; h < state.totalFeatures; h++) {
-        if (state.poshidact[h] != 0.0 || state.neghidact[h] != 0.0) {
-          state.poshidact[h] /= ((numcases));
-          state.neghidact[h] /= ((numcases));
-          state.hidbiasinc[h] = state.Momentum * state.hidbiasinc[h]
-              + state.EpsilonHB * ((state.poshidact[h] - state.neghidact[h]));
-          state.hidbiases[h] += state.hidbiasinc[h];
-        }
-      }
-      
-      state.zero(state.CDpos, state.numItems, state.softmax,
-          state.totalFeatures);
-      state.zero(state.CDneg, state.numItems, state.softmax,
-          state.totalFeatures);
-      state.zero(state.poshidact, state.totalFeatures);
-      state.zero(state.neghidact, state.totalFeatures);
-      state.zero(state.posvisact, state.numItems, state.softmax);
-      state.zero(state.negvisact, state.numItems, state.softmax);
-      state.zero(state.moviecount, state.numItems);
     }
     
-    state.nrmse = Math.sqrt(state.nrmse / state.ntrain);
-    state.prmse = Math.sqrt(s / n);
-    
-    /** Clip errors */
-    // recordErrors();
-    // recordErrors();
+    double[] hidden = new double[RBMGradient.hiddenStatisticsSize(totalFeatures)];
+    gradient.getHiddenStatistics(hidden);
+    key.set(RBMDriver.HIDDEN_KEY, 0);
+    value.set(new DenseVector(hidden, true));
+    context.write(key, value);
     
+    context.getCounter(RBMDriver.Counters.SQUARED_ERROR).increment(
+        Math.round(gradient.getSquaredError() * RBMDriver.ERROR_SCALE));
+    context.getCounter(RBMDriver.Counters.RATINGS).increment(gradient.getNumRatings());
   }
   
   public void configure(RBMState myState) {
     this.state = myState;
+    this.gradient = new RBMGradient(myState, RandomUtils.getRandom());
+    this.batch = new RBMBatch(myState.numItems);
   }
   
   public void configure(Configuration job) {
     try {
-      RBMState myState = RBMDriver.getState(job);
+      RBMState myState = RBMDriver.getModel(job);
       configure(myState);
     } catch (IOException e) {
       throw new IllegalStateException("Error creating RBMState...", e);
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * <p>
+ * Reads and writes the weights of an {@link RBMState} in a fixed little-endian binary layout which can be
+ * memory-mapped, so that the map tasks of an epoch running on one node share the page cache pages of a single
+ * copy of the model instead of each deserializing its own.
+ * </p>
+ *
+ * <p>
+ * The layout is a header of six 32-bit ints (magic, version, numItems, softmax, totalFeatures and a zero pad
+ * keeping the doubles 8-byte aligned), followed by the IEEE 754 doubles of the hidden biases, the visible
+ * biases in (item, rating) order, and {@link RBMState#vishid} in {@link RBMTensor} order. Only the parameters
+ * needed to run contrastive divergence are stored; the momentum increments are not.
+ * </p>
+ */
+public final class RBMModelFile {
+
+  /** Name of the model file written next to the state of each epoch */
+  public static final String FILE_NAME = "rbm-model.bin";
+
+  static final int MAGIC = 0x52424d31;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 6 * 4;
+
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private RBMModelFile() {
+  }
+
+  public static void write(RBMState state, Path path, Configuration conf) throws IOException {
+    FileSystem fs = path.getFileSystem(conf);
+    OutputStream out = fs.create(path);
+    try {
+      write(state, out);
+    } finally {
+      out.close();
+    }
+  }
+
+  public static void write(RBMState state, OutputStream out) throws IOException {
+    ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    chunk.putInt(MAGIC).putInt(VERSION).putInt(state.numItems).putInt(state.softmax)
+        .putInt(state.totalFeatures).putInt(0);
+    chunk = writeDoubles(out, chunk, state.hidbiases, 0, state.totalFeatures);
+    for (int i = 0; i < state.numItems; i++) {
+      chunk = writeDoubles(out, chunk, state.visbiases[i], 0, state.softmax);
+    }
+    double[] vishid = state.vishid.getValues();
+    chunk = writeDoubles(out, chunk, vishid, 0, vishid.length);
+    out.write(chunk.array(), 0, chunk.position());
+  }
+
+  private static ByteBuffer writeDoubles(OutputStream out, ByteBuffer chunk, double[] values, int from, int length)
+    throws IOException {
+    for (int i = from; i < from + length; i++) {
+      if (chunk.remaining() < 8) {
+        out.write(chunk.array(), 0, chunk.position());
+        chunk.clear();
+      }
+      chunk.putDouble(values[i]);
+    }
+    return chunk;
+  }
+
+  /**
+   * Maps a model file read-only. The biases, which are small, are copied to the heap; the weights are read
+   * through the mapping, so the returned state cannot be trained, only used to run contrastive divergence or to
+   * predict.
+   *
+   * @throws IOException
+   *           if the file is not a model file, or too large to be mapped in one piece
+   */
+  public static RBMState map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    MappedByteBuffer mapped;
+    try {
+      long length = raf.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Model file too large to map: " + file + " (" + length + " bytes)");
+      }
+      // the mapping stays valid once the channel is closed
+      mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      raf.close();
+    }
+    mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+      throw new IOException("Not an RBM model file: " + file);
+    }
+    int version = mapped.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported RBM model file version " + version + ": " + file);
+    }
+    int numItems = mapped.getInt(8);
+    int softmax = mapped.getInt(12);
+    int totalFeatures = mapped.getInt(16);
+    long numWeights = (long) numItems * softmax * totalFeatures;
+    long expected = HEADER_SIZE + 8L * (totalFeatures + (long) numItems * softmax + numWeights);
+    if (mapped.limit() != expected) {
+      throw new IOException("Truncated RBM model file: " + file + " has " + mapped.limit() + " bytes, expected "
+          + expected);
+    }
+
+    RBMState state = new RBMState();
+    state.numItems = numItems;
+    state.softmax = softmax;
+    state.totalFeatures = totalFeatures;
+
+    mapped.position(HEADER_SIZE);
+    DoubleBuffer doubles = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    state.hidbiases = new double[totalFeatures];
+    doubles.get(state.hidbiases);
+    state.visbiases = new double[numItems][softmax];
+    for (int i = 0; i < numItems; i++) {
+      doubles.get(state.visbiases[i]);
+    }
+    state.vishid = new RBMTensor(numItems, softmax, totalFeatures, doubles.slice());
+    return state;
+  }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+/**
+ * <p>
+ * Precision in which RBM weights are stored. An {@link RBMState} can be checkpointed, and its statistics shuffled,
+ * in {@link #FLOAT64} or {@link #FLOAT32}; the quantized {@link #FLOAT16} and {@link #INT8} modes are only
+ * available for serving, through {@link RBMSnapshot}.
+ * </p>
+ */
+public enum RBMPrecision {
+  
+  /** IEEE 754 double, 8 bytes per weight */
+  FLOAT64(8),
+  /** IEEE 754 single, 4 bytes per weight */
+  FLOAT32(4),
+  /** IEEE 754 half, 2 bytes per weight */
+  FLOAT16(2),
+  /** Signed byte scaled per (item, rating) row, 1 byte per weight */
+  INT8(1);
+  
+  private final int bytesPerWeight;
+  
+  RBMPrecision(int bytesPerWeight) {
+    this.bytesPerWeight = bytesPerWeight;
+  }
+  
+  public int getBytesPerWeight() {
+    return bytesPerWeight;
+  }
+  
+  /**
+   * @return true if an {@link RBMState} can be trained and checkpointed in this precision
+   */
+  public boolean isTrainable() {
+    return this == FLOAT64 || this == FLOAT32;
+  }
+  
+}
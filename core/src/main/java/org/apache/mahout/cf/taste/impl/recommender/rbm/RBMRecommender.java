@@ -17,197 +17,487 @@
 
 package org.apache.mahout.cf.taste.impl.recommender.rbm;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
-import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
-import org.apache.mahout.cf.taste.impl.recommender.TopItems;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
-import org.apache.mahout.cf.taste.impl.common.RunningAverage;
-import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
-import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.common.Retriever;
+import org.apache.mahout.cf.taste.impl.model.PlusAnonymousUserDataModel;
+import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.impl.recommender.TopItems;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
-import org.apache.mahout.cf.taste.recommender.Recommender;
-import org.apache.mahout.cf.taste.model.DataModel;
-import org.apache.mahout.cf.taste.model.Preference;
-import org.apache.mahout.common.RandomUtils;
-import org.apache.mahout.cf.taste.common.NoSuchItemException;
-import org.apache.mahout.cf.taste.common.NoSuchUserException;
-import org.apache.mahout.cf.taste.common.Refreshable;
-import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.common.IOUtils;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A Recommender based on Restricted Boltzmann Machines. Salakhutdinov R., Mnih
- * A., Hinton G.E.(2007). Restricted Boltzmann Machines for Collaborative
- * Filtering.
+ * <p>
+ * A Recommender based on Restricted Boltzmann Machines. Salakhutdinov R., Mnih A., Hinton G.E.(2007).
+ * Restricted Boltzmann Machines for Collaborative Filtering.
+ * </p>
+ *
+ * <p>
+ * The model is trained in this JVM by an {@link RBMTrainer} and served from an {@link RBMSnapshot} of it. The
+ * hidden unit probabilities of each user, which depend on all of the user's ratings, are computed once and
+ * cached; an estimate then only costs one row of weights per rating value. Recommendations without a
+ * rescorer are found by {@link RBMTopItems}, which only scores the items whose upper bound beats the best
+ * estimates found so far; with a rescorer, every item is scored in one pass over the weights. A user's
+ * cached probabilities are dropped when one of the user's preferences is set or removed through this
+ * recommender, and all of them when it is refreshed or retrained. Those of
+ * {@link PlusAnonymousUserDataModel#TEMP_USER_ID} are never cached.
+ * </p>
+ *
+ * <p>
+ * With {@link #setOnlineUpdates(int, int)}, the model is also fine-tuned on the users whose preferences
+ * change, and can be checkpointed periodically with {@link #setCheckpoint(File, int)}.
+ * </p>
+ *
+ * <p>
+ * Preference values are rounded to ratings from 1 to softmax. Items which were not in the {@link DataModel}
+ * when the model was built are unknown to it: they are never recommended and ratings of them are ignored.
+ * </p>
  */
 public final class RBMRecommender extends AbstractRecommender {
-  
-  private static final Logger log = LoggerFactory
-      .getLogger(RBMRecommender.class);
-  
-  private FastByIDMap<Integer> userMap;
-  private FastByIDMap<Integer> itemMap;
-  private RBM rbm;
-  private RBMState state;
-  
-  /** Default optimum constants for 100 hidden variables on the Netflix dataset. */
-  private final int totalFeatures = 100;
-  private final int softmax = 5;
-  private final double epsilonw = 0.001;
-  /** Learning rate for weights */
-  private final double epsilonvb = 0.008;
-  /** Learning rate for biases of visible units */
-  private final double epsilonhb = 0.0006;
-  /** Learning rate for biases of hidden units */
-  private final double weightCost = 0.0001;
-  private final double momentum = 0.8;
-  private final double finalMomentum = 0.9;
-  
-  private final double e = 0.00002;
-  
-  /** Stop condition */
-  
-  public RBMRecommender(DataModel dataModel, int initialSteps)
-      throws TasteException {
-    super(dataModel);
-    
-    loadModelMaps(dataModel);
-    
-    //int numFeatures=100;
-    //int defaultValue=0;
-    
-    //rbm = new RBM(state.numUsers, state.numItems, numFeatures, defaultValue);
-    
-    rbm.train();
-  }
-  
+
+  private static final Logger log = LoggerFactory.getLogger(RBMRecommender.class);
+
+  private final RefreshHelper refreshHelper;
+  private final int totalFeatures;
+  private final int softmax;
+  private final FastByIDMap<Integer> itemMap;
+  /** Item IDs by model index */
+  private final long[] itemIDs;
+  private final RBMState state;
+  private final RBMTrainer trainer;
+  private volatile RBMSnapshot snapshot;
+  private final Cache<Long,HiddenState> hiddenStates;
+
+  /** Hash of the ratings each user had when the model was last trained on them; guarded by this */
+  private final FastByIDMap<Long> fingerprints;
+  /** Users whose preferences changed since the last online update; guarded by this */
+  private final FastIDSet pendingUsers = new FastIDSet();
+  /** Number of changed users which triggers an online update, or 0 if online updates are off */
+  private int usersPerUpdate;
+  private int passesPerUpdate;
+  private int numUpdates;
+  private File checkpointFile;
+  private int updatesPerCheckpoint;
+
   /**
-   * @param numFeatures
+   * Uses the default constants for 100 hidden variables on the Netflix dataset.
+   *
    * @param initialSteps
+   *          number of initial training epochs
+   */
+  public RBMRecommender(DataModel dataModel, int initialSteps) throws TasteException {
+    this(dataModel, initialSteps, 100, 5, 0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+  }
+
+  /**
+   * @param initialSteps
+   *          number of initial training epochs
    * @param totalFeatures
+   *          number of hidden units
    * @param softmax
+   *          highest rating
    * @param epsilonw
+   *          learning rate for weights
    * @param epsilonvb
+   *          learning rate for biases of visible units
    * @param epsilonhb
+   *          learning rate for biases of hidden units
    * @param weightCost
+   *          weight decay
    * @param momentum
+   *          momentum of the first epochs
    * @param finalMomentum
+   *          momentum of the later epochs
    */
   public RBMRecommender(DataModel dataModel, int initialSteps,
       int totalFeatures, int softmax, double epsilonw, double epsilonvb,
       double epsilonhb, double weightCost, double momentum, double finalMomentum)
       throws TasteException {
     super(dataModel);
-    
-    /*this.totalFeatures = totalFeatures;
+
+    this.totalFeatures = totalFeatures;
     this.softmax = softmax;
-    this.epsilonw = epsilonw;
-    this.epsilonvb = epsilonvb;
-    this.epsilonhb = epsilonhb;
-    this.weightCost = weightCost;
-    this.momentum = momentum;
-    this.finalMomentum = finalMomentum;
-    
-    loadModelMaps(dataModel);
-    
-    rbm = new RBM(numUsers, numItems, numFeatures, defaultValue);
-    
-    rbm.train();*/
-  }
-  
-  private void loadModelMaps(DataModel dataModel) throws TasteException {
-    int numUsers = dataModel.getNumUsers();
-    userMap = new FastByIDMap<Integer>(numUsers);
-    
-    int idx = 0;
-    LongPrimitiveIterator userIterator = dataModel.getUserIDs();
-    while (userIterator.hasNext()) {
-      userMap.put(userIterator.nextLong(), idx++);
-    }
-    
+
     int numItems = dataModel.getNumItems();
     itemMap = new FastByIDMap<Integer>(numItems);
-    
-    idx = 0;
+    itemIDs = new long[numItems];
+    int idx = 0;
     LongPrimitiveIterator itemIterator = dataModel.getItemIDs();
     while (itemIterator.hasNext()) {
-      itemMap.put(itemIterator.nextLong(), idx++);
+      long itemID = itemIterator.nextLong();
+      itemIDs[idx] = itemID;
+      itemMap.put(itemID, idx++);
     }
-    
+
+    state = new RBMState(numItems, totalFeatures, softmax, epsilonw, epsilonvb,
+        epsilonhb, weightCost, momentum, finalMomentum);
+    fingerprints = new FastByIDMap<Long>(dataModel.getNumUsers());
+    trainer = new RBMTrainer(state, loadUsers(dataModel));
+    trainer.initialize();
+
+    // Use "num users" as an upper limit on cache size, as CachingRecommender does
+    hiddenStates = new Cache<Long,HiddenState>(new HiddenStateRetriever(),
+        Math.max(1, dataModel.getNumUsers()));
+
+    refreshHelper = new RefreshHelper(new Callable<Object>() {
+      @Override
+      public Object call() throws TasteException {
+        findChangedUsers();
+        update();
+        hiddenStates.clear();
+        return null;
+      }
+    });
+    refreshHelper.addDependency(dataModel);
+
+    train(initialSteps);
   }
-  
-  public void train(int steps) {
-    rbm.train();
+
+  private List<Vector> loadUsers(DataModel dataModel) throws TasteException {
+    List<Vector> users = new ArrayList<Vector>(dataModel.getNumUsers());
+    LongPrimitiveIterator userIterator = dataModel.getUserIDs();
+    while (userIterator.hasNext()) {
+      long userID = userIterator.nextLong();
+      if (userID != PlusAnonymousUserDataModel.TEMP_USER_ID) {
+        Vector ratings = toRatings(dataModel.getPreferencesFromUser(userID));
+        fingerprints.put(userID, fingerprint(ratings));
+        users.add(ratings);
+      }
+    }
+    return users;
   }
-  
-  private float predictRating(int user, int item) {
-    return (float) rbm.predictRating(user, item);
+
+  /**
+   * @return an order-independent hash of the ratings, to detect users whose ratings changed
+   */
+  private static long fingerprint(Vector ratings) {
+    long fingerprint = 0L;
+    Iterator<Element> it = ratings.iterateNonZero();
+    while (it.hasNext()) {
+      Element e = it.next();
+      long hash = (e.index() * 0x9E3779B97F4A7C15L) ^ (long) e.get();
+      hash ^= hash >>> 31;
+      hash *= 0xBF58476D1CE4E5B9L;
+      fingerprint += hash ^ (hash >>> 29);
+    }
+    return fingerprint;
   }
-  
-  @Override
-  public float estimatePreference(long userID, long itemID)
-      throws TasteException {
-    Integer useridx = userMap.get(userID);
-    if (useridx == null) {
-      throw new NoSuchUserException();
+
+  /**
+   * @return the user's ratings of known items, indexed by model index
+   */
+  private Vector toRatings(PreferenceArray prefs) {
+    int size = prefs.length();
+    Vector ratings = new RandomAccessSparseVector(itemIDs.length, size);
+    for (int i = 0; i < size; i++) {
+      Integer itemidx = itemMap.get(prefs.getItemID(i));
+      if (itemidx != null) {
+        ratings.setQuick(itemidx, toRating(prefs.getValue(i)));
+      }
+    }
+    return ratings;
+  }
+
+  private int toRating(float value) {
+    return Math.max(1, Math.min(softmax, Math.round(value)));
+  }
+
+  /**
+   * Trains the model for the given number of further epochs and starts serving the result.
+   */
+  public synchronized void train(int steps) throws TasteException {
+    trainer.train(steps);
+    snapshot = RBMSnapshot.of(state, RBMPrecision.FLOAT64);
+    hiddenStates.clear();
+  }
+
+  /**
+   * <p>
+   * Turns on online updates: users whose preferences are set or removed through this recommender, or whose
+   * ratings differ after the {@link DataModel} is refreshed, are collected, and once there are usersPerUpdate
+   * of them, or when the recommender is refreshed, the model is fine-tuned on their current ratings with
+   * {@link RBMTrainer#fineTune(List, int)} and the result is served. This keeps the model fresh between full
+   * retrains; items which are unknown to the model are still ignored.
+   * </p>
+   *
+   * @param usersPerUpdate
+   *          number of changed users which triggers an update, or 0 to turn online updates off
+   * @param passesPerUpdate
+   *          number of single-step contrastive divergence passes over the changed users
+   */
+  public synchronized void setOnlineUpdates(int usersPerUpdate, int passesPerUpdate) {
+    if (usersPerUpdate < 0 || passesPerUpdate < 1) {
+      throw new IllegalArgumentException("usersPerUpdate must be at least 0 and passesPerUpdate at least 1");
+    }
+    this.usersPerUpdate = usersPerUpdate;
+    this.passesPerUpdate = passesPerUpdate;
+    if (usersPerUpdate == 0) {
+      pendingUsers.clear();
+    }
+  }
+
+  /**
+   * Writes the model with {@link RBMStateWritable} to the given file after every updatesPerCheckpoint online
+   * updates, through a temporary file so that the checkpoint is never seen half written.
+   */
+  public synchronized void setCheckpoint(File checkpointFile, int updatesPerCheckpoint) {
+    if (updatesPerCheckpoint < 1) {
+      throw new IllegalArgumentException("updatesPerCheckpoint must be at least 1");
+    }
+    this.checkpointFile = checkpointFile;
+    this.updatesPerCheckpoint = updatesPerCheckpoint;
+  }
+
+  private synchronized void userChanged(long userID) throws TasteException {
+    if (usersPerUpdate > 0 && userID != PlusAnonymousUserDataModel.TEMP_USER_ID) {
+      pendingUsers.add(userID);
+      if (pendingUsers.size() >= usersPerUpdate) {
+        update();
+      }
+    }
+  }
+
+  /**
+   * Adds the users whose ratings differ from those the model was last trained on to the pending users, when
+   * online updates are on. This catches the changes made by a reload of the {@link DataModel}.
+   */
+  private synchronized void findChangedUsers() throws TasteException {
+    if (usersPerUpdate == 0) {
+      return;
+    }
+    DataModel dataModel = getDataModel();
+    LongPrimitiveIterator userIterator = dataModel.getUserIDs();
+    while (userIterator.hasNext()) {
+      long userID = userIterator.nextLong();
+      if (userID != PlusAnonymousUserDataModel.TEMP_USER_ID) {
+        Long fingerprint = fingerprints.get(userID);
+        if (fingerprint == null
+            || fingerprint != fingerprint(toRatings(dataModel.getPreferencesFromUser(userID)))) {
+          pendingUsers.add(userID);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fine-tunes the model on the pending users, if any, and starts serving the result.
+   */
+  private synchronized void update() throws TasteException {
+    if (pendingUsers.isEmpty()) {
+      return;
+    }
+    DataModel dataModel = getDataModel();
+    List<Vector> users = new ArrayList<Vector>(pendingUsers.size());
+    LongPrimitiveIterator it = pendingUsers.iterator();
+    while (it.hasNext()) {
+      long userID = it.nextLong();
+      try {
+        Vector ratings = toRatings(dataModel.getPreferencesFromUser(userID));
+        fingerprints.put(userID, fingerprint(ratings));
+        users.add(ratings);
+      } catch (NoSuchUserException nsue) {
+        // removed all of its preferences
+      }
+    }
+    pendingUsers.clear();
+    double rmse = trainer.fineTune(users, passesPerUpdate);
+    log.debug("Fine-tuned on {} users, RMSE {}", users.size(), rmse);
+    snapshot = RBMSnapshot.of(state, RBMPrecision.FLOAT64);
+    hiddenStates.clear();
+
+    numUpdates++;
+    if (checkpointFile != null && numUpdates % updatesPerCheckpoint == 0) {
+      checkpoint();
     }
+  }
+
+  private void checkpoint() throws TasteException {
+    File tempFile = new File(checkpointFile.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      new RBMStateWritable(state).write(out);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(checkpointFile)) {
+        // cannot replace an existing file on some platforms
+        checkpointFile.delete();
+        if (!tempFile.renameTo(checkpointFile)) {
+          throw new TasteException("Cannot write " + checkpointFile);
+        }
+      }
+      log.info("Checkpointed model to {}", checkpointFile);
+    } catch (IOException ioe) {
+      throw new TasteException(ioe);
+    } finally {
+      IOUtils.quietClose(out);
+    }
+  }
+
+  /**
+   * @return the user's hidden unit probabilities under the current snapshot
+   */
+  private HiddenState getHiddenState(long userID) throws TasteException {
+    if (userID == PlusAnonymousUserDataModel.TEMP_USER_ID) {
+      // its preferences change without going through this recommender
+      return computeHiddenState(userID);
+    }
+    HiddenState hiddenState = hiddenStates.get(userID);
+    if (hiddenState.snapshot != snapshot) {
+      // computed just before the model was retrained
+      hiddenStates.remove(userID);
+      hiddenState = hiddenStates.get(userID);
+    }
+    return hiddenState;
+  }
+
+  private HiddenState computeHiddenState(long userID) throws TasteException {
+    RBMSnapshot current = snapshot;
+    double[] probs = new double[totalFeatures];
+    current.hiddenProbabilities(toRatings(getDataModel().getPreferencesFromUser(userID)), probs);
+    return new HiddenState(current, probs);
+  }
+
+  @Override
+  public float estimatePreference(long userID, long itemID) throws TasteException {
     Integer itemidx = itemMap.get(itemID);
     if (itemidx == null) {
       throw new NoSuchItemException();
     }
-    return predictRating(useridx, itemidx);
+    HiddenState hiddenState = getHiddenState(userID);
+    return (float) hiddenState.snapshot.estimate(hiddenState.probs, itemidx);
   }
-  
-  // TODO: Rework
+
   @Override
-  public List<RecommendedItem> recommend(long userID, int howMany,
-      IDRescorer rescorer) throws TasteException {
+  public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer)
+    throws TasteException {
     if (howMany < 1) {
-      throw new IllegalArgumentException("1 is the minimum for howMany");
+      throw new IllegalArgumentException("howMany must be at least 1");
     }
-    
+
     log.debug("Recommending items for user ID '{}'", userID);
-    
-    FastIDSet possibleItemIDs = getAllOtherItems(userID);
-    
-    TopItems.Estimator<Long> estimator = new Estimator(userID);
-    
-    List<RecommendedItem> topItems = TopItems.getTopItems(howMany,
-        possibleItemIDs.iterator(), rescorer, estimator);
-    
+
+    HiddenState hiddenState = getHiddenState(userID);
+    BitSet rated = new BitSet(itemIDs.length);
+    PreferenceArray prefs = getDataModel().getPreferencesFromUser(userID);
+    for (int i = 0; i < prefs.length(); i++) {
+      Integer itemidx = itemMap.get(prefs.getItemID(i));
+      if (itemidx != null) {
+        rated.set(itemidx);
+      }
+    }
+
+    List<RecommendedItem> topItems;
+    if (rescorer == null) {
+      // estimates can be bounded, so most items need not be scored
+      RBMTopItems search = new RBMTopItems(hiddenState.snapshot);
+      int[] items = new int[howMany];
+      double[] estimates = new double[howMany];
+      int size = search.getTopItems(hiddenState.probs, howMany, rated, items, estimates);
+      log.debug("Scored {} of {} candidates", search.getNumScored(), search.getNumCandidates());
+      topItems = new ArrayList<RecommendedItem>(size);
+      for (int i = 0; i < size; i++) {
+        topItems.add(new GenericRecommendedItem(itemIDs[items[i]], (float) estimates[i]));
+      }
+    } else {
+      // the rescorer may reorder items arbitrarily
+      double[] estimates = new double[itemIDs.length];
+      hiddenState.snapshot.estimateAll(hiddenState.probs, estimates);
+      for (int itemidx = rated.nextSetBit(0); itemidx >= 0; itemidx = rated.nextSetBit(itemidx + 1)) {
+        estimates[itemidx] = Double.NaN;
+      }
+      topItems = TopItems.getTopItems(howMany, new LongPrimitiveArrayIterator(itemIDs), rescorer,
+          new Estimator(estimates));
+    }
+
     log.debug("Recommendations are: {}", topItems);
     return topItems;
   }
-  
-  /*
-   * @Override public String toString() { return "RBMRecommender[totalFeatures:"
-   * + totalFeatures + ']'; }
-   */
 
-  private final class Estimator implements TopItems.Estimator<Long> {
-    
-    private final long theUserID;
-    
-    private Estimator(long theUserID) {
-      this.theUserID = theUserID;
+  @Override
+  public void setPreference(long userID, long itemID, float value) throws TasteException {
+    super.setPreference(userID, itemID, value);
+    hiddenStates.remove(userID);
+    userChanged(userID);
+  }
+
+  @Override
+  public void removePreference(long userID, long itemID) throws TasteException {
+    super.removePreference(userID, itemID);
+    hiddenStates.remove(userID);
+    userChanged(userID);
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {
+    refreshHelper.refresh(alreadyRefreshed);
+  }
+
+  @Override
+  public String toString() {
+    return "RBMRecommender[totalFeatures:" + totalFeatures + ']';
+  }
+
+  private static final class HiddenState {
+
+    private final RBMSnapshot snapshot;
+    private final double[] probs;
+
+    private HiddenState(RBMSnapshot snapshot, double[] probs) {
+      this.snapshot = snapshot;
+      this.probs = probs;
     }
-    
+  }
+
+  private final class HiddenStateRetriever implements Retriever<Long,HiddenState> {
+
     @Override
-    public double estimate(Long itemID) throws TasteException {
-      return estimatePreference(theUserID, itemID);
+    public HiddenState get(Long userID) throws TasteException {
+      return computeHiddenState(userID);
     }
   }
-  
-  @Override
-  public void refresh(Collection<Refreshable> alreadyRefreshed) {
-    // TODO Auto-generated method stub
-    
+
+  private final class Estimator implements TopItems.Estimator<Long> {
+
+    private final double[] estimates;
+
+    private Estimator(double[] estimates) {
+      this.estimates = estimates;
+    }
+
+    @Override
+    public double estimate(Long itemID) {
+      return estimates[itemMap.get(itemID)];
+    }
   }
-  
-}
\ No newline at end of file
+
+}
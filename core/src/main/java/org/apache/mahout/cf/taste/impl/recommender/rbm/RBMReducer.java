@@ -16,18 +16,48 @@
  */
 package org.apache.mahout.cf.taste.impl.recommender.rbm;
 
+import java.io.IOException;
 
-import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.mahout.common.IntPairWritable;
+import org.apache.mahout.math.VectorWritable;
 
-public class RBMReducer extends Reducer<IntPairWritable,DoubleWritable,IntPairWritable,DoubleWritable> {
+/**
+ * Applies the summed statistics of one epoch to the model of the previous epoch, using the momentum, learning
+ * rates and weight cost of the current one, and writes the updated model, both as an {@link RBMStateWritable}
+ * and as an {@link RBMModelFile} for the mappers of the next epoch, once all keys have been seen. The job runs a
+ * single instance of this reducer, since it holds and writes the whole model.
+ */
+public class RBMReducer extends Reducer<IntPairWritable,VectorWritable,IntWritable,RBMStateWritable> {
+  
+  private RBMState state;
+  
+  @Override
+  protected void setup(Context context) throws IOException, InterruptedException {
+    state = RBMDriver.getState(context.getConfiguration());
+  }
+  
+  @Override
+  public void reduce(IntPairWritable key,
+                     Iterable<VectorWritable> values,
+                     Context context) throws IOException, InterruptedException {
+    double[] stats = RBMCombiner.sum(values);
+    if (key.getFirst() == RBMDriver.HIDDEN_KEY) {
+      RBMGradient.applyHiddenStatistics(state, stats);
+    } else {
+      RBMGradient.applyItemStatistics(state, key.getFirst(), key.getSecond(), stats);
+    }
+  }
   
   @Override
-  public void reduce(IntPairWritable user,
-                     Iterable<DoubleWritable> values,
-                     Context context) throws java.io.IOException, InterruptedException {
-    
-  }  
+  protected void cleanup(Context context) throws IOException, InterruptedException {
+    context.write(new IntWritable(0), new RBMStateWritable(state));
+    // side file, promoted to the state directory with the task output
+    Path model = new Path(FileOutputFormat.getWorkOutputPath(context), RBMModelFile.FILE_NAME);
+    RBMModelFile.write(state, model, context.getConfiguration());
+  }
   
 }
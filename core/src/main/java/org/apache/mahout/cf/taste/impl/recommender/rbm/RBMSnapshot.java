@@ -0,0 +1,427 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.nio.DoubleBuffer;
+import java.util.Iterator;
+
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * <p>
+ * A read-only copy of the parameters of a trained {@link RBMState}, with the weights stored in a given
+ * {@link RBMPrecision}, for serving predictions. {@link RBMPrecision#FLOAT16} halves and
+ * {@link RBMPrecision#INT8} quarters the footprint of {@link RBMPrecision#FLOAT32} weights; INT8 weights are
+ * stored as signed bytes with one scale per (item, rating) row, so that each row uses the full range. Biases are
+ * few and are kept as doubles.
+ * </p>
+ *
+ * <p>
+ * Predictions follow the mean-field pass used to report the training RMSE: the hidden unit probabilities are
+ * computed from the user's ratings, and the expected rating of an item from the normalized softmax
+ * probabilities they induce.
+ * </p>
+ */
+public final class RBMSnapshot {
+
+  /** Bound on the error of {@link RBMGradient#fastSigmoid(double)} */
+  private static final double SIGMOID_ERROR = 1.0e-5;
+
+  /** Every half-precision bit pattern, decoded */
+  private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+  static {
+    for (int i = 0; i < HALF_TO_FLOAT.length; i++) {
+      HALF_TO_FLOAT[i] = halfToFloat((short) i);
+    }
+  }
+
+  private final RBMPrecision precision;
+  private final int numItems;
+  private final int softmax;
+  private final int totalFeatures;
+  private final double[] hidbiases;
+  /** Indexed by item * softmax + rating */
+  private final double[] visbiases;
+
+  /** Weights in {@link RBMTensor} order; only the array matching the precision is set */
+  private final double[] doubleWeights;
+  private final float[] floatWeights;
+  private final short[] halfWeights;
+  private final byte[] byteWeights;
+  /** Per (item, rating) row scale of {@link #byteWeights} */
+  private final float[] scales;
+  /** Per (item, rating) row sums of the positive and of the negative stored weights, and their L2 norm */
+  private final double[] rowPositive;
+  private final double[] rowNegative;
+  private final double[] rowNorms;
+
+  private RBMSnapshot(RBMState state, RBMPrecision precision) {
+    this.precision = precision;
+    this.numItems = state.numItems;
+    this.softmax = state.softmax;
+    this.totalFeatures = state.totalFeatures;
+    hidbiases = state.hidbiases.clone();
+    visbiases = new double[numItems * softmax];
+    for (int i = 0; i < numItems; i++) {
+      System.arraycopy(state.visbiases[i], 0, visbiases, i * softmax, softmax);
+    }
+
+    DoubleBuffer weights = state.vishid.getBuffer();
+    int numWeights = weights.limit();
+    double[] doubles = null;
+    float[] floats = null;
+    short[] halves = null;
+    byte[] bytes = null;
+    float[] rowScales = null;
+    switch (precision) {
+      case FLOAT64:
+        doubles = new double[numWeights];
+        for (int i = 0; i < numWeights; i++) {
+          doubles[i] = weights.get(i);
+        }
+        break;
+      case FLOAT32:
+        floats = new float[numWeights];
+        for (int i = 0; i < numWeights; i++) {
+          floats[i] = (float) weights.get(i);
+        }
+        break;
+      case FLOAT16:
+        halves = new short[numWeights];
+        for (int i = 0; i < numWeights; i++) {
+          halves[i] = floatToHalf((float) weights.get(i));
+        }
+        break;
+      case INT8:
+        bytes = new byte[numWeights];
+        rowScales = new float[numItems * softmax];
+        for (int row = 0; row < rowScales.length; row++) {
+          int start = row * totalFeatures;
+          double maxAbs = 0.0;
+          for (int h = start; h < start + totalFeatures; h++) {
+            maxAbs = Math.max(maxAbs, Math.abs(weights.get(h)));
+          }
+          float scale = (float) (maxAbs / 127.0);
+          rowScales[row] = scale;
+          if (scale > 0.0f) {
+            for (int h = start; h < start + totalFeatures; h++) {
+              bytes[h] = (byte) Math.max(-127, Math.min(127, Math.round(weights.get(h) / scale)));
+            }
+          }
+        }
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+    doubleWeights = doubles;
+    floatWeights = floats;
+    halfWeights = halves;
+    byteWeights = bytes;
+    scales = rowScales;
+
+    int numRows = numItems * softmax;
+    rowPositive = new double[numRows];
+    rowNegative = new double[numRows];
+    rowNorms = new double[numRows];
+    for (int row = 0; row < numRows; row++) {
+      double positive = 0.0;
+      double negative = 0.0;
+      double squares = 0.0;
+      for (int h = 0; h < totalFeatures; h++) {
+        double w = storedWeight(row, h);
+        if (w > 0.0) {
+          positive += w;
+        } else {
+          negative += w;
+        }
+        squares += w * w;
+      }
+      rowPositive[row] = positive;
+      rowNegative[row] = negative;
+      rowNorms[row] = Math.sqrt(squares);
+    }
+  }
+
+  /**
+   * Copies the parameters of the given state, which may be memory-mapped, in the given precision.
+   */
+  public static RBMSnapshot of(RBMState state, RBMPrecision precision) {
+    return new RBMSnapshot(state, precision);
+  }
+
+  public RBMPrecision getPrecision() {
+    return precision;
+  }
+
+  public int getNumItems() {
+    return numItems;
+  }
+
+  public int getSoftmax() {
+    return softmax;
+  }
+
+  public int getTotalFeatures() {
+    return totalFeatures;
+  }
+
+  /**
+   * @return bytes taken by the weights, including INT8 row scales
+   */
+  public long getWeightBytes() {
+    long bytes = (long) numItems * softmax * totalFeatures * precision.getBytesPerWeight();
+    return scales == null ? bytes : bytes + 4L * scales.length;
+  }
+
+  /**
+   * Computes the probability of each hidden unit being on given a user's ratings.
+   *
+   * @param userRatings
+   *          sparse vector indexed by item, whose values are ratings from 1 to softmax
+   * @param probs
+   *          receives totalFeatures probabilities
+   */
+  public void hiddenProbabilities(Vector userRatings, double[] probs) {
+    System.arraycopy(hidbiases, 0, probs, 0, totalFeatures);
+    Iterator<Element> it = userRatings.iterateNonZero();
+    while (it.hasNext()) {
+      Element e = it.next();
+      addRow(e.index() * softmax + RBMGradient.softmaxIndex(e.get()), probs);
+    }
+    for (int h = 0; h < totalFeatures; h++) {
+      probs[h] = RBMGradient.sigmoid(probs[h]);
+    }
+  }
+
+  /**
+   * @return expected rating, from 1 to softmax, of the given item by a user with the given hidden unit
+   *         probabilities
+   */
+  public double estimate(double[] hiddenProbs, int item) {
+    double total = 0.0;
+    double expected = 0.0;
+    int row = item * softmax;
+    for (int r = 0; r < softmax; r++) {
+      double p = RBMGradient.sigmoid(dotRow(row + r, hiddenProbs) + visbiases[row + r]);
+      total += p;
+      expected += (r + 1) * p;
+    }
+    return expected / total;
+  }
+
+  /**
+   * Computes {@link #estimate(double[], int)} for every item in one pass over the weights, in storage order.
+   *
+   * @param estimates
+   *          receives numItems expected ratings
+   */
+  public void estimateAll(double[] hiddenProbs, double[] estimates) {
+    for (int item = 0; item < numItems; item++) {
+      estimates[item] = estimate(hiddenProbs, item);
+    }
+  }
+
+  /**
+   * <p>
+   * Bounds {@link #estimate(double[], int)} from above for any user whose hidden unit probabilities have the
+   * given L2 norm, in O(softmax) rather than O(softmax * totalFeatures) time.
+   * </p>
+   *
+   * <p>
+   * Since probabilities lie in [0, 1], the contribution of the hidden units to the activation of a rating lies
+   * between the sums of the negative and of the positive weights of its row, and, by Cauchy-Schwarz, within
+   * the norm of the row times hiddenNorm of zero. The expected rating is a weighted mean of the ratings, so it
+   * is largest when the ratings below some threshold take their lowest and the others their highest
+   * probability; every threshold is tried.
+   * </p>
+   */
+  public double upperBound(double hiddenNorm, int item) {
+    int row = item * softmax;
+    double numerator = 0.0;
+    double denominator = 0.0;
+    for (int r = 0; r < softmax; r++) {
+      double high = highProbability(row + r, hiddenNorm);
+      numerator += (r + 1) * high;
+      denominator += high;
+    }
+    double bound = numerator / denominator;
+    for (int r = 0; r < softmax - 1; r++) {
+      double low = Math.max(0.0, RBMGradient.fastSigmoid(visbiases[row + r]
+          + Math.max(rowNegative[row + r], -rowNorms[row + r] * hiddenNorm)) - SIGMOID_ERROR);
+      double delta = low - highProbability(row + r, hiddenNorm);
+      numerator += (r + 1) * delta;
+      denominator += delta;
+      bound = Math.max(bound, numerator / denominator);
+    }
+    return bound;
+  }
+
+  /**
+   * @return a bound on the probability of the given (item, rating) row, widened by the error of the sigmoid
+   *         table, which is much cheaper than Math.exp
+   */
+  private double highProbability(int row, double hiddenNorm) {
+    return RBMGradient.fastSigmoid(visbiases[row] + Math.min(rowPositive[row], rowNorms[row] * hiddenNorm))
+        + SIGMOID_ERROR;
+  }
+
+  /**
+   * @return the L2 norm of the given hidden unit probabilities, as needed by {@link #upperBound(double, int)}
+   */
+  public static double norm(double[] hiddenProbs) {
+    double squares = 0.0;
+    for (double p : hiddenProbs) {
+      squares += p * p;
+    }
+    return Math.sqrt(squares);
+  }
+
+  /**
+   * @return the weight between hidden unit h and the given (item, rating) row, as used by predictions
+   */
+  private double storedWeight(int row, int h) {
+    int w = row * totalFeatures + h;
+    switch (precision) {
+      case FLOAT64:
+        return doubleWeights[w];
+      case FLOAT32:
+        return floatWeights[w];
+      case FLOAT16:
+        return HALF_TO_FLOAT[halfWeights[w] & 0xFFFF];
+      case INT8:
+        return scales[row] * byteWeights[w];
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void addRow(int row, double[] sum) {
+    int w = row * totalFeatures;
+    switch (precision) {
+      case FLOAT64:
+        for (int h = 0; h < totalFeatures; h++) {
+          sum[h] += doubleWeights[w + h];
+        }
+        break;
+      case FLOAT32:
+        for (int h = 0; h < totalFeatures; h++) {
+          sum[h] += floatWeights[w + h];
+        }
+        break;
+      case FLOAT16:
+        for (int h = 0; h < totalFeatures; h++) {
+          sum[h] += HALF_TO_FLOAT[halfWeights[w + h] & 0xFFFF];
+        }
+        break;
+      case INT8:
+        float scale = scales[row];
+        for (int h = 0; h < totalFeatures; h++) {
+          sum[h] += scale * byteWeights[w + h];
+        }
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private double dotRow(int row, double[] probs) {
+    int w = row * totalFeatures;
+    double sum = 0.0;
+    switch (precision) {
+      case FLOAT64:
+        for (int h = 0; h < totalFeatures; h++) {
+          sum += probs[h] * doubleWeights[w + h];
+        }
+        return sum;
+      case FLOAT32:
+        for (int h = 0; h < totalFeatures; h++) {
+          sum += probs[h] * floatWeights[w + h];
+        }
+        return sum;
+      case FLOAT16:
+        for (int h = 0; h < totalFeatures; h++) {
+          sum += probs[h] * HALF_TO_FLOAT[halfWeights[w + h] & 0xFFFF];
+        }
+        return sum;
+      case INT8:
+        for (int h = 0; h < totalFeatures; h++) {
+          sum += probs[h] * byteWeights[w + h];
+        }
+        return sum * scales[row];
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * @return the IEEE 754 half-precision value nearest to f, ties to even; out of range values become infinite
+   */
+  static short floatToHalf(float f) {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int abs = bits & 0x7FFFFFFF;
+    if (abs >= 0x7F800000) {
+      // infinity or NaN
+      return (short) (sign | 0x7C00 | (abs > 0x7F800000 ? 0x200 : 0));
+    }
+    int exponent = (abs >>> 23) - 127 + 15;
+    if (exponent >= 0x1F) {
+      return (short) (sign | 0x7C00);
+    }
+    int mantissa;
+    int shift;
+    if (exponent <= 0) {
+      if (exponent < -10) {
+        return (short) sign;
+      }
+      // subnormal: make the implicit bit explicit and shift further
+      mantissa = (abs & 0x7FFFFF) | 0x800000;
+      shift = 14 - exponent;
+      exponent = 0;
+    } else {
+      mantissa = abs & 0x7FFFFF;
+      shift = 13;
+    }
+    int half = (exponent << 10) | (mantissa >>> shift);
+    int rest = mantissa & ((1 << shift) - 1);
+    int halfway = 1 << (shift - 1);
+    if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+      // may carry into the exponent, which is still correct
+      half++;
+    }
+    return (short) (sign | half);
+  }
+
+  static float halfToFloat(short half) {
+    int bits = half & 0xFFFF;
+    int sign = (bits & 0x8000) << 16;
+    int exponent = (bits >>> 10) & 0x1F;
+    int mantissa = bits & 0x3FF;
+    if (exponent == 0x1F) {
+      return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+    }
+    if (exponent == 0) {
+      float value = mantissa / (float) (1 << 24);
+      return sign == 0 ? value : -value;
+    }
+    return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+  }
+
+}
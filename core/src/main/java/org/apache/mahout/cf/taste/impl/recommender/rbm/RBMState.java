@@ -19,6 +19,7 @@ package org.apache.mahout.cf.taste.impl.recommender.rbm;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Random;
 
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.io.Writable;
@@ -62,41 +63,39 @@ public class RBMState extends Configured implements Writable {
   int probeCount;
   int qualifyCount;
   
-  double[][][] vishid;
+  RBMTensor vishid;
   double[][] visbiases;
   double[] hidbiases;
-  double[][][] CDpos;
-  double[][][] CDneg;
-  double[][][] CDinc;
+  RBMTensor CDinc;
   double[][] Dij;
   double[][] DIJinc;
   
-  double[] poshidprobs;
-  char[] poshidstates;
-  char[] curposhidstates;
-  double[] poshidact;
-  double[] neghidact;
-  double[] neghidprobs;
-  char[] neghidstates;
   double[] hidbiasinc;
-  
-  double[][] nvp2;
-  double[][] negvisprobs;
-  char[] negvissoftmax;
-  double[][] posvisact;
-  double[][] negvisact;
   double[][] visbiasinc;
   
+  /** Per-item, per-rating counts, used to initialize the visible biases */
   int[] moviercount;
-  int[] moviecount;
   int[] movieseencount;
   
   int tSteps; // Steps of Contrastive Divergence
   
+  /** Precision in which the state is checkpointed and its statistics shuffled */
+  private RBMPrecision precision = RBMPrecision.FLOAT64;
+  /** Whether contrastive divergence uses the sigmoid table instead of Math.exp */
+  private boolean fastSigmoid;
+  
   public RBMState(int totalFeatures, int softmax, double epsilonw,
       double epsilonvb, double epsilonhb, double weightCost, double momentum,
       double finalMomentum) {
+    this(0, totalFeatures, softmax, epsilonw, epsilonvb, epsilonhb, weightCost,
+        momentum, finalMomentum);
+  }
+  
+  public RBMState(int numItems, int totalFeatures, int softmax, double epsilonw,
+      double epsilonvb, double epsilonhb, double weightCost, double momentum,
+      double finalMomentum) {
     
+    this.numItems = numItems;
     this.totalFeatures = totalFeatures;
     this.softmax = softmax;
     this.epsilonw = epsilonw;
@@ -104,36 +103,21 @@ public class RBMState extends Configured implements Writable {
     this.epsilonhb = epsilonhb;
     this.weightCost = weightCost;
     this.momentum = momentum;
+    this.initMomentum = momentum;
     this.finalMomentum = finalMomentum;
     
     /** Bring data structures to life */
-    vishid = new double[numItems][softmax][totalFeatures];
+    vishid = new RBMTensor(numItems, softmax, totalFeatures);
     visbiases = new double[numItems][softmax];
     hidbiases = new double[totalFeatures];
-    CDpos = new double[numItems][softmax][totalFeatures];
-    CDneg = new double[numItems][softmax][totalFeatures];
-    CDinc = new double[numItems][softmax][totalFeatures];
+    CDinc = new RBMTensor(numItems, softmax, totalFeatures);
     Dij = new double[numItems][totalFeatures];
     DIJinc = new double[numItems][totalFeatures];
     
-    poshidprobs = new double[totalFeatures];
-    poshidstates = new char[totalFeatures];
-    curposhidstates = new char[totalFeatures];
-    poshidact = new double[totalFeatures];
-    neghidact = new double[totalFeatures];
-    neghidprobs = new double[totalFeatures];
-    neghidstates = new char[totalFeatures];
     hidbiasinc = new double[totalFeatures];
-    
-    nvp2 = new double[numItems][softmax];
-    negvisprobs = new double[numItems][softmax];
-    negvissoftmax = new char[numItems];
-    posvisact = new double[numItems][softmax];
-    negvisact = new double[numItems][softmax];
     visbiasinc = new double[numItems][softmax];
     
     moviercount = new int[softmax * numItems];
-    moviecount = new int[numItems];
     movieseencount = new int[numItems];
     
   }
@@ -142,6 +126,132 @@ public class RBMState extends Configured implements Writable {
     // TODO Auto-generated constructor stub
   }
 
+  /**
+   * Sets small random initial weights, zero hidden biases and visible biases matching the rating
+   * distribution of each item in {@link #moviercount}, and resets the training schedule.
+   */
+  public void initialize(Random random) {
+    int i, j, k;
+    
+    /** Set initial weights */
+    double[] weights = vishid.getValues();
+    for (i = 0; i < weights.length; i++) {
+      weights[i] = 0.02 * random.nextDouble() - 0.01;
+    }
+    
+    /** Set initial biases */
+    zero(hidbiases, totalFeatures);
+    for (j = 0; j < numItems; j++) {
+      int mtot = 0;
+      for (k = 0; k < softmax; k++) {
+        mtot += moviercount[j * softmax + k];
+      }
+      for (i = 0; i < softmax; i++) {
+        /** Smoothed, so that unseen ratings don't get an infinitely negative bias */
+        visbiases[j][i] = Math.log((moviercount[j * softmax + i] + 1.0) / (mtot + softmax));
+      }
+    }
+    
+    nrmse = 2.0;
+    last_rmse = 10.0;
+    prmse = 0;
+    last_prmse = 0;
+    EpsilonW = epsilonw;
+    EpsilonVB = epsilonvb;
+    EpsilonHB = epsilonhb;
+    Momentum = initMomentum;
+    CDinc.zero();
+    zero(visbiasinc, numItems, softmax);
+    zero(hidbiasinc, totalFeatures);
+    tSteps = 1;
+  }
+  
+  /**
+   * @return true while the training RMSE still improves by more than {@link #e}, for at least 14 and at most
+   *         80 epochs
+   */
+  public boolean shouldContinue(int epochsRun) {
+    return ((nrmse < (last_rmse - e)) || epochsRun < 14) && epochsRun < 80;
+  }
+  
+  /**
+   * Sets the number of contrastive divergence steps and the momentum for the given epoch, counted from 1.
+   */
+  public void beginEpoch(int epoch) {
+    if (epoch > 10) tSteps = 3 + (epoch - 11) / 5;
+    last_rmse = nrmse;
+    last_prmse = prmse;
+    if (epoch > 5) Momentum = finalMomentum;
+  }
+  
+  /**
+   * Records the training RMSE of the given epoch, counted from 1, and decays the learning rates.
+   */
+  public void endEpoch(int epoch, double rmse) {
+    nrmse = rmse;
+    
+    if ( totalFeatures == 200 ) {
+        if ( epoch > 6 ) {
+            EpsilonW  *= 0.90;
+            EpsilonVB *= 0.90;
+            EpsilonHB *= 0.90;
+        } else if ( epoch > 5 ) {  // With 200 hidden variables, you need to slow things down a little more
+            EpsilonW  *= 0.50;         // This could probably use some more optimization
+            EpsilonVB *= 0.50;
+            EpsilonHB *= 0.50;
+        } else if ( epoch > 2 ) {
+            EpsilonW  *= 0.70;
+            EpsilonVB *= 0.70;
+            EpsilonHB *= 0.70;
+        }
+    } else {  // The 100 hidden variable case
+        if ( epoch > 8 ) {
+            EpsilonW  *= 0.92;
+            EpsilonVB *= 0.92;
+            EpsilonHB *= 0.92;
+        } else if ( epoch > 6 ) {
+            EpsilonW  *= 0.90;
+            EpsilonVB *= 0.90;
+            EpsilonHB *= 0.90;
+        } else if ( epoch > 2 ) {
+            EpsilonW  *= 0.78;
+            EpsilonVB *= 0.78;
+            EpsilonHB *= 0.78;
+        }
+    }
+  }
+
+  public RBMPrecision getPrecision() {
+    return precision;
+  }
+  
+  /**
+   * Sets the precision in which this state is checkpointed by {@link RBMStateWritable}, and in which the
+   * distributed trainer shuffles its statistics. Weights are always updated in double precision in memory;
+   * with {@link RBMPrecision#FLOAT32} they are rounded to float at every checkpoint.
+   *
+   * @throws IllegalArgumentException
+   *           for a quantized precision, which is only meant for serving through {@link RBMSnapshot}
+   */
+  public void setPrecision(RBMPrecision precision) {
+    if (!precision.isTrainable()) {
+      throw new IllegalArgumentException("Cannot train in " + precision + "; use an RBMSnapshot to serve it");
+    }
+    this.precision = precision;
+  }
+  
+  public boolean isFastSigmoid() {
+    return fastSigmoid;
+  }
+  
+  /**
+   * Makes contrastive divergence compute unit activations from an interpolated sigmoid table, within about 1e-6
+   * of the exact value, rather than calling Math.exp for every unit.
+   */
+  public void setFastSigmoid(boolean fastSigmoid) {
+    this.fastSigmoid = fastSigmoid;
+  }
+  
   public void zero(int[] arraySet, int i) {
     int m;
     
@@ -168,137 +278,27 @@ public class RBMState extends Configured implements Writable {
     }
   }
   
-  public void zero(double[][][] arraySet, int i, int j, int k) {
-    int m, n, o;
-    
-    for (m = 0; m < i; m++) {
-      for (n = 0; n < j; n++) {
-        for (o = 0; o < k; o++) {
-          arraySet[m][n][o] = 0;
-        }
-      }
-    }
-  }
- 
   @Override
   public void write(DataOutput out) throws IOException {
-
-    int i,j,k;
-    Varint.writeUnsignedVarInt(6, out);
-    Varint.writeUnsignedVarInt(3, out);
-    Varint.writeUnsignedVarInt(numItems, out);
-    Varint.writeUnsignedVarInt(softmax, out);
-    Varint.writeUnsignedVarInt(totalFeatures, out);
-    for(i=0;i<numItems;i++) {
-      for(j=0;j<softmax;j++) {
-        for(k=0;k<totalFeatures;k++) {
-          out.writeDouble(vishid[i][j][k]);
-        }
-      }
-    }
-    Varint.writeUnsignedVarInt(2, out);
-    Varint.writeUnsignedVarInt(numItems, out);
-    Varint.writeUnsignedVarInt(softmax, out);
-    for(i=0;i<numItems;i++) {
-      for(j=0;j<softmax;j++) {
-        out.writeDouble(visbiases[i][j]);
-      }
-    }
-    Varint.writeUnsignedVarInt(1, out);
-    Varint.writeUnsignedVarInt(totalFeatures, out);
-    for(i=0;i<totalFeatures;i++) {
-      out.writeDouble(hidbiases[totalFeatures]);
-    }
-    Varint.writeUnsignedVarInt(3, out);
-    Varint.writeUnsignedVarInt(numItems, out);
-    Varint.writeUnsignedVarInt(softmax, out);
-    Varint.writeUnsignedVarInt(totalFeatures, out);
-    for(i=0;i<numItems;i++) {
-      for(j=0;j<softmax;j++) {
-        for(k=0;k<totalFeatures;k++) {
-          out.writeDouble(CDinc[i][j][k]);
-        }
-      }
-    }
-    Varint.writeUnsignedVarInt(1, out);
-    Varint.writeUnsignedVarInt(totalFeatures, out);
-    for(i=0;i<totalFeatures;i++) {
-      out.writeDouble(hidbiasinc[totalFeatures]);
-    }
-    Varint.writeUnsignedVarInt(2, out);
-    Varint.writeUnsignedVarInt(numItems, out);
-    Varint.writeUnsignedVarInt(softmax, out);
-    for(i=0;i<numItems;i++) {
-      for(j=0;j<softmax;j++) {
-        out.writeDouble(visbiasinc[i][j]);
-      }
-    }
+    RBMStateWritable.writeRBMState(out, this);
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
-
-    int size = Varint.readUnsignedVarInt(in);
-    RBMState s = new RBMState();
-    
-    int i,j,k;
-    int a,b,c;
-    Varint.readUnsignedVarInt(in);
-    Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    b = Varint.readUnsignedVarInt(in);
-    c = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      for(j=0;j<b;j++) {
-        for(k=0;k<c;k++) {
-          s.vishid[i][j][k]=in.readDouble();
-        }
-      }
-    }
-    Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    b = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      for(j=0;j<b;j++) {
-        s.visbiases[i][j]=in.readDouble();
-      }
-    }
-    Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      s.hidbiases[i]=in.readDouble();
-    }
-    Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    b = Varint.readUnsignedVarInt(in);
-    c = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      for(j=0;j<b;j++) {
-        for(k=0;k<c;k++) {
-          s.CDinc[i][j][k]=in.readDouble();
-        }
-      }
-    }
-    Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      s.hidbiasinc[i]=in.readDouble();
-    }
-    Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    b = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      for(j=0;j<b;j++) {
-        s.visbiasinc[i][j]=in.readDouble();
-      }
-    }
+    RBMStateWritable writable = new RBMStateWritable();
+    writable.readFields(in);
+    RBMState s = writable.get();
     
+    this.numItems = s.numItems;
+    this.softmax = s.softmax;
+    this.totalFeatures = s.totalFeatures;
     this.vishid = s.vishid;
     this.visbiases = s.visbiases;
     this.hidbiases = s.hidbiases;
     this.CDinc = s.CDinc;
     this.hidbiasinc = s.hidbiasinc;
     this.visbiasinc = s.visbiasinc;
+    this.precision = s.precision;
     
   }
   
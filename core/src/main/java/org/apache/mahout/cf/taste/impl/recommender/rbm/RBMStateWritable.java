@@ -26,8 +26,17 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Iterator;
 
+/**
+ * Writes an {@link RBMState} as a count of the parameter arrays that follow, then each array as its rank, its
+ * dimensions and its values. A count of 6 means the values are doubles; a count of 7 means a varint
+ * {@link RBMPrecision} ordinal comes first, giving the precision of the values, so that a {@link RBMPrecision#FLOAT32}
+ * state takes half the space.
+ */
 public class RBMStateWritable extends Configured implements Writable {
 
+  private static final int DOUBLE_FORMAT = 6;
+  private static final int PRECISION_FORMAT = 7;
+
   private RBMState state;
 
   public RBMStateWritable() {
@@ -52,54 +61,40 @@ public class RBMStateWritable extends Configured implements Writable {
   @Override
   public void write(DataOutput out) throws IOException {
 
-    int i,j,k;
-    Varint.writeUnsignedVarInt(6, out);
-    Varint.writeUnsignedVarInt(3, out);
-    Varint.writeUnsignedVarInt(state.numItems, out);
-    Varint.writeUnsignedVarInt(state.softmax, out);
-    Varint.writeUnsignedVarInt(state.totalFeatures, out);
-    for(i=0;i<state.numItems;i++) {
-      for(j=0;j<state.softmax;j++) {
-        for(k=0;k<state.totalFeatures;k++) {
-          out.writeDouble(state.vishid[i][j][k]);
-        }
-      }
+    int i,j;
+    RBMPrecision precision = state.getPrecision();
+    if (precision == RBMPrecision.FLOAT64) {
+      Varint.writeUnsignedVarInt(DOUBLE_FORMAT, out);
+    } else {
+      Varint.writeUnsignedVarInt(PRECISION_FORMAT, out);
+      Varint.writeUnsignedVarInt(precision.ordinal(), out);
     }
+    writeTensor(out, state.vishid, precision);
     Varint.writeUnsignedVarInt(2, out);
     Varint.writeUnsignedVarInt(state.numItems, out);
     Varint.writeUnsignedVarInt(state.softmax, out);
     for(i=0;i<state.numItems;i++) {
       for(j=0;j<state.softmax;j++) {
-        out.writeDouble(state.visbiases[i][j]);
+        writeValue(out, state.visbiases[i][j], precision);
       }
     }
     Varint.writeUnsignedVarInt(1, out);
     Varint.writeUnsignedVarInt(state.totalFeatures, out);
     for(i=0;i<state.totalFeatures;i++) {
-      out.writeDouble(state.hidbiases[state.totalFeatures]);
-    }
-    Varint.writeUnsignedVarInt(3, out);
-    Varint.writeUnsignedVarInt(state.numItems, out);
-    Varint.writeUnsignedVarInt(state.softmax, out);
-    Varint.writeUnsignedVarInt(state.totalFeatures, out);
-    for(i=0;i<state.numItems;i++) {
-      for(j=0;j<state.softmax;j++) {
-        for(k=0;k<state.totalFeatures;k++) {
-          out.writeDouble(state.CDinc[i][j][k]);
-        }
-      }
+      writeValue(out, state.hidbiases[i], precision);
     }
+    writeTensor(out, state.CDinc, precision);
     Varint.writeUnsignedVarInt(1, out);
     Varint.writeUnsignedVarInt(state.totalFeatures, out);
     for(i=0;i<state.totalFeatures;i++) {
-      out.writeDouble(state.hidbiasinc[state.totalFeatures]);
+      writeValue(out, state.hidbiasinc[i], precision);
     }
     Varint.writeUnsignedVarInt(2, out);
     Varint.writeUnsignedVarInt(state.numItems, out);
     Varint.writeUnsignedVarInt(state.softmax, out);
     for(i=0;i<state.numItems;i++) {
       for(j=0;j<state.softmax;j++) {
-        out.writeDouble(state.visbiasinc[i][j]);
+        writeValue(out, state.visbiasinc[i][j], precision);
       }
     }
   }
@@ -108,60 +103,97 @@ public class RBMStateWritable extends Configured implements Writable {
   public void readFields(DataInput in) throws IOException {
 
     int size = Varint.readUnsignedVarInt(in);
+    RBMPrecision precision = RBMPrecision.FLOAT64;
+    if (size == PRECISION_FORMAT) {
+      int ordinal = Varint.readUnsignedVarInt(in);
+      RBMPrecision[] precisions = RBMPrecision.values();
+      if (ordinal >= precisions.length || !precisions[ordinal].isTrainable()) {
+        throw new IOException("Unsupported RBM state precision " + ordinal);
+      }
+      precision = precisions[ordinal];
+    } else if (size != DOUBLE_FORMAT) {
+      throw new IOException("Unknown RBM state format " + size);
+    }
     RBMState s = new RBMState();
+    s.setPrecision(precision);
     
-    int i,j,k;
-    int a,b,c;
-    Varint.readUnsignedVarInt(in);
+    int i,j;
+    int a,b;
+    s.vishid = readTensor(in, precision);
+    s.numItems = s.vishid.getNumItems();
+    s.softmax = s.vishid.getSoftmax();
+    s.totalFeatures = s.vishid.getTotalFeatures();
     Varint.readUnsignedVarInt(in);
     a = Varint.readUnsignedVarInt(in);
     b = Varint.readUnsignedVarInt(in);
-    c = Varint.readUnsignedVarInt(in);
+    s.visbiases = new double[a][b];
     for(i=0;i<a;i++) {
       for(j=0;j<b;j++) {
-        for(k=0;k<c;k++) {
-          s.vishid[i][j][k]=in.readDouble();
-        }
+        s.visbiases[i][j]=readValue(in, precision);
       }
     }
     Varint.readUnsignedVarInt(in);
     a = Varint.readUnsignedVarInt(in);
-    b = Varint.readUnsignedVarInt(in);
+    s.hidbiases = new double[a];
     for(i=0;i<a;i++) {
-      for(j=0;j<b;j++) {
-        s.visbiases[i][j]=in.readDouble();
-      }
+      s.hidbiases[i]=readValue(in, precision);
     }
+    s.CDinc = readTensor(in, precision);
     Varint.readUnsignedVarInt(in);
     a = Varint.readUnsignedVarInt(in);
+    s.hidbiasinc = new double[a];
     for(i=0;i<a;i++) {
-      s.hidbiases[i]=in.readDouble();
+      s.hidbiasinc[i]=readValue(in, precision);
     }
     Varint.readUnsignedVarInt(in);
     a = Varint.readUnsignedVarInt(in);
     b = Varint.readUnsignedVarInt(in);
-    c = Varint.readUnsignedVarInt(in);
+    s.visbiasinc = new double[a][b];
     for(i=0;i<a;i++) {
       for(j=0;j<b;j++) {
-        for(k=0;k<c;k++) {
-          s.CDinc[i][j][k]=in.readDouble();
-        }
+        s.visbiasinc[i][j]=readValue(in, precision);
       }
     }
-    Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      s.hidbiasinc[i]=in.readDouble();
+    state = s;
+  }
+
+  /**
+   * Writes a tensor as its rank (3), its three dimensions and then its values in storage order,
+   * which is the same item/rating/feature order the nested arrays were written in.
+   */
+  private static void writeTensor(DataOutput out, RBMTensor tensor, RBMPrecision precision) throws IOException {
+    Varint.writeUnsignedVarInt(3, out);
+    Varint.writeUnsignedVarInt(tensor.getNumItems(), out);
+    Varint.writeUnsignedVarInt(tensor.getSoftmax(), out);
+    Varint.writeUnsignedVarInt(tensor.getTotalFeatures(), out);
+    for (double value : tensor.getValues()) {
+      writeValue(out, value, precision);
     }
+  }
+
+  private static RBMTensor readTensor(DataInput in, RBMPrecision precision) throws IOException {
     Varint.readUnsignedVarInt(in);
-    a = Varint.readUnsignedVarInt(in);
-    b = Varint.readUnsignedVarInt(in);
-    for(i=0;i<a;i++) {
-      for(j=0;j<b;j++) {
-        s.visbiasinc[i][j]=in.readDouble();
-      }
+    int numItems = Varint.readUnsignedVarInt(in);
+    int softmax = Varint.readUnsignedVarInt(in);
+    int totalFeatures = Varint.readUnsignedVarInt(in);
+    RBMTensor tensor = new RBMTensor(numItems, softmax, totalFeatures);
+    double[] values = tensor.getValues();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = readValue(in, precision);
     }
-    state = s;
+    return tensor;
+  }
+
+  private static void writeValue(DataOutput out, double value, RBMPrecision precision) throws IOException {
+    if (precision == RBMPrecision.FLOAT32) {
+      out.writeFloat((float) value);
+    } else {
+      out.writeDouble(value);
+    }
+  }
+
+  private static double readValue(DataInput in, RBMPrecision precision) throws IOException {
+    return precision == RBMPrecision.FLOAT32 ? in.readFloat() : in.readDouble();
   }
 
   /** Write the RBMState to the output */
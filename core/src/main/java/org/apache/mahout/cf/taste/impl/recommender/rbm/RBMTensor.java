@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A dense numItems x softmax x totalFeatures tensor of RBM parameters, stored item-major in a single
+ * contiguous <code>double[]</code>. The weights connecting one (item, rating) visible unit to all hidden
+ * units occupy the consecutive slots <code>[offset(item, rating), offset(item, rating) + totalFeatures)</code>,
+ * so that the hidden-unit loops walk memory linearly instead of chasing one small array per (item, rating).
+ * </p>
+ *
+ * <p>
+ * Inner loops should fetch {@link #getValues()} and {@link #offset(int, int)} once and index the array
+ * directly; {@link #get(int, int, int)} and friends are provided for everything else.
+ * </p>
+ *
+ * <p>
+ * A tensor may instead wrap a read-only {@link DoubleBuffer}, typically a memory-mapped model file (see
+ * {@link RBMModelFile}). Such a tensor has no {@link #getValues()} and cannot be modified; code which only
+ * reads weights should go through {@link #getBuffer()}, which works for both kinds.
+ * </p>
+ */
+public final class RBMTensor {
+
+  private final int numItems;
+  private final int softmax;
+  private final int totalFeatures;
+  private final int itemStride;
+  private final double[] values;
+  private final DoubleBuffer buffer;
+
+  /**
+   * @throws IllegalArgumentException
+   *           if any dimension is negative, or the tensor would not fit in a single Java array
+   */
+  public RBMTensor(int numItems, int softmax, int totalFeatures) {
+    if (numItems < 0 || softmax < 0 || totalFeatures < 0) {
+      throw new IllegalArgumentException("Dimensions must be at least 0");
+    }
+    long size = (long) numItems * softmax * totalFeatures;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Tensor too large: " + size);
+    }
+    this.numItems = numItems;
+    this.softmax = softmax;
+    this.totalFeatures = totalFeatures;
+    this.itemStride = softmax * totalFeatures;
+    this.values = new double[(int) size];
+    this.buffer = DoubleBuffer.wrap(values);
+  }
+
+  /**
+   * Wraps the given buffer, whose absolute index 0 is the weight between (item 0, rating 0) and hidden unit 0.
+   * The tensor reads through the buffer and cannot be modified.
+   *
+   * @throws IllegalArgumentException
+   *           if any dimension is negative, or the buffer does not hold exactly the tensor
+   */
+  public RBMTensor(int numItems, int softmax, int totalFeatures, DoubleBuffer buffer) {
+    if (numItems < 0 || softmax < 0 || totalFeatures < 0) {
+      throw new IllegalArgumentException("Dimensions must be at least 0");
+    }
+    long size = (long) numItems * softmax * totalFeatures;
+    if (buffer.position() != 0 || buffer.limit() != size) {
+      throw new IllegalArgumentException("Buffer holds " + buffer.limit() + " values, expected " + size);
+    }
+    this.numItems = numItems;
+    this.softmax = softmax;
+    this.totalFeatures = totalFeatures;
+    this.itemStride = softmax * totalFeatures;
+    this.values = null;
+    this.buffer = buffer;
+  }
+
+  public int getNumItems() {
+    return numItems;
+  }
+
+  public int getSoftmax() {
+    return softmax;
+  }
+
+  public int getTotalFeatures() {
+    return totalFeatures;
+  }
+
+  /**
+   * @return the backing array; modifications write through to this tensor
+   * @throws IllegalStateException
+   *           if this tensor wraps a read-only buffer
+   */
+  public double[] getValues() {
+    if (values == null) {
+      throw new IllegalStateException("Tensor is backed by a read-only buffer");
+    }
+    return values;
+  }
+
+  /**
+   * @return a buffer over the values in the same layout as {@link #getValues()}, to be read with absolute
+   *         gets only; it is shared, so its position and limit must not be changed
+   */
+  public DoubleBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return true if this tensor wraps a read-only buffer rather than an array
+   */
+  public boolean isReadOnly() {
+    return values == null;
+  }
+
+  /**
+   * @return index in {@link #getValues()} of the weight between (item, rating) and hidden unit 0
+   */
+  public int offset(int item, int rating) {
+    return item * itemStride + rating * totalFeatures;
+  }
+
+  public double get(int item, int rating, int feature) {
+    return buffer.get(offset(item, rating) + feature);
+  }
+
+  public void set(int item, int rating, int feature, double value) {
+    getValues()[offset(item, rating) + feature] = value;
+  }
+
+  public void add(int item, int rating, int feature, double delta) {
+    getValues()[offset(item, rating) + feature] += delta;
+  }
+
+  /** Sets every entry to 0. */
+  public void zero() {
+    Arrays.fill(getValues(), 0.0);
+  }
+
+  /** Sets every entry belonging to the given item to 0. */
+  public void zero(int item) {
+    int start = item * itemStride;
+    Arrays.fill(getValues(), start, start + itemStride, 0.0);
+  }
+
+}
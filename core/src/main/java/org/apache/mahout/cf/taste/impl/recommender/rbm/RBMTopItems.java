@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.util.BitSet;
+
+/**
+ * <p>
+ * Finds the items with the highest expected rating under an {@link RBMSnapshot} without scoring the whole
+ * catalogue. Every candidate is first given a cheap upper bound with {@link RBMSnapshot#upperBound(double, int)};
+ * candidates are then scored exactly in roughly decreasing order of bound, and the search stops as soon as no
+ * remaining bound can beat the lowest of the best estimates found so far.
+ * </p>
+ *
+ * <p>
+ * The result is the same as that of scoring every candidate and keeping the best. Instances hold the statistics
+ * of their last search and are not thread-safe; they are cheap to create.
+ * </p>
+ */
+public final class RBMTopItems {
+
+  /** Number of buckets into which the range of expected ratings is divided to order the candidates */
+  private static final int NUM_BUCKETS = 1024;
+
+  private final RBMSnapshot snapshot;
+  private int numCandidates;
+  private int numScored;
+
+  public RBMTopItems(RBMSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * @param hiddenProbs
+   *          the user's hidden unit probabilities, from {@link RBMSnapshot#hiddenProbabilities}
+   * @param howMany
+   *          maximum number of items to find
+   * @param excluded
+   *          items which must not be returned, such as those the user already rated; may be null
+   * @param items
+   *          receives the best items, best first
+   * @param estimates
+   *          receives their expected ratings
+   * @return number of items found, at most howMany
+   */
+  public int getTopItems(double[] hiddenProbs, int howMany, BitSet excluded, int[] items, double[] estimates) {
+    if (howMany < 1) {
+      throw new IllegalArgumentException("howMany must be at least 1");
+    }
+    int numItems = snapshot.getNumItems();
+    int softmax = snapshot.getSoftmax();
+    double hiddenNorm = RBMSnapshot.norm(hiddenProbs);
+
+    // Bucket the candidates by bound, which lies in [1, softmax], with a counting sort: only the highest
+    // buckets are usually visited, so there is no need to order whole catalogue.
+    double scale = NUM_BUCKETS / (softmax - 1.0);
+    double[] bounds = new double[numItems];
+    int[] bucketStart = new int[NUM_BUCKETS + 1];
+    int count = 0;
+    for (int item = 0; item < numItems; item++) {
+      if (excluded == null || !excluded.get(item)) {
+        double bound = snapshot.upperBound(hiddenNorm, item);
+        bounds[item] = bound;
+        bucketStart[bucket(bound, scale) + 1]++;
+        count++;
+      }
+    }
+    for (int b = 0; b < NUM_BUCKETS; b++) {
+      bucketStart[b + 1] += bucketStart[b];
+    }
+    int[] cursor = bucketStart.clone();
+    int[] candidates = new int[count];
+    for (int item = 0; item < numItems; item++) {
+      if (excluded == null || !excluded.get(item)) {
+        candidates[cursor[bucket(bounds[item], scale)]++] = item;
+      }
+    }
+    numCandidates = count;
+
+    // min-heap of the best estimates so far
+    int[] heapItems = new int[howMany];
+    double[] heapEstimates = new double[howMany];
+    int size = 0;
+    int scored = 0;
+    for (int b = NUM_BUCKETS - 1; b >= 0; b--) {
+      // the last bucket also holds any bound above softmax
+      if (size == howMany && b < NUM_BUCKETS - 1 && 1.0 + (b + 1) / scale <= heapEstimates[0]) {
+        break;
+      }
+      for (int i = bucketStart[b]; i < bucketStart[b + 1]; i++) {
+        int item = candidates[i];
+        if (size == howMany && bounds[item] <= heapEstimates[0]) {
+          continue;
+        }
+        double estimate = snapshot.estimate(hiddenProbs, item);
+        scored++;
+        if (size < howMany) {
+          siftUp(heapItems, heapEstimates, size++, item, estimate);
+        } else if (estimate > heapEstimates[0]) {
+          siftDown(heapItems, heapEstimates, size, item, estimate);
+        }
+      }
+    }
+    numScored = scored;
+
+    for (int i = size - 1; i >= 0; i--) {
+      items[i] = heapItems[0];
+      estimates[i] = heapEstimates[0];
+      siftDown(heapItems, heapEstimates, i, heapItems[i], heapEstimates[i]);
+    }
+    return size;
+  }
+
+  /**
+   * @return number of items which were not excluded in the last search
+   */
+  public int getNumCandidates() {
+    return numCandidates;
+  }
+
+  /**
+   * @return number of items whose estimate was computed in the last search
+   */
+  public int getNumScored() {
+    return numScored;
+  }
+
+  private static int bucket(double bound, double scale) {
+    return Math.max(0, Math.min(NUM_BUCKETS - 1, (int) ((bound - 1.0) * scale)));
+  }
+
+  /** Adds an entry at the end of a heap of the given size, whose root is its lowest estimate. */
+  private static void siftUp(int[] heapItems, double[] heapEstimates, int size, int item, double estimate) {
+    int i = size;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (heapEstimates[parent] <= estimate) {
+        break;
+      }
+      heapItems[i] = heapItems[parent];
+      heapEstimates[i] = heapEstimates[parent];
+      i = parent;
+    }
+    heapItems[i] = item;
+    heapEstimates[i] = estimate;
+  }
+
+  /** Replaces the root of a heap of the given size with an entry. */
+  private static void siftDown(int[] heapItems, double[] heapEstimates, int size, int item, double estimate) {
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heapEstimates[child + 1] < heapEstimates[child]) {
+        child++;
+      }
+      if (estimate <= heapEstimates[child]) {
+        break;
+      }
+      heapItems[i] = heapItems[child];
+      heapEstimates[i] = heapEstimates[child];
+      i = child;
+    }
+    heapItems[i] = item;
+    heapEstimates[i] = estimate;
+  }
+
+}
@@ -0,0 +1,262 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Trains an {@link RBMState} in this JVM using several threads. Each mini-batch of users is split into
+ * contiguous slices, one per thread; every thread packs its slice into an {@link RBMBatch} and accumulates it
+ * into its own {@link RBMGradient} shard, reading but never writing the shared weights. At the end of the batch the shards are summed and
+ * applied to the state, so the result is the same as serial training with the same batches, up to the
+ * random sampling.
+ * </p>
+ *
+ * <p>
+ * Users are sparse vectors indexed by item, whose values are ratings from 1 to softmax.
+ * </p>
+ */
+public final class RBMTrainer {
+
+  private static final Logger log = LoggerFactory.getLogger(RBMTrainer.class);
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  private final RBMState state;
+  private final List<Vector> users;
+  private final int numThreads;
+  private final int batchSize;
+  private final RBMGradient[] shards;
+  private final RBMBatch[] batches;
+  private int epoch;
+
+  public RBMTrainer(RBMState state, List<Vector> users) {
+    this(state, users, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+  }
+
+  public RBMTrainer(RBMState state, List<Vector> users, int numThreads, int batchSize) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1");
+    }
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be at least 1");
+    }
+    this.state = state;
+    this.users = users;
+    this.numThreads = numThreads;
+    this.batchSize = batchSize;
+    shards = new RBMGradient[numThreads];
+    batches = new RBMBatch[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      shards[i] = new RBMGradient(state, RandomUtils.getRandom());
+      batches[i] = new RBMBatch(state.numItems);
+    }
+  }
+
+  /**
+   * Initializes the state from the users' rating distribution and trains it until the training RMSE stops
+   * improving, as decided by {@link RBMState#shouldContinue(int)}.
+   */
+  public void train() throws TasteException {
+    initialize();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      while (state.shouldContinue(epoch)) {
+        nextEpoch(executor);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Trains the state for the given number of further epochs, continuing the learning rate and momentum
+   * schedule where the last call left it. {@link #initialize()} must have been called first.
+   */
+  public void train(int numEpochs) throws TasteException {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int i = 0; i < numEpochs; i++) {
+        nextEpoch(executor);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * <p>
+   * Fine-tunes the state on the given users only, typically those whose ratings changed since it was trained,
+   * with the given number of passes of single-step contrastive divergence at the current learning rates. Only
+   * the weights and visible biases of the items these users rated, and the hidden biases, change. This keeps a
+   * trained model fresh between full retrains at a small fraction of the cost of an epoch, and runs in the
+   * calling thread since there are usually few such users.
+   * </p>
+   *
+   * @return training RMSE of the users in the last pass
+   */
+  public double fineTune(List<Vector> changedUsers, int numPasses) {
+    RBMGradient gradient = shards[0];
+    RBMBatch batch = batches[0];
+    int tSteps = state.tSteps;
+    state.tSteps = 1;
+    try {
+      double squaredError = 0.0;
+      int ntrain = 0;
+      int numUsers = changedUsers.size();
+      for (int pass = 0; pass < numPasses; pass++) {
+        squaredError = 0.0;
+        ntrain = 0;
+        for (int start = 0; start < numUsers; start += batchSize) {
+          int end = Math.min(start + batchSize, numUsers);
+          batch.clear();
+          for (int u = start; u < end; u++) {
+            batch.add(changedUsers.get(u));
+          }
+          gradient.accumulate(batch);
+          gradient.applyTo(state);
+          squaredError += gradient.getSquaredError();
+          ntrain += gradient.getNumRatings();
+          gradient.clear();
+        }
+      }
+      return ntrain == 0 ? 0.0 : Math.sqrt(squaredError / ntrain);
+    } finally {
+      state.tSteps = tSteps;
+    }
+  }
+
+  /**
+   * Initializes the state from the users' rating distribution and restarts the training schedule.
+   */
+  public void initialize() {
+    countRatings();
+    state.initialize(RandomUtils.getRandom());
+    epoch = 0;
+  }
+
+  private void nextEpoch(ExecutorService executor) throws TasteException {
+    epoch++;
+    state.beginEpoch(epoch);
+    double rmse = trainEpoch(executor);
+    state.endEpoch(epoch, rmse);
+    log.info("Epoch {} training RMSE {}", epoch, rmse);
+  }
+
+  /**
+   * Makes one pass over all users.
+   *
+   * @return training RMSE of this pass
+   */
+  public double trainEpoch(ExecutorService executor) throws TasteException {
+    double squaredError = 0.0;
+    int ntrain = 0;
+    int numUsers = users.size();
+    for (int start = 0; start < numUsers; start += batchSize) {
+      int end = Math.min(start + batchSize, numUsers);
+      runBatch(executor, start, end);
+
+      RBMGradient total = shards[0];
+      for (int i = 1; i < shards.length; i++) {
+        total.add(shards[i]);
+      }
+      total.applyTo(state);
+      squaredError += total.getSquaredError();
+      ntrain += total.getNumRatings();
+      for (RBMGradient shard : shards) {
+        shard.clear();
+      }
+    }
+    return ntrain == 0 ? 0.0 : Math.sqrt(squaredError / ntrain);
+  }
+
+  private void runBatch(ExecutorService executor, int start, int end) throws TasteException {
+    int numCases = end - start;
+    int sliceSize = (numCases + numThreads - 1) / numThreads;
+    List<Callable<Void>> slices = new ArrayList<Callable<Void>>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      int from = start + i * sliceSize;
+      int to = Math.min(from + sliceSize, end);
+      if (from < to) {
+        slices.add(new SliceCallable(shards[i], batches[i], from, to));
+      }
+    }
+    try {
+      List<Future<Void>> futures = executor.invokeAll(slices);
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException ie) {
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      throw new TasteException(ee.getCause());
+    }
+  }
+
+  private void countRatings() {
+    state.zero(state.moviercount, state.moviercount.length);
+    for (Vector user : users) {
+      Iterator<Element> it = user.iterateNonZero();
+      while (it.hasNext()) {
+        Element e = it.next();
+        state.moviercount[e.index() * state.softmax + RBMGradient.softmaxIndex(e.get())]++;
+      }
+    }
+  }
+
+  private final class SliceCallable implements Callable<Void> {
+
+    private final RBMGradient shard;
+    private final RBMBatch batch;
+    private final int from;
+    private final int to;
+
+    private SliceCallable(RBMGradient shard, RBMBatch batch, int from, int to) {
+      this.shard = shard;
+      this.batch = batch;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Void call() {
+      batch.clear();
+      for (int u = from; u < to; u++) {
+        batch.add(users.get(u));
+      }
+      shard.accumulate(batch);
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A numItems x softmax x totalFeatures accumulator which only stores the items that have been touched since
+ * the last {@link #clear()}. Each touched item is given a dense softmax x totalFeatures row from a pool which
+ * grows as needed and is reused across clears; the touched items are remembered in insertion order so that
+ * consumers can iterate over, and {@link #clear()} can reset, only those rows. This makes the cost of a
+ * contrastive divergence mini-batch proportional to the ratings in the batch rather than to the size of the
+ * catalogue.
+ * </p>
+ *
+ * <p>
+ * Rows use the same layout as {@link RBMTensor}: the values for (item, rating) occupy
+ * <code>[offset(item, rating), offset(item, rating) + totalFeatures)</code> of {@link #getValues()}. Since
+ * touching a new item may grow the pool, {@link #getValues()} must be re-read after calling
+ * {@link #offset(int, int)}.
+ * </p>
+ */
+public final class SparseRBMTensor {
+
+  private static final int UNTOUCHED = -1;
+
+  private final int numItems;
+  private final int softmax;
+  private final int totalFeatures;
+  private final int itemStride;
+  /** Row slot of each item in the pool, or {@link #UNTOUCHED}. */
+  private final int[] slots;
+  private final int[] touched;
+  private int numTouched;
+  private double[] values;
+
+  public SparseRBMTensor(int numItems, int softmax, int totalFeatures) {
+    if (numItems < 0 || softmax < 0 || totalFeatures < 0) {
+      throw new IllegalArgumentException("Dimensions must be at least 0");
+    }
+    if ((long) numItems * softmax * totalFeatures > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Tensor too large");
+    }
+    this.numItems = numItems;
+    this.softmax = softmax;
+    this.totalFeatures = totalFeatures;
+    this.itemStride = softmax * totalFeatures;
+    this.slots = new int[numItems];
+    Arrays.fill(slots, UNTOUCHED);
+    this.touched = new int[numItems];
+    this.values = new double[Math.min(numItems, 16) * itemStride];
+  }
+
+  public int getNumItems() {
+    return numItems;
+  }
+
+  public int getSoftmax() {
+    return softmax;
+  }
+
+  public int getTotalFeatures() {
+    return totalFeatures;
+  }
+
+  /**
+   * @return the backing row pool; only valid until the next item is touched
+   */
+  public double[] getValues() {
+    return values;
+  }
+
+  /**
+   * @return index in {@link #getValues()} of the value for (item, rating) and hidden unit 0, assigning the
+   *         item a zeroed row first if it has not been touched since the last {@link #clear()}
+   */
+  public int offset(int item, int rating) {
+    int slot = slots[item];
+    if (slot == UNTOUCHED) {
+      slot = numTouched;
+      int end = (slot + 1) * itemStride;
+      if (end > values.length) {
+        int newLength = (int) Math.min((long) numItems * itemStride, Math.max(end, 2L * values.length));
+        double[] newValues = new double[newLength];
+        System.arraycopy(values, 0, newValues, 0, numTouched * itemStride);
+        values = newValues;
+      }
+      slots[item] = slot;
+      touched[numTouched++] = item;
+    }
+    return slot * itemStride + rating * totalFeatures;
+  }
+
+  public boolean isTouched(int item) {
+    return slots[item] != UNTOUCHED;
+  }
+
+  /**
+   * @return number of items touched since the last {@link #clear()}
+   */
+  public int getNumTouched() {
+    return numTouched;
+  }
+
+  /**
+   * @return the index'th item touched since the last {@link #clear()}, in the order they were touched
+   */
+  public int getTouchedItem(int index) {
+    return touched[index];
+  }
+
+  public double get(int item, int rating, int feature) {
+    int slot = slots[item];
+    return slot == UNTOUCHED ? 0.0 : values[slot * itemStride + rating * totalFeatures + feature];
+  }
+
+  public void add(int item, int rating, int feature, double delta) {
+    int index = offset(item, rating) + feature;
+    values[index] += delta;
+  }
+
+  /** Zeroes the touched rows and forgets which items were touched. */
+  public void clear() {
+    Arrays.fill(values, 0, numTouched * itemStride, 0.0);
+    for (int i = 0; i < numTouched; i++) {
+      slots[touched[i]] = UNTOUCHED;
+    }
+    numTouched = 0;
+  }
+
+}
@@ -0,0 +1,441 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.slopeone;
+
+import java.util.Arrays;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.FixedRunningAverage;
+import org.apache.mahout.cf.taste.impl.common.FixedRunningAverageAndStdDev;
+import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.apache.mahout.common.RandomUtils;
+
+/**
+ * <p>
+ * Item-item preference diffs, as {@link MemoryDiffStorage} keeps them, stored in primitive arrays instead of
+ * one {@link RunningAverage} per pair of items.
+ * </p>
+ *
+ * <p>
+ * Items are numbered by the position of their ID in a sorted array. The diffs of a pair of items are kept in
+ * the row of the lower numbered one, which is an open addressing table, hashed like
+ * {@link org.apache.mahout.cf.taste.impl.common.FastByIDMap}, from the number of the other item to the count,
+ * the sum and optionally the sum of squares of the diffs. A diff is the preference for the higher numbered
+ * item minus the preference for the lower numbered one. Rows are only allocated once they hold a pair.
+ * </p>
+ *
+ * <p>
+ * This class is not thread-safe; {@link MemoryDiffStorage} guards it with its lock. Only
+ * {@link #mergeRow(int, DiffMatrix)} and {@link #pruneRow(int, int)} may run on several threads at once, as
+ * long as each works on different rows.
+ * </p>
+ */
+final class DiffMatrix {
+
+  private static final double ALLOWED_LOAD_FACTOR = 1.5;
+  private static final int EMPTY = -1;
+
+  private final long[] itemIDs;
+  private final boolean keepSumsOfSquares;
+  private final long maxEntries;
+  private final int[][] columns;
+  private final int[][] counts;
+  private final float[][] sums;
+  private final float[][] sumsOfSquares;
+  private final int[] rowSizes;
+  private long numEntries;
+
+  /**
+   * @param itemIDs
+   *          IDs of all items that may have diffs, in ascending order
+   * @param keepSumsOfSquares
+   *          whether to keep what is needed for the standard deviation of the diffs
+   * @param maxEntries
+   *          maximum number of pairs of items to keep diffs for; diffs of pairs beyond that are ignored
+   */
+  DiffMatrix(long[] itemIDs, boolean keepSumsOfSquares, long maxEntries) {
+    this.itemIDs = itemIDs;
+    this.keepSumsOfSquares = keepSumsOfSquares;
+    this.maxEntries = maxEntries;
+    int numItems = itemIDs.length;
+    columns = new int[numItems][];
+    counts = new int[numItems][];
+    sums = new float[numItems][];
+    sumsOfSquares = keepSumsOfSquares ? new float[numItems][] : null;
+    rowSizes = new int[numItems];
+  }
+
+  int getNumItems() {
+    return itemIDs.length;
+  }
+
+  long getNumEntries() {
+    return numEntries;
+  }
+
+  /** @return number of the item, or -1 if it is unknown */
+  int indexOf(long itemID) {
+    int index = Arrays.binarySearch(itemIDs, itemID);
+    return index < 0 ? -1 : index;
+  }
+
+  /**
+   * Adds the diff between the preferences for two items, unless the pair is new and the maximum number of pairs
+   * has been reached.
+   *
+   * @param index1
+   *          number of the first item
+   * @param index2
+   *          number of the second item
+   * @param diff
+   *          preference for the second item minus the preference for the first one
+   * @return whether the diff was added
+   */
+  boolean addDatum(int index1, int index2, float diff) {
+    if (index1 == index2 || index1 < 0 || index2 < 0) {
+      return false;
+    }
+    if (index1 > index2) {
+      int temp = index1;
+      index1 = index2;
+      index2 = temp;
+      diff = -diff;
+    }
+    int slot = findEntry(index1, index2);
+    if (slot < 0) {
+      if (numEntries >= maxEntries) {
+        return false;
+      }
+      slot = addEntry(index1, index2);
+      numEntries++;
+    }
+    counts[index1][slot]++;
+    sums[index1][slot] += diff;
+    if (keepSumsOfSquares) {
+      sumsOfSquares[index1][slot] += diff * diff;
+    }
+    return true;
+  }
+
+  /** @return whether the pair of items has diffs, even if none are left after removing them */
+  boolean hasDiffs(int index1, int index2) {
+    if (index1 == index2 || index1 < 0 || index2 < 0) {
+      return false;
+    }
+    return index1 < index2 ? findEntry(index1, index2) >= 0 : findEntry(index2, index1) >= 0;
+  }
+
+  /** Removes a diff added by {@link #addDatum(int, int, float)}, if the pair of items has diffs. */
+  void removeDatum(int index1, int index2, float diff) {
+    if (index1 == index2 || index1 < 0 || index2 < 0) {
+      return;
+    }
+    if (index1 > index2) {
+      int temp = index1;
+      index1 = index2;
+      index2 = temp;
+      diff = -diff;
+    }
+    int slot = findEntry(index1, index2);
+    if (slot >= 0 && counts[index1][slot] > 0) {
+      counts[index1][slot]--;
+      sums[index1][slot] -= diff;
+      if (keepSumsOfSquares) {
+        sumsOfSquares[index1][slot] -= diff * diff;
+      }
+    }
+  }
+
+  /** Replaces a diff added by {@link #addDatum(int, int, float)}, if the pair of items has diffs. */
+  void changeDatum(int index1, int index2, float oldDiff, float newDiff) {
+    if (index1 == index2 || index1 < 0 || index2 < 0) {
+      return;
+    }
+    if (index1 > index2) {
+      int temp = index1;
+      index1 = index2;
+      index2 = temp;
+      oldDiff = -oldDiff;
+      newDiff = -newDiff;
+    }
+    int slot = findEntry(index1, index2);
+    if (slot >= 0 && counts[index1][slot] > 0) {
+      sums[index1][slot] += newDiff - oldDiff;
+      if (keepSumsOfSquares) {
+        sumsOfSquares[index1][slot] += newDiff * newDiff - oldDiff * oldDiff;
+      }
+    }
+  }
+
+  /**
+   * Adds the diffs in a row of another matrix over the same items to this one's, whatever the maximum number of
+   * pairs. This does not count the pairs it adds; call {@link #countEntries()} when done merging.
+   */
+  void mergeRow(int row, DiffMatrix other) {
+    int[] otherColumns = other.columns[row];
+    if (otherColumns == null) {
+      return;
+    }
+    int[] otherCounts = other.counts[row];
+    float[] otherSums = other.sums[row];
+    float[] otherSumsOfSquares = keepSumsOfSquares ? other.sumsOfSquares[row] : null;
+    for (int otherSlot = 0; otherSlot < otherColumns.length; otherSlot++) {
+      int column = otherColumns[otherSlot];
+      if (column != EMPTY) {
+        int slot = findEntry(row, column);
+        if (slot < 0) {
+          slot = addEntry(row, column);
+        }
+        counts[row][slot] += otherCounts[otherSlot];
+        sums[row][slot] += otherSums[otherSlot];
+        if (keepSumsOfSquares) {
+          sumsOfSquares[row][slot] += otherSumsOfSquares[otherSlot];
+        }
+      }
+    }
+  }
+
+  /** Counts the pairs of items with diffs again, after rows were merged or pruned one by one. */
+  void countEntries() {
+    long count = 0L;
+    for (int rowSize : rowSizes) {
+      count += rowSize;
+    }
+    numEntries = count;
+  }
+
+  /**
+   * @return diffs between two items, which do not change along with this matrix, or <code>null</code> if there
+   *         are none
+   */
+  RunningAverage getDiff(int index1, int index2) {
+    if (index1 == index2 || index1 < 0 || index2 < 0) {
+      return null;
+    }
+    boolean inverted = false;
+    if (index1 > index2) {
+      inverted = true;
+      int temp = index1;
+      index1 = index2;
+      index2 = temp;
+    }
+    int slot = findEntry(index1, index2);
+    if (slot < 0) {
+      return null;
+    }
+    int count = counts[index1][slot];
+    double sum = sums[index1][slot];
+    double average = count == 0 ? Double.NaN : sum / count;
+    if (inverted) {
+      average = -average;
+    }
+    if (!keepSumsOfSquares) {
+      return new FixedRunningAverage(average, count);
+    }
+    double stdDev = Double.NaN;
+    if (count > 1) {
+      // in single precision, nearly equal diffs can come out with a slightly negative variance
+      stdDev = Math.sqrt(Math.max(0.0, (sumsOfSquares[index1][slot] - sum * sum / count) / (count - 1)));
+    }
+    return new FixedRunningAverageAndStdDev(average, stdDev, count);
+  }
+
+  /**
+   * Updates the diffs of all pairs with an item after a preference for it changed, or was removed, the way
+   * {@link RunningAverage#changeDatum(double)} and {@link RunningAverage#removeDatum(double)} would.
+   */
+  void updateItem(int index, float prefDelta, boolean remove) {
+    // the item is the lower numbered one of the pairs in its own row...
+    int[] rowColumns = columns[index];
+    if (rowColumns != null) {
+      for (int slot = 0; slot < rowColumns.length; slot++) {
+        if (rowColumns[slot] != EMPTY) {
+          updateEntry(index, slot, -prefDelta, remove);
+        }
+      }
+    }
+    // ... and the higher numbered one in the rows before
+    for (int row = 0; row < index; row++) {
+      int slot = findEntry(row, index);
+      if (slot >= 0) {
+        updateEntry(row, slot, prefDelta, remove);
+      }
+    }
+  }
+
+  private void updateEntry(int row, int slot, float delta, boolean remove) {
+    int count = counts[row][slot];
+    if (count == 0) {
+      return;
+    }
+    if (remove) {
+      // removes the delta itself as a datum, as MemoryDiffStorage always did
+      counts[row][slot] = count - 1;
+      sums[row][slot] += delta;
+      if (keepSumsOfSquares) {
+        sumsOfSquares[row][slot] -= delta * delta;
+      }
+    } else {
+      sums[row][slot] += delta;
+    }
+  }
+
+  /** Drops the diffs of pairs of items with less than the given number of them, and shrinks rows to fit. */
+  void prune(int minCount) {
+    for (int row = 0; row < columns.length; row++) {
+      pruneRow(row, minCount);
+    }
+    countEntries();
+  }
+
+  /** Does what {@link #prune(int)} does for one row, but does not count the pairs left. */
+  void pruneRow(int row, int minCount) {
+    int[] rowColumns = columns[row];
+    if (rowColumns == null) {
+      return;
+    }
+    int[] rowCounts = counts[row];
+    int size = 0;
+    for (int slot = 0; slot < rowColumns.length; slot++) {
+      if (rowColumns[slot] != EMPTY && rowCounts[slot] < minCount) {
+        rowColumns[slot] = EMPTY;
+      } else if (rowColumns[slot] != EMPTY) {
+        size++;
+      }
+    }
+    if (size == 0) {
+      columns[row] = null;
+      counts[row] = null;
+      sums[row] = null;
+      if (keepSumsOfSquares) {
+        sumsOfSquares[row] = null;
+      }
+      rowSizes[row] = 0;
+    } else {
+      reallocateRow(row, size, 0);
+    }
+  }
+
+  /** @return IDs of the items in at least one pair with diffs */
+  FastIDSet getItemIDsWithDiffs() {
+    boolean[] withDiffs = new boolean[itemIDs.length];
+    int numWithDiffs = 0;
+    for (int row = 0; row < columns.length; row++) {
+      int[] rowColumns = columns[row];
+      if (rowColumns == null) {
+        continue;
+      }
+      for (int column : rowColumns) {
+        if (column != EMPTY) {
+          if (!withDiffs[row]) {
+            withDiffs[row] = true;
+            numWithDiffs++;
+          }
+          if (!withDiffs[column]) {
+            withDiffs[column] = true;
+            numWithDiffs++;
+          }
+        }
+      }
+    }
+    FastIDSet ids = new FastIDSet(numWithDiffs);
+    for (int index = 0; index < withDiffs.length; index++) {
+      if (withDiffs[index]) {
+        ids.add(itemIDs[index]);
+      }
+    }
+    return ids;
+  }
+
+  /** @return slot of a pair of items in the row of the first one, or -1 if the pair has no diffs */
+  private int findEntry(int row, int column) {
+    int[] rowColumns = columns[row];
+    if (rowColumns == null) {
+      return -1;
+    }
+    int slot = find(rowColumns, column);
+    return rowColumns[slot] == EMPTY ? -1 : slot;
+  }
+
+  /** Adds a pair of items which has no diffs yet, with none, to the row of the first one. */
+  private int addEntry(int row, int column) {
+    int[] rowColumns = columns[row];
+    if (rowColumns == null) {
+      allocateRow(row, 1);
+    } else if (rowSizes[row] * ALLOWED_LOAD_FACTOR >= rowColumns.length) {
+      reallocateRow(row, rowSizes[row], rowSizes[row] + 1);
+    }
+    rowColumns = columns[row];
+    int slot = find(rowColumns, column);
+    rowColumns[slot] = column;
+    rowSizes[row]++;
+    return slot;
+  }
+
+  private static int find(int[] rowColumns, int column) {
+    int hashSize = rowColumns.length;
+    int jump = 1 + column % (hashSize - 2);
+    int slot = column % hashSize;
+    int currentColumn = rowColumns[slot];
+    while ((currentColumn != EMPTY) && (currentColumn != column)) {
+      if (slot < jump) {
+        slot += hashSize - jump;
+      } else {
+        slot -= jump;
+      }
+      currentColumn = rowColumns[slot];
+    }
+    return slot;
+  }
+
+  private void allocateRow(int row, int size) {
+    int hashSize = RandomUtils.nextTwinPrime((int) (ALLOWED_LOAD_FACTOR * size) + 1);
+    int[] rowColumns = new int[hashSize];
+    Arrays.fill(rowColumns, EMPTY);
+    columns[row] = rowColumns;
+    counts[row] = new int[hashSize];
+    sums[row] = new float[hashSize];
+    if (keepSumsOfSquares) {
+      sumsOfSquares[row] = new float[hashSize];
+    }
+  }
+
+  /** Rehashes a row into a table sized for the given number of entries, plus some to come. */
+  private void reallocateRow(int row, int size, int extra) {
+    int[] oldColumns = columns[row];
+    int[] oldCounts = counts[row];
+    float[] oldSums = sums[row];
+    float[] oldSumsOfSquares = keepSumsOfSquares ? sumsOfSquares[row] : null;
+    allocateRow(row, size + extra);
+    int[] rowColumns = columns[row];
+    for (int oldSlot = 0; oldSlot < oldColumns.length; oldSlot++) {
+      int column = oldColumns[oldSlot];
+      if (column != EMPTY) {
+        int slot = find(rowColumns, column);
+        rowColumns[slot] = column;
+        counts[row][slot] = oldCounts[oldSlot];
+        sums[row][slot] = oldSums[oldSlot];
+        if (keepSumsOfSquares) {
+          sumsOfSquares[row][slot] = oldSumsOfSquares[oldSlot];
+        }
+      }
+    }
+    rowSizes[row] = size;
+  }
+
+}
@@ -17,13 +17,21 @@
 
 package org.apache.mahout.cf.taste.impl.recommender.slopeone;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.common.Weighting;
@@ -33,15 +41,13 @@ import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverageAndStdDev;
-import org.apache.mahout.cf.taste.impl.common.InvertedRunningAverage;
-import org.apache.mahout.cf.taste.impl.common.InvertedRunningAverageAndStdDev;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.impl.common.RunningAverage;
-import org.apache.mahout.cf.taste.impl.common.RunningAverageAndStdDev;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.slopeone.DiffStorage;
+import org.apache.mahout.cf.taste.recommender.slopeone.IncrementalDiffStorage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,8 +56,22 @@ import org.slf4j.LoggerFactory;
  * An implementation of {@link DiffStorage} that merely stores item-item diffs in memory. It is fast, but can
  * consume a great deal of memory.
  * </p>
+ * 
+ * <p>
+ * Diffs are kept in primitive arrays, a count, a sum and, when standard deviations are needed, a sum of
+ * squares in single precision per pair of items, so that a pair takes up about 20 to 30 bytes. The averages
+ * returned for them do not change along with the data afterwards.
+ * </p>
+ * 
+ * <p>
+ * Diffs can be built on several threads, each adding those of its share of the users to a matrix of its own,
+ * and these matrices are merged at the end. Between rebuilds,
+ * {@link #updateItemPref(long, long, Float, Float)} keeps the diffs of the pairs of items a user's preference
+ * changes exact, though pairs which had no diffs, like those with items new to the {@link DataModel}, only
+ * get them at the next rebuild.
+ * </p>
  */
-public final class MemoryDiffStorage implements DiffStorage {
+public final class MemoryDiffStorage implements IncrementalDiffStorage {
   
   private static final Logger log = LoggerFactory.getLogger(MemoryDiffStorage.class);
   
@@ -59,22 +79,24 @@ public final class MemoryDiffStorage implements DiffStorage {
   private final boolean stdDevWeighted;
   private final boolean compactAverages;
   private final long maxEntries;
-  private final FastByIDMap<FastByIDMap<RunningAverage>> averageDiffs;
-  private final FastByIDMap<RunningAverage> averageItemPref;
-  private final FastIDSet allRecommendableItemIDs;
+  private final int numThreads;
+  /** Replaced as a whole by each rebuild; guarded by buildAverageDiffsLock, as are the following fields */
+  private DiffMatrix averageDiffs;
+  private FastByIDMap<RunningAverage> averageItemPref;
+  private FastIDSet allRecommendableItemIDs;
   private final ReadWriteLock buildAverageDiffsLock;
   private final RefreshHelper refreshHelper;
   
   /**
    * <p>
-   * Creates a new .
+   * Creates a new {@link MemoryDiffStorage}, which builds diffs on one thread.
    * </p>
    * 
    * <p>
    * See {@link org.apache.mahout.cf.taste.impl.recommender.slopeone.SlopeOneRecommender} for the meaning of
    * <code>stdDevWeighted</code>. If <code>compactAverages</code> is set, this uses alternate data structures
-   * ({@link CompactRunningAverage} versus {@link FullRunningAverage}) that use almost 50% less memory but
-   * store item-item averages less accurately. <code>maxEntries</code> controls the maximum number of
+   * ({@link CompactRunningAverage} versus {@link FullRunningAverage}) for average item preferences that use
+   * almost 50% less memory but store them less accurately. <code>maxEntries</code> controls the maximum number of
    * item-item average preference differences that will be tracked internally. After the limit is reached, if
    * a new item-item pair is observed in the data it will be ignored. This is recommended for large datasets.
    * The first <code>maxEntries</code> item-item pairs observed in the data are tracked. Assuming that item
@@ -89,7 +111,7 @@ public final class MemoryDiffStorage implements DiffStorage {
    *          see {@link org.apache.mahout.cf.taste.impl.recommender.slopeone.SlopeOneRecommender}
    * @param compactAverages
    *          if <code>true</code>, use {@link CompactRunningAverage} instead of {@link FullRunningAverage}
-   *          internally
+   *          for average item preferences
    * @param maxEntries
    *          maximum number of item-item average preference differences to track internally
    * @throws IllegalArgumentException
@@ -99,6 +121,30 @@ public final class MemoryDiffStorage implements DiffStorage {
                            Weighting stdDevWeighted,
                            boolean compactAverages,
                            long maxEntries) throws TasteException {
+    this(dataModel, stdDevWeighted, compactAverages, maxEntries, 1);
+  }
+  
+  /**
+   * <p>
+   * Creates a new {@link MemoryDiffStorage} which builds diffs on the given number of threads. When there are
+   * several, each tracks the first item-item pairs it observes, up to its share of <code>maxEntries</code>.
+   * </p>
+   * 
+   * <p>
+   * Each thread adds its users' diffs to a matrix of its own, including those of pairs pruned afterwards,
+   * until the matrices are merged. While building, diffs can therefore take up to about
+   * <code>numThreads</code> times the memory of the diffs finally kept.
+   * </p>
+   * 
+   * @param numThreads
+   *          number of threads to build diffs with
+   * @see #MemoryDiffStorage(DataModel, Weighting, boolean, long)
+   */
+  public MemoryDiffStorage(DataModel dataModel,
+                           Weighting stdDevWeighted,
+                           boolean compactAverages,
+                           long maxEntries,
+                           int numThreads) throws TasteException {
     if (dataModel == null) {
       throw new IllegalArgumentException("dataModel is null");
     }
@@ -108,14 +154,15 @@ public final class MemoryDiffStorage implements DiffStorage {
     if (maxEntries <= 0L) {
       throw new IllegalArgumentException("maxEntries must be positive");
     }
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1");
+    }
     this.dataModel = dataModel;
     this.stdDevWeighted = stdDevWeighted == Weighting.WEIGHTED;
     this.compactAverages = compactAverages;
     this.maxEntries = maxEntries;
-    this.averageDiffs = new FastByIDMap<FastByIDMap<RunningAverage>>();
-    this.averageItemPref = new FastByIDMap<RunningAverage>();
+    this.numThreads = numThreads;
     this.buildAverageDiffsLock = new ReentrantReadWriteLock();
-    this.allRecommendableItemIDs = new FastIDSet(dataModel.getNumItems());
     this.refreshHelper = new RefreshHelper(new Callable<Object>() {
       @Override
       public Object call() throws TasteException {
@@ -129,35 +176,12 @@ public final class MemoryDiffStorage implements DiffStorage {
   
   @Override
   public RunningAverage getDiff(long itemID1, long itemID2) {
-    
-    boolean inverted = false;
-    if (itemID1 > itemID2) {
-      inverted = true;
-      long temp = itemID1;
-      itemID1 = itemID2;
-      itemID2 = temp;
-    }
-    
-    FastByIDMap<RunningAverage> level2Map;
     try {
       buildAverageDiffsLock.readLock().lock();
-      level2Map = averageDiffs.get(itemID1);
+      return averageDiffs.getDiff(averageDiffs.indexOf(itemID1), averageDiffs.indexOf(itemID2));
     } finally {
       buildAverageDiffsLock.readLock().unlock();
     }
-    RunningAverage average = null;
-    if (level2Map != null) {
-      average = level2Map.get(itemID2);
-    }
-    if (inverted) {
-      if (average == null) {
-        return null;
-      }
-      return stdDevWeighted ? new InvertedRunningAverageAndStdDev((RunningAverageAndStdDev) average)
-          : new InvertedRunningAverage(average);
-    } else {
-      return average;
-    }
   }
   
   @Override
@@ -166,8 +190,11 @@ public final class MemoryDiffStorage implements DiffStorage {
       buildAverageDiffsLock.readLock().lock();
       int size = prefs.length();
       RunningAverage[] result = new RunningAverage[size];
-      for (int i = 0; i < size; i++) {
-        result[i] = getDiff(prefs.getItemID(i), itemID);
+      int index = averageDiffs.indexOf(itemID);
+      if (index >= 0) {
+        for (int i = 0; i < size; i++) {
+          result[i] = averageDiffs.getDiff(averageDiffs.indexOf(prefs.getItemID(i)), index);
+        }
       }
       return result;
     } finally {
@@ -177,7 +204,12 @@ public final class MemoryDiffStorage implements DiffStorage {
   
   @Override
   public RunningAverage getAverageItemPref(long itemID) {
-    return averageItemPref.get(itemID);
+    try {
+      buildAverageDiffsLock.readLock().lock();
+      return averageItemPref.get(itemID);
+    } finally {
+      buildAverageDiffsLock.readLock().unlock();
+    }
   }
   
   @Override
@@ -186,32 +218,76 @@ public final class MemoryDiffStorage implements DiffStorage {
       throw new UnsupportedOperationException("Can't update only when stdDevWeighted is set");
     }
     try {
-      buildAverageDiffsLock.readLock().lock();
-      for (Map.Entry<Long,FastByIDMap<RunningAverage>> entry : averageDiffs.entrySet()) {
-        boolean matchesItemID1 = itemID == entry.getKey();
-        for (Map.Entry<Long,RunningAverage> entry2 : entry.getValue().entrySet()) {
-          RunningAverage average = entry2.getValue();
-          if (matchesItemID1) {
-            if (remove) {
-              average.removeDatum(prefDelta);
-            } else {
-              average.changeDatum(-prefDelta);
-            }
-          } else if (itemID == entry2.getKey()) {
-            if (remove) {
-              average.removeDatum(-prefDelta);
-            } else {
-              average.changeDatum(prefDelta);
+      // diffs are plain numbers, which readers must not see half updated
+      buildAverageDiffsLock.writeLock().lock();
+      int index = averageDiffs.indexOf(itemID);
+      if (index >= 0) {
+        averageDiffs.updateItem(index, prefDelta, remove);
+      }
+      RunningAverage itemAverage = averageItemPref.get(itemID);
+      if (itemAverage != null) {
+        itemAverage.changeDatum(prefDelta);
+      }
+    } finally {
+      buildAverageDiffsLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * <p>
+   * Updates the diffs of the pairs of an item with the others a user has preferences for, and its average
+   * preference, after the user's preference for the item was set, changed or removed in the {@link DataModel}.
+   * Pairs which have no diffs are left without any until the next rebuild.
+   * </p>
+   */
+  @Override
+  public void updateItemPref(long userID, long itemID, Float oldValue, Float newValue) throws TasteException {
+    PreferenceArray userPreferences;
+    try {
+      userPreferences = dataModel.getPreferencesFromUser(userID);
+    } catch (NoSuchUserException nsue) {
+      // the user's last preference was removed
+      userPreferences = null;
+    }
+    try {
+      buildAverageDiffsLock.writeLock().lock();
+      int index = averageDiffs.indexOf(itemID);
+      if (index >= 0 && userPreferences != null) {
+        int length = userPreferences.length();
+        for (int i = 0; i < length; i++) {
+          long otherItemID = userPreferences.getItemID(i);
+          if (otherItemID == itemID) {
+            continue;
+          }
+          int otherIndex = averageDiffs.indexOf(otherItemID);
+          float otherValue = userPreferences.getValue(i);
+          if (oldValue == null) {
+            // a new pair would have a single diff, which a rebuild prunes; it waits for the next one
+            if (averageDiffs.hasDiffs(otherIndex, index)) {
+              averageDiffs.addDatum(otherIndex, index, newValue - otherValue);
             }
+          } else if (newValue == null) {
+            averageDiffs.removeDatum(otherIndex, index, oldValue - otherValue);
+          } else {
+            averageDiffs.changeDatum(otherIndex, index, oldValue - otherValue, newValue - otherValue);
           }
         }
       }
       RunningAverage itemAverage = averageItemPref.get(itemID);
+      if (itemAverage == null && newValue != null) {
+        itemAverage = buildRunningAverage();
+        averageItemPref.put(itemID, itemAverage);
+      }
       if (itemAverage != null) {
-        itemAverage.changeDatum(prefDelta);
+        if (oldValue != null && itemAverage.getCount() > 0) {
+          itemAverage.removeDatum(oldValue);
+        }
+        if (newValue != null) {
+          itemAverage.addDatum(newValue);
+        }
       }
     } finally {
-      buildAverageDiffsLock.readLock().unlock();
+      buildAverageDiffsLock.writeLock().unlock();
     }
   }
   
@@ -233,96 +309,110 @@ public final class MemoryDiffStorage implements DiffStorage {
     return result;
   }
   
+  /**
+   * Builds the diffs into new maps while the current ones keep being served, and only takes the write lock
+   * to swap them in.
+   */
   private void buildAverageDiffs() throws TasteException {
     log.info("Building average diffs...");
+    long[] itemIDs = toSortedArray(dataModel.getItemIDs(), dataModel.getNumItems());
+    long[] userIDs = toSortedArray(dataModel.getUserIDs(), dataModel.getNumUsers());
+    
+    FastByIDMap<RunningAverage> newAverageItemPref = new FastByIDMap<RunningAverage>(itemIDs.length);
+    for (long userID : userIDs) {
+      PreferenceArray userPreferences = dataModel.getPreferencesFromUser(userID);
+      int length = userPreferences.length();
+      for (int i = 0; i < length; i++) {
+        long itemID = userPreferences.getItemID(i);
+        RunningAverage itemAverage = newAverageItemPref.get(itemID);
+        if (itemAverage == null) {
+          itemAverage = buildRunningAverage();
+          newAverageItemPref.put(itemID, itemAverage);
+        }
+        itemAverage.addDatum(userPreferences.getValue(i));
+      }
+    }
+    
+    int threads = Math.min(numThreads, userIDs.length);
+    DiffMatrix newAverageDiffs;
+    if (threads <= 1) {
+      newAverageDiffs = new DiffMatrix(itemIDs, stdDevWeighted, maxEntries);
+      new DiffWorker(dataModel, userIDs, new AtomicInteger(), newAverageDiffs).call();
+      // Go back and prune inconsequential diffs. "Inconsequential" means, here, only represented by one
+      // data point, so possibly unreliable
+      newAverageDiffs.prune(2);
+    } else {
+      newAverageDiffs = buildAverageDiffs(itemIDs, userIDs, threads);
+    }
+    FastIDSet newAllRecommendableItemIDs = newAverageDiffs.getItemIDsWithDiffs();
+    log.info("Kept diffs of {} pairs of {} items", newAverageDiffs.getNumEntries(), itemIDs.length);
+    
     try {
       buildAverageDiffsLock.writeLock().lock();
-      averageDiffs.clear();
-      long averageCount = 0L;
-      LongPrimitiveIterator it = dataModel.getUserIDs();
-      while (it.hasNext()) {
-        averageCount = processOneUser(averageCount, it.nextLong());
-      }
-      
-      pruneInconsequentialDiffs();
-      updateAllRecommendableItems();
-      
+      averageDiffs = newAverageDiffs;
+      averageItemPref = newAverageItemPref;
+      allRecommendableItemIDs = newAllRecommendableItemIDs;
     } finally {
       buildAverageDiffsLock.writeLock().unlock();
     }
   }
   
-  private void pruneInconsequentialDiffs() {
-    // Go back and prune inconsequential diffs. "Inconsequential" means, here, only represented by one
-    // data point, so possibly unreliable
-    Iterator<Map.Entry<Long,FastByIDMap<RunningAverage>>> it1 = averageDiffs.entrySet().iterator();
-    while (it1.hasNext()) {
-      FastByIDMap<RunningAverage> map = it1.next().getValue();
-      Iterator<Map.Entry<Long,RunningAverage>> it2 = map.entrySet().iterator();
-      while (it2.hasNext()) {
-        RunningAverage average = it2.next().getValue();
-        if (average.getCount() <= 1) {
-          it2.remove();
-        }
+  private DiffMatrix buildAverageDiffs(long[] itemIDs, long[] userIDs, int threads) throws TasteException {
+    log.debug("Building average diffs of {} users in {} threads", userIDs.length, threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      AtomicInteger nextUser = new AtomicInteger();
+      long maxEntriesPerThread = Math.max(1L, maxEntries / threads);
+      List<Callable<DiffMatrix>> workers = new ArrayList<Callable<DiffMatrix>>(threads);
+      for (int t = 0; t < threads; t++) {
+        workers.add(new DiffWorker(dataModel, userIDs, nextUser,
+            new DiffMatrix(itemIDs, stdDevWeighted, maxEntriesPerThread)));
       }
-      if (map.isEmpty()) {
-        it1.remove();
-      } else {
-        map.rehash();
+      DiffMatrix[] partialAverageDiffs = new DiffMatrix[threads];
+      int t = 0;
+      for (Future<DiffMatrix> future : executor.invokeAll(workers)) {
+        partialAverageDiffs[t++] = future.get();
       }
-    }
-    averageDiffs.rehash();
-  }
-  
-  private void updateAllRecommendableItems() throws TasteException {
-    FastIDSet ids = new FastIDSet(dataModel.getNumItems());
-    for (Map.Entry<Long,FastByIDMap<RunningAverage>> entry : averageDiffs.entrySet()) {
-      ids.add(entry.getKey());
-      LongPrimitiveIterator it = entry.getValue().keySetIterator();
-      while (it.hasNext()) {
-        ids.add(it.next());
+      
+      // Merge the others into the first, and prune it, each thread taking every so many rows
+      List<Callable<Object>> mergers = new ArrayList<Callable<Object>>(threads);
+      for (t = 0; t < threads; t++) {
+        mergers.add(new MergeWorker(partialAverageDiffs, t, threads));
+      }
+      for (Future<Object> future : executor.invokeAll(mergers)) {
+        future.get();
+      }
+      DiffMatrix merged = partialAverageDiffs[0];
+      merged.countEntries();
+      return merged;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof TasteException) {
+        throw (TasteException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
       }
+      throw new TasteException(cause);
+    } finally {
+      executor.shutdown();
     }
-    allRecommendableItemIDs.clear();
-    allRecommendableItemIDs.addAll(ids);
-    allRecommendableItemIDs.rehash();
   }
   
-  private long processOneUser(long averageCount, long userID) throws TasteException {
-    log.debug("Processing prefs for user {}", userID);
-    // Save off prefs for the life of this loop iteration
-    PreferenceArray userPreferences = dataModel.getPreferencesFromUser(userID);
-    int length = userPreferences.length();
-    for (int i = 0; i < length - 1; i++) {
-      float prefAValue = userPreferences.getValue(i);
-      long itemIDA = userPreferences.getItemID(i);
-      FastByIDMap<RunningAverage> aMap = averageDiffs.get(itemIDA);
-      if (aMap == null) {
-        aMap = new FastByIDMap<RunningAverage>();
-        averageDiffs.put(itemIDA, aMap);
-      }
-      for (int j = i + 1; j < length; j++) {
-        // This is a performance-critical block
-        long itemIDB = userPreferences.getItemID(j);
-        RunningAverage average = aMap.get(itemIDB);
-        if ((average == null) && (averageCount < maxEntries)) {
-          average = buildRunningAverage();
-          aMap.put(itemIDB, average);
-          averageCount++;
-        }
-        if (average != null) {
-          average.addDatum(userPreferences.getValue(j) - prefAValue);
-        }
-        
-      }
-      RunningAverage itemAverage = averageItemPref.get(itemIDA);
-      if (itemAverage == null) {
-        itemAverage = buildRunningAverage();
-        averageItemPref.put(itemIDA, itemAverage);
+  private static long[] toSortedArray(LongPrimitiveIterator it, int size) {
+    long[] ids = new long[size];
+    int numIDs = 0;
+    while (it.hasNext()) {
+      if (numIDs == ids.length) {
+        ids = Arrays.copyOf(ids, 2 * numIDs + 1);
       }
-      itemAverage.addDatum(prefAValue);
+      ids[numIDs++] = it.nextLong();
     }
-    return averageCount;
+    Arrays.sort(ids, 0, numIDs);
+    return numIDs == ids.length ? ids : Arrays.copyOf(ids, numIDs);
   }
   
   private RunningAverage buildRunningAverage() {
@@ -343,4 +433,79 @@ public final class MemoryDiffStorage implements DiffStorage {
     return "MemoryDiffStorage";
   }
   
+  /** Adds the diffs of the next user in turn to its matrix, until there is none left. */
+  private static final class DiffWorker implements Callable<DiffMatrix> {
+    
+    private final DataModel dataModel;
+    private final long[] userIDs;
+    private final AtomicInteger next;
+    private final DiffMatrix averageDiffs;
+    
+    private DiffWorker(DataModel dataModel, long[] userIDs, AtomicInteger next, DiffMatrix averageDiffs) {
+      this.dataModel = dataModel;
+      this.userIDs = userIDs;
+      this.next = next;
+      this.averageDiffs = averageDiffs;
+    }
+    
+    @Override
+    public DiffMatrix call() throws TasteException {
+      int i;
+      while ((i = next.getAndIncrement()) < userIDs.length) {
+        processOneUser(userIDs[i]);
+      }
+      return averageDiffs;
+    }
+    
+    private void processOneUser(long userID) throws TasteException {
+      log.debug("Processing prefs for user {}", userID);
+      // Save off prefs for the life of this loop iteration
+      PreferenceArray userPreferences = dataModel.getPreferencesFromUser(userID);
+      int length = userPreferences.length();
+      int[] indices = new int[length];
+      float[] values = new float[length];
+      for (int i = 0; i < length; i++) {
+        indices[i] = averageDiffs.indexOf(userPreferences.getItemID(i));
+        values[i] = userPreferences.getValue(i);
+      }
+      for (int i = 0; i < length - 1; i++) {
+        int indexA = indices[i];
+        float prefAValue = values[i];
+        for (int j = i + 1; j < length; j++) {
+          // This is a performance-critical block
+          averageDiffs.addDatum(indexA, indices[j], values[j] - prefAValue);
+        }
+      }
+    }
+    
+  }
+  
+  /** Merges every so many rows of the other matrices into the first one, and prunes them. */
+  private static final class MergeWorker implements Callable<Object> {
+    
+    private final DiffMatrix[] averageDiffs;
+    private final int firstRow;
+    private final int rowStep;
+    
+    private MergeWorker(DiffMatrix[] averageDiffs, int firstRow, int rowStep) {
+      this.averageDiffs = averageDiffs;
+      this.firstRow = firstRow;
+      this.rowStep = rowStep;
+    }
+    
+    @Override
+    public Object call() {
+      DiffMatrix merged = averageDiffs[0];
+      int numItems = merged.getNumItems();
+      for (int row = firstRow; row < numItems; row += rowStep) {
+        for (int i = 1; i < averageDiffs.length; i++) {
+          merged.mergeRow(row, averageDiffs[i]);
+        }
+        merged.pruneRow(row, 2);
+      }
+      return null;
+    }
+    
+  }
+  
 }
@@ -24,8 +24,10 @@ import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.common.Weighting;
+import org.apache.mahout.cf.taste.impl.common.Cache;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.common.Retriever;
 import org.apache.mahout.cf.taste.impl.common.RunningAverage;
 import org.apache.mahout.cf.taste.impl.common.RunningAverageAndStdDev;
 import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
@@ -35,6 +37,7 @@ import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.slopeone.DiffStorage;
+import org.apache.mahout.cf.taste.recommender.slopeone.IncrementalDiffStorage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +52,11 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This implementation can also be used as a "weighted slope one" recommender.
  * </p>
+ * 
+ * <p>
+ * A {@link #recommend(long[], int, IDRescorer)} batch retrieves the average preference for an item, which
+ * estimates fall back to, once for all of its users.
+ * </p>
  */
 public final class SlopeOneRecommender extends AbstractRecommender {
   
@@ -57,6 +65,7 @@ public final class SlopeOneRecommender extends AbstractRecommender {
   private final boolean weighted;
   private final boolean stdDevWeighted;
   private final DiffStorage diffStorage;
+  private final Retriever<Long,RunningAverage> averageItemPrefs;
   
   /**
    * <p>
@@ -103,6 +112,12 @@ public final class SlopeOneRecommender extends AbstractRecommender {
     this.weighted = weighting == Weighting.WEIGHTED;
     this.stdDevWeighted = stdDevWeighting == Weighting.WEIGHTED;
     this.diffStorage = diffStorage;
+    this.averageItemPrefs = new Retriever<Long,RunningAverage>() {
+      @Override
+      public RunningAverage get(Long itemID) throws TasteException {
+        return SlopeOneRecommender.this.diffStorage.getAverageItemPref(itemID);
+      }
+    };
   }
   
   @Override
@@ -113,17 +128,33 @@ public final class SlopeOneRecommender extends AbstractRecommender {
     
     log.debug("Recommending items for user ID '{}'", userID);
     
-    FastIDSet possibleItemIDs = diffStorage.getRecommendableItemIDs(userID);
-    
-    TopItems.Estimator<Long> estimator = new Estimator(userID);
-    
-    List<RecommendedItem> topItems = TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer,
-      estimator);
+    List<RecommendedItem> topItems = doRecommend(userID, howMany, rescorer, averageItemPrefs);
     
     log.debug("Recommendations are: {}", topItems);
     return topItems;
   }
   
+  @Override
+  protected Batch newBatch(long[] userIDs) {
+    final Cache<Long,RunningAverage> batchAverageItemPrefs = new Cache<Long,RunningAverage>(averageItemPrefs);
+    return new Batch() {
+      @Override
+      public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+        return doRecommend(userID, howMany, rescorer, batchAverageItemPrefs);
+      }
+    };
+  }
+  
+  private List<RecommendedItem> doRecommend(long userID,
+                                            int howMany,
+                                            IDRescorer rescorer,
+                                            Retriever<Long,RunningAverage> averageItemPrefs) throws TasteException {
+    FastIDSet possibleItemIDs = diffStorage.getRecommendableItemIDs(userID);
+    PreferenceArray prefs = getDataModel().getPreferencesFromUser(userID);
+    TopItems.Estimator<Long> estimator = new Estimator(userID, prefs, averageItemPrefs);
+    return TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer, estimator);
+  }
+  
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException {
     DataModel model = getDataModel();
@@ -131,13 +162,15 @@ public final class SlopeOneRecommender extends AbstractRecommender {
     if (actualPref != null) {
       return actualPref;
     }
-    return doEstimatePreference(userID, itemID);
+    return doEstimatePreference(userID, model.getPreferencesFromUser(userID), itemID, averageItemPrefs);
   }
   
-  private float doEstimatePreference(long userID, long itemID) throws TasteException {
+  private float doEstimatePreference(long userID,
+                                     PreferenceArray prefs,
+                                     long itemID,
+                                     Retriever<Long,RunningAverage> averageItemPrefs) throws TasteException {
     double count = 0.0;
     double totalPreference = 0.0;
-    PreferenceArray prefs = getDataModel().getPreferencesFromUser(userID);
     RunningAverage[] averages = diffStorage.getDiffs(userID, itemID, prefs);
     int size = prefs.length();
     for (int i = 0; i < size; i++) {
@@ -166,7 +199,7 @@ public final class SlopeOneRecommender extends AbstractRecommender {
       }
     }
     if (count <= 0.0) {
-      RunningAverage itemAverage = diffStorage.getAverageItemPref(itemID);
+      RunningAverage itemAverage = averageItemPrefs.get(itemID);
       return itemAverage == null ? Float.NaN : (float) itemAverage.getAverage();
     } else {
       return (float) (totalPreference / count);
@@ -176,15 +209,18 @@ public final class SlopeOneRecommender extends AbstractRecommender {
   @Override
   public void setPreference(long userID, long itemID, float value) throws TasteException {
     DataModel dataModel = getDataModel();
-    float prefDelta;
+    Float oldPref;
     try {
-      Float oldPref = dataModel.getPreferenceValue(userID, itemID);
-      prefDelta = oldPref == null ? value : value - oldPref;
+      oldPref = dataModel.getPreferenceValue(userID, itemID);
     } catch (NoSuchUserException nsee) {
-      prefDelta = value;
+      oldPref = null;
     }
     super.setPreference(userID, itemID, value);
-    diffStorage.updateItemPref(itemID, prefDelta, false);
+    if (diffStorage instanceof IncrementalDiffStorage) {
+      ((IncrementalDiffStorage) diffStorage).updateItemPref(userID, itemID, oldPref, value);
+    } else {
+      diffStorage.updateItemPref(itemID, oldPref == null ? value : value - oldPref, false);
+    }
   }
   
   @Override
@@ -193,7 +229,11 @@ public final class SlopeOneRecommender extends AbstractRecommender {
     Float oldPref = dataModel.getPreferenceValue(userID, itemID);
     super.removePreference(userID, itemID);
     if (oldPref != null) {
-      diffStorage.updateItemPref(itemID, oldPref, true);
+      if (diffStorage instanceof IncrementalDiffStorage) {
+        ((IncrementalDiffStorage) diffStorage).updateItemPref(userID, itemID, oldPref, null);
+      } else {
+        diffStorage.updateItemPref(itemID, oldPref, true);
+      }
     }
   }
   
@@ -212,14 +252,18 @@ public final class SlopeOneRecommender extends AbstractRecommender {
   private final class Estimator implements TopItems.Estimator<Long> {
     
     private final long userID;
+    private final PreferenceArray prefs;
+    private final Retriever<Long,RunningAverage> averageItemPrefs;
     
-    private Estimator(long userID) {
+    private Estimator(long userID, PreferenceArray prefs, Retriever<Long,RunningAverage> averageItemPrefs) {
       this.userID = userID;
+      this.prefs = prefs;
+      this.averageItemPrefs = averageItemPrefs;
     }
     
     @Override
     public double estimate(Long itemID) throws TasteException {
-      return doEstimatePreference(userID, itemID);
+      return doEstimatePreference(userID, prefs, itemID, averageItemPrefs);
     }
   }
   
@@ -0,0 +1,341 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.slopeone.file;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.FixedRunningAverage;
+import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A read-only, memory-mapped file of average item-item preference diffs, which {@link FileDiffStorage} serves
+ * without parsing anything, so that it is ready at once however large the file, and several processes reading
+ * the same file share its pages in the operating system's cache.
+ * </p>
+ *
+ * <p>
+ * The diffs of each pair of items are stored once, under the lower item ID, as a record of the higher item
+ * ID, the average diff (the preference for the higher item minus the preference for the lower one) and the
+ * number of diffs averaged. Records are sorted by both item IDs, and a table of the lower item IDs with the
+ * position of their first record lets the diffs of a pair be found by two binary searches. A {@link Writer}
+ * writes the file in one pass over diffs given in that order, such as the output of
+ * {@link org.apache.mahout.cf.taste.hadoop.slopeone.SlopeOneAverageDiffsJob}, which can write it directly.
+ * </p>
+ */
+public final class DiffFile {
+
+  private static final Logger log = LoggerFactory.getLogger(DiffFile.class);
+
+  private static final int MAGIC = 0x54534f44; // "TSOD"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int FOOTER_SIZE = 24;
+  private static final int RECORD_SIZE = 16;
+  /** Records are mapped in several buffers, since one can't be larger than 2GB */
+  private static final int RECORDS_PER_BUFFER_SHIFT = 26;
+  private static final long RECORDS_PER_BUFFER_MASK = (1L << RECORDS_PER_BUFFER_SHIFT) - 1L;
+
+  private final long numEntries;
+  private final int numRows;
+  private final int numItems;
+  private final ByteBuffer[] records;
+  private final LongBuffer rowIDs;
+  private final LongBuffer rowOffsets;
+  private final LongBuffer itemIDs;
+
+  /**
+   * Maps a file written by a {@link Writer}.
+   *
+   * @param diffFile
+   *          file to map
+   * @throws IOException
+   *           if the file can't be mapped or is not a diff file
+   */
+  public DiffFile(File diffFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(diffFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      if (size < HEADER_SIZE + FOOTER_SIZE) {
+        throw new IOException("Not a diff file: " + diffFile);
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+      if (header.getInt() != MAGIC || footer.getInt(FOOTER_SIZE - 8) != MAGIC) {
+        throw new IOException("Not a diff file: " + diffFile);
+      }
+      int version = header.getInt();
+      if (version != VERSION || footer.getInt(FOOTER_SIZE - 4) != VERSION) {
+        throw new IOException("Unsupported diff file version " + version + ": " + diffFile);
+      }
+      numEntries = footer.getLong();
+      numRows = footer.getInt();
+      numItems = footer.getInt();
+      if (size != fileSize(numEntries, numRows, numItems)) {
+        throw new IOException("Truncated diff file: " + diffFile);
+      }
+      int numBuffers = (int) ((numEntries + RECORDS_PER_BUFFER_MASK) >>> RECORDS_PER_BUFFER_SHIFT);
+      records = new ByteBuffer[numBuffers];
+      long position = HEADER_SIZE;
+      for (int i = 0; i < numBuffers; i++) {
+        long bufferEntries = Math.min(numEntries - ((long) i << RECORDS_PER_BUFFER_SHIFT), RECORDS_PER_BUFFER_MASK + 1L);
+        records[i] = map(channel, position, RECORD_SIZE * bufferEntries);
+        position += RECORD_SIZE * bufferEntries;
+      }
+      rowIDs = map(channel, position, 8L * numRows).asLongBuffer();
+      position += 8L * numRows;
+      rowOffsets = map(channel, position, 8L * (numRows + 1)).asLongBuffer();
+      position += 8L * (numRows + 1);
+      itemIDs = map(channel, position, 8L * numItems).asLongBuffer();
+    } finally {
+      // mappings stay valid after the file is closed
+      file.close();
+    }
+    log.info("Mapped diff file {} of {} pairs of {} items", new Object[] {diffFile, numEntries, numItems});
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  private static long fileSize(long numEntries, int numRows, int numItems) {
+    return HEADER_SIZE + RECORD_SIZE * numEntries + 8L * numRows + 8L * (numRows + 1) + 8L * numItems + FOOTER_SIZE;
+  }
+
+  /** @return whether the file starts like one written by a {@link Writer} */
+  public static boolean isDiffFile(File file) throws IOException {
+    if (file.length() < HEADER_SIZE + FOOTER_SIZE) {
+      return false;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt() == MAGIC;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** @return number of pairs of items with diffs */
+  public long getNumEntries() {
+    return numEntries;
+  }
+
+  /** @return number of items in at least one pair with diffs */
+  public int getNumItems() {
+    return numItems;
+  }
+
+  /** @return IDs of the items in at least one pair with diffs */
+  public FastIDSet getItemIDs() {
+    FastIDSet ids = new FastIDSet(numItems);
+    for (int i = 0; i < numItems; i++) {
+      ids.add(itemIDs.get(i));
+    }
+    return ids;
+  }
+
+  /**
+   * @return average of item 2's preferences minus item 1's preferences, and how many there were, or
+   *         <code>null</code> if the file has no diffs of the two items
+   */
+  public RunningAverage getDiff(long itemID1, long itemID2) {
+    if (itemID1 == itemID2) {
+      return null;
+    }
+    boolean inverted = false;
+    if (itemID1 > itemID2) {
+      inverted = true;
+      long temp = itemID1;
+      itemID1 = itemID2;
+      itemID2 = temp;
+    }
+    int row = indexOfRow(itemID1);
+    if (row < 0) {
+      return null;
+    }
+    long record = find(rowOffsets.get(row), rowOffsets.get(row + 1) - 1L, itemID2);
+    if (record < 0L) {
+      return null;
+    }
+    ByteBuffer buffer = records[(int) (record >>> RECORDS_PER_BUFFER_SHIFT)];
+    int offset = (int) (record & RECORDS_PER_BUFFER_MASK) * RECORD_SIZE;
+    float average = buffer.getFloat(offset + 8);
+    return new FixedRunningAverage(inverted ? -average : average, buffer.getInt(offset + 12));
+  }
+
+  private int indexOfRow(long itemID) {
+    int low = 0;
+    int high = numRows - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midID = rowIDs.get(mid);
+      if (midID < itemID) {
+        low = mid + 1;
+      } else if (midID > itemID) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** @return index of the record of the item between the given ones, or -1 if it is not there */
+  private long find(long low, long high, long itemID) {
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      long midID = records[(int) (mid >>> RECORDS_PER_BUFFER_SHIFT)]
+          .getLong((int) (mid & RECORDS_PER_BUFFER_MASK) * RECORD_SIZE);
+      if (midID < itemID) {
+        low = mid + 1L;
+      } else if (midID > itemID) {
+        high = mid - 1L;
+      } else {
+        return mid;
+      }
+    }
+    return -1L;
+  }
+
+  @Override
+  public String toString() {
+    return "DiffFile[items:" + numItems + ", entries:" + numEntries + ']';
+  }
+
+  /**
+   * <p>
+   * Writes a {@link DiffFile} in one pass. Diffs must be added in ascending order of the lower item ID, then of
+   * the higher one, as {@link org.apache.mahout.cf.taste.hadoop.slopeone.SlopeOneAverageDiffsJob} produces them.
+   * Only the table of rows and the set of item IDs are kept in memory, so the output may be any stream.
+   * </p>
+   */
+  public static final class Writer implements Closeable {
+
+    private final DataOutputStream out;
+    private final FastIDSet allItemIDs;
+    private long[] rowIDs;
+    private long[] rowOffsets;
+    private int numRows;
+    private long numEntries;
+    private long lastItemID1;
+    private long lastItemID2;
+
+    public Writer(File diffFile) throws IOException {
+      this(new FileOutputStream(diffFile));
+    }
+
+    public Writer(OutputStream out) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+      allItemIDs = new FastIDSet();
+      rowIDs = new long[16];
+      rowOffsets = new long[16];
+      this.out.writeInt(MAGIC);
+      this.out.writeInt(VERSION);
+    }
+
+    /**
+     * @param itemID1
+     *          lower item ID of the pair
+     * @param itemID2
+     *          higher item ID of the pair
+     * @param averageDiff
+     *          average of item 2's preferences minus item 1's preferences
+     * @param count
+     *          number of diffs averaged
+     * @throws IllegalArgumentException
+     *           if <code>itemID1</code> is not less than <code>itemID2</code>, the pair does not follow the
+     *           previous one, or <code>count</code> is not positive
+     */
+    public void add(long itemID1, long itemID2, float averageDiff, int count) throws IOException {
+      if (itemID1 >= itemID2) {
+        throw new IllegalArgumentException("itemID1 must be less than itemID2: " + itemID1 + ", " + itemID2);
+      }
+      if (count < 1) {
+        throw new IllegalArgumentException("count must be positive");
+      }
+      boolean newRow = numEntries == 0L || itemID1 != lastItemID1;
+      if (numEntries > 0L && (itemID1 < lastItemID1 || (!newRow && itemID2 <= lastItemID2))) {
+        throw new IllegalArgumentException("Diffs not in order of item IDs: " + itemID1 + ", " + itemID2
+                                           + " after " + lastItemID1 + ", " + lastItemID2);
+      }
+      if (newRow) {
+        if (numRows == rowIDs.length) {
+          rowIDs = Arrays.copyOf(rowIDs, 2 * numRows);
+          rowOffsets = Arrays.copyOf(rowOffsets, 2 * numRows);
+        }
+        rowIDs[numRows] = itemID1;
+        rowOffsets[numRows] = numEntries;
+        numRows++;
+        allItemIDs.add(itemID1);
+      }
+      allItemIDs.add(itemID2);
+      out.writeLong(itemID2);
+      out.writeFloat(averageDiff);
+      out.writeInt(count);
+      numEntries++;
+      lastItemID1 = itemID1;
+      lastItemID2 = itemID2;
+    }
+
+    /** Writes the tables that follow the diffs, and closes the output. */
+    @Override
+    public void close() throws IOException {
+      try {
+        for (int i = 0; i < numRows; i++) {
+          out.writeLong(rowIDs[i]);
+        }
+        for (int i = 0; i < numRows; i++) {
+          out.writeLong(rowOffsets[i]);
+        }
+        out.writeLong(numEntries);
+        long[] itemIDs = allItemIDs.toArray();
+        Arrays.sort(itemIDs);
+        for (long itemID : itemIDs) {
+          out.writeLong(itemID);
+        }
+        out.writeLong(numEntries);
+        out.writeInt(numRows);
+        out.writeInt(itemIDs.length);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+      } finally {
+        out.close();
+      }
+      log.info("Wrote diffs of {} pairs of {} items", numEntries, allItemIDs.size());
+    }
+
+  }
+
+}
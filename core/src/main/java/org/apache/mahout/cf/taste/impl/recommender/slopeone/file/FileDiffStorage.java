@@ -52,6 +52,13 @@ import org.slf4j.LoggerFactory;
  * Commas or tabs can be delimiters. This is intended for use in conjuction with the output of
  * {@link org.apache.mahout.cf.taste.hadoop.slopeone.SlopeOneAverageDiffsJob}.
  * </p>
+ *
+ * <p>
+ * The file may instead be a {@link DiffFile}, as that job writes with its <code>--binaryDiffs</code> option,
+ * which is memory-mapped rather than read into memory, so <code>maxEntries</code> does not apply to it. Its
+ * diffs can't be updated, so {@link #updateItemPref(long, float, boolean)} leaves them as they are, and only
+ * logs that they no longer reflect the data until the file is rewritten.
+ * </p>
  */
 public final class FileDiffStorage implements DiffStorage {
   
@@ -67,6 +74,7 @@ public final class FileDiffStorage implements DiffStorage {
   private final FastByIDMap<FastByIDMap<RunningAverage>> averageDiffs;
   private final FastIDSet allRecommendableItemIDs;
   private final ReadWriteLock buildAverageDiffsLock;
+  private volatile DiffFile mappedDiffs;
   
   /**
    * @param dataFile
@@ -104,6 +112,15 @@ public final class FileDiffStorage implements DiffStorage {
         averageDiffs.clear();
         allRecommendableItemIDs.clear();
         
+        if (DiffFile.isDiffFile(dataFile)) {
+          DiffFile diffs = new DiffFile(dataFile);
+          allRecommendableItemIDs.addAll(diffs.getItemIDs());
+          allRecommendableItemIDs.rehash();
+          mappedDiffs = diffs;
+          return;
+        }
+        mappedDiffs = null;
+        
         FileLineIterator iterator = new FileLineIterator(dataFile, false);
         String firstLine = iterator.peek();
         while ((firstLine.length() == 0) || (firstLine.charAt(0) == COMMENT_CHAR)) {
@@ -217,6 +234,11 @@ public final class FileDiffStorage implements DiffStorage {
   public RunningAverage getDiff(long itemID1, long itemID2) {
     checkLoaded();
     
+    DiffFile diffs = mappedDiffs;
+    if (diffs != null) {
+      return diffs.getDiff(itemID1, itemID2);
+    }
+    
     boolean inverted = false;
     if (itemID1 > itemID2) {
       inverted = true;
@@ -271,6 +293,11 @@ public final class FileDiffStorage implements DiffStorage {
   @Override
   public void updateItemPref(long itemID, float prefDelta, boolean remove) {
     checkLoaded();
+    if (mappedDiffs != null) {
+      // the caller already changed its data, so failing here would only leave the two out of step
+      log.warn("Can't update the diffs of item {} in {}", itemID, dataFile);
+      return;
+    }
     try {
       buildAverageDiffsLock.readLock().lock();
       for (Map.Entry<Long,FastByIDMap<RunningAverage>> entry : averageDiffs.entrySet()) {
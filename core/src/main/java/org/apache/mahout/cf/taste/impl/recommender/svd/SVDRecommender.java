@@ -19,15 +19,19 @@ package org.apache.mahout.cf.taste.impl.recommender.svd;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
@@ -37,7 +41,7 @@ import org.apache.mahout.cf.taste.impl.common.RunningAverage;
 import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
 import org.apache.mahout.cf.taste.impl.recommender.TopItems;
 import org.apache.mahout.cf.taste.model.DataModel;
-import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
@@ -49,6 +53,19 @@ import org.slf4j.LoggerFactory;
  * <p>
  * A {@link Recommender} which uses Single Value Decomposition to find the main features of the data set.
  * Thanks to Simon Funk for the hints in the implementation.
+ * </p>
+ * 
+ * <p>
+ * Training can use several threads. Each feature is trained by all of them at once, over their own share of
+ * the preferences, updating the shared feature vectors without locking in the manner of "Hogwild!": since a
+ * preference only touches one user's and one item's vectors, threads rarely update the same values, and the
+ * occasional lost update does little harm. Features are still trained one after the other.
+ * </p>
+ * 
+ * <p>
+ * When refreshed, the recommender trains a new decomposition of the refreshed {@link DataModel} for as many
+ * steps as it was first trained for, and keeps using the old one until it is done.
+ * </p>
  */
 public final class SVDRecommender extends AbstractRecommender {
   
@@ -59,53 +76,48 @@ public final class SVDRecommender extends AbstractRecommender {
   
   /** Number of features */
   private final int numFeatures;
+  private final int initialSteps;
+  private final int numThreads;
   
-  private final FastByIDMap<Integer> userMap;
-  private final FastByIDMap<Integer> itemMap;
-  private final ExpectationMaximizationSVD emSvd;
-  private final List<Preference> cachedPreferences;
+  private volatile Factorization factorization;
   
   /**
    * @param numFeatures
    *          the number of features
    * @param initialSteps
-   *          number of initial training steps
+   *          number of initial training steps, on one thread
    */
   public SVDRecommender(DataModel dataModel, int numFeatures, int initialSteps) throws TasteException {
+    this(dataModel, numFeatures, initialSteps, 1);
+  }
+  
+  /**
+   * @param numFeatures
+   *          the number of features
+   * @param initialSteps
+   *          number of initial training steps, and of training steps after each refresh
+   * @param numThreads
+   *          number of threads to train with; with more than one, the result varies from run to run
+   */
+  public SVDRecommender(DataModel dataModel, int numFeatures, int initialSteps, int numThreads)
+    throws TasteException {
     super(dataModel);
-    
-    this.numFeatures = numFeatures;
-    
-    int numUsers = dataModel.getNumUsers();
-    userMap = new FastByIDMap<Integer>(numUsers);
-    
-    int idx = 0;
-    LongPrimitiveIterator userIterator = dataModel.getUserIDs();
-    while (userIterator.hasNext()) {
-      userMap.put(userIterator.nextLong(), idx++);
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1");
     }
     
-    int numItems = dataModel.getNumItems();
-    itemMap = new FastByIDMap<Integer>(numItems);
-    
-    idx = 0;
-    LongPrimitiveIterator itemIterator = dataModel.getItemIDs();
-    while (itemIterator.hasNext()) {
-      itemMap.put(itemIterator.nextLong(), idx++);
-    }
-    
-    double average = getAveragePreference();
-    double defaultValue = Math.sqrt((average - 1.0) / numFeatures);
+    this.numFeatures = numFeatures;
+    this.initialSteps = initialSteps;
+    this.numThreads = numThreads;
     
-    emSvd = new ExpectationMaximizationSVD(numUsers, numItems, numFeatures, defaultValue);
-    cachedPreferences = new ArrayList<Preference>(numUsers);
-    recachePreferences();
+    factorization = new Factorization(dataModel);
     
     refreshHelper = new RefreshHelper(new Callable<Object>() {
       @Override
       public Object call() throws TasteException {
-        recachePreferences();
-        // TODO: train again
+        Factorization refreshed = new Factorization(getDataModel());
+        train(refreshed, SVDRecommender.this.initialSteps);
+        factorization = refreshed;
         return null;
       }
     });
@@ -114,61 +126,30 @@ public final class SVDRecommender extends AbstractRecommender {
     train(initialSteps);
   }
   
-  private void recachePreferences() throws TasteException {
-    cachedPreferences.clear();
-    DataModel dataModel = getDataModel();
-    LongPrimitiveIterator it = dataModel.getUserIDs();
-    while (it.hasNext()) {
-      for (Preference pref : dataModel.getPreferencesFromUser(it.nextLong())) {
-        cachedPreferences.add(pref);
-      }
-    }
+  public void train(int steps) {
+    train(factorization, steps);
   }
   
-  private double getAveragePreference() throws TasteException {
-    RunningAverage average = new FullRunningAverage();
-    DataModel dataModel = getDataModel();
-    LongPrimitiveIterator it = dataModel.getUserIDs();
-    while (it.hasNext()) {
-      for (Preference pref : dataModel.getPreferencesFromUser(it.nextLong())) {
-        average.addDatum(pref.getValue());
+  private void train(Factorization training, int steps) {
+    if (numThreads == 1 || steps == 0) {
+      for (int i = 0; i < steps; i++) {
+        training.nextTrainStep(null);
       }
+      return;
     }
-    return average.getAverage();
-  }
-  
-  public void train(int steps) {
-    for (int i = 0; i < steps; i++) {
-      nextTrainStep();
-    }
-  }
-  
-  private void nextTrainStep() {
-    Collections.shuffle(cachedPreferences, random);
-    for (int i = 0; i < numFeatures; i++) {
-      for (Preference pref : cachedPreferences) {
-        int useridx = userMap.get(pref.getUserID());
-        int itemidx = itemMap.get(pref.getItemID());
-        emSvd.train(useridx, itemidx, i, pref.getValue());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int i = 0; i < steps; i++) {
+        training.nextTrainStep(executor);
       }
+    } finally {
+      executor.shutdown();
     }
   }
   
-  private float predictRating(int user, int item) {
-    return (float) emSvd.getDotProduct(user, item);
-  }
-  
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException {
-    Integer useridx = userMap.get(userID);
-    if (useridx == null) {
-      throw new NoSuchUserException();
-    }
-    Integer itemidx = itemMap.get(itemID);
-    if (itemidx == null) {
-      throw new NoSuchItemException();
-    }
-    return predictRating(useridx, itemidx);
+    return factorization.estimatePreference(userID, itemID);
   }
   
   @Override
@@ -190,6 +171,19 @@ public final class SVDRecommender extends AbstractRecommender {
     return topItems;
   }
   
+  /** Shares the items co-rated with each item between the users of the batch. */
+  @Override
+  protected Batch newBatch(long[] userIDs) {
+    final Cache<Long,FastIDSet> coRatedItems = newCoRatedItemsCache();
+    return new Batch() {
+      @Override
+      public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+        FastIDSet possibleItemIDs = getAllOtherItems(userID, coRatedItems);
+        return TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer, new Estimator(userID));
+      }
+    };
+  }
+  
   @Override
   public void refresh(Collection<Refreshable> alreadyRefreshed) {
     refreshHelper.refresh(alreadyRefreshed);
@@ -214,4 +208,157 @@ public final class SVDRecommender extends AbstractRecommender {
     }
   }
   
+  /**
+   * A decomposition of the data model, with the preferences it is trained on. These are packed once into
+   * parallel arrays of user and item indices and values, so that training steps neither look up IDs nor touch
+   * objects.
+   */
+  private final class Factorization {
+    
+    private final FastByIDMap<Integer> userMap;
+    private final FastByIDMap<Integer> itemMap;
+    private final ExpectationMaximizationSVD emSvd;
+    private final int[] userIndices;
+    private final int[] itemIndices;
+    private final float[] values;
+    
+    private Factorization(DataModel dataModel) throws TasteException {
+      int numUsers = dataModel.getNumUsers();
+      userMap = new FastByIDMap<Integer>(numUsers);
+      
+      int idx = 0;
+      LongPrimitiveIterator userIterator = dataModel.getUserIDs();
+      while (userIterator.hasNext()) {
+        userMap.put(userIterator.nextLong(), idx++);
+      }
+      
+      int numItems = dataModel.getNumItems();
+      itemMap = new FastByIDMap<Integer>(numItems);
+      
+      idx = 0;
+      LongPrimitiveIterator itemIterator = dataModel.getItemIDs();
+      while (itemIterator.hasNext()) {
+        itemMap.put(itemIterator.nextLong(), idx++);
+      }
+      
+      int numPrefs = 0;
+      LongPrimitiveIterator it = dataModel.getUserIDs();
+      while (it.hasNext()) {
+        numPrefs += dataModel.getPreferencesFromUser(it.nextLong()).length();
+      }
+      userIndices = new int[numPrefs];
+      itemIndices = new int[numPrefs];
+      values = new float[numPrefs];
+      
+      RunningAverage average = new FullRunningAverage();
+      int p = 0;
+      it = dataModel.getUserIDs();
+      while (it.hasNext()) {
+        long userID = it.nextLong();
+        int useridx = userMap.get(userID);
+        PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+        int size = prefs.length();
+        for (int i = 0; i < size; i++) {
+          userIndices[p] = useridx;
+          itemIndices[p] = itemMap.get(prefs.getItemID(i));
+          values[p] = prefs.getValue(i);
+          average.addDatum(values[p]);
+          p++;
+        }
+      }
+      
+      double defaultValue = Math.sqrt((average.getAverage() - 1.0) / numFeatures);
+      emSvd = new ExpectationMaximizationSVD(numUsers, numItems, numFeatures, defaultValue);
+    }
+    
+    /** Shuffles the preferences in place, swapping the indices and value of each together. */
+    private void shuffle() {
+      for (int p = values.length - 1; p > 0; p--) {
+        int q = random.nextInt(p + 1);
+        int useridx = userIndices[p];
+        userIndices[p] = userIndices[q];
+        userIndices[q] = useridx;
+        int itemidx = itemIndices[p];
+        itemIndices[p] = itemIndices[q];
+        itemIndices[q] = itemidx;
+        float value = values[p];
+        values[p] = values[q];
+        values[q] = value;
+      }
+    }
+    
+    /** Trains every feature over all preferences, splitting them between the executor's threads if any. */
+    private void nextTrainStep(ExecutorService executor) {
+      shuffle();
+      int numPrefs = values.length;
+      for (int i = 0; i < numFeatures; i++) {
+        if (executor == null) {
+          trainFeature(i, 0, numPrefs);
+          continue;
+        }
+        List<Callable<Object>> slices = new ArrayList<Callable<Object>>(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+          // in long, as numPrefs times numThreads may not fit in an int
+          int start = (int) ((long) t * numPrefs / numThreads);
+          int end = (int) ((long) (t + 1) * numPrefs / numThreads);
+          slices.add(new FeatureSlice(this, i, start, end));
+        }
+        try {
+          // also the barrier between features
+          for (Future<Object> future : executor.invokeAll(slices)) {
+            future.get();
+          }
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(ie);
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+    }
+    
+    private void trainFeature(int feature, int from, int to) {
+      for (int p = from; p < to; p++) {
+        emSvd.train(userIndices[p], itemIndices[p], feature, values[p]);
+      }
+    }
+    
+    private float estimatePreference(long userID, long itemID) throws TasteException {
+      Integer useridx = userMap.get(userID);
+      if (useridx == null) {
+        throw new NoSuchUserException();
+      }
+      Integer itemidx = itemMap.get(itemID);
+      if (itemidx == null) {
+        throw new NoSuchItemException();
+      }
+      return (float) emSvd.getDotProduct(useridx, itemidx);
+    }
+  }
+  
+  private static final class FeatureSlice implements Callable<Object> {
+    
+    private final Factorization factorization;
+    private final int feature;
+    private final int from;
+    private final int to;
+    
+    private FeatureSlice(Factorization factorization, int feature, int from, int to) {
+      this.factorization = factorization;
+      this.feature = feature;
+      this.from = from;
+      this.to = to;
+    }
+    
+    @Override
+    public Object call() {
+      factorization.trainFeature(feature, from, to);
+      return null;
+    }
+  }
+  
 }
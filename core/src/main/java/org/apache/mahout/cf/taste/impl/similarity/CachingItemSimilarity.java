@@ -18,45 +18,74 @@
 package org.apache.mahout.cf.taste.impl.similarity;
 
 import java.util.Collection;
+import java.util.concurrent.Callable;
 
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.Cache;
+import org.apache.mahout.cf.taste.impl.common.LongPairCache;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
-import org.apache.mahout.cf.taste.impl.common.Retriever;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
-import org.apache.mahout.common.LongPair;
 
 /** Caches the results from an underlying {@link ItemSimilarity} implementation. */
 public final class CachingItemSimilarity implements ItemSimilarity {
   
   private final ItemSimilarity similarity;
-  private final Cache<LongPair,Double> similarityCache;
+  private final LongPairCache similarityCache;
   
   public CachingItemSimilarity(ItemSimilarity similarity, DataModel dataModel) throws TasteException {
+    this(similarity, dataModel.getNumItems()); // just a dumb heuristic for sizing
+  }
+  
+  /**
+   * @param similarity
+   *          similarity to cache
+   * @param maxCacheSize
+   *          maximum number of similarities to keep
+   */
+  public CachingItemSimilarity(ItemSimilarity similarity, int maxCacheSize) {
     if (similarity == null) {
       throw new IllegalArgumentException("similarity is null");
     }
     this.similarity = similarity;
-    int maxCacheSize = dataModel.getNumItems(); // just a dumb heuristic for sizing
-    this.similarityCache = new Cache<LongPair,Double>(new SimilarityRetriever(similarity), maxCacheSize);
+    this.similarityCache = new LongPairCache(new SimilarityRetriever(similarity), maxCacheSize);
   }
   
   @Override
   public double itemSimilarity(long itemID1, long itemID2) throws TasteException {
-    LongPair key = itemID1 < itemID2 ? new LongPair(itemID1, itemID2) : new LongPair(itemID2, itemID1);
-    return similarityCache.get(key);
+    return itemID1 < itemID2 ? similarityCache.get(itemID1, itemID2) : similarityCache.get(itemID2, itemID1);
   }
   
   @Override
   public void refresh(Collection<Refreshable> alreadyRefreshed) {
-    similarityCache.clear();
+    boolean staged = RefreshHelper.isRefreshingStaged();
+    if (!staged) {
+      similarityCache.clear();
+    }
     alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
     RefreshHelper.maybeRefresh(alreadyRefreshed, similarity);
+    if (staged) {
+      // the data is reloading in the background: once it is published, recompute the cached similarities
+      // rather than dropping them all at once
+      RefreshHelper.runWhenPublished(new Callable<Object>() {
+        @Override
+        public Object call() throws TasteException {
+          boolean rebuilt = false;
+          try {
+            similarityCache.rebuild();
+            rebuilt = true;
+          } finally {
+            if (!rebuilt) {
+              similarityCache.clear();
+            }
+          }
+          return null;
+        }
+      });
+    }
   }
   
-  private static final class SimilarityRetriever implements Retriever<LongPair,Double> {
+  private static final class SimilarityRetriever implements LongPairCache.ValueRetriever {
     private final ItemSimilarity similarity;
     
     private SimilarityRetriever(ItemSimilarity similarity) {
@@ -64,8 +93,8 @@ public final class CachingItemSimilarity implements ItemSimilarity {
     }
     
     @Override
-    public Double get(LongPair key) throws TasteException {
-      return similarity.itemSimilarity(key.getFirst(), key.getSecond());
+    public double get(long itemID1, long itemID2) throws TasteException {
+      return similarity.itemSimilarity(itemID1, itemID2);
     }
   }
   
@@ -18,16 +18,15 @@
 package org.apache.mahout.cf.taste.impl.similarity;
 
 import java.util.Collection;
+import java.util.concurrent.Callable;
 
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.Cache;
+import org.apache.mahout.cf.taste.impl.common.LongPairCache;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
-import org.apache.mahout.cf.taste.impl.common.Retriever;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
-import org.apache.mahout.common.LongPair;
 
 /**
  * Caches the results from an underlying {@link org.apache.mahout.cf.taste.similarity.UserSimilarity}
@@ -36,7 +35,7 @@ import org.apache.mahout.common.LongPair;
 public final class CachingUserSimilarity implements UserSimilarity {
   
   private final UserSimilarity similarity;
-  private final Cache<LongPair,Double> similarityCache;
+  private final LongPairCache similarityCache;
   
   public CachingUserSimilarity(UserSimilarity similarity, DataModel dataModel) throws TasteException {
     if (similarity == null) {
@@ -44,13 +43,12 @@ public final class CachingUserSimilarity implements UserSimilarity {
     }
     this.similarity = similarity;
     int maxCacheSize = dataModel.getNumUsers(); // just a dumb heuristic for sizing
-    this.similarityCache = new Cache<LongPair,Double>(new SimilarityRetriever(similarity), maxCacheSize);
+    this.similarityCache = new LongPairCache(new SimilarityRetriever(similarity), maxCacheSize);
   }
   
   @Override
   public double userSimilarity(long userID1, long userID2) throws TasteException {
-    LongPair key = userID1 < userID2 ? new LongPair(userID1, userID2) : new LongPair(userID2, userID1);
-    return similarityCache.get(key);
+    return userID1 < userID2 ? similarityCache.get(userID1, userID2) : similarityCache.get(userID2, userID1);
   }
   
   @Override
@@ -61,12 +59,34 @@ public final class CachingUserSimilarity implements UserSimilarity {
   
   @Override
   public void refresh(Collection<Refreshable> alreadyRefreshed) {
-    similarityCache.clear();
+    boolean staged = RefreshHelper.isRefreshingStaged();
+    if (!staged) {
+      similarityCache.clear();
+    }
     alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
     RefreshHelper.maybeRefresh(alreadyRefreshed, similarity);
+    if (staged) {
+      // the data is reloading in the background: once it is published, recompute the cached similarities
+      // rather than dropping them all at once
+      RefreshHelper.runWhenPublished(new Callable<Object>() {
+        @Override
+        public Object call() throws TasteException {
+          boolean rebuilt = false;
+          try {
+            similarityCache.rebuild();
+            rebuilt = true;
+          } finally {
+            if (!rebuilt) {
+              similarityCache.clear();
+            }
+          }
+          return null;
+        }
+      });
+    }
   }
   
-  private static final class SimilarityRetriever implements Retriever<LongPair,Double> {
+  private static final class SimilarityRetriever implements LongPairCache.ValueRetriever {
     private final UserSimilarity similarity;
     
     private SimilarityRetriever(UserSimilarity similarity) {
@@ -74,8 +94,8 @@ public final class CachingUserSimilarity implements UserSimilarity {
     }
     
     @Override
-    public Double get(LongPair key) throws TasteException {
-      return similarity.userSimilarity(key.getFirst(), key.getSecond());
+    public double get(long userID1, long userID2) throws TasteException {
+      return similarity.userSimilarity(userID1, userID2);
     }
   }
   
@@ -44,10 +44,16 @@ import org.apache.mahout.common.iterator.IteratorUtils;
  * of item-based recommenders is that they can take advantage of the fact that item similarity is relatively
  * static, can be precomputed, and then used in computation to gain a significant performance advantage.
  * </p>
+ * 
+ * <p>
+ * Many millions of similarities are better held in an {@link ItemSimilarityIndex}, which takes a fraction of the
+ * memory, can be mapped from a file, and is used by {@link #GenericItemSimilarity(ItemSimilarityIndex)}.
+ * </p>
  */
 public final class GenericItemSimilarity implements ItemSimilarity {
   
   private final FastByIDMap<FastByIDMap<Double>> similarityMaps = new FastByIDMap<FastByIDMap<Double>>();
+  private final ItemSimilarityIndex index;
   
   /**
    * <p>
@@ -66,6 +72,7 @@ public final class GenericItemSimilarity implements ItemSimilarity {
    */
   public GenericItemSimilarity(Iterable<ItemItemSimilarity> similarities) {
     initSimilarityMaps(similarities);
+    index = null;
   }
   
   /**
@@ -88,6 +95,7 @@ public final class GenericItemSimilarity implements ItemSimilarity {
     Iterable<ItemItemSimilarity> keptSimilarities = TopItems.getTopItemItemSimilarities(maxToKeep,
       similarities);
     initSimilarityMaps(keptSimilarities);
+    index = null;
   }
   
   /**
@@ -114,6 +122,7 @@ public final class GenericItemSimilarity implements ItemSimilarity {
     long[] itemIDs = IteratorUtils.longIteratorToList(dataModel.getItemIDs());
     Iterator<ItemItemSimilarity> it = new DataModelSimilaritiesIterator(otherSimilarity, itemIDs);
     initSimilarityMaps(new IteratorIterable<ItemItemSimilarity>(it));
+    index = null;
   }
   
   /**
@@ -143,6 +152,28 @@ public final class GenericItemSimilarity implements ItemSimilarity {
     Iterable<ItemItemSimilarity> keptSimilarities = TopItems.getTopItemItemSimilarities(maxToKeep,
       new IteratorIterable<ItemItemSimilarity>(it));
     initSimilarityMaps(keptSimilarities);
+    index = null;
+  }
+  
+  /**
+   * <p>
+   * Creates an instance which serves the similarities held by an {@link ItemSimilarityIndex}. Note
+   * that the index stores similarities as floats.
+   * </p>
+   * 
+   * @param index
+   *          index of precomputed similarities
+   */
+  public GenericItemSimilarity(ItemSimilarityIndex index) {
+    if (index == null) {
+      throw new IllegalArgumentException("index is null");
+    }
+    this.index = index;
+  }
+  
+  /** @return the index this serves similarities from, or null if it holds them itself */
+  public ItemSimilarityIndex getIndex() {
+    return index;
   }
   
   private void initSimilarityMaps(Iterable<ItemItemSimilarity> similarities) {
@@ -187,6 +218,9 @@ public final class GenericItemSimilarity implements ItemSimilarity {
    */
   @Override
   public double itemSimilarity(long itemID1, long itemID2) {
+    if (index != null) {
+      return index.similarity(itemID1, itemID2);
+    }
     if (itemID1 == itemID2) {
       return 1.0;
     }
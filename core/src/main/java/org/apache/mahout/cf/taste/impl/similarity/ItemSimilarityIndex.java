@@ -0,0 +1,528 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.common.FileLineIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A compact, read-only store of precomputed item-item similarities, laid out as a compressed sparse row
+ * matrix. Items get dense indices in order of their IDs; each item's row lists the indices of its similar items
+ * and the similarities, as floats, sorted from most to least similar, and the rows are concatenated into one
+ * <code>int</code> and one <code>float</code> array. A third array orders each row by neighbor index, so that
+ * the similarity of two items is found by binary search.
+ * </p>
+ *
+ * <p>
+ * Each similarity is stored in the rows of both items. That still takes about 12 bytes, rather than some 100
+ * for nested maps of boxed values, and lets {@link #getMostSimilarItemIDs(long, int)} and
+ * {@link #getNeighbors(long, long[], float[])} read an item's most similar items straight from its row. An
+ * index built with a maximum number of neighbors keeps only that many in each row, and the similarity of two
+ * items is then known if either kept the other.
+ * </p>
+ *
+ * <p>
+ * An index is built from {@link GenericItemSimilarity.ItemItemSimilarity}s, for example those kept by
+ * {@link org.apache.mahout.cf.taste.impl.recommender.TopItems#getTopItemItemSimilarities(int, Iterable)}, or
+ * read by {@link #readSimilarities(File, int)} from the output of
+ * {@link org.apache.mahout.cf.taste.hadoop.similarity.item.ItemSimilarityJob}. It can be saved with
+ * {@link #write(File)} and memory-mapped again by {@link #ItemSimilarityIndex(File)}, which is nearly
+ * instantaneous however large the file. {@link GenericItemSimilarity#GenericItemSimilarity(ItemSimilarityIndex)}
+ * serves similarities from an index.
+ * </p>
+ */
+public final class ItemSimilarityIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(ItemSimilarityIndex.class);
+
+  /** Keeps all the similarities of each item */
+  public static final int NO_MAX_NEIGHBORS = Integer.MAX_VALUE;
+  /** Largest number of stored similarities, counting each pair twice, so that a column fits one mapped buffer */
+  public static final int MAX_ENTRIES = Integer.MAX_VALUE / 4;
+
+  private static final int MAGIC = 0x5453494d; // "TSIM"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final Pattern SEPARATOR = Pattern.compile("[\t,]");
+
+  private final int numItems;
+  private final int numEntries;
+  private final LongBuffer itemIDs;
+  private final IntBuffer offsets;
+  private final IntBuffer neighbors;
+  private final FloatBuffer similarities;
+  private final IntBuffer byNeighbor;
+
+  /**
+   * Builds an index of all the given similarities. As with
+   * {@link GenericItemSimilarity#GenericItemSimilarity(Iterable)}, similarities of an item with itself are
+   * ignored, and when a pair is given twice, in either order, the later value wins.
+   *
+   * @param similarities
+   *          similarities to index
+   */
+  public ItemSimilarityIndex(Iterable<GenericItemSimilarity.ItemItemSimilarity> similarities) {
+    this(similarities, NO_MAX_NEIGHBORS);
+  }
+
+  /**
+   * Like {@link #ItemSimilarityIndex(Iterable)}, but keeps only the given number of most similar items of each
+   * item.
+   *
+   * @param similarities
+   *          similarities to index
+   * @param maxNeighbors
+   *          maximum number of similar items to keep per item
+   */
+  public ItemSimilarityIndex(Iterable<GenericItemSimilarity.ItemItemSimilarity> similarities, int maxNeighbors) {
+    this(collect(similarities), maxNeighbors);
+  }
+
+  private static Builder collect(Iterable<GenericItemSimilarity.ItemItemSimilarity> similarities) {
+    Builder builder = new Builder();
+    for (GenericItemSimilarity.ItemItemSimilarity similarity : similarities) {
+      builder.add(similarity.getItemID1(), similarity.getItemID2(), similarity.getValue());
+    }
+    return builder;
+  }
+
+  private ItemSimilarityIndex(Builder builder, int maxNeighbors) {
+    if (maxNeighbors < 1) {
+      throw new IllegalArgumentException("maxNeighbors must be at least 1");
+    }
+    int numPairs = builder.size;
+    long[] ids1 = builder.itemIDs1;
+    long[] ids2 = builder.itemIDs2;
+    float[] values = builder.values;
+
+    FastIDSet allIDs = new FastIDSet();
+    for (int k = 0; k < numPairs; k++) {
+      allIDs.add(ids1[k]);
+      allIDs.add(ids2[k]);
+    }
+    long[] sortedIDs = allIDs.toArray();
+    Arrays.sort(sortedIDs);
+    numItems = sortedIDs.length;
+
+    // each pair goes into both rows, as the neighbor's index in the high bits and the pair's number in the low
+    int[] rowStarts = new int[numItems + 1];
+    for (int k = 0; k < numPairs; k++) {
+      rowStarts[Arrays.binarySearch(sortedIDs, ids1[k]) + 1]++;
+      rowStarts[Arrays.binarySearch(sortedIDs, ids2[k]) + 1]++;
+    }
+    for (int i = 0; i < numItems; i++) {
+      rowStarts[i + 1] += rowStarts[i];
+    }
+    int[] fill = new int[numItems];
+    System.arraycopy(rowStarts, 0, fill, 0, numItems);
+    long[] entries = new long[2 * numPairs];
+    for (int k = 0; k < numPairs; k++) {
+      int index1 = Arrays.binarySearch(sortedIDs, ids1[k]);
+      int index2 = Arrays.binarySearch(sortedIDs, ids2[k]);
+      entries[fill[index1]++] = ((long) index2 << 32) | k;
+      entries[fill[index2]++] = ((long) index1 << 32) | k;
+    }
+
+    int[] rowOffsets = new int[numItems + 1];
+    int[] rowNeighbors = new int[entries.length];
+    float[] rowSimilarities = new float[entries.length];
+    int[] rowByNeighbor = new int[entries.length];
+    long[] scratch = new long[16];
+    int count = 0;
+    for (int i = 0; i < numItems; i++) {
+      int start = rowStarts[i];
+      int end = rowStarts[i + 1];
+      // by neighbor, then pair number; the last of a run of equal neighbors is the latest value
+      Arrays.sort(entries, start, end);
+      if (scratch.length < end - start) {
+        scratch = new long[end - start];
+      }
+      int length = 0;
+      for (int e = start; e < end; e++) {
+        int neighbor = (int) (entries[e] >>> 32);
+        if (e + 1 < end && (int) (entries[e + 1] >>> 32) == neighbor) {
+          continue;
+        }
+        float value = values[(int) entries[e]];
+        scratch[length++] = ((long) ~sortableBits(value) << 32) | neighbor;
+      }
+      // most similar first, ties by neighbor index
+      Arrays.sort(scratch, 0, length);
+      length = Math.min(length, maxNeighbors);
+      rowOffsets[i] = count;
+      for (int j = 0; j < length; j++) {
+        int neighbor = (int) scratch[j];
+        rowNeighbors[count + j] = neighbor;
+        rowSimilarities[count + j] = fromSortableBits(~(int) (scratch[j] >> 32));
+        scratch[j] = ((long) neighbor << 32) | j;
+      }
+      Arrays.sort(scratch, 0, length);
+      for (int j = 0; j < length; j++) {
+        rowByNeighbor[count + j] = count + (int) scratch[j];
+      }
+      count += length;
+    }
+    rowOffsets[numItems] = count;
+
+    numEntries = count;
+    itemIDs = LongBuffer.wrap(sortedIDs);
+    offsets = IntBuffer.wrap(rowOffsets);
+    neighbors = IntBuffer.wrap(count == entries.length ? rowNeighbors : Arrays.copyOf(rowNeighbors, count));
+    similarities =
+        FloatBuffer.wrap(count == entries.length ? rowSimilarities : Arrays.copyOf(rowSimilarities, count));
+    byNeighbor = IntBuffer.wrap(count == entries.length ? rowByNeighbor : Arrays.copyOf(rowByNeighbor, count));
+    log.info("Indexed {} similarities of {} items", numEntries, numItems);
+  }
+
+  /**
+   * Maps an index written by {@link #write(File)}.
+   *
+   * @param indexFile
+   *          file written by {@link #write(File)}
+   * @throws IOException
+   *           if the file can't be mapped or is not a similarity index
+   */
+  public ItemSimilarityIndex(File indexFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Not a similarity index: " + indexFile);
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a similarity index: " + indexFile);
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported similarity index version " + version + ": " + indexFile);
+      }
+      numItems = header.getInt();
+      numEntries = header.getInt();
+      if (channel.size() != fileSize(numItems, numEntries)) {
+        throw new IOException("Truncated similarity index: " + indexFile);
+      }
+      long position = HEADER_SIZE;
+      itemIDs = map(channel, position, 8L * numItems).asLongBuffer();
+      position += 8L * numItems;
+      offsets = map(channel, position, 4L * (numItems + 1)).asIntBuffer();
+      position += pad(4L * (numItems + 1));
+      neighbors = map(channel, position, 4L * numEntries).asIntBuffer();
+      position += pad(4L * numEntries);
+      similarities = map(channel, position, 4L * numEntries).asFloatBuffer();
+      position += pad(4L * numEntries);
+      byNeighbor = map(channel, position, 4L * numEntries).asIntBuffer();
+    } finally {
+      // mappings stay valid after the file is closed
+      file.close();
+    }
+    log.info("Mapped similarity index {} of {} items", indexFile, numItems);
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  private static long fileSize(int numItems, int numEntries) {
+    return HEADER_SIZE + 8L * numItems + pad(4L * (numItems + 1)) + 3 * pad(4L * numEntries);
+  }
+
+  /** Rounds a section size up to a multiple of 8 bytes, so that every long column is aligned */
+  private static long pad(long size) {
+    return (size + 7L) & ~7L;
+  }
+
+  /** Maps a float's bits to an int which orders like the float */
+  private static int sortableBits(float value) {
+    int bits = Float.floatToIntBits(value);
+    return bits ^ ((bits >> 31) & 0x7fffffff);
+  }
+
+  private static float fromSortableBits(int sortable) {
+    return Float.intBitsToFloat(sortable ^ ((sortable >> 31) & 0x7fffffff));
+  }
+
+  /**
+   * <p>
+   * Reads similarities from text files of lines <code>itemID1,itemID2,similarity</code>, with fields
+   * separated by commas or tabs, as written by
+   * {@link org.apache.mahout.cf.taste.hadoop.similarity.item.ItemSimilarityJob}. Given a directory, it reads
+   * all files in it but those whose names start with "_" or ".", like the "part-*" files of a job's output.
+   * Similarities are parsed straight into primitive arrays, never into objects.
+   * </p>
+   *
+   * @param fileOrDirectory
+   *          file, or directory of files, to read
+   * @param maxNeighbors
+   *          maximum number of similar items to keep per item, or {@link #NO_MAX_NEIGHBORS}
+   * @throws IOException
+   *           if a file can't be read
+   */
+  public static ItemSimilarityIndex readSimilarities(File fileOrDirectory, int maxNeighbors) throws IOException {
+    File[] files;
+    if (fileOrDirectory.isDirectory()) {
+      files = fileOrDirectory.listFiles();
+      Arrays.sort(files);
+    } else {
+      files = new File[] {fileOrDirectory};
+    }
+    Builder builder = new Builder();
+    for (File file : files) {
+      String name = file.getName();
+      if (file.isDirectory() || name.startsWith("_") || name.startsWith(".")) {
+        continue;
+      }
+      FileLineIterator lines = new FileLineIterator(file);
+      try {
+        while (lines.hasNext()) {
+          String line = lines.next();
+          if (line.length() == 0 || line.charAt(0) == '#') {
+            continue;
+          }
+          String[] tokens = SEPARATOR.split(line);
+          if (tokens.length != 3) {
+            throw new IllegalArgumentException("Bad similarity line in " + file + ": " + line);
+          }
+          builder.add(Long.parseLong(tokens[0]), Long.parseLong(tokens[1]), Double.parseDouble(tokens[2]));
+        }
+      } finally {
+        lines.close();
+      }
+    }
+    return new ItemSimilarityIndex(builder, maxNeighbors);
+  }
+
+  /**
+   * Writes this index to a file, which {@link #ItemSimilarityIndex(File)} can map.
+   *
+   * @param indexFile
+   *          file to write
+   * @throws IOException
+   *           if the file can't be written
+   */
+  public void write(File indexFile) throws IOException {
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numItems);
+      out.writeInt(numEntries);
+      for (int i = 0; i < numItems; i++) {
+        out.writeLong(itemIDs.get(i));
+      }
+      for (int i = 0; i <= numItems; i++) {
+        out.writeInt(offsets.get(i));
+      }
+      writePadding(out, 4L * (numItems + 1));
+      for (int e = 0; e < numEntries; e++) {
+        out.writeInt(neighbors.get(e));
+      }
+      writePadding(out, 4L * numEntries);
+      for (int e = 0; e < numEntries; e++) {
+        out.writeFloat(similarities.get(e));
+      }
+      writePadding(out, 4L * numEntries);
+      for (int e = 0; e < numEntries; e++) {
+        out.writeInt(byNeighbor.get(e));
+      }
+      writePadding(out, 4L * numEntries);
+    } finally {
+      out.close();
+    }
+    log.info("Wrote similarity index {} of {} items", indexFile, numItems);
+  }
+
+  private static void writePadding(DataOutputStream out, long size) throws IOException {
+    for (long i = size; i < pad(size); i++) {
+      out.writeByte(0);
+    }
+  }
+
+  public int getNumItems() {
+    return numItems;
+  }
+
+  /** @return number of similarities stored, counting each once per row it is in */
+  public int getNumEntries() {
+    return numEntries;
+  }
+
+  /**
+   * @return similarity of the two items, 1.0 for an item and itself, or {@link Double#NaN} if the index has
+   *         none
+   */
+  public double similarity(long itemID1, long itemID2) {
+    if (itemID1 == itemID2) {
+      return 1.0;
+    }
+    int index1 = indexOf(itemID1);
+    if (index1 < 0) {
+      return Double.NaN;
+    }
+    int index2 = indexOf(itemID2);
+    if (index2 < 0) {
+      return Double.NaN;
+    }
+    int position = find(index1, index2);
+    if (position < 0) {
+      position = find(index2, index1);
+      if (position < 0) {
+        return Double.NaN;
+      }
+    }
+    return similarities.get(position);
+  }
+
+  /** @return number of similar items stored for the item */
+  public int getNumNeighbors(long itemID) {
+    int index = indexOf(itemID);
+    return index < 0 ? 0 : offsets.get(index + 1) - offsets.get(index);
+  }
+
+  /**
+   * Copies the most similar items of an item, most similar first, into the given arrays, as many as fit.
+   *
+   * @param itemID
+   *          item whose similar items are wanted
+   * @param neighborIDs
+   *          receives the IDs of the similar items
+   * @param neighborSimilarities
+   *          receives their similarities, at the same positions; at least as long as neighborIDs
+   * @return number of similar items copied
+   */
+  public int getNeighbors(long itemID, long[] neighborIDs, float[] neighborSimilarities) {
+    int index = indexOf(itemID);
+    if (index < 0) {
+      return 0;
+    }
+    int start = offsets.get(index);
+    int length = Math.min(offsets.get(index + 1) - start, neighborIDs.length);
+    for (int j = 0; j < length; j++) {
+      neighborIDs[j] = itemIDs.get(neighbors.get(start + j));
+      neighborSimilarities[j] = similarities.get(start + j);
+    }
+    return length;
+  }
+
+  /**
+   * @return IDs of up to howMany most similar items of the item, most similar first
+   */
+  public long[] getMostSimilarItemIDs(long itemID, int howMany) {
+    int index = indexOf(itemID);
+    if (index < 0) {
+      return new long[0];
+    }
+    int start = offsets.get(index);
+    long[] result = new long[Math.min(offsets.get(index + 1) - start, howMany)];
+    for (int j = 0; j < result.length; j++) {
+      result[j] = itemIDs.get(neighbors.get(start + j));
+    }
+    return result;
+  }
+
+  /** @return dense index of the item, or a negative number if it has no similarities */
+  private int indexOf(long itemID) {
+    int low = 0;
+    int high = numItems - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midID = itemIDs.get(mid);
+      if (midID < itemID) {
+        low = mid + 1;
+      } else if (midID > itemID) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** @return position of the neighbor in the item's row, or -1 if it is not there */
+  private int find(int index, int neighbor) {
+    int low = offsets.get(index);
+    int high = offsets.get(index + 1) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int position = byNeighbor.get(mid);
+      int midNeighbor = neighbors.get(position);
+      if (midNeighbor < neighbor) {
+        low = mid + 1;
+      } else if (midNeighbor > neighbor) {
+        high = mid - 1;
+      } else {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public String toString() {
+    return "ItemSimilarityIndex[items:" + numItems + ", entries:" + numEntries + ']';
+  }
+
+  /** Collects similarities into growing primitive arrays. */
+  private static final class Builder {
+
+    private long[] itemIDs1 = new long[16];
+    private long[] itemIDs2 = new long[16];
+    private float[] values = new float[16];
+    private int size;
+
+    void add(long itemID1, long itemID2, double value) {
+      if (itemID1 == itemID2) {
+        // similarity between item and itself already assumed to be 1.0
+        return;
+      }
+      if (size == itemIDs1.length) {
+        if (size >= MAX_ENTRIES / 2) {
+          throw new IllegalArgumentException("Too many similarities for one index");
+        }
+        int newLength = Math.min(2 * size, MAX_ENTRIES / 2);
+        itemIDs1 = Arrays.copyOf(itemIDs1, newLength);
+        itemIDs2 = Arrays.copyOf(itemIDs2, newLength);
+        values = Arrays.copyOf(values, newLength);
+      }
+      itemIDs1[size] = itemID1;
+      itemIDs2[size] = itemID2;
+      values[size] = (float) value;
+      size++;
+    }
+
+  }
+
+}
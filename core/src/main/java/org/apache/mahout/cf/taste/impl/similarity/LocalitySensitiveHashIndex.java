@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.common.RandomUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A locality-sensitive hash index of the users, or the items, of a {@link DataModel}, which finds the
+ * candidate neighbors of one without comparing it with all others. Each user is hashed from the set or vector
+ * of its item preferences, and each item from those of its users, into one bucket in each of a number of
+ * bands; the candidates of a user or item are the others sharing at least one of its buckets.
+ * </p>
+ *
+ * <p>
+ * {@link HashFamily#MIN_HASH} suits the {@link TanimotoCoefficientSimilarity} of boolean data, as in a
+ * {@link org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel}: the minimum hash of two sets
+ * agrees with probability equal to their Tanimoto coefficient. {@link HashFamily#RANDOM_HYPERPLANE} suits the
+ * cosine of preference vectors, missing preferences counting as 0: the sides two vectors fall on of a random
+ * hyperplane agree with probability 1 - angle / pi. (Note that {@link UncenteredCosineSimilarity} only counts
+ * co-rated items.) Hyperplanes are drawn from +1 and -1 weights derived from a hash of each ID, so that no
+ * projection matrix is stored.
+ * </p>
+ *
+ * <p>
+ * Each band combines <code>rowsPerBand</code> hashes. Two users or items whose per-hash agreement
+ * probability is s become candidates with probability 1 - (1 - s<sup>rowsPerBand</sup>)<sup>numBands</sup>,
+ * so more bands raise recall, and more rows per band cut the number of candidates, and so latency. The index
+ * is built once and rebuilt when refreshed after its {@link DataModel}. Candidates are always hashed from the
+ * model's current preferences, so users or items added since the index was built can be looked up, but are
+ * not themselves found.
+ * </p>
+ */
+public final class LocalitySensitiveHashIndex implements Refreshable {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalitySensitiveHashIndex.class);
+
+  /** Kinds of locality-sensitive hash */
+  public enum HashFamily {
+    /** Approximates Tanimoto coefficients of sets */
+    MIN_HASH,
+    /** Approximates cosines of preference vectors */
+    RANDOM_HYPERPLANE
+  }
+
+  private final DataModel dataModel;
+  private final boolean indexUsers;
+  private final HashFamily hashFamily;
+  private final int numBands;
+  private final int rowsPerBand;
+  private final long[] seeds;
+  private final RefreshHelper refreshHelper;
+  private volatile Buckets buckets;
+
+  /**
+   * @param dataModel
+   *          data model to index
+   * @param indexUsers
+   *          whether to index users by their items, rather than items by their users
+   * @param hashFamily
+   *          kind of hash, depending on the similarity candidates are for
+   * @param numBands
+   *          number of bands; more bands find more candidates
+   * @param rowsPerBand
+   *          number of hashes combined in each band; more rows find fewer, closer candidates
+   * @throws IllegalArgumentException
+   *           if numBands or rowsPerBand are &lt; 1, or rowsPerBand &gt; 64 for random hyperplanes
+   */
+  public LocalitySensitiveHashIndex(DataModel dataModel,
+                                    boolean indexUsers,
+                                    HashFamily hashFamily,
+                                    int numBands,
+                                    int rowsPerBand) throws TasteException {
+    if (dataModel == null || hashFamily == null) {
+      throw new IllegalArgumentException("dataModel or hashFamily is null");
+    }
+    if (numBands < 1 || rowsPerBand < 1) {
+      throw new IllegalArgumentException("numBands and rowsPerBand must be at least 1");
+    }
+    if (hashFamily == HashFamily.RANDOM_HYPERPLANE && rowsPerBand > 64) {
+      throw new IllegalArgumentException("rowsPerBand must be at most 64 for random hyperplanes");
+    }
+    this.dataModel = dataModel;
+    this.indexUsers = indexUsers;
+    this.hashFamily = hashFamily;
+    this.numBands = numBands;
+    this.rowsPerBand = rowsPerBand;
+    Random random = RandomUtils.getRandom();
+    seeds = new long[numBands * rowsPerBand];
+    for (int i = 0; i < seeds.length; i++) {
+      seeds[i] = random.nextLong();
+    }
+    this.refreshHelper = new RefreshHelper(new Callable<Object>() {
+      @Override
+      public Object call() throws TasteException {
+        build();
+        return null;
+      }
+    });
+    refreshHelper.addDependency(dataModel);
+    build();
+  }
+
+  public boolean isIndexingUsers() {
+    return indexUsers;
+  }
+
+  public HashFamily getHashFamily() {
+    return hashFamily;
+  }
+
+  /** @return number of users or items in the index, those with at least one preference */
+  public int getNumIndexed() {
+    return buckets.ids.length;
+  }
+
+  private synchronized void build() throws TasteException {
+    long start = System.currentTimeMillis();
+    LongPrimitiveIterator it = indexUsers ? dataModel.getUserIDs() : dataModel.getItemIDs();
+    int expectedSize = indexUsers ? dataModel.getNumUsers() : dataModel.getNumItems();
+    long[] ids = new long[expectedSize];
+    long[][] bandEntries = new long[numBands][expectedSize];
+    int[] keys = new int[numBands];
+    int size = 0;
+    while (it.hasNext()) {
+      long id = it.nextLong();
+      if (!hash(getPreferences(id), keys)) {
+        continue;
+      }
+      if (size == ids.length) {
+        int newCapacity = Math.max(16, 2 * size);
+        ids = Arrays.copyOf(ids, newCapacity);
+        for (int band = 0; band < numBands; band++) {
+          bandEntries[band] = Arrays.copyOf(bandEntries[band], newCapacity);
+        }
+      }
+      ids[size] = id;
+      for (int band = 0; band < numBands; band++) {
+        bandEntries[band][size] = entry(keys[band], size);
+      }
+      size++;
+    }
+    ids = Arrays.copyOf(ids, size);
+    for (int band = 0; band < numBands; band++) {
+      bandEntries[band] = Arrays.copyOf(bandEntries[band], size);
+      Arrays.sort(bandEntries[band]);
+    }
+    buckets = new Buckets(ids, bandEntries);
+    log.info("Indexed {} {} in {} ms", new Object[] {size, indexUsers ? "users" : "items",
+        System.currentTimeMillis() - start});
+  }
+
+  private PreferenceArray getPreferences(long id) throws TasteException {
+    return indexUsers ? dataModel.getPreferencesFromUser(id) : dataModel.getPreferencesForItem(id);
+  }
+
+  /**
+   * @param id
+   *          user ID if users are indexed, otherwise item ID
+   * @return IDs of the indexed users or items sharing a bucket with the given one, not including it
+   */
+  public FastIDSet getCandidates(long id) throws TasteException {
+    PreferenceArray prefs;
+    try {
+      prefs = getPreferences(id);
+    } catch (NoSuchUserException nsue) {
+      return new FastIDSet();
+    } catch (NoSuchItemException nsie) {
+      return new FastIDSet();
+    }
+    int[] keys = new int[numBands];
+    if (!hash(prefs, keys)) {
+      return new FastIDSet();
+    }
+    Buckets theBuckets = buckets;
+    FastIDSet candidates = new FastIDSet();
+    for (int band = 0; band < numBands; band++) {
+      long[] entries = theBuckets.bandEntries[band];
+      long first = entry(keys[band], 0);
+      int index = Arrays.binarySearch(entries, first);
+      if (index < 0) {
+        index = -index - 1;
+      }
+      while (index < entries.length && (int) (entries[index] >> 32) == keys[band]) {
+        candidates.add(theBuckets.ids[(int) entries[index]]);
+        index++;
+      }
+    }
+    candidates.remove(id);
+    return candidates;
+  }
+
+  /** Packs a bucket key and an index so that sorting groups each bucket's indices together */
+  private static long entry(int key, int index) {
+    return ((long) key << 32) | index;
+  }
+
+  /**
+   * Computes the bucket key of the given preferences in each band.
+   *
+   * @return false if there are no preferences to hash
+   */
+  private boolean hash(PreferenceArray prefs, int[] keys) {
+    int length = prefs.length();
+    if (length == 0) {
+      return false;
+    }
+    if (hashFamily == HashFamily.MIN_HASH) {
+      for (int band = 0; band < numBands; band++) {
+        long key = band;
+        for (int row = 0; row < rowsPerBand; row++) {
+          long seed = seeds[band * rowsPerBand + row];
+          long min = Long.MAX_VALUE;
+          for (int i = 0; i < length; i++) {
+            long hash = mix(otherID(prefs, i) ^ seed);
+            if (hash < min) {
+              min = hash;
+            }
+          }
+          key = mix(key * 31L + min);
+        }
+        keys[band] = (int) (key >>> 32);
+      }
+    } else {
+      // Each hash of an ID gives its weights in 64 hyperplanes, one per bit
+      int numPlanes = numBands * rowsPerBand;
+      double[] dots = new double[numPlanes];
+      for (int i = 0; i < length; i++) {
+        long id = otherID(prefs, i);
+        float value = prefs.getValue(i);
+        for (int plane = 0; plane < numPlanes; plane += 64) {
+          long signs = mix(id ^ seeds[plane >>> 6]);
+          int end = Math.min(numPlanes, plane + 64);
+          for (int p = plane; p < end; p++) {
+            dots[p] += (signs & 1L) == 0L ? value : -value;
+            signs >>>= 1;
+          }
+        }
+      }
+      for (int band = 0; band < numBands; band++) {
+        long bits = 0L;
+        for (int row = 0; row < rowsPerBand; row++) {
+          if (dots[band * rowsPerBand + row] >= 0.0) {
+            bits |= 1L << row;
+          }
+        }
+        keys[band] = (int) (mix(band * 31L + bits) >>> 32);
+      }
+    }
+    return true;
+  }
+
+  private long otherID(PreferenceArray prefs, int i) {
+    return indexUsers ? prefs.getItemID(i) : prefs.getUserID(i);
+  }
+
+  /** Scrambles all bits of a long, as the finalizer of the MurmurHash3 hash does */
+  private static long mix(long value) {
+    long hash = value;
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {
+    refreshHelper.refresh(alreadyRefreshed);
+  }
+
+  @Override
+  public String toString() {
+    return "LocalitySensitiveHashIndex[" + (indexUsers ? "users" : "items") + ", hashFamily:" + hashFamily
+        + ", bands:" + numBands + ", rows:" + rowsPerBand + ']';
+  }
+
+  /** The indexed IDs, and the entries of each band, sorted by bucket key, replaced as a whole on refresh */
+  private static final class Buckets {
+
+    private final long[] ids;
+    private final long[][] bandEntries;
+
+    private Buckets(long[] ids, long[][] bandEntries) {
+      this.ids = ids;
+      this.bandEntries = bandEntries;
+    }
+
+  }
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.recommender;
+
+import java.util.List;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+
+/**
+ * <p>
+ * Interface implemented by recommenders which can compute recommendations for a block of users at once,
+ * sharing the work common to those users and spreading the rest over several threads. This suits offline jobs
+ * which recommend to many users in turn.
+ * </p>
+ */
+public interface BatchRecommender extends Recommender {
+  
+  /**
+   * @param userIDs
+   *          users for which recommendations are to be computed
+   * @param howMany
+   *          desired number of recommendations per user
+   * @return for each user, in the order of <code>userIDs</code>, the {@link List} of recommended
+   *         {@link RecommendedItem}s that {@link #recommend(long, int)} would return
+   * @throws TasteException
+   *           if an error occurs while accessing the {@link org.apache.mahout.cf.taste.model.DataModel}
+   */
+  List<List<RecommendedItem>> recommend(long[] userIDs, int howMany) throws TasteException;
+  
+  /**
+   * @param userIDs
+   *          users for which recommendations are to be computed
+   * @param howMany
+   *          desired number of recommendations per user
+   * @param rescorer
+   *          rescoring function to apply before final list of recommendations is determined
+   * @return for each user, in the order of <code>userIDs</code>, the {@link List} of recommended
+   *         {@link RecommendedItem}s that {@link #recommend(long, int, IDRescorer)} would return
+   * @throws TasteException
+   *           if an error occurs while accessing the {@link org.apache.mahout.cf.taste.model.DataModel}
+   */
+  List<List<RecommendedItem>> recommend(long[] userIDs, int howMany, IDRescorer rescorer) throws TasteException;
+  
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.cf.taste.recommender.slopeone;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+
+/**
+ * <p>
+ * Interface implemented by {@link DiffStorage}s which can update exactly the diffs a preference change affects,
+ * given the user it is for. {@link org.apache.mahout.cf.taste.impl.recommender.slopeone.SlopeOneRecommender}
+ * uses it when its storage implements it, and otherwise falls back to
+ * {@link DiffStorage#updateItemPref(long, float, boolean)}.
+ * </p>
+ */
+public interface IncrementalDiffStorage extends DiffStorage {
+  
+  /**
+   * <p>
+   * Updates internal data structures to reflect that a user's preference for an item was set, changed or
+   * removed, which the {@link org.apache.mahout.cf.taste.model.DataModel} already reflects.
+   * </p>
+   * 
+   * @param userID
+   *          user whose preference changed
+   * @param itemID
+   *          item the preference is for
+   * @param oldValue
+   *          preference value before the change, or <code>null</code> if there was none
+   * @param newValue
+   *          preference value after the change, or <code>null</code> if it was removed
+   */
+  void updateItemPref(long userID, long itemID, Float oldValue, Float newValue) throws TasteException;
+  
+}
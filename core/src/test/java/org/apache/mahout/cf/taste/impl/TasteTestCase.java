@@ -18,16 +18,20 @@
 package org.apache.mahout.cf.taste.impl;
 
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.common.MahoutTestCase;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericPreference;
 import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.common.RandomUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 public abstract class TasteTestCase extends MahoutTestCase {
 
@@ -61,6 +65,28 @@ public abstract class TasteTestCase extends MahoutTestCase {
             });
   }
 
+  /**
+   * @return boolean data of clusters of users; user u is in cluster u / usersPerCluster, and has most of the
+   *         items of its cluster, from (cluster * 1000) on, and a couple of items of none
+   */
+  protected static DataModel getClusteredBooleanDataModel(int numClusters, int usersPerCluster, int itemsPerCluster) {
+    Random random = RandomUtils.getRandom();
+    FastByIDMap<FastIDSet> userData = new FastByIDMap<FastIDSet>();
+    for (int u = 0; u < numClusters * usersPerCluster; u++) {
+      int cluster = u / usersPerCluster;
+      FastIDSet itemIDs = new FastIDSet();
+      for (int i = 0; i < itemsPerCluster; i++) {
+        if (random.nextInt(10) > 0) {
+          itemIDs.add(cluster * 1000L + i);
+        }
+      }
+      itemIDs.add(-1L - random.nextInt(1000));
+      itemIDs.add(-1L - random.nextInt(1000));
+      userData.put(u, itemIDs);
+    }
+    return new GenericBooleanPrefDataModel(userData);
+  }
+
   protected static boolean arrayContains(long[] array, long value) {
     for (long l : array) {
       if (l == value) {
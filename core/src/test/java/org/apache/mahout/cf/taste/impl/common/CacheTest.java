@@ -22,6 +22,9 @@ import org.apache.mahout.cf.taste.impl.TasteTestCase;
 import org.apache.mahout.common.RandomUtils;
 
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class CacheTest extends TasteTestCase {
   
@@ -49,6 +52,182 @@ public final class CacheTest extends TasteTestCase {
     }
   }
   
+  public void testRebuild() throws TasteException {
+    final int[] offset = new int[1];
+    final int[] retrieved = new int[1];
+    Retriever<Integer,Integer> retriever = new Retriever<Integer,Integer>() {
+      @Override
+      public Integer get(Integer key) {
+        retrieved[0]++;
+        return key + offset[0];
+      }
+    };
+    Cache<Integer,Integer> cache = new Cache<Integer,Integer>(retriever, 1000);
+    for (int i = 0; i < 10; i++) {
+      cache.get(i);
+    }
+    offset[0] = 100;
+    cache.rebuild();
+    assertEquals(20, retrieved[0]);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i + 100, cache.get(i).intValue());
+    }
+    assertEquals(20, retrieved[0]);
+    cache.remove(3);
+    cache.rebuild();
+    assertEquals(29, retrieved[0]);
+    assertEquals(103, cache.get(3).intValue());
+    assertEquals(30, retrieved[0]);
+  }
+
+  public void testFailedRebuildKeepsNoStaleValue() throws TasteException {
+    final int[] offset = new int[1];
+    Retriever<Integer,Integer> retriever = new Retriever<Integer,Integer>() {
+      @Override
+      public Integer get(Integer key) throws TasteException {
+        if (offset[0] > 0 && key == 5) {
+          throw new TasteException("no 5");
+        }
+        return key + offset[0];
+      }
+    };
+    Cache<Integer,Integer> cache = new Cache<Integer,Integer>(retriever, 1000);
+    for (int i = 0; i < 10; i++) {
+      cache.get(i);
+    }
+    offset[0] = 100;
+    try {
+      cache.rebuild();
+      fail();
+    } catch (TasteException te) {
+      // expected
+    }
+    offset[0] = 200;
+    for (int i = 0; i < 10; i++) {
+      if (i != 5) {
+        // either rebuilt before the failure or retrieved again now, never the value from before the change
+        assertTrue(cache.get(i) >= i + 100);
+      }
+    }
+  }
+
+  public void testCounters() throws TasteException {
+    Cache<Object,Object> cache = new Cache<Object,Object>(new IdentityRetriever());
+    cache.get(1);
+    cache.get(1);
+    cache.get(2);
+    cache.get(1);
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(2, cache.getLoadCount());
+    assertTrue(cache.getTotalLoadTime() >= 0);
+    assertEquals(0, cache.getEvictionCount());
+  }
+  
+  public void testEviction() throws TasteException {
+    Cache<Object,Object> cache = new Cache<Object,Object>(new IdentityRetriever(), 1);
+    cache.get(1);
+    cache.get(1);
+    cache.get(2);
+    assertEquals(1, cache.getEvictionCount());
+    cache.get(2);
+    assertEquals(2, cache.getHitCount());
+    cache.get(1);
+    assertEquals(3, cache.getLoadCount());
+  }
+  
+  public void testConcurrentMissesLoadOnce() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger retrieved = new AtomicInteger();
+    final Cache<Integer,Integer> cache = new Cache<Integer,Integer>(new Retriever<Integer,Integer>() {
+      @Override
+      public Integer get(Integer key) throws TasteException {
+        retrieved.incrementAndGet();
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ie) {
+          throw new TasteException(ie);
+        }
+        return key * 2;
+      }
+    });
+    final int[] results = new int[4];
+    Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            results[index] = cache.get(21);
+          } catch (TasteException te) {
+            results[index] = -1;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    assertTrue(started.await(10L, TimeUnit.SECONDS));
+    // give the other threads time to miss too
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (cache.getMissCount() < threads.length && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, retrieved.get());
+    for (int result : results) {
+      assertEquals(42, result);
+    }
+    assertEquals(42, cache.get(21).intValue());
+    assertEquals(1, cache.getHitCount());
+  }
+  
+  public void testRebuildDuringLoad() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final int[] offset = new int[1];
+    final Cache<Integer,Integer> cache = new Cache<Integer,Integer>(new Retriever<Integer,Integer>() {
+      @Override
+      public Integer get(Integer key) throws TasteException {
+        int value = key + offset[0];
+        if ("loader".equals(Thread.currentThread().getName())) {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ie) {
+            throw new TasteException(ie);
+          }
+        }
+        return value;
+      }
+    });
+    final int[] result = new int[1];
+    Thread loader = new Thread("loader") {
+      @Override
+      public void run() {
+        try {
+          result[0] = cache.get(1);
+        } catch (TasteException te) {
+          result[0] = -1;
+        }
+      }
+    };
+    loader.start();
+    assertTrue(started.await(10L, TimeUnit.SECONDS));
+    offset[0] = 100;
+    cache.rebuild();
+    release.countDown();
+    loader.join();
+    assertEquals(1, result[0]);
+    // the value retrieved before the rebuild must not have been cached
+    assertEquals(101, cache.get(1).intValue());
+  }
+  
   private static class IdentityRetriever implements Retriever<Object,Object> {
     @Override
     public Object get(Object key) throws TasteException {
@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.common;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.common.RandomUtils;
+
+/** <p>Tests {@link LongPairCache}.</p> */
+public final class LongPairCacheTest extends TasteTestCase {
+
+  public void testLotsOfGets() throws TasteException {
+    CountingRetriever retriever = new CountingRetriever();
+    LongPairCache cache = new LongPairCache(retriever, 1000);
+    for (int i = 0; i < 1000000; i++) {
+      assertEquals(sum(i, -i / 2), cache.get(i, -i / 2));
+    }
+    assertEquals(1000000, cache.getMissCount());
+    assertTrue(cache.getEvictionCount() > 0);
+  }
+
+  public void testMixedUsage() throws TasteException {
+    Random random = RandomUtils.getRandom();
+    CountingRetriever retriever = new CountingRetriever();
+    LongPairCache cache = new LongPairCache(retriever, 1000);
+    for (int i = 0; i < 1000000; i++) {
+      double r = random.nextDouble();
+      long key1 = random.nextInt(2000);
+      long key2 = random.nextInt(3);
+      if (r < 0.001) {
+        cache.clear();
+      } else if (r < 0.1) {
+        cache.remove(key1, key2);
+      } else {
+        assertEquals(sum(key1, key2), cache.get(key1, key2));
+      }
+    }
+  }
+
+  public void testHitsAndRemoval() throws TasteException {
+    CountingRetriever retriever = new CountingRetriever();
+    LongPairCache cache = new LongPairCache(retriever);
+    assertEquals(3.0, cache.get(1, 2));
+    assertEquals(3.0, cache.get(1, 2));
+    assertEquals(4.0, cache.get(1, 3));
+    assertEquals(2, retriever.count);
+    assertEquals(1, cache.getHitCount());
+    cache.remove(1, 2);
+    assertEquals(3.0, cache.get(1, 2));
+    assertEquals(4.0, cache.get(1, 3));
+    assertEquals(3, retriever.count);
+
+    // removed slots are reused without losing entries behind them
+    for (int i = 0; i < 100; i++) {
+      cache.get(i, i);
+      cache.remove(i, i);
+    }
+    assertEquals(4.0, cache.get(1, 3));
+    assertEquals(103, retriever.count);
+  }
+
+  public void testNaN() throws TasteException {
+    LongPairCache cache = new LongPairCache(new LongPairCache.ValueRetriever() {
+      @Override
+      public double get(long key1, long key2) {
+        return Double.NaN;
+      }
+    });
+    assertTrue(Double.isNaN(cache.get(1, 2)));
+    assertTrue(Double.isNaN(cache.get(1, 2)));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  public void testRebuild() throws TasteException {
+    CountingRetriever retriever = new CountingRetriever();
+    LongPairCache cache = new LongPairCache(retriever, 1000);
+    for (int i = 0; i < 10; i++) {
+      cache.get(i, 1);
+    }
+    retriever.offset = 100;
+    cache.rebuild();
+    assertEquals(20, retriever.count);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i + 101.0, cache.get(i, 1));
+    }
+    assertEquals(20, retriever.count);
+  }
+
+  public void testFailedRebuildKeepsNoStaleValue() throws TasteException {
+    final int[] offset = new int[1];
+    LongPairCache cache = new LongPairCache(new LongPairCache.ValueRetriever() {
+      @Override
+      public double get(long key1, long key2) throws TasteException {
+        if (offset[0] > 0 && key1 == 5) {
+          throw new TasteException("no 5");
+        }
+        return sum(key1, key2) + offset[0];
+      }
+    });
+    for (int i = 0; i < 10; i++) {
+      cache.get(i, 1);
+    }
+    offset[0] = 100;
+    try {
+      cache.rebuild();
+      fail();
+    } catch (TasteException te) {
+      // expected
+    }
+    offset[0] = 200;
+    for (int i = 0; i < 10; i++) {
+      if (i != 5) {
+        assertTrue(cache.get(i, 1) >= i + 101.0);
+      }
+    }
+  }
+
+  public void testRemoveDuringLoad() throws Exception {
+    assertNoStaleValueAfter(new Change() {
+      @Override
+      public void apply(LongPairCache cache) {
+        cache.remove(1, 2);
+      }
+    });
+  }
+
+  public void testClearDuringLoad() throws Exception {
+    assertNoStaleValueAfter(new Change() {
+      @Override
+      public void apply(LongPairCache cache) {
+        cache.clear();
+      }
+    });
+  }
+
+  public void testRebuildDuringLoad() throws Exception {
+    assertNoStaleValueAfter(new Change() {
+      @Override
+      public void apply(LongPairCache cache) throws TasteException {
+        cache.rebuild();
+      }
+    });
+  }
+
+  /** Applies a change to the cache while another thread is retrieving a value from before it. */
+  private static void assertNoStaleValueAfter(Change change) throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger offset = new AtomicInteger();
+    final LongPairCache cache = new LongPairCache(new LongPairCache.ValueRetriever() {
+      @Override
+      public double get(long key1, long key2) throws TasteException {
+        double value = sum(key1, key2) + offset.get();
+        if (Thread.currentThread().getName().equals("loader")) {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ie) {
+            throw new TasteException(ie);
+          }
+        }
+        return value;
+      }
+    });
+    final double[] loaded = new double[1];
+    Thread loader = new Thread("loader") {
+      @Override
+      public void run() {
+        try {
+          loaded[0] = cache.get(1, 2);
+        } catch (TasteException te) {
+          loaded[0] = Double.NaN;
+        }
+      }
+    };
+    loader.start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    offset.set(100);
+    change.apply(cache);
+    release.countDown();
+    loader.join();
+    assertEquals(3.0, loaded[0]);
+    assertEquals(103.0, cache.get(1, 2));
+  }
+
+  private interface Change {
+    void apply(LongPairCache cache) throws TasteException;
+  }
+
+  private static double sum(long key1, long key2) {
+    return key1 + key2;
+  }
+
+  private static final class CountingRetriever implements LongPairCache.ValueRetriever {
+    private int count;
+    private int offset;
+
+    @Override
+    public double get(long key1, long key2) {
+      count++;
+      return sum(key1, key2) + offset;
+    }
+  }
+
+}
@@ -21,7 +21,10 @@ import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 /** Tests {@link RefreshHelper} */
 public final class RefreshHelperTest extends TasteTestCase {
@@ -62,4 +65,28 @@ public final class RefreshHelperTest extends TasteTestCase {
     assertEquals(1, mock2.getCallCount());
   }
 
+  public void testStagedRefresh() {
+    final MockRefreshable whenPublished = new MockRefreshable();
+    final boolean[] staged = new boolean[1];
+    Refreshable refreshable = new Refreshable() {
+      @Override
+      public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        staged[0] = RefreshHelper.isRefreshingStaged();
+        RefreshHelper.runWhenPublished(whenPublished);
+      }
+    };
+    List<Callable<?>> tasks =
+        RefreshHelper.refreshStaged(RefreshHelper.buildRefreshed(null), Collections.singletonList(refreshable));
+    assertTrue(staged[0]);
+    assertFalse(RefreshHelper.isRefreshingStaged());
+    assertEquals(0, whenPublished.getCallCount());
+    RefreshHelper.runPublished(tasks);
+    assertEquals(1, whenPublished.getCallCount());
+
+    // outside of a staged refresh, it is done at once
+    refreshable.refresh(null);
+    assertFalse(staged[0]);
+    assertEquals(2, whenPublished.getCallCount());
+  }
+
 }
@@ -18,8 +18,10 @@
 package org.apache.mahout.cf.taste.impl.model.file;
 
 import org.apache.commons.lang.mutable.MutableBoolean;
+import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
@@ -30,13 +32,18 @@ import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.common.RandomUtils;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.util.Collection;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /** <p>Tests {@link FileDataModel}.</p> */
 public final class FileDataModelTest extends TasteTestCase {
@@ -166,6 +173,129 @@ public final class FileDataModelTest extends TasteTestCase {
     assertEquals(4, model.getNumUsers());
   }
 
+  public void testParallelParsing() throws Exception {
+    // large enough to be split into several byte ranges, with repeated and deleted preferences across them
+    File dataFile = getTestTempFile("big.txt");
+    File updateFile = getTestTempFile("big.1.txt");
+    Random random = RandomUtils.getRandom();
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(new FileOutputStream(dataFile), Charset.forName("UTF-8")));
+    try {
+      for (int i = 0; i < 150000; i++) {
+        int userID = random.nextInt(500);
+        int itemID = random.nextInt(200);
+        writer.println(userID + "," + itemID + ',' + (random.nextInt(10) == 0 ? "" : random.nextInt(5)));
+      }
+    } finally {
+      writer.close();
+    }
+    writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(updateFile), Charset.forName("UTF-8")));
+    try {
+      writer.println("1,1,");
+      writer.println("1000,1,3.0");
+    } finally {
+      writer.close();
+    }
+
+    DataModel sequential = new FileDataModel(dataFile);
+    FileDataModel parallel = new FileDataModel(dataFile);
+    parallel.setParsingThreads(3);
+    assertEquals(sequential.getNumUsers(), parallel.getNumUsers());
+    assertEquals(sequential.getNumItems(), parallel.getNumItems());
+    assertNull(parallel.getPreferenceValue(1, 1));
+    assertEquals(3.0f, parallel.getPreferenceValue(1000, 1), EPSILON);
+    LongPrimitiveIterator it = sequential.getUserIDs();
+    while (it.hasNext()) {
+      long userID = it.nextLong();
+      PreferenceArray expected = sequential.getPreferencesFromUser(userID);
+      PreferenceArray actual = parallel.getPreferencesFromUser(userID);
+      assertEquals(expected.length(), actual.length());
+      for (int i = 0; i < expected.length(); i++) {
+        assertEquals(expected.getItemID(i), actual.getItemID(i));
+        assertEquals(expected.getValue(i), actual.getValue(i), EPSILON);
+      }
+    }
+  }
+
+  public void testParallelParsingWithoutPrefValues() throws Exception {
+    File dataFile = getTestTempFile("bigbool.txt");
+    Random random = RandomUtils.getRandom();
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(new FileOutputStream(dataFile), Charset.forName("UTF-8")));
+    try {
+      for (int i = 0; i < 200000; i++) {
+        writer.println(random.nextInt(500) + "," + random.nextInt(200));
+      }
+    } finally {
+      writer.close();
+    }
+
+    DataModel sequential = new FileDataModel(dataFile);
+    FileDataModel parallel = new FileDataModel(dataFile);
+    parallel.setParsingThreads(3);
+    assertEquals(sequential.getNumUsers(), parallel.getNumUsers());
+    assertEquals(sequential.getNumItems(), parallel.getNumItems());
+    LongPrimitiveIterator it = sequential.getUserIDs();
+    while (it.hasNext()) {
+      long userID = it.nextLong();
+      FastIDSet expected = sequential.getItemIDsFromUser(userID);
+      FastIDSet actual = parallel.getItemIDsFromUser(userID);
+      assertEquals(expected.size(), actual.size());
+      LongPrimitiveIterator itemIDs = expected.iterator();
+      while (itemIDs.hasNext()) {
+        assertTrue(actual.contains(itemIDs.nextLong()));
+      }
+    }
+  }
+
+  public void testBackgroundReload() throws Exception {
+    final FileDataModel fileModel = new FileDataModel(testFile);
+    fileModel.setBackgroundReload(true);
+    assertEquals(0.1f, fileModel.getPreferenceValue(123, 456), EPSILON);
+
+    final float[] seenByDependent = new float[1];
+    final CountDownLatch dependentRefreshed = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    fileModel.addDependent(new Refreshable() {
+      @Override
+      public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        try {
+          seenByDependent[0] = fileModel.getPreferenceValue(123, 456);
+          dependentRefreshed.countDown();
+          release.await();
+        } catch (TasteException te) {
+          // leaves seenByDependent unset
+        } catch (InterruptedException ie) {
+          // stop waiting
+        }
+      }
+    });
+
+    File updateFile = getTestTempFile("test.1.txt");
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(new FileOutputStream(updateFile), Charset.forName("UTF-8")));
+    try {
+      writer.println("123,456,0.3");
+    } finally {
+      writer.close();
+    }
+    updateFile.setLastModified(System.currentTimeMillis() + 120000L);
+    fileModel.refresh(null); // returns at once
+
+    // the dependent sees the new data while everyone else is still served the old
+    assertTrue(dependentRefreshed.await(10L, TimeUnit.SECONDS));
+    assertEquals(0.3f, seenByDependent[0], EPSILON);
+    assertEquals(0.1f, fileModel.getPreferenceValue(123, 456), EPSILON);
+    release.countDown();
+
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (fileModel.getPreferenceValue(123, 456) < 0.2f && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals(0.3f, fileModel.getPreferenceValue(123, 456), EPSILON);
+    assertEquals(4, fileModel.getNumUsers());
+  }
+
   public void testToString() {
     assertTrue(model.toString().length() > 0);
   }
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/** <p>Tests {@link MappedDataModel}.</p> */
+public final class MappedDataModelTest extends TasteTestCase {
+
+  public void testSnapshot() throws Exception {
+    DataModel original = getDataModel();
+    File snapshotFile = getTestTempFile("snapshot.bin");
+    MappedDataModel.writeSnapshot(original, snapshotFile);
+    MappedDataModel mapped = new MappedDataModel(snapshotFile);
+
+    assertTrue(mapped.hasPreferenceValues());
+    assertFalse(mapped.isTransposed());
+    assertEquals(original.getMinPreference(), mapped.getMinPreference(), EPSILON);
+    assertEquals(original.getMaxPreference(), mapped.getMaxPreference(), EPSILON);
+    assertSameData(original, mapped);
+    assertNull(mapped.getPreferenceValue(1, 3));
+    try {
+      mapped.getPreferencesFromUser(5);
+      fail("Should throw NoSuchUserException");
+    } catch (NoSuchUserException nsue) {
+      // good
+    }
+  }
+
+  public void testBooleanSnapshot() throws Exception {
+    FastByIDMap<FastIDSet> data = new FastByIDMap<FastIDSet>();
+    FastIDSet items1 = new FastIDSet();
+    items1.add(30);
+    items1.add(10);
+    items1.add(20);
+    data.put(2, items1);
+    FastIDSet items2 = new FastIDSet();
+    items2.add(20);
+    data.put(1, items2);
+    DataModel original = new GenericBooleanPrefDataModel(data);
+    File snapshotFile = getTestTempFile("boolean.bin");
+    MappedDataModel.writeSnapshot(original, snapshotFile);
+    MappedDataModel mapped = new MappedDataModel(snapshotFile);
+
+    assertFalse(mapped.hasPreferenceValues());
+    assertSameData(original, mapped);
+    PreferenceArray prefs = mapped.getPreferencesFromUser(2);
+    assertEquals(10, prefs.getItemID(0));
+    assertEquals(20, prefs.getItemID(1));
+    assertEquals(30, prefs.getItemID(2));
+    assertEquals(1.0f, prefs.getValue(0));
+    assertEquals(2, mapped.getNumUsersWithPreferenceFor(20));
+    assertEquals(1, mapped.getNumUsersWithPreferenceFor(10, 20));
+  }
+
+  public void testReadOnlyView() throws Exception {
+    File snapshotFile = getTestTempFile("readonly.bin");
+    MappedDataModel.writeSnapshot(getDataModel(), snapshotFile);
+    MappedDataModel mapped = new MappedDataModel(snapshotFile);
+    PreferenceArray prefs = mapped.getPreferencesFromUser(1);
+    try {
+      prefs.setValue(0, 0.5f);
+      fail("Should throw UnsupportedOperationException");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+    PreferenceArray copy = prefs.clone();
+    copy.setValue(0, 0.0f);
+    copy.sortByValueReversed();
+    assertEquals(prefs.getValue(1), copy.getValue(0), EPSILON);
+    assertEquals(0.1f, prefs.getValue(0), EPSILON);
+    assertEquals(0.1f, mapped.getPreferenceValue(1, 0), EPSILON);
+  }
+
+  public void testFileDataModelSnapshot() throws Exception {
+    File dataFile = getTestTempFile("ratings.txt");
+    writeLines(dataFile, "1,10,1.0", "1,20,3.0", "2,10,4.0", "3,30,5.0");
+    File snapshotFile = getTestTempFile("ratings-snapshot.bin");
+    FileDataModel model = new FileDataModel(dataFile, false, snapshotFile);
+    assertSameData(new FileDataModel(dataFile), model);
+    assertTrue(snapshotFile.exists());
+
+    // a second model maps the snapshot the first one wrote
+    long written = snapshotFile.lastModified();
+    model = new FileDataModel(dataFile, false, snapshotFile);
+    assertEquals(3.0f, model.getPreferenceValue(1, 20), EPSILON);
+    assertEquals(written, snapshotFile.lastModified());
+
+    // update files are folded into a rewritten snapshot
+    File updateFile = getTestTempFile("ratings.1.txt");
+    writeLines(updateFile, "1,20,2.0", "2,40,1.0", "3,30,");
+    updateFile.setLastModified(System.currentTimeMillis() + 120000L);
+    model.refresh(null);
+    assertEquals(2.0f, model.getPreferenceValue(1, 20), EPSILON);
+    assertEquals(1.0f, model.getPreferenceValue(2, 40), EPSILON);
+    assertEquals(0, model.getPreferencesFromUser(3).length());
+    MappedDataModel snapshot = new MappedDataModel(snapshotFile);
+    assertEquals(1.0f, snapshot.getPreferenceValue(2, 40), EPSILON);
+
+    // which is then mapped as it is
+    snapshotFile.setLastModified(written);
+    model = new FileDataModel(dataFile, false, snapshotFile);
+    assertEquals(2.0f, model.getPreferenceValue(1, 20), EPSILON);
+    assertEquals(written, snapshotFile.lastModified());
+
+    // until the update files change again
+    assertTrue(updateFile.delete());
+    model = new FileDataModel(dataFile, false, snapshotFile);
+    assertEquals(3.0f, model.getPreferenceValue(1, 20), EPSILON);
+    assertNull(model.getPreferenceValue(2, 40));
+  }
+
+  private static void assertSameData(DataModel expected, DataModel actual) throws Exception {
+    assertEquals(expected.getNumUsers(), actual.getNumUsers());
+    assertEquals(expected.getNumItems(), actual.getNumItems());
+    LongPrimitiveIterator userIDs = actual.getUserIDs();
+    long lastUserID = Long.MIN_VALUE;
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      assertTrue(userID > lastUserID);
+      lastUserID = userID;
+      PreferenceArray prefs = actual.getPreferencesFromUser(userID);
+      assertEquals(expected.getPreferencesFromUser(userID).length(), prefs.length());
+      FastIDSet itemIDs = actual.getItemIDsFromUser(userID);
+      assertEquals(prefs.length(), itemIDs.size());
+      for (int i = 0; i < prefs.length(); i++) {
+        assertEquals(userID, prefs.getUserID(i));
+        assertTrue(prefs.hasPrefWithItemID(prefs.getItemID(i)));
+        assertTrue(itemIDs.contains(prefs.getItemID(i)));
+        assertEquals(expected.getPreferenceValue(userID, prefs.getItemID(i)), prefs.getValue(i), EPSILON);
+      }
+    }
+    LongPrimitiveIterator itemIDs = actual.getItemIDs();
+    while (itemIDs.hasNext()) {
+      long itemID = itemIDs.nextLong();
+      PreferenceArray prefs = actual.getPreferencesForItem(itemID);
+      assertEquals(expected.getPreferencesForItem(itemID).length(), prefs.length());
+      assertEquals(expected.getNumUsersWithPreferenceFor(itemID), actual.getNumUsersWithPreferenceFor(itemID));
+      for (int i = 0; i < prefs.length(); i++) {
+        assertEquals(itemID, prefs.getItemID(i));
+        assertTrue(i == 0 || prefs.getUserID(i - 1) < prefs.getUserID(i));
+        assertEquals(expected.getPreferenceValue(prefs.getUserID(i), itemID), prefs.getValue(i), EPSILON);
+      }
+    }
+  }
+
+  private static void writeLines(File file, String... lines) throws Exception {
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+    try {
+      for (String line : lines) {
+        writer.println(line);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+}
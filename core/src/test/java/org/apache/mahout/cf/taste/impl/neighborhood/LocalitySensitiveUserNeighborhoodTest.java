@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.neighborhood;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.similarity.LocalitySensitiveHashIndex;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/** <p>Tests {@link LocalitySensitiveUserNeighborhood}.</p> */
+public final class LocalitySensitiveUserNeighborhoodTest extends TasteTestCase {
+
+  public void testAgainstNearestN() throws Exception {
+    DataModel dataModel = getClusteredBooleanDataModel(10, 10, 20);
+    UserSimilarity similarity = new TanimotoCoefficientSimilarity(dataModel);
+    LocalitySensitiveHashIndex index = new LocalitySensitiveHashIndex(dataModel, true,
+        LocalitySensitiveHashIndex.HashFamily.MIN_HASH, 8, 2);
+    LocalitySensitiveUserNeighborhood neighborhood =
+        new LocalitySensitiveUserNeighborhood(5, Double.NEGATIVE_INFINITY, similarity, dataModel, index);
+    NearestNUserNeighborhood exact = new NearestNUserNeighborhood(5, similarity, dataModel);
+    int found = 0;
+    for (long userID = 0; userID < 100; userID++) {
+      long[] neighbors = neighborhood.getUserNeighborhood(userID);
+      assertTrue(neighbors.length <= 5);
+      double last = Double.POSITIVE_INFINITY;
+      for (long neighborID : neighbors) {
+        double neighborSimilarity = similarity.userSimilarity(userID, neighborID);
+        assertTrue(neighborSimilarity <= last);
+        last = neighborSimilarity;
+      }
+      for (long exactID : exact.getUserNeighborhood(userID)) {
+        if (arrayContains(neighbors, exactID)) {
+          found++;
+        }
+      }
+    }
+    assertTrue(found >= 450);
+    assertEquals(0, neighborhood.getUserNeighborhood(1000L).length);
+    neighborhood.refresh(null);
+    assertEquals(100, index.getNumIndexed());
+  }
+
+  public void testItemIndex() throws Exception {
+    DataModel dataModel = getDataModel();
+    LocalitySensitiveHashIndex index = new LocalitySensitiveHashIndex(dataModel, false,
+        LocalitySensitiveHashIndex.HashFamily.MIN_HASH, 1, 1);
+    try {
+      new LocalitySensitiveUserNeighborhood(1, 0.0, new DummySimilarity(dataModel), dataModel, index);
+      fail();
+    } catch (IllegalArgumentException iae) {
+      // good
+    }
+  }
+
+}
@@ -17,8 +17,14 @@
 
 package org.apache.mahout.cf.taste.impl.neighborhood;
 
+import java.util.Random;
+
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.common.RandomUtils;
 
 /** <p>Tests {@link NearestNUserNeighborhood}.</p> */
 public final class NearestNNeighborhoodTest extends TasteTestCase {
@@ -49,4 +55,62 @@ public final class NearestNNeighborhoodTest extends TasteTestCase {
     assertTrue(arrayContains(neighborhood3, 3));
   }
 
+  public void testOverlappingNeighborhood() throws Exception {
+    DataModel dataModel = getDataModel();
+    UserSimilarity similarity = new DummySimilarity(dataModel);
+    long[] neighborhood = new NearestNUserNeighborhood(2, Double.NEGATIVE_INFINITY, similarity, dataModel, 1,
+        NearestNUserNeighborhood.NO_MAX_CANDIDATES).getUserNeighborhood(2);
+    assertEquals(2, neighborhood.length);
+    assertTrue(arrayContains(neighborhood, 1));
+    assertTrue(arrayContains(neighborhood, 3));
+
+    // user 1 shares only two items with the others
+    long[] neighborhood2 = new NearestNUserNeighborhood(3, Double.NEGATIVE_INFINITY, similarity, dataModel, 3,
+        NearestNUserNeighborhood.NO_MAX_CANDIDATES).getUserNeighborhood(2);
+    assertEquals(2, neighborhood2.length);
+    assertFalse(arrayContains(neighborhood2, 1));
+
+    // the one user compared shares the most items
+    long[] neighborhood3 = new NearestNUserNeighborhood(3, Double.NEGATIVE_INFINITY, similarity, dataModel, 1, 1)
+        .getUserNeighborhood(4);
+    assertEquals(1, neighborhood3.length);
+    assertFalse(arrayContains(neighborhood3, 1));
+    assertEquals(0, new NearestNUserNeighborhood(3, Double.NEGATIVE_INFINITY, similarity, dataModel, 1, 1)
+        .getUserNeighborhood(5).length);
+  }
+
+  public void testOverlappingMatchesExhaustive() throws Exception {
+    Random random = RandomUtils.getRandom();
+    int numUsers = 100;
+    int numItems = 40;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefValues = new Double[numUsers][numItems];
+    for (int u = 0; u < numUsers; u++) {
+      userIDs[u] = u;
+      for (int i = 0; i < numItems; i++) {
+        if (random.nextInt(5) == 0) {
+          prefValues[u][i] = 1.0 + 4.0 * random.nextDouble();
+        }
+      }
+    }
+    DataModel dataModel = getDataModel(userIDs, prefValues);
+    UserSimilarity[] similarities = {
+        new TanimotoCoefficientSimilarity(dataModel), new PearsonCorrelationSimilarity(dataModel)};
+    for (UserSimilarity similarity : similarities) {
+      NearestNUserNeighborhood exhaustive = new NearestNUserNeighborhood(5, similarity, dataModel);
+      NearestNUserNeighborhood overlapping = new NearestNUserNeighborhood(5, Double.NEGATIVE_INFINITY, similarity,
+          dataModel, 1, NearestNUserNeighborhood.NO_MAX_CANDIDATES);
+      for (long userID : userIDs) {
+        long[] expected = exhaustive.getUserNeighborhood(userID);
+        long[] actual = overlapping.getUserNeighborhood(userID);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+          // neighbors with equal similarity may come in either order
+          assertEquals(similarity.userSimilarity(userID, expected[i]), similarity.userSimilarity(userID, actual[i]),
+              EPSILON);
+        }
+      }
+    }
+  }
+
 }
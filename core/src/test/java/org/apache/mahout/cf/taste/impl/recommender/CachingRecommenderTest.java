@@ -17,8 +17,13 @@
 
 package org.apache.mahout.cf.taste.impl.recommender;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import org.apache.commons.lang.mutable.MutableInt;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 
@@ -73,4 +78,25 @@ public final class CachingRecommenderTest extends TasteTestCase {
     assertEquals(11, recommendCount.intValue());
   }
 
+  public void testStagedRefresh() throws Exception {
+    MutableInt recommendCount = new MutableInt();
+    Recommender cachingRecommender = new CachingRecommender(new MockRecommender(recommendCount));
+    cachingRecommender.recommend(1, 1);
+    cachingRecommender.recommend(2, 1);
+    assertEquals(2, recommendCount.intValue());
+
+    // cached recommendations keep being served until the new data is published...
+    List<Callable<?>> whenPublished = RefreshHelper.refreshStaged(RefreshHelper.buildRefreshed(null),
+        Collections.singletonList(cachingRecommender));
+    cachingRecommender.recommend(1, 1);
+    assertEquals(2, recommendCount.intValue());
+
+    // ... and are then recomputed
+    RefreshHelper.runPublished(whenPublished);
+    assertEquals(4, recommendCount.intValue());
+    cachingRecommender.recommend(1, 1);
+    cachingRecommender.recommend(2, 1);
+    assertEquals(4, recommendCount.intValue());
+  }
+
 }
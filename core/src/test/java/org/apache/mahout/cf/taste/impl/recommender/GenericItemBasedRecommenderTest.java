@@ -19,15 +19,21 @@ package org.apache.mahout.cf.taste.impl.recommender;
 
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
 import org.apache.mahout.cf.taste.impl.similarity.GenericItemSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.ItemSimilarityIndex;
+import org.apache.mahout.cf.taste.impl.similarity.LocalitySensitiveHashIndex;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.BatchRecommender;
 import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.common.RandomUtils;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 
 /** <p>Tests {@link GenericItemBasedRecommender}.</p> */
 public final class GenericItemBasedRecommenderTest extends TasteTestCase {
@@ -111,6 +117,145 @@ public final class GenericItemBasedRecommenderTest extends TasteTestCase {
     assertEquals(originalRecommended.get(1).getItemID(), rescoredRecommended.get(0).getItemID());
   }
 
+  public void testNeighborIndex() throws Exception {
+    Random random = RandomUtils.getRandom();
+    int numUsers = 20;
+    int numItems = 30;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefValues = new Double[numUsers][numItems];
+    for (int i = 0; i < numUsers; i++) {
+      userIDs[i] = i;
+      for (int j = 0; j < numItems; j++) {
+        if (random.nextBoolean()) {
+          prefValues[i][j] = (double) (1 + random.nextInt(5));
+        }
+      }
+    }
+    DataModel dataModel = getDataModel(userIDs, prefValues);
+    Collection<GenericItemSimilarity.ItemItemSimilarity> similarities =
+        new ArrayList<GenericItemSimilarity.ItemItemSimilarity>();
+    for (int i = 0; i < numItems; i++) {
+      for (int j = i + 1; j < numItems; j++) {
+        similarities.add(new GenericItemSimilarity.ItemItemSimilarity(i, j, random.nextDouble()));
+      }
+    }
+    ItemSimilarityIndex index = new ItemSimilarityIndex(similarities);
+    ItemSimilarity similarity = new GenericItemSimilarity(index);
+    Recommender expected = new GenericItemBasedRecommender(dataModel, similarity);
+    Recommender fromNeighbors = new GenericItemBasedRecommender(dataModel, similarity, index);
+    for (long userID : userIDs) {
+      List<RecommendedItem> expectedItems = expected.recommend(userID, 5);
+      List<RecommendedItem> items = fromNeighbors.recommend(userID, 5);
+      assertEquals(expectedItems.size(), items.size());
+      for (int i = 0; i < items.size(); i++) {
+        assertEquals(expectedItems.get(i).getItemID(), items.get(i).getItemID());
+        assertEquals(expectedItems.get(i).getValue(), items.get(i).getValue(), EPSILON);
+      }
+    }
+
+    // with only the most similar items, estimates are based on those
+    index = new ItemSimilarityIndex(similarities, 3);
+    fromNeighbors = new GenericItemBasedRecommender(dataModel, similarity, index);
+    for (RecommendedItem item : fromNeighbors.recommend(0, 5)) {
+      assertFalse(dataModel.getItemIDsFromUser(0).contains(item.getItemID()));
+    }
+  }
+
+  public void testBatch() throws Exception {
+    Random random = RandomUtils.getRandom();
+    int numUsers = 20;
+    int numItems = 30;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefValues = new Double[numUsers][numItems];
+    for (int i = 0; i < numUsers; i++) {
+      userIDs[i] = i;
+      for (int j = 0; j < numItems; j++) {
+        if (random.nextDouble() < 0.3) {
+          prefValues[i][j] = (double) (1 + random.nextInt(5));
+        }
+      }
+    }
+    DataModel dataModel = getDataModel(userIDs, prefValues);
+    Collection<GenericItemSimilarity.ItemItemSimilarity> similarities =
+        new ArrayList<GenericItemSimilarity.ItemItemSimilarity>();
+    for (int i = 0; i < numItems; i++) {
+      for (int j = i + 1; j < numItems; j++) {
+        similarities.add(new GenericItemSimilarity.ItemItemSimilarity(i, j, random.nextDouble()));
+      }
+    }
+    ItemSimilarityIndex index = new ItemSimilarityIndex(similarities);
+    ItemSimilarity similarity = new GenericItemSimilarity(similarities);
+    assertBatchEquals(new GenericItemBasedRecommender(dataModel, similarity), userIDs);
+    assertBatchEquals(new GenericItemBasedRecommender(dataModel, similarity, index), userIDs);
+  }
+
+  static void assertBatchEquals(BatchRecommender recommender, long[] userIDs) throws Exception {
+    List<List<RecommendedItem>> batch = recommender.recommend(userIDs, 5, new ReversingRescorer<Long>());
+    assertEquals(userIDs.length, batch.size());
+    for (int u = 0; u < userIDs.length; u++) {
+      List<RecommendedItem> expectedItems = recommender.recommend(userIDs[u], 5, new ReversingRescorer<Long>());
+      List<RecommendedItem> items = batch.get(u);
+      assertEquals(expectedItems.size(), items.size());
+      for (int i = 0; i < items.size(); i++) {
+        assertEquals(expectedItems.get(i).getItemID(), items.get(i).getItemID());
+        assertEquals(expectedItems.get(i).getValue(), items.get(i).getValue(), EPSILON);
+      }
+    }
+  }
+
+  public void testOverriddenEstimate() throws Exception {
+    Random random = RandomUtils.getRandom();
+    int numUsers = 10;
+    int numItems = 20;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefValues = new Double[numUsers][numItems];
+    for (int i = 0; i < numUsers; i++) {
+      userIDs[i] = i;
+      for (int j = 0; j < numItems; j++) {
+        if (random.nextDouble() < 0.3) {
+          prefValues[i][j] = (double) (1 + random.nextInt(5));
+        }
+      }
+    }
+    DataModel dataModel = getDataModel(userIDs, prefValues);
+    Collection<GenericItemSimilarity.ItemItemSimilarity> similarities =
+        new ArrayList<GenericItemSimilarity.ItemItemSimilarity>();
+    for (int i = 0; i < numItems; i++) {
+      for (int j = i + 1; j < numItems; j++) {
+        similarities.add(new GenericItemSimilarity.ItemItemSimilarity(i, j, random.nextDouble()));
+      }
+    }
+    ItemSimilarityIndex index = new ItemSimilarityIndex(similarities);
+    ItemSimilarity similarity = new GenericItemSimilarity(index);
+    BatchRecommender[] recommenders = {
+        new ItemIDEstimatingRecommender(dataModel, similarity, null),
+        new ItemIDEstimatingRecommender(dataModel, similarity, index),
+    };
+    for (BatchRecommender recommender : recommenders) {
+      for (RecommendedItem item : recommender.recommend(0, 5)) {
+        assertEquals(item.getItemID(), item.getValue(), EPSILON);
+      }
+      for (List<RecommendedItem> items : recommender.recommend(userIDs, 5, null)) {
+        for (RecommendedItem item : items) {
+          assertEquals(item.getItemID(), item.getValue(), EPSILON);
+        }
+      }
+    }
+  }
+
+  /** Estimates each preference as the item's ID. */
+  private static final class ItemIDEstimatingRecommender extends GenericItemBasedRecommender {
+    private ItemIDEstimatingRecommender(DataModel dataModel,
+                                        ItemSimilarity similarity,
+                                        ItemSimilarityIndex neighborIndex) {
+      super(dataModel, similarity, neighborIndex);
+    }
+    @Override
+    protected float doEstimatePreference(long userID, long itemID) {
+      return itemID;
+    }
+  }
+
   public void testEstimatePref() throws Exception {
     Recommender recommender = buildRecommender();
     assertEquals(0.1f, recommender.estimatePreference(1, 2), EPSILON);
@@ -158,6 +303,30 @@ public final class GenericItemBasedRecommenderTest extends TasteTestCase {
     assertEquals(-0.3f, second.getValue(), EPSILON);
   }
 
+  public void testMostSimilarFromCandidateIndex() throws Exception {
+    DataModel dataModel = getClusteredBooleanDataModel(10, 10, 20);
+    ItemSimilarity similarity = new TanimotoCoefficientSimilarity(dataModel);
+    LocalitySensitiveHashIndex candidateIndex = new LocalitySensitiveHashIndex(dataModel, false,
+        LocalitySensitiveHashIndex.HashFamily.MIN_HASH, 8, 2);
+    ItemBasedRecommender exact = new GenericItemBasedRecommender(dataModel, similarity);
+    ItemBasedRecommender recommender = new GenericItemBasedRecommender(dataModel, similarity, null, candidateIndex);
+    List<RecommendedItem> expected = exact.mostSimilarItems(5005L, 10);
+    List<RecommendedItem> similar = recommender.mostSimilarItems(5005L, 10);
+    assertEquals(10, similar.size());
+    int found = 0;
+    for (RecommendedItem item : similar) {
+      assertEquals(5, item.getItemID() / 1000);
+      for (RecommendedItem expectedItem : expected) {
+        if (expectedItem.getItemID() == item.getItemID()) {
+          found++;
+        }
+      }
+    }
+    assertTrue(found >= 8);
+    recommender.refresh(null);
+    assertEquals(10, recommender.mostSimilarItems(new long[] {5005L, 5006L}, 10).size());
+  }
+
   public void testRecommendedBecause() throws Exception {
     ItemBasedRecommender recommender = buildRecommender2();
     List<RecommendedItem> recommendedBecause = recommender.recommendedBecause(1, 4, 3);
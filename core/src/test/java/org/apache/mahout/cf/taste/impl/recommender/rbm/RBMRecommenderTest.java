@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.PlusAnonymousUserDataModel;
+import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+/** <p>Tests {@link RBMRecommender}.</p> */
+public final class RBMRecommenderTest extends TasteTestCase {
+
+  private static DataModel getRatingsModel() {
+    return getDataModel(
+            new long[] {1, 2, 3, 4, 5, 6},
+            new Double[][] {
+                    {5.0, 4.0, null, null, 1.0},
+                    {5.0, 5.0, 4.0, 1.0, 1.0},
+                    {4.0, null, 5.0, 2.0, 1.0},
+                    {1.0, 2.0, 1.0, 5.0, 4.0},
+                    {null, 1.0, 2.0, 4.0, 5.0},
+                    {2.0, 1.0, 1.0, 5.0, null},
+            });
+  }
+
+  public void testRecommend() throws Exception {
+    RBMRecommender recommender = new RBMRecommender(getRatingsModel(), 5, 4, 5,
+        0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    List<RecommendedItem> recommended = recommender.recommend(1, 5);
+    assertEquals(2, recommended.size());
+    float previous = Float.POSITIVE_INFINITY;
+    for (RecommendedItem item : recommended) {
+      assertTrue(item.getItemID() == 2 || item.getItemID() == 3);
+      assertTrue(item.getValue() >= 1.0f && item.getValue() <= 5.0f);
+      assertTrue(item.getValue() <= previous);
+      assertEquals(recommender.estimatePreference(1, item.getItemID()), item.getValue(), EPSILON);
+      previous = item.getValue();
+    }
+  }
+
+  public void testRetrainInvalidates() throws Exception {
+    RBMRecommender recommender = new RBMRecommender(getRatingsModel(), 2, 4, 5,
+        0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    float before = recommender.estimatePreference(1, 2);
+    recommender.refresh(null);
+    assertEquals(before, recommender.estimatePreference(1, 2), EPSILON);
+    recommender.train(3);
+    float after = recommender.estimatePreference(1, 2);
+    assertTrue(before != after);
+    recommender.refresh(null);
+    assertEquals(after, recommender.estimatePreference(1, 2), EPSILON);
+  }
+
+  public void testAnonymousUser() throws Exception {
+    PlusAnonymousUserDataModel dataModel = new PlusAnonymousUserDataModel(getRatingsModel());
+    RBMRecommender recommender = new RBMRecommender(dataModel, 5, 4, 5,
+        0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    long anonymous = PlusAnonymousUserDataModel.TEMP_USER_ID;
+    dataModel.setTempPrefs(tempPrefs(dataModel.getPreferencesFromUser(1)));
+    assertEquals(recommender.estimatePreference(1, 2), recommender.estimatePreference(anonymous, 2), EPSILON);
+    dataModel.setTempPrefs(tempPrefs(dataModel.getPreferencesFromUser(5)));
+    assertEquals(recommender.estimatePreference(5, 0), recommender.estimatePreference(anonymous, 0), EPSILON);
+  }
+
+  public void testOnlineUpdate() throws Exception {
+    File dataFile = getTestTempFile("ratings.txt");
+    writeLines(dataFile, "1,0,5", "1,1,4", "1,4,1", "2,0,5", "2,1,5", "2,2,4", "2,3,1", "3,0,4", "3,2,5",
+        "4,0,1", "4,1,2", "4,3,5", "4,4,4", "5,1,1", "5,2,2", "5,3,4", "5,4,5");
+    DataModel dataModel = new FileDataModel(dataFile);
+    RBMRecommender recommender = new RBMRecommender(dataModel, 3, 4, 5,
+        0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    recommender.setOnlineUpdates(10, 5);
+    File checkpointFile = getTestTempFile("checkpoint.bin");
+    recommender.setCheckpoint(checkpointFile, 1);
+
+    float before = recommender.estimatePreference(5, 0);
+    recommender.refresh(null);
+    assertEquals(before, recommender.estimatePreference(5, 0), EPSILON);
+    assertFalse(checkpointFile.exists());
+
+    File updateFile = getTestTempFile("ratings.1.txt");
+    writeLines(updateFile, "1,2,1", "1,3,5");
+    // newer than the minimum reload interval of FileDataModel
+    updateFile.setLastModified(System.currentTimeMillis() + 120000L);
+    recommender.refresh(null);
+    assertTrue(before != recommender.estimatePreference(5, 0));
+
+    DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile));
+    RBMStateWritable writable = new RBMStateWritable();
+    try {
+      writable.readFields(in);
+    } finally {
+      in.close();
+    }
+    assertEquals(5, writable.get().numItems);
+  }
+
+  private static void writeLines(File file, String... lines) throws Exception {
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try {
+      for (String line : lines) {
+        writer.println(line);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static PreferenceArray tempPrefs(PreferenceArray prefs) {
+    PreferenceArray temp = new GenericUserPreferenceArray(prefs.length());
+    temp.setUserID(0, PlusAnonymousUserDataModel.TEMP_USER_ID);
+    for (int i = 0; i < prefs.length(); i++) {
+      temp.setItemID(i, prefs.getItemID(i));
+      temp.setValue(i, prefs.getValue(i));
+    }
+    return temp;
+  }
+
+}
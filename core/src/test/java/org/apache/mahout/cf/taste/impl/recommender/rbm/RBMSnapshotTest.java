@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.rbm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+public final class RBMSnapshotTest extends TasteTestCase {
+
+  private static final int NUM_ITEMS = 100;
+  private static final int NUM_FEATURES = 20;
+
+  public void testHalfConversion() {
+    float[] exact = {0.0f, -0.0f, 1.0f, -2.5f, 0.099975586f, 65504.0f, 6.1035156E-5f, 5.9604645E-8f};
+    for (float f : exact) {
+      assertEquals(f, RBMSnapshot.halfToFloat(RBMSnapshot.floatToHalf(f)));
+    }
+    // halfway between 1 and the next half, 1 + 2^-10, rounds to even
+    assertEquals(1.0f, RBMSnapshot.halfToFloat(RBMSnapshot.floatToHalf(1.0f + 1.0f / 2048)));
+    assertEquals(Float.POSITIVE_INFINITY, RBMSnapshot.halfToFloat(RBMSnapshot.floatToHalf(1.0e6f)));
+    assertEquals(0.0f, RBMSnapshot.halfToFloat(RBMSnapshot.floatToHalf(1.0e-9f)));
+    assertTrue(Float.isNaN(RBMSnapshot.halfToFloat(RBMSnapshot.floatToHalf(Float.NaN))));
+  }
+
+  public void testQuantizedRMSE() throws Exception {
+    List<Vector> users = randomUsers(1000);
+    RBMState state = new RBMState(NUM_ITEMS, NUM_FEATURES, 5, 0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    new RBMTrainer(state, users, 1, RBMTrainer.DEFAULT_BATCH_SIZE).train();
+
+    double reference = rmse(RBMSnapshot.of(state, RBMPrecision.FLOAT64), users);
+    assertTrue(reference < 1.0);
+    assertEquals(reference, rmse(RBMSnapshot.of(state, RBMPrecision.FLOAT32), users), 0.0001);
+    assertEquals(reference, rmse(RBMSnapshot.of(state, RBMPrecision.FLOAT16), users), 0.001);
+    assertEquals(reference, rmse(RBMSnapshot.of(state, RBMPrecision.INT8), users), 0.005);
+
+    long doubleBytes = RBMSnapshot.of(state, RBMPrecision.FLOAT64).getWeightBytes();
+    assertEquals(doubleBytes / 4, RBMSnapshot.of(state, RBMPrecision.FLOAT16).getWeightBytes());
+    assertTrue(RBMSnapshot.of(state, RBMPrecision.INT8).getWeightBytes() < doubleBytes / 6);
+  }
+
+  public void testTopItems() throws Exception {
+    List<Vector> users = randomUsers(1000);
+    RBMState state = new RBMState(NUM_ITEMS, NUM_FEATURES, 5, 0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    new RBMTrainer(state, users, 1, RBMTrainer.DEFAULT_BATCH_SIZE).train();
+
+    int numScored = 0;
+    int numCandidates = 0;
+    for (RBMPrecision precision : new RBMPrecision[] {RBMPrecision.FLOAT64, RBMPrecision.INT8}) {
+      RBMSnapshot snapshot = RBMSnapshot.of(state, precision);
+      RBMTopItems search = new RBMTopItems(snapshot);
+      double[] probs = new double[NUM_FEATURES];
+      double[] all = new double[NUM_ITEMS];
+      int[] items = new int[10];
+      double[] estimates = new double[10];
+      for (Vector user : users.subList(0, 50)) {
+        snapshot.hiddenProbabilities(user, probs);
+        snapshot.estimateAll(probs, all);
+        double norm = RBMSnapshot.norm(probs);
+        BitSet rated = new BitSet(NUM_ITEMS);
+        Iterator<Vector.Element> it = user.iterateNonZero();
+        while (it.hasNext()) {
+          rated.set(it.next().index());
+        }
+        for (int item = 0; item < NUM_ITEMS; item++) {
+          assertTrue(snapshot.upperBound(norm, item) >= all[item]);
+          if (rated.get(item)) {
+            all[item] = Double.NEGATIVE_INFINITY;
+          }
+        }
+
+        assertEquals(10, search.getTopItems(probs, 10, rated, items, estimates));
+        double[] sorted = all.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < 10; i++) {
+          assertEquals(sorted[NUM_ITEMS - 1 - i], estimates[i], EPSILON);
+          assertEquals(all[items[i]], estimates[i], EPSILON);
+        }
+        numScored += search.getNumScored();
+        numCandidates += search.getNumCandidates();
+      }
+    }
+    assertTrue(numScored < numCandidates);
+  }
+
+  public void testFloat32Checkpoint() throws Exception {
+    RBMState state = new RBMState(NUM_ITEMS, NUM_FEATURES, 5, 0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    state.initialize(RandomUtils.getRandom());
+    int doubleSize = serialize(state).length;
+    state.setPrecision(RBMPrecision.FLOAT32);
+    byte[] bytes = serialize(state);
+    assertTrue(bytes.length < doubleSize / 2 + 100);
+
+    RBMStateWritable writable = new RBMStateWritable();
+    writable.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+    RBMState read = writable.get();
+    assertSame(RBMPrecision.FLOAT32, read.getPrecision());
+    double[] expected = state.vishid.getValues();
+    double[] actual = read.vishid.getValues();
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals((float) expected[i], (float) actual[i]);
+    }
+    assertEquals((float) state.visbiases[7][3], (float) read.visbiases[7][3]);
+  }
+
+  public void testQuantizedTrainingRejected() {
+    RBMState state = new RBMState(NUM_ITEMS, NUM_FEATURES, 5, 0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    try {
+      state.setPrecision(RBMPrecision.INT8);
+      fail();
+    } catch (IllegalArgumentException iae) {
+      // good
+    }
+  }
+
+  public void testQuantizedCheckpointRejected() throws Exception {
+    RBMState state = new RBMState(NUM_ITEMS, NUM_FEATURES, 5, 0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    state.setPrecision(RBMPrecision.FLOAT32);
+    byte[] bytes = serialize(state);
+    // the precision follows the format
+    bytes[1] = (byte) RBMPrecision.INT8.ordinal();
+    try {
+      new RBMStateWritable().readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+      fail();
+    } catch (IOException ioe) {
+      // good
+    }
+  }
+
+  private static byte[] serialize(RBMState state) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    new RBMStateWritable(state).write(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /** Users whose ratings follow one latent taste, so that an RBM can learn them */
+  private static List<Vector> randomUsers(int numUsers) {
+    Random random = RandomUtils.getRandom();
+    double[] itemTaste = new double[NUM_ITEMS];
+    for (int i = 0; i < NUM_ITEMS; i++) {
+      itemTaste[i] = random.nextGaussian();
+    }
+    List<Vector> users = new ArrayList<Vector>(numUsers);
+    for (int u = 0; u < numUsers; u++) {
+      double userTaste = random.nextGaussian();
+      Vector ratings = new RandomAccessSparseVector(NUM_ITEMS);
+      for (int k = 0; k < 20; k++) {
+        int item = random.nextInt(NUM_ITEMS);
+        double rating = Math.round(3.0 + userTaste * itemTaste[item] + 0.3 * random.nextGaussian());
+        ratings.set(item, Math.max(1.0, Math.min(5.0, rating)));
+      }
+      users.add(ratings);
+    }
+    return users;
+  }
+
+  private static double rmse(RBMSnapshot snapshot, List<Vector> users) {
+    double[] probs = new double[snapshot.getTotalFeatures()];
+    double squaredError = 0.0;
+    int count = 0;
+    for (Vector user : users) {
+      snapshot.hiddenProbabilities(user, probs);
+      Iterator<Vector.Element> it = user.iterateNonZero();
+      while (it.hasNext()) {
+        Vector.Element e = it.next();
+        double delta = e.get() - snapshot.estimate(probs, e.index());
+        squaredError += delta * delta;
+        count++;
+      }
+    }
+    return Math.sqrt(squaredError / count);
+  }
+
+}
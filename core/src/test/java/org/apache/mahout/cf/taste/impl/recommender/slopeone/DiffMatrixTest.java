@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.slopeone;
+
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.FullRunningAverageAndStdDev;
+import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.apache.mahout.cf.taste.impl.common.RunningAverageAndStdDev;
+import org.apache.mahout.common.RandomUtils;
+
+/** Tests {@link DiffMatrix}. */
+public final class DiffMatrixTest extends TasteTestCase {
+
+  public void testAgainstRunningAverages() {
+    Random random = RandomUtils.getRandom();
+    int numItems = 50;
+    long[] itemIDs = new long[numItems];
+    for (int i = 0; i < numItems; i++) {
+      itemIDs[i] = 3L * i - 20L;
+    }
+    DiffMatrix matrix = new DiffMatrix(itemIDs, true, Long.MAX_VALUE);
+    RunningAverageAndStdDev[][] expected = new RunningAverageAndStdDev[numItems][numItems];
+    for (int i = 0; i < 20000; i++) {
+      int index1 = random.nextInt(numItems);
+      int index2 = random.nextInt(numItems / 2);
+      float diff = random.nextInt(9) - 4.0f;
+      matrix.addDatum(index1, index2, diff);
+      if (index1 != index2) {
+        addDatum(expected, index1, index2, diff);
+        addDatum(expected, index2, index1, -diff);
+      }
+    }
+    for (int index1 = 0; index1 < numItems; index1++) {
+      for (int index2 = 0; index2 < numItems; index2++) {
+        assertDiffEquals(expected[index1][index2], matrix.getDiff(index1, index2));
+      }
+    }
+
+    matrix.prune(10);
+    for (int index1 = 0; index1 < numItems; index1++) {
+      for (int index2 = 0; index2 < numItems; index2++) {
+        RunningAverageAndStdDev average = expected[index1][index2];
+        assertDiffEquals(average == null || average.getCount() < 10 ? null : average,
+            matrix.getDiff(index1, index2));
+      }
+    }
+  }
+
+  public void testMaxEntries() {
+    DiffMatrix matrix = new DiffMatrix(new long[] {1L, 2L, 3L, 4L}, false, 2L);
+    matrix.addDatum(0, 1, 1.0f);
+    matrix.addDatum(2, 1, 1.0f);
+    matrix.addDatum(2, 3, 1.0f);
+    matrix.addDatum(1, 0, 1.0f);
+    assertEquals(2L, matrix.getNumEntries());
+    assertEquals(2, matrix.getDiff(0, 1).getCount());
+    assertEquals(0.0, matrix.getDiff(1, 0).getAverage(), EPSILON);
+    assertNull(matrix.getDiff(2, 3));
+    FastIDSet itemIDs = matrix.getItemIDsWithDiffs();
+    assertEquals(3, itemIDs.size());
+    assertFalse(itemIDs.contains(4L));
+  }
+
+  public void testUpdateItem() {
+    DiffMatrix matrix = new DiffMatrix(new long[] {1L, 2L, 3L}, false, Long.MAX_VALUE);
+    matrix.addDatum(0, 1, 1.0f);
+    matrix.addDatum(0, 1, 2.0f);
+    matrix.addDatum(1, 2, 3.0f);
+    matrix.updateItem(1, 1.0f, false);
+    assertEquals(2.0, matrix.getDiff(0, 1).getAverage(), EPSILON);
+    assertEquals(2.0, matrix.getDiff(1, 2).getAverage(), EPSILON);
+    matrix.updateItem(1, 1.0f, true);
+    RunningAverage average = matrix.getDiff(0, 1);
+    assertEquals(1, average.getCount());
+    assertEquals(5.0, average.getAverage(), EPSILON);
+    assertEquals(0, matrix.getDiff(2, 1).getCount());
+  }
+
+  private static void addDatum(RunningAverageAndStdDev[][] averages, int index1, int index2, float diff) {
+    if (averages[index1][index2] == null) {
+      averages[index1][index2] = new FullRunningAverageAndStdDev();
+    }
+    averages[index1][index2].addDatum(diff);
+  }
+
+  private static void assertDiffEquals(RunningAverageAndStdDev expected, RunningAverage actual) {
+    if (expected == null) {
+      assertNull(actual);
+    } else {
+      assertEquals(expected.getCount(), actual.getCount());
+      assertEquals(expected.getAverage(), actual.getAverage(), EPSILON);
+      double expectedStdDev = expected.getStandardDeviation();
+      double actualStdDev = ((RunningAverageAndStdDev) actual).getStandardDeviation();
+      if (Double.isNaN(expectedStdDev)) {
+        assertTrue(Double.isNaN(actualStdDev));
+      } else {
+        assertEquals(expectedStdDev, actualStdDev, 0.001);
+      }
+    }
+  }
+
+}
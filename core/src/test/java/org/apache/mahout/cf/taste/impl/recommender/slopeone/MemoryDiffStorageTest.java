@@ -17,10 +17,15 @@
 
 package org.apache.mahout.cf.taste.impl.recommender.slopeone;
 
+import java.util.Random;
+
 import org.apache.mahout.cf.taste.common.Weighting;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.apache.mahout.cf.taste.impl.common.RunningAverageAndStdDev;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.common.RandomUtils;
 
 /** Tests {@link MemoryDiffStorage}. */
 public class MemoryDiffStorageTest extends TasteTestCase {
@@ -51,4 +56,82 @@ public class MemoryDiffStorageTest extends TasteTestCase {
     assertEquals(2, average.getCount());
   }
 
+  public void testParallelBuild() throws Exception {
+    Random random = RandomUtils.getRandom();
+    long[] userIDs = new long[200];
+    Double[][] prefValues = new Double[userIDs.length][30];
+    for (int i = 0; i < userIDs.length; i++) {
+      userIDs[i] = i;
+      for (int j = 0; j < prefValues[i].length; j++) {
+        if (random.nextDouble() < 0.3) {
+          prefValues[i][j] = (double) (1 + random.nextInt(5));
+        }
+      }
+    }
+    DataModel model = getDataModel(userIDs, prefValues);
+    MemoryDiffStorage serial = new MemoryDiffStorage(model, Weighting.WEIGHTED, false, Long.MAX_VALUE, 1);
+    MemoryDiffStorage parallel = new MemoryDiffStorage(model, Weighting.WEIGHTED, false, Long.MAX_VALUE, 3);
+    assertSameDiffs(serial, parallel, 30);
+    FastIDSet expected = serial.getRecommendableItemIDs(0);
+    FastIDSet actual = parallel.getRecommendableItemIDs(0);
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.size(), actual.intersectionSize(expected));
+  }
+
+  public void testIncrementalUpdate() throws Exception {
+    long[] userIDs = {1, 2, 3, 4};
+    DataModel without = getDataModel(userIDs,
+        new Double[][] {{0.1, 0.3, null}, {0.2, 0.3, 0.3}, {0.4, 0.3, 0.5}, {0.7, 0.3, 0.8}});
+    DataModel with = getDataModel(userIDs,
+        new Double[][] {{0.1, 0.3, 0.6}, {0.2, 0.3, 0.3}, {0.4, 0.3, 0.5}, {0.7, 0.3, 0.8}});
+    DataModel changed = getDataModel(userIDs,
+        new Double[][] {{0.1, 0.3, 0.9}, {0.2, 0.3, 0.3}, {0.4, 0.3, 0.5}, {0.7, 0.3, 0.8}});
+
+    MemoryDiffStorage storage = new MemoryDiffStorage(without, Weighting.WEIGHTED, false, Long.MAX_VALUE);
+    storage.updateItemPref(1, 2, null, 0.6f);
+    assertSameDiffs(new MemoryDiffStorage(with, Weighting.WEIGHTED, false, Long.MAX_VALUE), storage, 3);
+
+    storage = new MemoryDiffStorage(with, Weighting.WEIGHTED, false, Long.MAX_VALUE);
+    storage.updateItemPref(1, 2, 0.6f, 0.9f);
+    assertSameDiffs(new MemoryDiffStorage(changed, Weighting.WEIGHTED, false, Long.MAX_VALUE), storage, 3);
+
+    storage = new MemoryDiffStorage(with, Weighting.WEIGHTED, false, Long.MAX_VALUE);
+    storage.updateItemPref(1, 2, 0.6f, null);
+    assertSameDiffs(new MemoryDiffStorage(without, Weighting.WEIGHTED, false, Long.MAX_VALUE), storage, 3);
+  }
+
+  public void testIncrementalUpdateAddsNoPair() throws Exception {
+    long[] userIDs = {1, 2, 3};
+    DataModel model = getDataModel(userIDs,
+        new Double[][] {{0.1, 0.3, null}, {0.2, 0.3, null}, {null, null, 0.5}});
+    MemoryDiffStorage storage = new MemoryDiffStorage(model, Weighting.WEIGHTED, false, Long.MAX_VALUE);
+    storage.updateItemPref(1, 2, null, 0.6f);
+    // a rebuild would prune the pairs with item 2, which would have a single diff each
+    assertNull(storage.getDiff(0, 2));
+    assertNull(storage.getDiff(1, 2));
+    assertEquals(2, storage.getAverageItemPref(2).getCount());
+    assertFalse(storage.getRecommendableItemIDs(1).contains(2));
+  }
+
+  private static void assertSameDiffs(MemoryDiffStorage expected, MemoryDiffStorage actual, int numItems) {
+    for (long itemID1 = 0; itemID1 < numItems; itemID1++) {
+      RunningAverage expectedAverage = expected.getAverageItemPref(itemID1);
+      RunningAverage actualAverage = actual.getAverageItemPref(itemID1);
+      assertEquals(expectedAverage.getCount(), actualAverage.getCount());
+      assertEquals(expectedAverage.getAverage(), actualAverage.getAverage(), EPSILON);
+      for (long itemID2 = 0; itemID2 < numItems; itemID2++) {
+        RunningAverage expectedDiff = expected.getDiff(itemID1, itemID2);
+        RunningAverage actualDiff = actual.getDiff(itemID1, itemID2);
+        if (expectedDiff == null) {
+          assertNull(actualDiff);
+        } else {
+          assertEquals(expectedDiff.getCount(), actualDiff.getCount());
+          assertEquals(expectedDiff.getAverage(), actualDiff.getAverage(), EPSILON);
+          assertEquals(((RunningAverageAndStdDev) expectedDiff).getStandardDeviation(),
+              ((RunningAverageAndStdDev) actualDiff).getStandardDeviation(), 0.0001);
+        }
+      }
+    }
+  }
+
 }
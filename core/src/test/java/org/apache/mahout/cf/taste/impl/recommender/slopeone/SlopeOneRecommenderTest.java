@@ -21,6 +21,7 @@ import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
 import org.apache.mahout.cf.taste.impl.recommender.ReversingRescorer;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.BatchRecommender;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 
@@ -86,6 +87,31 @@ public final class SlopeOneRecommenderTest extends TasteTestCase {
     assertEquals(originalRecommended.get(1).getItemID(), rescoredRecommended.get(0).getItemID());
   }
 
+  public void testBatch() throws Exception {
+    DataModel dataModel = getDataModel(
+            new long[] {1, 2, 3, 4, 5},
+            new Double[][] {
+                    {0.1, 0.2},
+                    {0.2, 0.3, 0.3, 0.6},
+                    {0.4, 0.4, 0.5, 0.9},
+                    {0.1, 0.4, 0.5, 0.8, 0.9, 1.0},
+                    {0.2, 0.3, 0.6, 0.7, 0.1, 0.2},
+            });
+    BatchRecommender recommender = new SlopeOneRecommender(dataModel);
+    long[] userIDs = {5, 1, 3, 2, 4};
+    List<List<RecommendedItem>> batch = recommender.recommend(userIDs, 3);
+    assertEquals(userIDs.length, batch.size());
+    for (int u = 0; u < userIDs.length; u++) {
+      List<RecommendedItem> expectedItems = recommender.recommend(userIDs[u], 3);
+      List<RecommendedItem> items = batch.get(u);
+      assertEquals(expectedItems.size(), items.size());
+      for (int i = 0; i < items.size(); i++) {
+        assertEquals(expectedItems.get(i).getItemID(), items.get(i).getItemID());
+        assertEquals(expectedItems.get(i).getValue(), items.get(i).getValue(), EPSILON);
+      }
+    }
+  }
+
   public void testEstimatePref() throws Exception {
     Recommender recommender = buildRecommender();
     assertEquals(0.34803885284992736, recommender.estimatePreference(1, 2), EPSILON);
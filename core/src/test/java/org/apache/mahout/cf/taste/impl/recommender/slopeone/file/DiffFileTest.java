@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.slopeone.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.apache.mahout.common.RandomUtils;
+
+/** <p>Tests {@link DiffFile} and {@link FileDiffStorage} over one.</p> */
+public final class DiffFileTest extends TasteTestCase {
+
+  public void testWriteAndMap() throws Exception {
+    Random random = RandomUtils.getRandom();
+    int numItems = 200;
+    float[][] averages = new float[numItems][numItems];
+    int[][] counts = new int[numItems][numItems];
+    File diffFile = getTestTempFile("diffs.bin");
+    DiffFile.Writer writer = new DiffFile.Writer(diffFile);
+    int numEntries = 0;
+    for (int i = 0; i < numItems; i++) {
+      for (int j = i + 1; j < numItems; j++) {
+        if (random.nextInt(10) == 0) {
+          averages[i][j] = 8.0f * random.nextFloat() - 4.0f;
+          counts[i][j] = 1 + random.nextInt(100);
+          writer.add(itemID(i), itemID(j), averages[i][j], counts[i][j]);
+          numEntries++;
+        }
+      }
+    }
+    writer.close();
+
+    assertTrue(DiffFile.isDiffFile(diffFile));
+    DiffFile diffs = new DiffFile(diffFile);
+    assertEquals(numEntries, diffs.getNumEntries());
+    FastIDSet itemIDs = diffs.getItemIDs();
+    assertEquals(diffs.getNumItems(), itemIDs.size());
+    for (int i = 0; i < numItems; i++) {
+      for (int j = 0; j < numItems; j++) {
+        RunningAverage diff = diffs.getDiff(itemID(i), itemID(j));
+        int count = i < j ? counts[i][j] : counts[j][i];
+        if (count == 0) {
+          assertNull(diff);
+        } else {
+          assertTrue(itemIDs.contains(itemID(i)));
+          assertEquals(count, diff.getCount());
+          assertEquals(i < j ? averages[i][j] : -averages[j][i], diff.getAverage(), EPSILON);
+        }
+      }
+    }
+    assertNull(diffs.getDiff(-1L, itemID(0)));
+    assertNull(diffs.getDiff(itemID(numItems), itemID(0)));
+  }
+
+  public void testEmpty() throws Exception {
+    File diffFile = getTestTempFile("empty.bin");
+    new DiffFile.Writer(diffFile).close();
+    DiffFile diffs = new DiffFile(diffFile);
+    assertEquals(0L, diffs.getNumEntries());
+    assertEquals(0, diffs.getItemIDs().size());
+    assertNull(diffs.getDiff(1L, 2L));
+  }
+
+  public void testOutOfOrder() throws Exception {
+    DiffFile.Writer writer = new DiffFile.Writer(getTestTempFile("unordered.bin"));
+    try {
+      writer.add(1L, 3L, 1.0f, 2);
+      try {
+        writer.add(1L, 2L, 1.0f, 2);
+        fail();
+      } catch (IllegalArgumentException iae) {
+        // good
+      }
+      try {
+        writer.add(4L, 4L, 1.0f, 2);
+        fail();
+      } catch (IllegalArgumentException iae) {
+        // good
+      }
+      writer.add(2L, 3L, 1.0f, 2);
+    } finally {
+      writer.close();
+    }
+  }
+
+  public void testNotDiffFile() throws Exception {
+    File textFile = getTestTempFile("diffs.txt");
+    writeLines(textFile, "1,2,0.5", "1,2,1.5", "2,3,-1.0");
+    assertFalse(DiffFile.isDiffFile(textFile));
+    try {
+      new DiffFile(textFile);
+      fail();
+    } catch (IOException ioe) {
+      // good
+    }
+  }
+
+  public void testFileDiffStorage() throws Exception {
+    File textFile = getTestTempFile("diffs.txt");
+    writeLines(textFile, "1,2,0.5", "1,2,1.5", "2,3,1.0", "2,3,2.0", "1,3,1.0");
+    File diffFile = getTestTempFile("diffs.bin");
+    DiffFile.Writer writer = new DiffFile.Writer(diffFile);
+    writer.add(1L, 2L, 1.0f, 2);
+    writer.add(2L, 3L, 1.5f, 2);
+    writer.close();
+
+    FileDiffStorage text = new FileDiffStorage(textFile, Long.MAX_VALUE);
+    FileDiffStorage mapped = new FileDiffStorage(diffFile, Long.MAX_VALUE);
+    for (long itemID1 = 1L; itemID1 <= 4L; itemID1++) {
+      for (long itemID2 = 1L; itemID2 <= 4L; itemID2++) {
+        RunningAverage expected = text.getDiff(itemID1, itemID2);
+        RunningAverage actual = mapped.getDiff(itemID1, itemID2);
+        if (expected == null) {
+          assertNull(actual);
+        } else {
+          assertEquals(expected.getCount(), actual.getCount());
+          assertEquals(expected.getAverage(), actual.getAverage(), EPSILON);
+        }
+      }
+    }
+    FastIDSet itemIDs = mapped.getRecommendableItemIDs(1L);
+    assertEquals(3, itemIDs.size());
+    assertEquals(3, itemIDs.intersectionSize(text.getRecommendableItemIDs(1L)));
+    // mapped diffs are left as they are
+    mapped.updateItemPref(2L, 1.0f, false);
+    assertEquals(1.0, mapped.getDiff(1L, 2L).getAverage(), EPSILON);
+  }
+
+  private static long itemID(int index) {
+    return 7L * index + 3L;
+  }
+
+  private static void writeLines(File file, String... lines) throws Exception {
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+    try {
+      for (String line : lines) {
+        writer.println(line);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+}
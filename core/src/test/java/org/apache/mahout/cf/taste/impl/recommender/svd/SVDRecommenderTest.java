@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.svd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+
+/** <p>Tests {@link SVDRecommender}.</p> */
+public final class SVDRecommenderTest extends TasteTestCase {
+
+  public void testParallelTraining() throws Exception {
+    int numUsers = 50;
+    int numItems = 30;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefValues = new Double[numUsers][numItems];
+    for (int u = 0; u < numUsers; u++) {
+      userIDs[u] = u;
+      for (int i = 0; i < numItems; i++) {
+        if ((u + i) % 3 != 0) {
+          prefValues[u][i] = 1.0 + ((u % 5) + (i % 5)) / 2.0;
+        }
+      }
+    }
+    DataModel dataModel = getDataModel(userIDs, prefValues);
+    SVDRecommender untrained = new SVDRecommender(dataModel, 3, 0, 1);
+    SVDRecommender serial = new SVDRecommender(dataModel, 3, 30, 1);
+    SVDRecommender parallel = new SVDRecommender(dataModel, 3, 30, 4);
+    double untrainedRMSE = getTrainingRMSE(untrained);
+    double serialRMSE = getTrainingRMSE(serial);
+    double parallelRMSE = getTrainingRMSE(parallel);
+    assertTrue(serialRMSE < 0.8 * untrainedRMSE);
+    assertTrue(parallelRMSE < 0.8 * untrainedRMSE);
+    assertEquals(serialRMSE, parallelRMSE, 0.1 * serialRMSE);
+  }
+
+  public void testRefreshRetrains() throws Exception {
+    File dataFile = getTestTempFile("svd.txt");
+    writeLines(dataFile, "1,1,1.0", "1,2,2.0", "2,1,3.0", "2,3,4.0", "3,2,5.0", "3,3,1.0");
+    Recommender recommender = new SVDRecommender(new FileDataModel(dataFile), 2, 5, 2);
+    assertFalse(Float.isNaN(recommender.estimatePreference(1, 3)));
+    try {
+      recommender.estimatePreference(4, 1);
+      fail();
+    } catch (NoSuchUserException nsue) {
+      // expected
+    }
+
+    File updateFile = getTestTempFile("svd.1.txt");
+    writeLines(updateFile, "4,1,2.0", "4,3,3.0");
+    updateFile.setLastModified(System.currentTimeMillis() + 120000L);
+    recommender.refresh(null);
+    assertFalse(Float.isNaN(recommender.estimatePreference(4, 2)));
+  }
+
+  private static double getTrainingRMSE(Recommender recommender) throws TasteException {
+    DataModel dataModel = recommender.getDataModel();
+    double squaredError = 0.0;
+    int count = 0;
+    LongPrimitiveIterator it = dataModel.getUserIDs();
+    while (it.hasNext()) {
+      for (Preference pref : dataModel.getPreferencesFromUser(it.nextLong())) {
+        double error = pref.getValue() - recommender.estimatePreference(pref.getUserID(), pref.getItemID());
+        squaredError += error * error;
+        count++;
+      }
+    }
+    return Math.sqrt(squaredError / count);
+  }
+
+  private static void writeLines(File file, String... lines) throws Exception {
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+    try {
+      for (String line : lines) {
+        writer.println(line);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.common.RandomUtils;
+
+/** <p>Tests {@link ItemSimilarityIndex}.</p> */
+public final class ItemSimilarityIndexTest extends SimilarityTestCase {
+
+  public void testSimple() {
+    ItemSimilarityIndex index = new ItemSimilarityIndex(getSimilarities());
+    assertEquals(4, index.getNumItems());
+    assertEquals(6, index.getNumEntries());
+    assertCorrelationEquals(1.0, index.similarity(1, 1));
+    assertCorrelationEquals(0.6, index.similarity(1, 2));
+    assertCorrelationEquals(0.6, index.similarity(2, 1));
+    assertCorrelationEquals(0.3, index.similarity(3, 1));
+    assertCorrelationEquals(-0.2, index.similarity(1, 4));
+    assertCorrelationEquals(Double.NaN, index.similarity(2, 3));
+    assertCorrelationEquals(Double.NaN, index.similarity(3, 5));
+
+    long[] mostSimilar = index.getMostSimilarItemIDs(1, 10);
+    assertEquals(3, mostSimilar.length);
+    assertEquals(2, mostSimilar[0]);
+    assertEquals(3, mostSimilar[1]);
+    assertEquals(4, mostSimilar[2]);
+    assertEquals(0, index.getMostSimilarItemIDs(5, 10).length);
+
+    long[] neighborIDs = new long[2];
+    float[] neighborSimilarities = new float[2];
+    assertEquals(2, index.getNeighbors(1, neighborIDs, neighborSimilarities));
+    assertEquals(3, neighborIDs[1]);
+    assertEquals(0.3f, neighborSimilarities[1], EPSILON);
+  }
+
+  public void testMaxNeighbors() {
+    ItemSimilarityIndex index = new ItemSimilarityIndex(getSimilarities(), 1);
+    assertEquals(1, index.getNumNeighbors(1));
+    assertEquals(1, index.getNumNeighbors(4));
+    assertEquals(4, index.getNumEntries());
+    // item 1 only kept item 2, but item 3 kept item 1
+    assertCorrelationEquals(0.3, index.similarity(1, 3));
+    assertCorrelationEquals(-0.2, index.similarity(1, 4));
+  }
+
+  public void testAgainstGenericItemSimilarity() {
+    Random random = RandomUtils.getRandom();
+    List<GenericItemSimilarity.ItemItemSimilarity> similarities =
+        new ArrayList<GenericItemSimilarity.ItemItemSimilarity>();
+    for (int i = 0; i < 5000; i++) {
+      similarities.add(new GenericItemSimilarity.ItemItemSimilarity(random.nextInt(100), random.nextInt(100),
+          2.0 * random.nextDouble() - 1.0));
+    }
+    GenericItemSimilarity expected = new GenericItemSimilarity(similarities);
+    ItemSimilarityIndex index = new ItemSimilarityIndex(similarities);
+    for (long itemID1 = 0; itemID1 < 101; itemID1++) {
+      float last = Float.POSITIVE_INFINITY;
+      long[] mostSimilar = index.getMostSimilarItemIDs(itemID1, 100);
+      for (long itemID2 : mostSimilar) {
+        float similarity = (float) index.similarity(itemID1, itemID2);
+        assertTrue(similarity <= last);
+        last = similarity;
+      }
+      for (long itemID2 = 0; itemID2 < 101; itemID2++) {
+        assertCorrelationEquals(expected.itemSimilarity(itemID1, itemID2), index.similarity(itemID1, itemID2));
+      }
+    }
+  }
+
+  public void testWriteAndMap() throws Exception {
+    ItemSimilarityIndex index = new ItemSimilarityIndex(getSimilarities());
+    File indexFile = getTestTempFile("similarities.bin");
+    index.write(indexFile);
+    ItemSimilarityIndex mapped = new ItemSimilarityIndex(indexFile);
+    assertEquals(index.getNumItems(), mapped.getNumItems());
+    assertEquals(index.getNumEntries(), mapped.getNumEntries());
+    for (long itemID1 = 1; itemID1 <= 5; itemID1++) {
+      for (long itemID2 = 1; itemID2 <= 5; itemID2++) {
+        assertCorrelationEquals(index.similarity(itemID1, itemID2), mapped.similarity(itemID1, itemID2));
+      }
+    }
+    GenericItemSimilarity itemSimilarity = new GenericItemSimilarity(mapped);
+    assertSame(mapped, itemSimilarity.getIndex());
+    assertCorrelationEquals(0.6, itemSimilarity.itemSimilarity(2, 1));
+  }
+
+  public void testReadSimilarities() throws Exception {
+    File directory = getTestTempDir("similarities");
+    writeLines(new File(directory, "part-00000"), "1\t2\t0.5", "1\t3\t0.3");
+    writeLines(new File(directory, "part-00001"), "2,1,0.6", "", "1,4,-0.2");
+    writeLines(new File(directory, "_logs"), "not similarities");
+    ItemSimilarityIndex index = ItemSimilarityIndex.readSimilarities(directory, ItemSimilarityIndex.NO_MAX_NEIGHBORS);
+    assertEquals(4, index.getNumItems());
+    assertCorrelationEquals(0.6, index.similarity(1, 2));
+    assertCorrelationEquals(0.3, index.similarity(1, 3));
+    assertCorrelationEquals(-0.2, index.similarity(4, 1));
+  }
+
+  private static List<GenericItemSimilarity.ItemItemSimilarity> getSimilarities() {
+    List<GenericItemSimilarity.ItemItemSimilarity> similarities =
+        new ArrayList<GenericItemSimilarity.ItemItemSimilarity>(5);
+    similarities.add(new GenericItemSimilarity.ItemItemSimilarity(1, 2, 0.5));
+    similarities.add(new GenericItemSimilarity.ItemItemSimilarity(2, 1, 0.6));
+    similarities.add(new GenericItemSimilarity.ItemItemSimilarity(1, 1, 0.5));
+    similarities.add(new GenericItemSimilarity.ItemItemSimilarity(1, 3, 0.3));
+    similarities.add(new GenericItemSimilarity.ItemItemSimilarity(4, 1, -0.2));
+    return similarities;
+  }
+
+  private static void writeLines(File file, String... lines) throws Exception {
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+    try {
+      for (String line : lines) {
+        writer.println(line);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/** <p>Tests {@link LocalitySensitiveHashIndex}.</p> */
+public final class LocalitySensitiveHashIndexTest extends TasteTestCase {
+
+  private static final int NUM_CLUSTERS = 10;
+  private static final int USERS_PER_CLUSTER = 10;
+
+  public void testMinHash() throws Exception {
+    DataModel dataModel = getClusteredBooleanDataModel(NUM_CLUSTERS, USERS_PER_CLUSTER, 20);
+    LocalitySensitiveHashIndex index = new LocalitySensitiveHashIndex(dataModel, true,
+        LocalitySensitiveHashIndex.HashFamily.MIN_HASH, 8, 2);
+    assertEquals(NUM_CLUSTERS * USERS_PER_CLUSTER, index.getNumIndexed());
+    assertUsersFindClusters(index);
+  }
+
+  public void testRandomHyperplanes() throws Exception {
+    DataModel dataModel = getClusteredBooleanDataModel(NUM_CLUSTERS, USERS_PER_CLUSTER, 20);
+    LocalitySensitiveHashIndex index = new LocalitySensitiveHashIndex(dataModel, true,
+        LocalitySensitiveHashIndex.HashFamily.RANDOM_HYPERPLANE, 24, 10);
+    assertUsersFindClusters(index);
+  }
+
+  public void testItems() throws Exception {
+    DataModel dataModel = getClusteredBooleanDataModel(NUM_CLUSTERS, USERS_PER_CLUSTER, 20);
+    LocalitySensitiveHashIndex index = new LocalitySensitiveHashIndex(dataModel, false,
+        LocalitySensitiveHashIndex.HashFamily.MIN_HASH, 8, 2);
+    FastIDSet candidates = index.getCandidates(3003L);
+    assertFalse(candidates.contains(3003L));
+    int found = 0;
+    for (long itemID = 3000L; itemID < 3020L; itemID++) {
+      if (candidates.contains(itemID)) {
+        found++;
+      }
+    }
+    assertTrue(found >= 15);
+    assertFalse(candidates.contains(4000L));
+  }
+
+  public void testIdenticalAndOpposite() throws Exception {
+    DataModel dataModel = getDataModel(new long[] {1, 2, 3, 4}, new Double[][] {
+        {1.0, 2.0, null, 4.0},
+        {2.0, 4.0, null, 8.0},
+        {-1.0, -2.0, null, -4.0},
+        {null, null, 3.0},
+    });
+    LocalitySensitiveHashIndex index = new LocalitySensitiveHashIndex(dataModel, true,
+        LocalitySensitiveHashIndex.HashFamily.RANDOM_HYPERPLANE, 4, 8);
+    FastIDSet candidates = index.getCandidates(1L);
+    assertEquals(1, candidates.size());
+    assertTrue(candidates.contains(2L));
+    assertEquals(0, index.getCandidates(5L).size());
+
+    LocalitySensitiveHashIndex minHashIndex = new LocalitySensitiveHashIndex(dataModel, true,
+        LocalitySensitiveHashIndex.HashFamily.MIN_HASH, 4, 8);
+    candidates = minHashIndex.getCandidates(1L);
+    assertEquals(2, candidates.size());
+    assertFalse(candidates.contains(4L));
+  }
+
+  public void testArguments() throws Exception {
+    DataModel dataModel = getDataModel();
+    try {
+      new LocalitySensitiveHashIndex(dataModel, true, LocalitySensitiveHashIndex.HashFamily.RANDOM_HYPERPLANE, 1,
+          65);
+      fail();
+    } catch (IllegalArgumentException iae) {
+      // good
+    }
+    try {
+      new LocalitySensitiveHashIndex(dataModel, true, LocalitySensitiveHashIndex.HashFamily.MIN_HASH, 0, 1);
+      fail();
+    } catch (IllegalArgumentException iae) {
+      // good
+    }
+  }
+
+  private static void assertUsersFindClusters(LocalitySensitiveHashIndex index) throws Exception {
+    int found = 0;
+    int outside = 0;
+    for (long userID = 0; userID < NUM_CLUSTERS * USERS_PER_CLUSTER; userID++) {
+      FastIDSet candidates = index.getCandidates(userID);
+      assertFalse(candidates.contains(userID));
+      LongPrimitiveIterator it = candidates.iterator();
+      while (it.hasNext()) {
+        if (it.nextLong() / USERS_PER_CLUSTER == userID / USERS_PER_CLUSTER) {
+          found++;
+        } else {
+          outside++;
+        }
+      }
+    }
+    int clusterMates = NUM_CLUSTERS * USERS_PER_CLUSTER * (USERS_PER_CLUSTER - 1);
+    assertTrue(found >= 0.9 * clusterMates);
+    assertTrue(outside < found);
+  }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
+import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.common.commandline.DefaultOptionCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times loading a {@link FileDataModel} from a synthetic ratings file with increasing numbers of parsing
+ * threads; see {@link FileDataModel#setParsingThreads(int)}.
+ */
+public class FileDataModelBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(FileDataModelBenchmark.class);
+
+  private final File dataFile;
+
+  public FileDataModelBenchmark(File dataFile) {
+    this.dataFile = dataFile;
+  }
+
+  /** Writes lines of user ID, item ID and rating, with a popularity skew towards low item IDs. */
+  public void writeRatings(long numLines, int numUsers, int numItems) throws IOException {
+    Random random = RandomUtils.getRandom();
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(dataFile), Charset.forName("UTF-8")), 1 << 16);
+    try {
+      for (long i = 0; i < numLines; i++) {
+        int userID = random.nextInt(numUsers);
+        int itemID = (int) Math.min(numItems - 1, Math.abs(random.nextGaussian()) * numItems / 3);
+        writer.write(userID + "," + itemID + ',' + (1 + random.nextInt(5)) + '\n');
+      }
+    } finally {
+      writer.close();
+    }
+    log.info("Wrote {} lines, {} bytes, to {}", new Object[] {numLines, dataFile.length(), dataFile});
+  }
+
+  public void benchmark(int parsingThreads) throws IOException, TasteException {
+    long start = System.currentTimeMillis();
+    FileDataModel model = new FileDataModel(dataFile);
+    model.setParsingThreads(parsingThreads);
+    int numUsers = model.getNumUsers();
+    long time = System.currentTimeMillis() - start;
+    log.info("{} parsing threads: loaded {} users in {} ms", new Object[] {parsingThreads, numUsers, time});
+  }
+
+  public static void main(String[] args) throws IOException, TasteException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option numLinesOpt = obuilder.withLongName("numLines").withRequired(false).withArgument(
+      abuilder.withName("nl").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of lines in the synthetic file. Default: 50000000").withShortName("nl").create();
+    Option numUsersOpt = obuilder.withLongName("numUsers").withRequired(false).withArgument(
+      abuilder.withName("nu").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of users. Default: 500000").withShortName("nu").create();
+    Option numItemsOpt = obuilder.withLongName("numItems").withRequired(false).withArgument(
+      abuilder.withName("ni").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of items. Default: 20000").withShortName("ni").create();
+    Option threadsOpt = obuilder.withLongName("threads").withRequired(false).withArgument(
+      abuilder.withName("t").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Comma separated numbers of parsing threads. Default: 1 and every power of two up to the number of cores")
+      .withShortName("t").create();
+    Option fileOpt = obuilder.withLongName("file").withRequired(false).withArgument(
+      abuilder.withName("f").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Ratings file to load; written first if it does not exist. Default: a temporary file").withShortName("f")
+      .create();
+
+    Option helpOpt = DefaultOptionCreator.helpOption();
+
+    Group group = gbuilder.withName("Options").withOption(numLinesOpt).withOption(numUsersOpt)
+        .withOption(numItemsOpt).withOption(threadsOpt).withOption(fileOpt).withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption(helpOpt)) {
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      long numLines = 50000000L;
+      if (cmdLine.hasOption(numLinesOpt)) {
+        numLines = Long.parseLong((String) cmdLine.getValue(numLinesOpt));
+      }
+      int numUsers = 500000;
+      if (cmdLine.hasOption(numUsersOpt)) {
+        numUsers = Integer.parseInt((String) cmdLine.getValue(numUsersOpt));
+      }
+      int numItems = 20000;
+      if (cmdLine.hasOption(numItemsOpt)) {
+        numItems = Integer.parseInt((String) cmdLine.getValue(numItemsOpt));
+      }
+      StringBuilder threads = new StringBuilder("1");
+      for (int t = 2; t <= Runtime.getRuntime().availableProcessors(); t *= 2) {
+        threads.append(',').append(t);
+      }
+      if (cmdLine.hasOption(threadsOpt)) {
+        threads = new StringBuilder((String) cmdLine.getValue(threadsOpt));
+      }
+      File dataFile;
+      if (cmdLine.hasOption(fileOpt)) {
+        dataFile = new File((String) cmdLine.getValue(fileOpt));
+      } else {
+        dataFile = File.createTempFile("ratings", ".csv");
+        dataFile.delete();
+        dataFile.deleteOnExit();
+      }
+
+      FileDataModelBenchmark benchmark = new FileDataModelBenchmark(dataFile);
+      if (!dataFile.exists()) {
+        benchmark.writeRatings(numLines, numUsers, numItems);
+      }
+      for (String t : threads.toString().split(",")) {
+        benchmark.benchmark(Integer.parseInt(t.trim()));
+      }
+    } catch (OptionException e) {
+      CommandLineUtil.printHelp(group);
+    }
+  }
+
+}
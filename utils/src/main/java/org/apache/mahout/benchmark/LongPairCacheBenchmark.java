@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
+import org.apache.mahout.cf.taste.impl.common.LongPairCache;
+import org.apache.mahout.cf.taste.impl.common.Retriever;
+import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.LongPair;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.common.commandline.DefaultOptionCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares lookups in a {@link Cache} of {@link LongPair} keys and {@link Double} values, as the caching
+ * similarities used to keep, with lookups in a {@link LongPairCache}, from several threads over the same
+ * random pairs of IDs. Each run is repeated so that the JIT has compiled both before the last one.
+ */
+public class LongPairCacheBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(LongPairCacheBenchmark.class);
+
+  private final long[] keys1;
+  private final long[] keys2;
+  private final int maxEntries;
+
+  public LongPairCacheBenchmark(int numLookups, int numIDs, int maxEntries) {
+    Random random = RandomUtils.getRandom();
+    keys1 = new long[numLookups];
+    keys2 = new long[numLookups];
+    for (int i = 0; i < numLookups; i++) {
+      // skewed towards low IDs, as popular items are looked up more often
+      keys1[i] = (long) Math.min(numIDs - 1, Math.abs(random.nextGaussian()) * numIDs / 3);
+      keys2[i] = (long) Math.min(numIDs - 1, Math.abs(random.nextGaussian()) * numIDs / 3);
+    }
+    this.maxEntries = maxEntries;
+  }
+
+  private static double similarity(long key1, long key2) {
+    return 1.0 / (1.0 + Math.abs(key1 - key2));
+  }
+
+  public void benchmark(int numThreads) throws InterruptedException, ExecutionException {
+    final Cache<LongPair,Double> objectCache = new Cache<LongPair,Double>(new Retriever<LongPair,Double>() {
+      @Override
+      public Double get(LongPair key) {
+        return similarity(key.getFirst(), key.getSecond());
+      }
+    }, maxEntries);
+    final LongPairCache primitiveCache = new LongPairCache(new LongPairCache.ValueRetriever() {
+      @Override
+      public double get(long key1, long key2) {
+        return similarity(key1, key2);
+      }
+    }, maxEntries);
+
+    long objectTime = time(numThreads, new Lookups() {
+      @Override
+      double lookUp(long key1, long key2) throws TasteException {
+        return objectCache.get(new LongPair(key1, key2));
+      }
+    });
+    long primitiveTime = time(numThreads, new Lookups() {
+      @Override
+      double lookUp(long key1, long key2) throws TasteException {
+        return primitiveCache.get(key1, key2);
+      }
+    });
+    log.info("{} threads, {} lookups each: Cache<LongPair,Double> {} ms, LongPairCache {} ms",
+        new Object[] {numThreads, keys1.length, objectTime, primitiveTime});
+    log.info("Cache hit {} times of {}; LongPairCache hit {} times of {}", new Object[] {objectCache.getHitCount(),
+        objectCache.getHitCount() + objectCache.getMissCount(), primitiveCache.getHitCount(),
+        primitiveCache.getHitCount() + primitiveCache.getMissCount()});
+  }
+
+  private long time(int numThreads, final Lookups lookups) throws InterruptedException, ExecutionException {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Double>> futures = new ArrayList<Future<Double>>(numThreads);
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < numThreads; t++) {
+        final int offset = t * (keys1.length / numThreads);
+        futures.add(executor.submit(new Callable<Double>() {
+          @Override
+          public Double call() throws TasteException {
+            double sum = 0.0;
+            int numLookups = keys1.length;
+            for (int i = 0; i < numLookups; i++) {
+              int j = (i + offset) % numLookups;
+              sum += lookups.lookUp(keys1[j], keys2[j]);
+            }
+            return sum;
+          }
+        }));
+      }
+      for (Future<Double> future : futures) {
+        future.get();
+      }
+      return System.currentTimeMillis() - start;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private abstract static class Lookups {
+    abstract double lookUp(long key1, long key2) throws TasteException;
+  }
+
+  public static void main(String[] args) throws InterruptedException, ExecutionException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option numLookupsOpt = obuilder.withLongName("numLookups").withRequired(false).withArgument(
+      abuilder.withName("nl").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of lookups per thread. Default: 5000000").withShortName("nl").create();
+    Option numIDsOpt = obuilder.withLongName("numIDs").withRequired(false).withArgument(
+      abuilder.withName("ni").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of distinct IDs in each half of a pair. Default: 2000").withShortName("ni").create();
+    Option maxEntriesOpt = obuilder.withLongName("maxEntries").withRequired(false).withArgument(
+      abuilder.withName("me").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Maximum size of the caches. Default: 100000").withShortName("me").create();
+    Option threadsOpt = obuilder.withLongName("threads").withRequired(false).withArgument(
+      abuilder.withName("t").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Comma separated numbers of threads. Default: 1 and every power of two up to the number of cores")
+      .withShortName("t").create();
+
+    Option helpOpt = DefaultOptionCreator.helpOption();
+
+    Group group = gbuilder.withName("Options").withOption(numLookupsOpt).withOption(numIDsOpt)
+        .withOption(maxEntriesOpt).withOption(threadsOpt).withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption(helpOpt)) {
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      int numLookups = 5000000;
+      if (cmdLine.hasOption(numLookupsOpt)) {
+        numLookups = Integer.parseInt((String) cmdLine.getValue(numLookupsOpt));
+      }
+      int numIDs = 2000;
+      if (cmdLine.hasOption(numIDsOpt)) {
+        numIDs = Integer.parseInt((String) cmdLine.getValue(numIDsOpt));
+      }
+      int maxEntries = 100000;
+      if (cmdLine.hasOption(maxEntriesOpt)) {
+        maxEntries = Integer.parseInt((String) cmdLine.getValue(maxEntriesOpt));
+      }
+      StringBuilder threads = new StringBuilder("1");
+      for (int t = 2; t <= Runtime.getRuntime().availableProcessors(); t *= 2) {
+        threads.append(',').append(t);
+      }
+      if (cmdLine.hasOption(threadsOpt)) {
+        threads = new StringBuilder((String) cmdLine.getValue(threadsOpt));
+      }
+
+      LongPairCacheBenchmark benchmark = new LongPairCacheBenchmark(numLookups, numIDs, maxEntries);
+      for (String t : threads.toString().split(",")) {
+        int numThreads = Integer.parseInt(t.trim());
+        for (int run = 0; run < 3; run++) {
+          benchmark.benchmark(numThreads);
+        }
+      }
+    } catch (OptionException e) {
+      CommandLineUtil.printHelp(group);
+    }
+  }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.benchmark;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
+import org.apache.mahout.cf.taste.impl.neighborhood.LocalitySensitiveUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.LocalitySensitiveHashIndex;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.common.commandline.DefaultOptionCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the recall and latency of neighborhoods and most similar items found through a
+ * {@link LocalitySensitiveHashIndex} with those found exhaustively by {@link NearestNUserNeighborhood} and
+ * {@link GenericItemBasedRecommender}, for several numbers of bands and rows, on synthetic boolean data of
+ * users whose preferences mostly fall in the items of one of a number of groups. Both kinds of hash are
+ * measured against the {@link TanimotoCoefficientSimilarity}: as every user has the same number of
+ * preferences, the cosines random hyperplanes approximate rank users the same way.
+ */
+public class NearestNeighborBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(NearestNeighborBenchmark.class);
+
+  private final DataModel dataModel;
+  private final int howMany;
+  private final long[] queryUserIDs;
+  private final long[] queryItemIDs;
+
+  public NearestNeighborBenchmark(int numUsers, int numItems, int prefsPerUser, int numGroups, int howMany,
+                                  int numQueries) throws TasteException {
+    Random random = RandomUtils.getRandom();
+    int itemsPerGroup = Math.max(1, numItems / numGroups);
+    FastByIDMap<FastIDSet> userData = new FastByIDMap<FastIDSet>(numUsers);
+    for (int userID = 0; userID < numUsers; userID++) {
+      int group = random.nextInt(numGroups);
+      FastIDSet itemIDs = new FastIDSet(prefsPerUser);
+      while (itemIDs.size() < Math.min(prefsPerUser, numItems)) {
+        if (random.nextInt(10) < 7) {
+          itemIDs.add((group * itemsPerGroup + random.nextInt(itemsPerGroup)) % numItems);
+        } else {
+          itemIDs.add(random.nextInt(numItems));
+        }
+      }
+      userData.put(userID, itemIDs);
+    }
+    dataModel = new GenericBooleanPrefDataModel(userData);
+    this.howMany = howMany;
+    queryUserIDs = new long[numQueries];
+    queryItemIDs = new long[numQueries];
+    for (int i = 0; i < numQueries; i++) {
+      queryUserIDs[i] = random.nextInt(numUsers);
+      queryItemIDs[i] = random.nextInt(numItems);
+    }
+  }
+
+  /**
+   * @param hashFamily
+   *          kind of hash to measure
+   * @param bands
+   *          comma separated pairs of numbers of bands and rows per band, such as "10x2,20x3"
+   */
+  public void benchmark(LocalitySensitiveHashIndex.HashFamily hashFamily, String bands) throws TasteException {
+    TanimotoCoefficientSimilarity similarity = new TanimotoCoefficientSimilarity(dataModel);
+    UserNeighborhood exactNeighborhood = new NearestNUserNeighborhood(howMany, similarity, dataModel);
+    ItemBasedRecommender exactRecommender = new GenericItemBasedRecommender(dataModel, similarity);
+    long[][] exactNeighbors = new long[queryUserIDs.length][];
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < queryUserIDs.length; i++) {
+      exactNeighbors[i] = exactNeighborhood.getUserNeighborhood(queryUserIDs[i]);
+    }
+    long exactNeighborhoodTime = System.currentTimeMillis() - start;
+    double[][] exactSimilarItems = new double[queryItemIDs.length][];
+    start = System.currentTimeMillis();
+    for (int i = 0; i < queryItemIDs.length; i++) {
+      exactSimilarItems[i] = toSimilarities(exactRecommender.mostSimilarItems(queryItemIDs[i], howMany));
+    }
+    long exactItemsTime = System.currentTimeMillis() - start;
+    log.info("{} exhaustive: neighborhood {} ms/query, most similar items {} ms/query", new Object[] {hashFamily,
+        (double) exactNeighborhoodTime / queryUserIDs.length, (double) exactItemsTime / queryItemIDs.length});
+
+    for (String band : bands.split(",")) {
+      String[] bandsAndRows = band.trim().split("x");
+      int numBands = Integer.parseInt(bandsAndRows[0]);
+      int rowsPerBand = Integer.parseInt(bandsAndRows[1]);
+
+      start = System.currentTimeMillis();
+      LocalitySensitiveHashIndex userIndex =
+          new LocalitySensitiveHashIndex(dataModel, true, hashFamily, numBands, rowsPerBand);
+      LocalitySensitiveHashIndex itemIndex =
+          new LocalitySensitiveHashIndex(dataModel, false, hashFamily, numBands, rowsPerBand);
+      long buildTime = System.currentTimeMillis() - start;
+      UserNeighborhood neighborhood = new LocalitySensitiveUserNeighborhood(howMany, Double.NEGATIVE_INFINITY,
+          similarity, dataModel, userIndex);
+      ItemBasedRecommender recommender = new GenericItemBasedRecommender(dataModel, similarity, null, itemIndex);
+
+      start = System.currentTimeMillis();
+      int foundNeighbors = 0;
+      int totalNeighbors = 0;
+      for (int i = 0; i < queryUserIDs.length; i++) {
+        long userID = queryUserIDs[i];
+        long[] neighbors = neighborhood.getUserNeighborhood(userID);
+        double[] exactSimilarities = new double[exactNeighbors[i].length];
+        for (int j = 0; j < exactSimilarities.length; j++) {
+          exactSimilarities[j] = similarity.userSimilarity(userID, exactNeighbors[i][j]);
+        }
+        double[] similarities = new double[neighbors.length];
+        for (int j = 0; j < similarities.length; j++) {
+          similarities[j] = similarity.userSimilarity(userID, neighbors[j]);
+        }
+        foundNeighbors += countFound(exactSimilarities, similarities);
+        totalNeighbors += exactNeighbors[i].length;
+      }
+      long neighborhoodTime = System.currentTimeMillis() - start;
+      start = System.currentTimeMillis();
+      int foundItems = 0;
+      int totalItems = 0;
+      for (int i = 0; i < queryItemIDs.length; i++) {
+        foundItems += countFound(exactSimilarItems[i],
+            toSimilarities(recommender.mostSimilarItems(queryItemIDs[i], howMany)));
+        totalItems += exactSimilarItems[i].length;
+      }
+      long itemsTime = System.currentTimeMillis() - start;
+
+      log.info("{} bands x {} rows, built in {} ms: neighborhood recall {} in {} ms/query, "
+          + "most similar items recall {} in {} ms/query", new Object[] {numBands, rowsPerBand, buildTime,
+          (double) foundNeighbors / Math.max(1, totalNeighbors), (double) neighborhoodTime / queryUserIDs.length,
+          (double) foundItems / Math.max(1, totalItems), (double) itemsTime / queryItemIDs.length});
+    }
+  }
+
+  private static double[] toSimilarities(List<RecommendedItem> items) {
+    double[] similarities = new double[items.size()];
+    for (int i = 0; i < similarities.length; i++) {
+      similarities[i] = items.get(i).getValue();
+    }
+    return similarities;
+  }
+
+  /**
+   * Counts the nearest neighbors found, by similarity rather than by ID, since of neighbors equally similar to
+   * the last nearest one any would do.
+   */
+  private static int countFound(double[] expectedSimilarities, double[] actualSimilarities) {
+    if (expectedSimilarities.length == 0) {
+      return 0;
+    }
+    double lowest = expectedSimilarities[expectedSimilarities.length - 1];
+    int found = 0;
+    for (double actual : actualSimilarities) {
+      if (actual >= lowest - 1.0e-6) {
+        found++;
+      }
+    }
+    return Math.min(found, expectedSimilarities.length);
+  }
+
+  public static void main(String[] args) throws TasteException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option numUsersOpt = obuilder.withLongName("numUsers").withRequired(false).withArgument(
+      abuilder.withName("nu").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of users. Default: 50000").withShortName("nu").create();
+    Option numItemsOpt = obuilder.withLongName("numItems").withRequired(false).withArgument(
+      abuilder.withName("ni").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of items. Default: 5000").withShortName("ni").create();
+    Option prefsPerUserOpt = obuilder.withLongName("prefsPerUser").withRequired(false).withArgument(
+      abuilder.withName("pu").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of preferences per user. Default: 30").withShortName("pu").create();
+    Option numGroupsOpt = obuilder.withLongName("numGroups").withRequired(false).withArgument(
+      abuilder.withName("ng").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of groups of items users mostly prefer one of. Default: 100").withShortName("ng").create();
+    Option howManyOpt = obuilder.withLongName("howMany").withRequired(false).withArgument(
+      abuilder.withName("n").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of neighbors or similar items to find. Default: 10").withShortName("n").create();
+    Option numQueriesOpt = obuilder.withLongName("numQueries").withRequired(false).withArgument(
+      abuilder.withName("nq").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of users and of items to look up. Default: 100").withShortName("nq").create();
+    Option minHashBandsOpt = obuilder.withLongName("minHashBands").withRequired(false).withArgument(
+      abuilder.withName("mb").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Comma separated bands x rows per band for min-hashing. Default: 20x1,50x2,100x3")
+      .withShortName("mb").create();
+    Option hyperplaneBandsOpt = obuilder.withLongName("hyperplaneBands").withRequired(false).withArgument(
+      abuilder.withName("hb").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Comma separated bands x rows per band for random hyperplanes. Default: 20x8,50x10,100x12")
+      .withShortName("hb").create();
+
+    Option helpOpt = DefaultOptionCreator.helpOption();
+
+    Group group = gbuilder.withName("Options").withOption(numUsersOpt).withOption(numItemsOpt)
+        .withOption(prefsPerUserOpt).withOption(numGroupsOpt).withOption(howManyOpt).withOption(numQueriesOpt)
+        .withOption(minHashBandsOpt).withOption(hyperplaneBandsOpt).withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption(helpOpt)) {
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      int numUsers = 50000;
+      if (cmdLine.hasOption(numUsersOpt)) {
+        numUsers = Integer.parseInt((String) cmdLine.getValue(numUsersOpt));
+      }
+      int numItems = 5000;
+      if (cmdLine.hasOption(numItemsOpt)) {
+        numItems = Integer.parseInt((String) cmdLine.getValue(numItemsOpt));
+      }
+      int prefsPerUser = 30;
+      if (cmdLine.hasOption(prefsPerUserOpt)) {
+        prefsPerUser = Integer.parseInt((String) cmdLine.getValue(prefsPerUserOpt));
+      }
+      int numGroups = 100;
+      if (cmdLine.hasOption(numGroupsOpt)) {
+        numGroups = Integer.parseInt((String) cmdLine.getValue(numGroupsOpt));
+      }
+      int howMany = 10;
+      if (cmdLine.hasOption(howManyOpt)) {
+        howMany = Integer.parseInt((String) cmdLine.getValue(howManyOpt));
+      }
+      int numQueries = 100;
+      if (cmdLine.hasOption(numQueriesOpt)) {
+        numQueries = Integer.parseInt((String) cmdLine.getValue(numQueriesOpt));
+      }
+      String minHashBands = "20x1,50x2,100x3";
+      if (cmdLine.hasOption(minHashBandsOpt)) {
+        minHashBands = (String) cmdLine.getValue(minHashBandsOpt);
+      }
+      String hyperplaneBands = "20x8,50x10,100x12";
+      if (cmdLine.hasOption(hyperplaneBandsOpt)) {
+        hyperplaneBands = (String) cmdLine.getValue(hyperplaneBandsOpt);
+      }
+
+      NearestNeighborBenchmark benchmark =
+          new NearestNeighborBenchmark(numUsers, numItems, prefsPerUser, numGroups, howMany, numQueries);
+      benchmark.benchmark(LocalitySensitiveHashIndex.HashFamily.MIN_HASH, minHashBands);
+      benchmark.benchmark(LocalitySensitiveHashIndex.HashFamily.RANDOM_HYPERPLANE, hyperplaneBands);
+    } catch (OptionException e) {
+      CommandLineUtil.printHelp(group);
+    }
+  }
+
+}
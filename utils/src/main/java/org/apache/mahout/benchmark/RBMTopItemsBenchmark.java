@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.recommender.rbm.RBMPrecision;
+import org.apache.mahout.cf.taste.impl.recommender.rbm.RBMSnapshot;
+import org.apache.mahout.cf.taste.impl.recommender.rbm.RBMState;
+import org.apache.mahout.cf.taste.impl.recommender.rbm.RBMTopItems;
+import org.apache.mahout.cf.taste.impl.recommender.rbm.RBMTrainer;
+import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.common.commandline.DefaultOptionCreator;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the number of items scored, and the time taken, by {@link RBMTopItems} with scoring the whole
+ * catalogue, for RBMs trained on synthetic users of catalogues of increasing size.
+ */
+public class RBMTopItemsBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(RBMTopItemsBenchmark.class);
+
+  private final int numFeatures;
+  private final int numUsers;
+  private final int ratingsPerUser;
+  private final int howMany;
+  private final int epochs;
+
+  public RBMTopItemsBenchmark(int numFeatures, int numUsers, int ratingsPerUser, int howMany, int epochs) {
+    this.numFeatures = numFeatures;
+    this.numUsers = numUsers;
+    this.ratingsPerUser = ratingsPerUser;
+    this.howMany = howMany;
+    this.epochs = epochs;
+  }
+
+  public void benchmark(int numItems) throws TasteException {
+    List<Vector> users = randomUsers(numItems);
+    RBMState state = new RBMState(numItems, numFeatures, 5, 0.001, 0.008, 0.0006, 0.0001, 0.8, 0.9);
+    RBMTrainer trainer = new RBMTrainer(state, users);
+    trainer.initialize();
+    trainer.train(epochs);
+    RBMSnapshot snapshot = RBMSnapshot.of(state, RBMPrecision.FLOAT64);
+
+    double[] probs = new double[numFeatures];
+    double[] all = new double[numItems];
+    int[] items = new int[howMany];
+    double[] estimates = new double[howMany];
+    RBMTopItems search = new RBMTopItems(snapshot);
+    long scored = 0;
+    long candidates = 0;
+    long fullTime = 0;
+    long prunedTime = 0;
+    // the first pass warms up the JIT
+    for (int pass = 0; pass < 2; pass++) {
+      scored = 0;
+      candidates = 0;
+      fullTime = 0;
+      prunedTime = 0;
+      for (Vector user : users) {
+        snapshot.hiddenProbabilities(user, probs);
+        BitSet rated = new BitSet(numItems);
+        Iterator<Vector.Element> it = user.iterateNonZero();
+        while (it.hasNext()) {
+          rated.set(it.next().index());
+        }
+
+        long start = System.nanoTime();
+        snapshot.estimateAll(probs, all);
+        for (int item = rated.nextSetBit(0); item >= 0; item = rated.nextSetBit(item + 1)) {
+          all[item] = Double.NEGATIVE_INFINITY;
+        }
+        Arrays.sort(all);
+        fullTime += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        search.getTopItems(probs, howMany, rated, items, estimates);
+        prunedTime += System.nanoTime() - start;
+        scored += search.getNumScored();
+        candidates += search.getNumCandidates();
+      }
+    }
+    log.info("Catalogue {}: scored {} of {} candidates per user ({}%), {} us per user instead of {} us",
+      new Object[] {numItems, scored / numUsers, candidates / numUsers, 100 * scored / candidates,
+                    prunedTime / 1000 / numUsers, fullTime / 1000 / numUsers});
+  }
+
+  /** Users with one latent taste and a popularity skew, like real ratings */
+  private List<Vector> randomUsers(int numItems) {
+    Random random = RandomUtils.getRandom();
+    double[] itemTaste = new double[numItems];
+    for (int i = 0; i < numItems; i++) {
+      itemTaste[i] = random.nextGaussian();
+    }
+    List<Vector> users = new ArrayList<Vector>(numUsers);
+    for (int u = 0; u < numUsers; u++) {
+      double userTaste = random.nextGaussian();
+      Vector ratings = new RandomAccessSparseVector(numItems, ratingsPerUser);
+      for (int k = 0; k < ratingsPerUser; k++) {
+        int item = (int) Math.min(numItems - 1, Math.abs(random.nextGaussian()) * numItems / 3);
+        double rating = Math.round(3.0 + userTaste * itemTaste[item] + 0.3 * random.nextGaussian());
+        ratings.set(item, Math.max(1.0, Math.min(5.0, rating)));
+      }
+      users.add(ratings);
+    }
+    return users;
+  }
+
+  public static void main(String[] args) throws TasteException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option catalogueOpt = obuilder.withLongName("catalogueSizes").withRequired(false).withArgument(
+      abuilder.withName("cs").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Comma separated numbers of items. Default: 1000,4000,16000").withShortName("cs").create();
+    Option numFeaturesOpt = obuilder.withLongName("numFeatures").withRequired(false).withArgument(
+      abuilder.withName("nf").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of hidden units. Default: 100").withShortName("nf").create();
+    Option numUsersOpt = obuilder.withLongName("numUsers").withRequired(false).withArgument(
+      abuilder.withName("nu").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of users. Default: 500").withShortName("nu").create();
+    Option howManyOpt = obuilder.withLongName("howMany").withRequired(false).withArgument(
+      abuilder.withName("n").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of items to recommend. Default: 10").withShortName("n").create();
+
+    Option helpOpt = DefaultOptionCreator.helpOption();
+
+    Group group = gbuilder.withName("Options").withOption(catalogueOpt).withOption(numFeaturesOpt)
+        .withOption(numUsersOpt).withOption(howManyOpt).withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption(helpOpt)) {
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      String catalogueSizes = "1000,4000,16000";
+      if (cmdLine.hasOption(catalogueOpt)) {
+        catalogueSizes = (String) cmdLine.getValue(catalogueOpt);
+      }
+      int numFeatures = 100;
+      if (cmdLine.hasOption(numFeaturesOpt)) {
+        numFeatures = Integer.parseInt((String) cmdLine.getValue(numFeaturesOpt));
+      }
+      int numUsers = 500;
+      if (cmdLine.hasOption(numUsersOpt)) {
+        numUsers = Integer.parseInt((String) cmdLine.getValue(numUsersOpt));
+      }
+      int howMany = 10;
+      if (cmdLine.hasOption(howManyOpt)) {
+        howMany = Integer.parseInt((String) cmdLine.getValue(howManyOpt));
+      }
+
+      RBMTopItemsBenchmark benchmark = new RBMTopItemsBenchmark(numFeatures, numUsers, 50, howMany, 5);
+      for (String size : catalogueSizes.split(",")) {
+        benchmark.benchmark(Integer.parseInt(size.trim()));
+      }
+    } catch (OptionException e) {
+      CommandLineUtil.printHelp(group);
+    }
+  }
+
+}
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.benchmark;
+
+import java.util.Random;
+
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.common.commandline.DefaultOptionCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how many training steps (epochs) per second {@link SVDRecommender} makes with increasing numbers of
+ * threads, on random preferences of synthetic users.
+ */
+public class SVDTrainingBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(SVDTrainingBenchmark.class);
+
+  private final DataModel dataModel;
+  private final int numFeatures;
+  private final int steps;
+
+  public SVDTrainingBenchmark(int numUsers, int numItems, int prefsPerUser, int numFeatures, int steps) {
+    Random random = RandomUtils.getRandom();
+    FastByIDMap<PreferenceArray> userData = new FastByIDMap<PreferenceArray>(numUsers);
+    for (int userID = 0; userID < numUsers; userID++) {
+      FastIDSet itemIDs = new FastIDSet(prefsPerUser);
+      while (itemIDs.size() < Math.min(prefsPerUser, numItems)) {
+        itemIDs.add(random.nextInt(numItems));
+      }
+      PreferenceArray prefs = new GenericUserPreferenceArray(itemIDs.size());
+      prefs.setUserID(0, userID);
+      LongPrimitiveIterator it = itemIDs.iterator();
+      for (int i = 0; it.hasNext(); i++) {
+        prefs.setItemID(i, it.nextLong());
+        prefs.setValue(i, 1 + random.nextInt(5));
+      }
+      userData.put(userID, prefs);
+    }
+    dataModel = new GenericDataModel(userData);
+    this.numFeatures = numFeatures;
+    this.steps = steps;
+  }
+
+  public void benchmark(int numThreads) throws TasteException {
+    SVDRecommender recommender = new SVDRecommender(dataModel, numFeatures, 0, numThreads);
+    // one step to warm up the JIT
+    recommender.train(1);
+    long start = System.currentTimeMillis();
+    recommender.train(steps);
+    long time = System.currentTimeMillis() - start;
+    log.info("{} threads: {} steps in {} ms, {} steps/s", new Object[] {numThreads, steps, time,
+        1000.0 * steps / Math.max(1L, time)});
+  }
+
+  public static void main(String[] args) throws TasteException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option numUsersOpt = obuilder.withLongName("numUsers").withRequired(false).withArgument(
+      abuilder.withName("nu").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of users. Default: 50000").withShortName("nu").create();
+    Option numItemsOpt = obuilder.withLongName("numItems").withRequired(false).withArgument(
+      abuilder.withName("ni").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of items. Default: 5000").withShortName("ni").create();
+    Option prefsPerUserOpt = obuilder.withLongName("prefsPerUser").withRequired(false).withArgument(
+      abuilder.withName("pu").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of preferences per user. Default: 50").withShortName("pu").create();
+    Option numFeaturesOpt = obuilder.withLongName("numFeatures").withRequired(false).withArgument(
+      abuilder.withName("nf").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of features. Default: 20").withShortName("nf").create();
+    Option stepsOpt = obuilder.withLongName("steps").withRequired(false).withArgument(
+      abuilder.withName("s").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Number of training steps to time. Default: 5").withShortName("s").create();
+    Option threadsOpt = obuilder.withLongName("threads").withRequired(false).withArgument(
+      abuilder.withName("t").withMinimum(1).withMaximum(1).create()).withDescription(
+      "Comma separated numbers of threads. Default: 1 and every power of two up to the number of cores")
+      .withShortName("t").create();
+
+    Option helpOpt = DefaultOptionCreator.helpOption();
+
+    Group group = gbuilder.withName("Options").withOption(numUsersOpt).withOption(numItemsOpt)
+        .withOption(prefsPerUserOpt).withOption(numFeaturesOpt).withOption(stepsOpt).withOption(threadsOpt)
+        .withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption(helpOpt)) {
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      int numUsers = 50000;
+      if (cmdLine.hasOption(numUsersOpt)) {
+        numUsers = Integer.parseInt((String) cmdLine.getValue(numUsersOpt));
+      }
+      int numItems = 5000;
+      if (cmdLine.hasOption(numItemsOpt)) {
+        numItems = Integer.parseInt((String) cmdLine.getValue(numItemsOpt));
+      }
+      int prefsPerUser = 50;
+      if (cmdLine.hasOption(prefsPerUserOpt)) {
+        prefsPerUser = Integer.parseInt((String) cmdLine.getValue(prefsPerUserOpt));
+      }
+      int numFeatures = 20;
+      if (cmdLine.hasOption(numFeaturesOpt)) {
+        numFeatures = Integer.parseInt((String) cmdLine.getValue(numFeaturesOpt));
+      }
+      int steps = 5;
+      if (cmdLine.hasOption(stepsOpt)) {
+        steps = Integer.parseInt((String) cmdLine.getValue(stepsOpt));
+      }
+      StringBuilder threads = new StringBuilder("1");
+      for (int t = 2; t <= Runtime.getRuntime().availableProcessors(); t *= 2) {
+        threads.append(',').append(t);
+      }
+      if (cmdLine.hasOption(threadsOpt)) {
+        threads = new StringBuilder((String) cmdLine.getValue(threadsOpt));
+      }
+
+      SVDTrainingBenchmark benchmark =
+          new SVDTrainingBenchmark(numUsers, numItems, prefsPerUser, numFeatures, steps);
+      for (String t : threads.toString().split(",")) {
+        benchmark.benchmark(Integer.parseInt(t.trim()));
+      }
+    } catch (OptionException e) {
+      CommandLineUtil.printHelp(group);
+    }
+  }
+
+}